@@ -0,0 +1,117 @@
+/*
+ * Copyright 2009-2023 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.benchmark;
+
+import ch.ethz.globis.tinspin.TestStats;
+import ch.ethz.globis.tinspin.data.AbstractTest;
+import org.tinspin.index.test.util.TestInstances.TST;
+
+import java.util.Random;
+
+/**
+ * Data sets for the JMH benchmarks. The data is created with the same generators
+ * that are used by the {@code TestRunner}, i.e. {@code TestPointCube}, {@code TestPointCluster},
+ * {@code TestBoxCube} and {@code TestBoxCluster}.
+ *
+ * @author Tilmann Zaeschke
+ */
+class BenchmarkData {
+
+	/** Number of pre-generated queries per query type. */
+	static final int N_QUERIES = 1000;
+
+	/** The 'param1' used for cluster data sets, see TestPointCluster and TestBoxCluster. */
+	private static final double CLUSTER_PARAM = 3.5;
+
+	private static final long SEED = 0;
+
+	final int n;
+	final int dims;
+	/** Points or box-min corners. */
+	final double[][] lo;
+	/** Box-max corners, or 'null' for point data. */
+	final double[][] hi;
+	/** Same as lo/hi, but as flat arrays. */
+	final double[] flatLo;
+	final double[] flatHi;
+	/** Shifted copies of lo/hi, used for updates. */
+	final double[][] lo2;
+	final double[][] hi2;
+	final Integer[] values;
+	final double[][] queryMin;
+	final double[][] queryMax;
+	final double[][] knnCenters;
+
+	private BenchmarkData(TST tst, int n, int dims) {
+		this.n = n;
+		this.dims = dims;
+		double param1 = (tst == TST.CLUSTER_P || tst == TST.CLUSTER_R) ? CLUSTER_PARAM : 1.0;
+		TestStats s = new TestStats(tst, null, n, dims, param1);
+		Random r = new Random(SEED);
+		AbstractTest test = tst.createInstance(r, s);
+		double[] data = test.generate();
+
+		lo = new double[n][dims];
+		lo2 = new double[n][dims];
+		values = new Integer[n];
+		boolean isBox = tst.isRangeData();
+		hi = isBox ? new double[n][dims] : null;
+		hi2 = isBox ? new double[n][dims] : null;
+		int stride = isBox ? 2 * dims : dims;
+		for (int i = 0; i < n; i++) {
+			System.arraycopy(data, i * stride, lo[i], 0, dims);
+			if (isBox) {
+				System.arraycopy(data, i * stride + dims, hi[i], 0, dims);
+			}
+			for (int d = 0; d < dims; d++) {
+				//Move each entry by a small distance. The distance is big enough to
+				//change the key but small enough to (mostly) stay in the same node.
+				double mv = (r.nextDouble() - 0.5) * test.len(d) / 1000.;
+				lo2[i][d] = lo[i][d] + mv;
+				if (isBox) {
+					hi2[i][d] = hi[i][d] + mv;
+				}
+			}
+			values[i] = i;
+		}
+
+		flatLo = new double[n * dims];
+		flatHi = isBox ? new double[n * dims] : null;
+		for (int i = 0; i < n; i++) {
+			System.arraycopy(lo[i], 0, flatLo, i * dims, dims);
+			if (isBox) {
+				System.arraycopy(hi[i], 0, flatHi, i * dims, dims);
+			}
+		}
+
+		queryMin = new double[N_QUERIES][dims];
+		queryMax = new double[N_QUERIES][dims];
+		test.generateWindowQueries(queryMin, queryMax);
+
+		knnCenters = new double[N_QUERIES][dims];
+		for (double[] c : knnCenters) {
+			for (int d = 0; d < dims; d++) {
+				c[d] = test.min(d) + r.nextDouble() * test.len(d);
+			}
+		}
+	}
+
+	static BenchmarkData create(TST tst, int n, int dims) {
+		return new BenchmarkData(tst, n, dims);
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2009-2023 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.tinspin.index.PointMap;
+import org.tinspin.index.benchmark.PointMapBenchmark.IndexType;
+import org.tinspin.index.kdtree.KDTree;
+import org.tinspin.index.test.util.TestInstances.TST;
+import org.tinspin.index.util.ConcurrentPointMap;
+import org.tinspin.index.util.ShardedPointMap;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.tinspin.index.Index.*;
+
+/**
+ * Contention benchmark: several reader threads and one writer thread access the same index.
+ * The index is either guarded with {@code synchronized} or wrapped in a {@link ConcurrentPointMap}.
+ * With {@code SNAPSHOT}, the index must be a {@code KDTREE}: the writer modifies a persistent
+ * {@link KDTree} without locking and the readers query {@link KDTree#snapshot()}.
+ * With {@code SHARDED}, the index is a {@link ShardedPointMap} with {@code nShards} shards of the given type.
+ * <p>
+ * Example with 31 readers and one writer:
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="ConcurrentMapBenchmark -tg 31,1,31,1"
+ * </pre>
+ *
+ * @author Tilmann Zaeschke
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class ConcurrentMapBenchmark {
+
+	public enum LockType {
+		SYNCHRONIZED, STAMPED, SNAPSHOT, SHARDED
+	}
+
+	@Param({"KDTREE", "QUAD_HC2", "RSTAR"})
+	public IndexType index;
+
+	@Param({"SYNCHRONIZED", "STAMPED", "SNAPSHOT", "SHARDED"})
+	public LockType lock;
+
+	@Param({"8"})
+	public int nShards;
+
+	@Param({"100000"})
+	public int n;
+
+	@Param({"3"})
+	public int dims;
+
+	private BenchmarkData d;
+	private PointMap<Integer> tree;
+	private boolean[] moved;
+	private int writePos;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		d = BenchmarkData.create(TST.CUBE_P, n, dims);
+		if (lock == LockType.SNAPSHOT && index != IndexType.KDTREE) {
+			throw new IllegalArgumentException("Snapshots require KDTREE: " + index);
+		}
+		if (lock == LockType.SHARDED && index == IndexType.STR) {
+			throw new IllegalArgumentException("Shards cannot be bulk loaded: " + index);
+		}
+		PointMap<Integer> t;
+		if (lock == LockType.SNAPSHOT) {
+			t = KDTree.createPersistent(dims);
+		} else if (lock == LockType.SHARDED) {
+			t = ShardedPointMap.create(dims, nShards, Arrays.copyOf(d.lo, 10_000), dims2 -> index.create(d));
+		} else {
+			t = index.create(d);
+		}
+		if (index != IndexType.STR) {
+			for (int i = 0; i < d.n; i++) {
+				t.insert(d.lo[i], d.values[i]);
+			}
+		}
+		tree = lock == LockType.STAMPED ? ConcurrentPointMap.create(t) : t;
+		moved = new boolean[n];
+	}
+
+	/**
+	 * Position of the next query, per thread.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		int pos;
+
+		int next(int max) {
+			if (++pos >= max) {
+				pos = 0;
+			}
+			return pos;
+		}
+	}
+
+	@Benchmark
+	@Group("queryExact")
+	@GroupThreads(3)
+	public Integer queryExactRead(Cursor c) {
+		double[] key = d.lo[c.next(d.n)];
+		if (lock == LockType.SYNCHRONIZED) {
+			synchronized (tree) {
+				return tree.queryExact(key);
+			}
+		}
+		if (lock == LockType.SNAPSHOT) {
+			return ((KDTree<Integer>) tree).snapshot().queryExact(key);
+		}
+		return tree.queryExact(key);
+	}
+
+	@Benchmark
+	@Group("queryExact")
+	@GroupThreads(1)
+	public Integer queryExactWrite() {
+		return update();
+	}
+
+	@Benchmark
+	@Group("query1nn")
+	@GroupThreads(3)
+	public PointEntryKnn<Integer> query1nnRead(Cursor c) {
+		double[] center = d.knnCenters[c.next(BenchmarkData.N_QUERIES)];
+		if (lock == LockType.SYNCHRONIZED) {
+			synchronized (tree) {
+				return tree.query1nn(center);
+			}
+		}
+		if (lock == LockType.SNAPSHOT) {
+			return ((KDTree<Integer>) tree).snapshot().query1nn(center);
+		}
+		return tree.query1nn(center);
+	}
+
+	@Benchmark
+	@Group("query1nn")
+	@GroupThreads(1)
+	public Integer query1nnWrite() {
+		return update();
+	}
+
+	/**
+	 * Moves an entry by a small distance. Every second call for a given entry moves it back.
+	 * There is only one writer thread per group.
+	 */
+	private Integer update() {
+		if (++writePos >= d.n) {
+			writePos = 0;
+		}
+		int i = writePos;
+		double[] oldKey = moved[i] ? d.lo2[i] : d.lo[i];
+		double[] newKey = moved[i] ? d.lo[i] : d.lo2[i];
+		moved[i] = !moved[i];
+		if (lock == LockType.SYNCHRONIZED) {
+			synchronized (tree) {
+				return tree.update(oldKey, newKey);
+			}
+		}
+		return tree.update(oldKey, newKey);
+	}
+}
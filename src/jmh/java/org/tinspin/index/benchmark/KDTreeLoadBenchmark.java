@@ -0,0 +1,153 @@
+/*
+ * Copyright 2009-2023 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.tinspin.index.IndexConfig;
+import org.tinspin.index.kdtree.KDTree;
+import org.tinspin.index.test.util.TestInstances.TST;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to build a kD-tree from random or sorted input, the depth of the resulting tree and
+ * the latency of exact queries on the resulting tree.
+ * The depth is printed during setup.
+ * <p>
+ * Example:
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="KDTreeLoadBenchmark -p order=SORTED"
+ * </pre>
+ *
+ * @author Tilmann Zaeschke
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class KDTreeLoadBenchmark {
+
+	public enum Order {
+		RANDOM,
+		/** Every dimension is sorted separately, i.e. the keys increase in all dimensions. */
+		SORTED
+	}
+
+	public enum Method {
+		/** insert() one by one */
+		INSERT,
+		/** insert() one by one with rebalancing, see {@link IndexConfig#setBalanceFactor(double)} */
+		INSERT_BALANCED,
+		/** load() */
+		LOAD,
+		/** load() with the common fork-join pool */
+		LOAD_PARALLEL
+	}
+
+	@Param({"RANDOM", "SORTED"})
+	public Order order;
+
+	@Param({"INSERT", "INSERT_BALANCED", "LOAD", "LOAD_PARALLEL"})
+	public Method method;
+
+	/** Balance factor for INSERT_BALANCED. */
+	@Param({"0.7"})
+	public double alpha;
+
+	@Param({"10000", "1000000"})
+	public int n;
+
+	@Param({"3"})
+	public int dims;
+
+	private double[][] keys;
+	private Integer[] values;
+	private KDTree<Integer> tree;
+	private int pos;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		if (method == Method.INSERT && order == Order.SORTED && n > 10_000) {
+			// Inserting sorted keys takes O(n^2)
+			throw new IllegalArgumentException("Too slow: n=" + n);
+		}
+		BenchmarkData d = BenchmarkData.create(TST.CUBE_P, n, dims);
+		keys = d.lo;
+		values = d.values;
+		if (order == Order.SORTED) {
+			double[] coords = new double[n];
+			for (int dim = 0; dim < dims; dim++) {
+				for (int i = 0; i < n; i++) {
+					coords[i] = keys[i][dim];
+				}
+				Arrays.sort(coords);
+				for (int i = 0; i < n; i++) {
+					keys[i][dim] = coords[i];
+				}
+			}
+		}
+		tree = createTree();
+		System.out.printf("%nDepth %s %s n=%d: %d%n", order, method, n, tree.getDepth());
+	}
+
+	private KDTree<Integer> createTree() {
+		KDTree<Integer> tree = KDTree.create(dims);
+		switch (method) {
+			case INSERT:
+				insertAll(tree);
+				break;
+			case INSERT_BALANCED:
+				tree = KDTree.create(IndexConfig.create(dims).setBalanceFactor(alpha));
+				insertAll(tree);
+				break;
+			case LOAD:
+				tree.load(keys, values);
+				break;
+			case LOAD_PARALLEL:
+				tree.load(keys, values, ForkJoinPool.commonPool());
+				break;
+			default:
+				throw new UnsupportedOperationException(method.name());
+		}
+		return tree;
+	}
+
+	private void insertAll(KDTree<Integer> tree) {
+		for (int i = 0; i < keys.length; i++) {
+			tree.insert(keys[i], values[i]);
+		}
+	}
+
+	@Benchmark
+	public KDTree<Integer> build() {
+		return createTree();
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public Integer queryExact() {
+		if (++pos >= n) {
+			pos = 0;
+		}
+		return tree.queryExact(keys[pos]);
+	}
+}
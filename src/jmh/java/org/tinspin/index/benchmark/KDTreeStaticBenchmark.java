@@ -0,0 +1,134 @@
+/*
+ * Copyright 2009-2023 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.tinspin.index.PointMap;
+import org.tinspin.index.kdtree.KDTree;
+import org.tinspin.index.kdtree.KDTreeStatic;
+import org.tinspin.index.test.util.TestInstances.TST;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.tinspin.index.Index.*;
+
+/**
+ * Query throughput of the immutable {@link KDTreeStatic} compared to a {@link KDTree} with the same entries.
+ * The approximate heap size of each tree is printed during setup.
+ * <p>
+ * Example:
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="KDTreeStaticBenchmark -p n=1000000"
+ * </pre>
+ *
+ * @author Tilmann Zaeschke
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class KDTreeStaticBenchmark {
+
+	public enum TreeType {
+		KDTREE, STATIC
+	}
+
+	@Param({"KDTREE", "STATIC"})
+	public TreeType tree;
+
+	@Param({"CUBE_P", "CLUSTER_P"})
+	public TST data;
+
+	@Param({"100000"})
+	public int n;
+
+	@Param({"3"})
+	public int dims;
+
+	@Param({"10"})
+	public int k;
+
+	private BenchmarkData d;
+	private PointMap<Integer> index;
+	private int pos;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		d = BenchmarkData.create(data, n, dims);
+		long before = usedMemory();
+		KDTree<Integer> kdTree = KDTree.create(dims);
+		kdTree.load(d.lo, d.values);
+		index = tree == TreeType.KDTREE ? kdTree : KDTreeStatic.create(dims, d.flatLo, d.values);
+		kdTree = null;
+		System.out.printf("%nMemory %s %s n=%d: %d MB%n", tree, data, n, (usedMemory() - before) >> 20);
+	}
+
+	private static long usedMemory() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		Runtime r = Runtime.getRuntime();
+		return r.totalMemory() - r.freeMemory();
+	}
+
+	private int nextQuery() {
+		if (++pos >= BenchmarkData.N_QUERIES) {
+			pos = 0;
+		}
+		return pos;
+	}
+
+	@Benchmark
+	public Integer queryExact() {
+		if (++pos >= d.n) {
+			pos = 0;
+		}
+		return index.queryExact(d.lo[pos]);
+	}
+
+	@Benchmark
+	public int queryWindow(Blackhole bh) {
+		int i = nextQuery();
+		PointIterator<Integer> it = index.query(d.queryMin[i], d.queryMax[i]);
+		int count = 0;
+		while (it.hasNext()) {
+			bh.consume(it.next());
+			count++;
+		}
+		return count;
+	}
+
+	@Benchmark
+	public PointEntryKnn<Integer> query1nn() {
+		return index.query1nn(d.knnCenters[nextQuery()]);
+	}
+
+	@Benchmark
+	public int queryKnn(Blackhole bh) {
+		PointIteratorKnn<Integer> it = index.queryKnn(d.knnCenters[nextQuery()], k);
+		int count = 0;
+		while (it.hasNext()) {
+			bh.consume(it.next());
+			count++;
+		}
+		return count;
+	}
+}
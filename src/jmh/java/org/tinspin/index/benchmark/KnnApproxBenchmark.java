@@ -0,0 +1,118 @@
+/*
+ * Copyright 2009-2023 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.tinspin.index.PointMap;
+import org.tinspin.index.benchmark.PointMapBenchmark.IndexType;
+import org.tinspin.index.test.util.TestInstances.TST;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.tinspin.index.Index.*;
+
+/**
+ * Latency of approximate kNN queries, see {@link PointMap#queryKnn(double[], int, double)}.
+ * <p>
+ * The recall for each setting is printed during setup. Recall is the fraction of results that
+ * are not farther away than the exact k-th nearest neighbor.
+ * <p>
+ * Example:
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="KnnApproxBenchmark -p dims=20"
+ * </pre>
+ *
+ * @author Tilmann Zaeschke
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class KnnApproxBenchmark {
+
+	@Param({"COVER", "KDTREE", "QUAD_PLAIN", "QUAD_HC", "QUAD_HC2", "RSTAR"})
+	public IndexType index;
+
+	@Param({"CUBE_P", "CLUSTER_P"})
+	public TST data;
+
+	@Param({"100000"})
+	public int n;
+
+	@Param({"3", "10", "20"})
+	public int dims;
+
+	@Param({"10"})
+	public int k;
+
+	@Param({"0", "0.1", "0.5", "1", "2"})
+	public double epsilon;
+
+	private BenchmarkData d;
+	private PointMap<Integer> tree;
+	private int pos;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		d = BenchmarkData.create(data, n, dims);
+		tree = index.create(d);
+		for (int i = 0; i < d.n; i++) {
+			tree.insert(d.lo[i], d.values[i]);
+		}
+		System.out.printf("%nRecall %s dims=%d k=%d epsilon=%s: %.4f%n", index, dims, k, epsilon, recall());
+	}
+
+	private double recall() {
+		long hits = 0;
+		long total = 0;
+		for (double[] center : d.knnCenters) {
+			double maxDist = 0;
+			for (PointIteratorKnn<Integer> it = tree.queryKnn(center, k); it.hasNext(); ) {
+				maxDist = Math.max(maxDist, it.next().dist());
+				total++;
+			}
+			for (PointIteratorKnn<Integer> it = tree.queryKnn(center, k, epsilon); it.hasNext(); ) {
+				if (it.next().dist() <= maxDist) {
+					hits++;
+				}
+			}
+		}
+		return total == 0 ? 1 : hits / (double) total;
+	}
+
+	private int nextQuery() {
+		if (++pos >= BenchmarkData.N_QUERIES) {
+			pos = 0;
+		}
+		return pos;
+	}
+
+	@Benchmark
+	public int queryKnn(Blackhole bh) {
+		PointIteratorKnn<Integer> it = tree.queryKnn(d.knnCenters[nextQuery()], k, epsilon);
+		int count = 0;
+		while (it.hasNext()) {
+			bh.consume(it.next());
+			count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.tinspin.index.PointDistance;
+import org.tinspin.index.kdtree.KDTree;
+import org.tinspin.index.test.util.TestInstances.TST;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.tinspin.index.Index.*;
+
+/**
+ * Latency of {@link KDTree} kNN queries for small and very large 'k'.
+ * <p>
+ * Example:
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="KnnLargeKBenchmark -p n=1000000"
+ * </pre>
+ *
+ * @author Tilmann Zaeschke
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class KnnLargeKBenchmark {
+
+	@Param({"CUBE_P", "CLUSTER_P"})
+	public TST data;
+
+	@Param({"100000"})
+	public int n;
+
+	@Param({"3"})
+	public int dims;
+
+	@Param({"1", "10", "100", "1000", "10000"})
+	public int k;
+
+	private BenchmarkData d;
+	private KDTree<Integer> tree;
+	private PointIteratorKnn<Integer> reusedIterator;
+	private int pos;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		d = BenchmarkData.create(data, n, dims);
+		tree = KDTree.create(dims);
+		for (int i = 0; i < d.n; i++) {
+			tree.insert(d.lo[i], d.values[i]);
+		}
+		reusedIterator = tree.queryKnn(d.knnCenters[0], k);
+	}
+
+	private int nextQuery() {
+		if (++pos >= BenchmarkData.N_QUERIES) {
+			pos = 0;
+		}
+		return pos;
+	}
+
+	private static int consume(QueryIteratorKnn<PointEntryKnn<Integer>> it, Blackhole bh) {
+		int count = 0;
+		while (it.hasNext()) {
+			bh.consume(it.next());
+			count++;
+		}
+		return count;
+	}
+
+	@Benchmark
+	public int queryKnn(Blackhole bh) {
+		return consume(tree.queryKnn(d.knnCenters[nextQuery()], k), bh);
+	}
+
+	@Benchmark
+	public int queryKnnReset(Blackhole bh) {
+		return consume(reusedIterator.reset(d.knnCenters[nextQuery()], k), bh);
+	}
+
+	/**
+	 * The best-first iterator that {@link KDTree#queryKnn(double[], int)} uses for large trees.
+	 * The smallest positive epsilon selects this iterator without changing the result.
+	 */
+	@Benchmark
+	public int queryKnnBestFirst(Blackhole bh) {
+		return consume(tree.queryKnn(d.knnCenters[nextQuery()], k, PointDistance.L2, Double.MIN_VALUE), bh);
+	}
+
+	@Benchmark
+	public int queryKnnVisitor(Blackhole bh) {
+		int[] count = {0};
+		tree.queryKnn(d.knnCenters[nextQuery()], k, (p, v, dist) -> {
+			bh.consume(v);
+			count[0]++;
+			return true;
+		});
+		return count[0];
+	}
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2009-2023 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.tinspin.index.BatchResult;
+import org.tinspin.index.PointMap;
+import org.tinspin.index.rtree.RTreeEntry;
+import org.tinspin.index.test.util.TestInstances.TST;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.tinspin.index.Index.*;
+
+/**
+ * JMH benchmarks for all {@link PointMap.Factory} indexes.
+ * <p>
+ * Example:
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="PointMapBenchmark -p index=KDTREE,QUAD_HC2 -p n=100000 -prof gc"
+ * </pre>
+ * Note that {@code COVER} does not support window queries, updates or removal and that
+ * {@code ARRAY} does not support re-insertion after removal.
+ *
+ * @author Tilmann Zaeschke
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class PointMapBenchmark {
+
+	public enum IndexType {
+		ARRAY, COVER, KDTREE, KDTREE_BUCKET, PHTREE, QUAD_PLAIN, QUAD_HC, QUAD_HC2, RSTAR, STR;
+
+		PointMap<Integer> create(BenchmarkData data) {
+			int dims = data.dims;
+			switch (this) {
+				case ARRAY: return PointMap.Factory.createArray(dims, data.n);
+				case COVER: return PointMap.Factory.createCoverTree(dims);
+				case KDTREE: return PointMap.Factory.createKdTree(dims);
+				case KDTREE_BUCKET: return PointMap.Factory.createKdTreeBucket(dims);
+				case PHTREE: return PointMap.Factory.createPhTree(dims);
+				case QUAD_PLAIN: return PointMap.Factory.createQuadtree(dims);
+				case QUAD_HC: return PointMap.Factory.createQuadtreeHC(dims);
+				case QUAD_HC2: return PointMap.Factory.createQuadtreeHC2(dims);
+				case RSTAR: return PointMap.Factory.createRStarTree(dims);
+				case STR: {
+					@SuppressWarnings("unchecked")
+					RTreeEntry<Integer>[] entries = (RTreeEntry<Integer>[]) new RTreeEntry<?>[data.n];
+					for (int i = 0; i < data.n; i++) {
+						entries[i] = RTreeEntry.createPoint(data.lo[i], data.values[i]);
+					}
+					return PointMap.Factory.createAndLoadStrRTree(dims, entries);
+				}
+				default: throw new UnsupportedOperationException(name());
+			}
+		}
+	}
+
+	@Param({"ARRAY", "COVER", "KDTREE", "KDTREE_BUCKET", "PHTREE", "QUAD_PLAIN", "QUAD_HC", "QUAD_HC2", "RSTAR", "STR"})
+	public IndexType index;
+
+	@Param({"CUBE_P", "CLUSTER_P"})
+	public TST data;
+
+	@Param({"10000", "100000"})
+	public int n;
+
+	@Param({"2", "3", "10"})
+	public int dims;
+
+	@Param({"10"})
+	public int k;
+
+	private BenchmarkData d;
+	private PointMap<Integer> tree;
+	private boolean[] moved;
+	private int pos;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		if (data.isRangeData()) {
+			throw new IllegalArgumentException("Point data required: " + data);
+		}
+		d = BenchmarkData.create(data, n, dims);
+		tree = load();
+		moved = new boolean[n];
+	}
+
+	private PointMap<Integer> load() {
+		PointMap<Integer> t = index.create(d);
+		if (index != IndexType.STR) {
+			for (int i = 0; i < d.n; i++) {
+				t.insert(d.lo[i], d.values[i]);
+			}
+		}
+		return t;
+	}
+
+	private int nextEntry() {
+		if (++pos >= d.n) {
+			pos = 0;
+		}
+		return pos;
+	}
+
+	private int nextQuery() {
+		if (++pos >= BenchmarkData.N_QUERIES) {
+			pos = 0;
+		}
+		return pos;
+	}
+
+	/**
+	 * Creates a new index and inserts all entries. For STR this is the bulk loading.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public PointMap<Integer> insert() {
+		return load();
+	}
+
+	/**
+	 * Creates a new index and inserts all entries with a single call to insertAll().
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public PointMap<Integer> insertAll() {
+		PointMap<Integer> t = index.create(d);
+		if (index != IndexType.STR) {
+			t.insertAll(d.flatLo, d.values);
+		}
+		return t;
+	}
+
+	@Benchmark
+	public Integer queryExact() {
+		int i = nextEntry();
+		return tree.queryExact(d.lo[i]);
+	}
+
+	@Benchmark
+	public int queryWindow(Blackhole bh) {
+		int i = nextQuery();
+		PointIterator<Integer> it = tree.query(d.queryMin[i], d.queryMax[i]);
+		int count = 0;
+		while (it.hasNext()) {
+			bh.consume(it.next());
+			count++;
+		}
+		return count;
+	}
+
+	@Benchmark
+	public int queryWindowVisitor(Blackhole bh) {
+		int i = nextQuery();
+		int[] count = {0};
+		tree.query(d.queryMin[i], d.queryMax[i], (key, value) -> {
+			bh.consume(value);
+			count[0]++;
+			return true;
+		});
+		return count[0];
+	}
+
+	@Benchmark
+	public PointEntryKnn<Integer> query1nn() {
+		return tree.query1nn(d.knnCenters[nextQuery()]);
+	}
+
+	@Benchmark
+	public int queryKnn(Blackhole bh) {
+		PointIteratorKnn<Integer> it = tree.queryKnn(d.knnCenters[nextQuery()], k);
+		int count = 0;
+		while (it.hasNext()) {
+			bh.consume(it.next());
+			count++;
+		}
+		return count;
+	}
+
+	@Benchmark
+	public int queryKnnVisitor(Blackhole bh) {
+		int[] count = {0};
+		tree.queryKnn(d.knnCenters[nextQuery()], k, (key, value, dist) -> {
+			bh.consume(value);
+			count[0]++;
+			return true;
+		});
+		return count[0];
+	}
+
+	/**
+	 * Executes all {@link BenchmarkData#N_QUERIES} kNN queries on the common ForkJoinPool.
+	 */
+	@Benchmark
+	public BatchResult<Integer> queryKnnBatch() {
+		return tree.queryKnnBatch(d.knnCenters, k);
+	}
+
+	/**
+	 * Moves an entry by a small distance. Every second call for a given entry moves it back.
+	 */
+	@Benchmark
+	public Integer update() {
+		int i = nextEntry();
+		Integer v;
+		if (moved[i]) {
+			v = tree.update(d.lo2[i], d.lo[i]);
+		} else {
+			v = tree.update(d.lo[i], d.lo2[i]);
+		}
+		moved[i] = !moved[i];
+		return v;
+	}
+
+	/**
+	 * Removes an entry and inserts it again in order to keep the index size constant.
+	 */
+	@Benchmark
+	public Integer remove() {
+		int i = nextEntry();
+		Integer v = tree.remove(d.lo[i]);
+		tree.insert(d.lo[i], d.values[i]);
+		return v;
+	}
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Result of a batch query, see e.g. {@link PointMap#queryKnnBatch(double[][], int, Executor)}.
+ * <p>
+ * The results of all queries are stored in compact parallel arrays. The results of query 'q'
+ * are stored at the positions {@code start(q)} to {@code end(q) - 1}:
+ * <pre>
+ * for (int q = 0; q &lt; result.size(); q++) {
+ *     for (int i = result.start(q); i &lt; result.end(q); i++) {
+ *         double[] key = result.point(i);
+ *         T value = result.value(i);
+ *         double dist = result.dist(i);
+ *     }
+ * }
+ * </pre>
+ * The key arrays are not copied, they are the same arrays that are stored in the index.
+ *
+ * @param <T> Value type
+ */
+public class BatchResult<T> {
+
+    /** Number of chunks per thread. More chunks improve load balancing if queries have different costs. */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private final int[] offsets;
+    private final double[][] min;
+    private final double[][] max;
+    private final Object[] values;
+    private final double[] dists;
+
+    private BatchResult(int[] offsets, double[][] min, double[][] max, Object[] values, double[] dists) {
+        this.offsets = offsets;
+        this.min = min;
+        this.max = max;
+        this.values = values;
+        this.dists = dists;
+    }
+
+    /**
+     * @return The number of queries.
+     */
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * @param query query index
+     * @return The position of the first result of the query.
+     */
+    public int start(int query) {
+        return offsets[query];
+    }
+
+    /**
+     * @param query query index
+     * @return The position after the last result of the query.
+     */
+    public int end(int query) {
+        return offsets[query + 1];
+    }
+
+    /**
+     * @param query query index
+     * @return The number of results of the query.
+     */
+    public int count(int query) {
+        return offsets[query + 1] - offsets[query];
+    }
+
+    /**
+     * @return The number of results of all queries.
+     */
+    public int totalCount() {
+        return offsets[offsets.length - 1];
+    }
+
+    /**
+     * @param i result position
+     * @return The key of a point result.
+     */
+    public double[] point(int i) {
+        return min[i];
+    }
+
+    /**
+     * @param i result position
+     * @return The lower left corner of a box result. For point results this is the point.
+     */
+    public double[] min(int i) {
+        return min[i];
+    }
+
+    /**
+     * @param i result position
+     * @return The upper right corner of a box result. For point results this is the point.
+     */
+    public double[] max(int i) {
+        return max[i];
+    }
+
+    /**
+     * @param i result position
+     * @return The value of the result.
+     */
+    @SuppressWarnings("unchecked")
+    public T value(int i) {
+        return (T) values[i];
+    }
+
+    /**
+     * @param i result position
+     * @return The distance of the result to the query center.
+     * @throws IllegalStateException if this is not the result of a kNN query
+     */
+    public double dist(int i) {
+        if (dists == null) {
+            throw new IllegalStateException("Distances are only available for kNN queries");
+        }
+        return dists[i];
+    }
+
+    /**
+     * A query that is executed on a range of query indexes. Implementations should reuse
+     * iterators or visitors for all queries in the range.
+     */
+    @FunctionalInterface
+    interface Query<T> {
+        void run(int from, int to, Builder<T> result);
+    }
+
+    /**
+     * Executes the queries in several chunks on the executor and merges the results.
+     *
+     * @param nQueries number of queries
+     * @param capacity expected number of results per query
+     * @param isBox    whether the results are boxes
+     * @param isKnn    whether the results have distances
+     * @param executor the executor
+     * @param query    the query
+     * @return the merged result
+     */
+    static <T> BatchResult<T> execute(int nQueries, int capacity, boolean isBox, boolean isKnn,
+                                      Executor executor, Query<T> query) {
+        int parallelism = executor instanceof ForkJoinPool
+                ? ((ForkJoinPool) executor).getParallelism()
+                : Runtime.getRuntime().availableProcessors();
+        int nChunks = Math.min(nQueries, parallelism * CHUNKS_PER_THREAD);
+        @SuppressWarnings("unchecked")
+        Builder<T>[] chunks = (Builder<T>[]) new Builder<?>[nChunks];
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[nChunks];
+        for (int c = 0; c < nChunks; c++) {
+            int from = (int) ((long) nQueries * c / nChunks);
+            int to = (int) ((long) nQueries * (c + 1) / nChunks);
+            int chunkCapacity = (int) Math.min(Integer.MAX_VALUE - 8, (long) (to - from) * capacity);
+            Builder<T> b = new Builder<>(to - from, chunkCapacity, isBox, isKnn);
+            chunks[c] = b;
+            futures[c] = CompletableFuture.runAsync(() -> query.run(from, to, b), executor);
+        }
+        try {
+            CompletableFuture.allOf(futures).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+        return merge(nQueries, chunks, isBox, isKnn);
+    }
+
+    private static <T> BatchResult<T> merge(int nQueries, Builder<T>[] chunks, boolean isBox, boolean isKnn) {
+        int total = 0;
+        for (Builder<T> b : chunks) {
+            total += b.size;
+        }
+        int[] offsets = new int[nQueries + 1];
+        double[][] min = new double[total][];
+        double[][] max = isBox ? new double[total][] : min;
+        Object[] values = new Object[total];
+        double[] dists = isKnn ? new double[total] : null;
+        int q = 0;
+        int pos = 0;
+        for (Builder<T> b : chunks) {
+            for (int i = 0; i < b.nQueries; i++) {
+                offsets[++q] = pos + b.ends[i];
+            }
+            System.arraycopy(b.min, 0, min, pos, b.size);
+            if (isBox) {
+                System.arraycopy(b.max, 0, max, pos, b.size);
+            }
+            System.arraycopy(b.values, 0, values, pos, b.size);
+            if (isKnn) {
+                System.arraycopy(b.dists, 0, dists, pos, b.size);
+            }
+            pos += b.size;
+        }
+        return new BatchResult<>(offsets, min, max, values, dists);
+    }
+
+    /**
+     * Collects the results of a chunk of queries.
+     */
+    static class Builder<T> {
+        private final int[] ends;
+        private int nQueries = 0;
+        private int size = 0;
+        private double[][] min;
+        private double[][] max;
+        private Object[] values;
+        private double[] dists;
+
+        private Builder(int nQueries, int capacity, boolean isBox, boolean isKnn) {
+            capacity = Math.max(capacity, 16);
+            this.ends = new int[nQueries];
+            this.min = new double[capacity][];
+            this.max = isBox ? new double[capacity][] : null;
+            this.values = new Object[capacity];
+            this.dists = isKnn ? new double[capacity] : null;
+        }
+
+        void add(double[] key, T value) {
+            add(key, null, value, 0);
+        }
+
+        void add(double[] key, T value, double dist) {
+            add(key, null, value, dist);
+        }
+
+        void add(double[] min, double[] max, T value, double dist) {
+            if (size == values.length) {
+                int capacity = size * 2;
+                this.min = Arrays.copyOf(this.min, capacity);
+                this.max = this.max == null ? null : Arrays.copyOf(this.max, capacity);
+                this.values = Arrays.copyOf(values, capacity);
+                this.dists = dists == null ? null : Arrays.copyOf(dists, capacity);
+            }
+            this.min[size] = min;
+            if (this.max != null) {
+                this.max[size] = max;
+            }
+            values[size] = value;
+            if (dists != null) {
+                dists[size] = dist;
+            }
+            size++;
+        }
+
+        /**
+         * Finish the current query. This must be called once for every query, even if
+         * the query had no results.
+         */
+        void endQuery() {
+            ends[nQueries++] = size;
+        }
+    }
+}
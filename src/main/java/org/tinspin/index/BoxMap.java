@@ -23,8 +23,20 @@ import org.tinspin.index.qthypercube.QuadTreeRKD;
 import org.tinspin.index.qtplain.QuadTreeRKD0;
 import org.tinspin.index.rtree.RTree;
 import org.tinspin.index.rtree.RTreeEntry;
+import org.tinspin.index.util.Snapshot;
+import org.tinspin.index.util.ValueSerializer;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public interface BoxMap<T> extends Index {
 
@@ -37,6 +49,28 @@ public interface BoxMap<T> extends Index {
      */
     void insert(double[] min, double[] max, T value);
 
+    /**
+     * Insert many boxes at once.
+     * The default implementation inserts the boxes one by one. Some indexes provide
+     * faster implementations, for example by bulk loading or by inserting
+     * boxes in an order that improves cache locality.
+     *
+     * @param flatMin minimum corners of all boxes, i.e. 'dims' values per box
+     * @param flatMax maximum corners of all boxes, i.e. 'dims' values per box
+     * @param values  values, one per box
+     */
+    default void insertAll(double[] flatMin, double[] flatMax, T[] values) {
+        int dims = getDims();
+        if (flatMin.length != values.length * dims || flatMax.length != values.length * dims) {
+            throw new IllegalArgumentException("Expected " + values.length * dims +
+                    " coordinates but got " + flatMin.length + "/" + flatMax.length);
+        }
+        for (int i = 0; i < values.length; i++) {
+            insert(Arrays.copyOfRange(flatMin, i * dims, (i + 1) * dims),
+                    Arrays.copyOfRange(flatMax, i * dims, (i + 1) * dims), values[i]);
+        }
+    }
+
     /**
      * Remove an entry.
      *
@@ -87,6 +121,79 @@ public interface BoxMap<T> extends Index {
      */
     BoxIterator<T> queryIntersect(double[] min, double[] max);
 
+    /**
+     * Visits all boxes that intersect with the query rectangle.
+     * Native implementations avoid creating result objects.
+     *
+     * @param min     Lower left corner of the query window
+     * @param max     Upper right corner of the query window
+     * @param visitor Callback for each entry. The query is aborted if the visitor returns `false`.
+     */
+    default void queryIntersect(double[] min, double[] max, BoxVisitor<T> visitor) {
+        BoxIterator<T> it = queryIntersect(min, max);
+        while (it.hasNext()) {
+            BoxEntry<T> e = it.next();
+            if (!visitor.visit(e.min(), e.max(), e.value())) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Counts the boxes that intersect with the query rectangle.
+     * The default implementation visits all intersecting boxes. Some indexes maintain
+     * the number of entries of every subtree and do not traverse subtrees that are fully
+     * covered by the rectangle.
+     *
+     * @param min Lower left corner of the query window
+     * @param max Upper right corner of the query window
+     * @return The number of boxes that intersect with the query rectangle.
+     */
+    default int count(double[] min, double[] max) {
+        int[] n = new int[1];
+        queryIntersect(min, max, (min2, max2, value) -> {
+            n[0]++;
+            return true;
+        });
+        return n[0];
+    }
+
+    /**
+     * The default implementation cannot be split. R-Trees return spliterators that
+     * hand off unvisited child nodes when they are split.
+     *
+     * @return A spliterator over all entries.
+     */
+    default Spliterator<BoxEntry<T>> spliterator() {
+        return Spliterators.spliteratorUnknownSize(iterator(), Spliterator.NONNULL);
+    }
+
+    /**
+     * The default implementation cannot be split. R-Trees return spliterators that
+     * hand off unvisited child nodes when they are split.
+     *
+     * @param min Lower left corner of the query window
+     * @param max Upper right corner of the query window
+     * @return A spliterator over all boxes that intersect with the query rectangle.
+     */
+    default Spliterator<BoxEntry<T>> spliterator(double[] min, double[] max) {
+        return Spliterators.spliteratorUnknownSize(queryIntersect(min, max), Spliterator.NONNULL);
+    }
+
+    /**
+     * @return A sequential stream over all entries.
+     */
+    default Stream<BoxEntry<T>> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * @return A parallel stream over all entries, see {@link #spliterator()}.
+     */
+    default Stream<BoxEntry<T>> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
     /**
      * Finds the nearest neighbor. This uses Euclidean 'edge distance'.
      * Other distance types can only be specified directly on the index implementations.
@@ -111,6 +218,214 @@ public interface BoxMap<T> extends Index {
      */
     BoxIteratorKnn<T> queryKnn(double[] center, int k);
 
+    /**
+     * Approximate kNN search. This uses Euclidean 'edge distance'.
+     * Nodes are skipped if their distance, multiplied with {@code (1 + epsilon)}, exceeds the distance
+     * of the current k-th candidate. The i-th result is at most {@code (1 + epsilon)} times farther away
+     * than the exact i-th nearest neighbor, but some of the exact nearest neighbors may be missing
+     * and the results are not necessarily ordered by distance.
+     * With {@code epsilon = 0} the result is exact.
+     * <p>
+     * The default implementation ignores {@code epsilon} and returns the exact result.
+     *
+     * @param center  center point
+     * @param k       number of neighbors
+     * @param epsilon approximation factor, must be {@code >= 0}
+     * @return list of nearest neighbors
+     */
+    default BoxIteratorKnn<T> queryKnn(double[] center, int k, double epsilon) {
+        return queryKnn(center, k);
+    }
+
+    /**
+     * Iterates over all entries in order of increasing distance.
+     * This uses Euclidean 'edge distance', i.e. the distance to the edge of a box.
+     * This is useful if the number of required neighbors is not known in advance, for example
+     * when results are filtered by the caller.
+     * <p>
+     * The R-Trees and quadtrees implement this with best-first distance browsing (Hjaltason and Samet):
+     * nodes are only expanded when {@code next()} requires it, so the cost depends only on the
+     * number of entries that are actually retrieved.
+     * The default implementation performs a kNN query with {@code k = size()}.
+     *
+     * @param center center point
+     * @return iterator over all entries, nearest first
+     */
+    default BoxIteratorKnn<T> queryNearest(double[] center) {
+        return queryKnn(center, size());
+    }
+
+    /**
+     * Visits the k nearest neighbors in order of increasing distance.
+     * This uses Euclidean 'edge distance', i.e. the distance to the edge of a box.
+     * Native implementations avoid creating result objects.
+     *
+     * @param center  center point
+     * @param k       number of neighbors
+     * @param visitor Callback for each entry. The query is aborted if the visitor returns `false`.
+     */
+    default void queryKnn(double[] center, int k, BoxVisitorKnn<T> visitor) {
+        BoxIteratorKnn<T> it = queryKnn(center, k);
+        while (it.hasNext()) {
+            BoxEntryKnn<T> e = it.next();
+            if (!visitor.visit(e.min(), e.max(), e.value(), e.dist())) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Finds the k nearest neighbors of many points in parallel. This uses Euclidean 'edge distance'.
+     * The queries are executed on the {@link ForkJoinPool#commonPool()}.
+     *
+     * @param centers center points
+     * @param k       number of neighbors
+     * @return the k nearest neighbors of all centers
+     * @see #queryKnnBatch(double[][], int, Executor)
+     */
+    default BatchResult<T> queryKnnBatch(double[][] centers, int k) {
+        return queryKnnBatch(centers, k, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Finds the k nearest neighbors of many points in parallel. This uses Euclidean 'edge distance'.
+     * The centers are split into chunks which are executed on the executor. Every chunk
+     * reuses a single iterator for all its queries.
+     * The index must not be modified while the queries are running.
+     *
+     * @param centers  center points
+     * @param k        number of neighbors
+     * @param executor executor for the queries, e.g. a {@link ForkJoinPool}
+     * @return the k nearest neighbors of all centers, ordered by distance for each center
+     */
+    default BatchResult<T> queryKnnBatch(double[][] centers, int k, Executor executor) {
+        int capacity = Math.min(k, size());
+        return BatchResult.execute(centers.length, capacity, true, true, executor, (from, to, result) -> {
+            BoxIteratorKnn<T> it = null;
+            for (int i = from; i < to; i++) {
+                if (it == null) {
+                    it = queryKnn(centers[i], k);
+                } else {
+                    it.reset(centers[i], k);
+                }
+                while (it.hasNext()) {
+                    BoxEntryKnn<T> e = it.next();
+                    result.add(e.min(), e.max(), e.value(), e.dist());
+                }
+                result.endQuery();
+            }
+        });
+    }
+
+    /**
+     * Executes many intersection queries in parallel.
+     * The queries are executed on the {@link ForkJoinPool#commonPool()}.
+     *
+     * @param min Lower left corners of the query windows
+     * @param max Upper right corners of the query windows
+     * @return the boxes that intersect with the query windows
+     * @see #queryIntersectBatch(double[][], double[][], Executor)
+     */
+    default BatchResult<T> queryIntersectBatch(double[][] min, double[][] max) {
+        return queryIntersectBatch(min, max, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Executes many intersection queries in parallel.
+     * The windows are split into chunks which are executed on the executor. Every chunk
+     * uses a single visitor for all its queries.
+     * The index must not be modified while the queries are running.
+     *
+     * @param min      Lower left corners of the query windows
+     * @param max      Upper right corners of the query windows
+     * @param executor executor for the queries, e.g. a {@link ForkJoinPool}
+     * @return the boxes that intersect with the query windows
+     */
+    default BatchResult<T> queryIntersectBatch(double[][] min, double[][] max, Executor executor) {
+        if (min.length != max.length) {
+            throw new IllegalArgumentException(
+                    "Expected the same number of min and max corners but got " + min.length + "/" + max.length);
+        }
+        return BatchResult.execute(min.length, 0, true, false, executor, (from, to, result) -> {
+            BoxVisitor<T> visitor = (kMin, kMax, value) -> {
+                result.add(kMin, kMax, value, 0);
+                return true;
+            };
+            for (int i = from; i < to; i++) {
+                queryIntersect(min[i], max[i], visitor);
+                result.endQuery();
+            }
+        });
+    }
+
+    /**
+     * Spatial join: finds all pairs of intersecting boxes of this index and another index.
+     * The join is executed on the {@link ForkJoinPool#commonPool()}.
+     *
+     * @param other   the other index
+     * @param visitor callback for each pair, see {@link #join(BoxMap, BoxJoinVisitor, ForkJoinPool)}
+     * @param <U>     value type of the other index
+     */
+    default <U> void join(BoxMap<U> other, BoxJoinVisitor<T, U> visitor) {
+        join(other, visitor, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Spatial join: finds all pairs of intersecting boxes of this index and another index.
+     * The pairs are reported in no particular order and the visitor may be called concurrently
+     * from several threads of the pool. Neither index must be modified while the join is running.
+     * <p>
+     * The default implementation executes one intersection query on 'other' for every entry of
+     * this index. R-Trees and the box quadtrees traverse both trees synchronously if 'other' is
+     * an index of the same type, see {@link RTree#join(BoxMap, BoxJoinVisitor, ForkJoinPool)}.
+     *
+     * @param other   the other index
+     * @param visitor callback for each pair. The first three arguments are the entry of this index.
+     * @param pool    the pool that executes the join
+     * @param <U>     value type of the other index
+     */
+    default <U> void join(BoxMap<U> other, BoxJoinVisitor<T, U> visitor, ForkJoinPool pool) {
+        ArrayList<BoxEntry<T>> entries = new ArrayList<>(size());
+        for (BoxIterator<T> it = iterator(); it.hasNext(); ) {
+            entries.add(it.next());
+        }
+        // A parallel stream uses the pool of the task that executes it.
+        pool.submit(() -> entries.parallelStream().forEach(e ->
+                other.queryIntersect(e.min(), e.max(), (min2, max2, value2) -> {
+                    visitor.visit(e.min(), e.max(), e.value(), min2, max2, value2);
+                    return true;
+                }))).join();
+    }
+
+    /**
+     * Writes all entries to a binary snapshot file. An existing file is overwritten.
+     * The default implementation writes only the entries, some indexes also write
+     * their tree structure, see {@link Snapshot}.
+     *
+     * @param file       the file
+     * @param serializer serializer for the values
+     * @throws IOException if the file cannot be written
+     */
+    default void writeSnapshot(Path file, ValueSerializer<T> serializer) throws IOException {
+        Snapshot.writeBoxes(this, file, serializer);
+    }
+
+    /**
+     * Loads all entries from a snapshot file that was written by the same type of index.
+     * The file is memory mapped. The default implementation uses
+     * {@link #insertAll(double[], double[], Object[])} to load the entries.
+     *
+     * @param file       the file
+     * @param serializer serializer for the values
+     * @throws IOException if the file cannot be read
+     * @throws IllegalStateException if this index is not empty
+     * @throws IllegalArgumentException if the snapshot was written by a different type of index
+     *                                  or has a different dimensionality
+     */
+    default void readSnapshot(Path file, ValueSerializer<T> serializer) throws IOException {
+        Snapshot.readBoxes(this, file, serializer);
+    }
+
     interface Factory {
         /**
          * Create an array backed BoxMap. This is only for testing and rather inefficient for large data sets.
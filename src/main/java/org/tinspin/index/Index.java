@@ -266,6 +266,87 @@ public interface Index {
         boolean test(BoxEntry<T> entry, double distance);
     }
 
+    /**
+     * Callback for window queries, see {@link PointMap#query(double[], double[], PointVisitor)}.
+     * The key is the internal key of the index and must not be modified.
+     */
+    @FunctionalInterface
+    interface PointVisitor<T> {
+        /**
+         * @param key   the key of the entry
+         * @param value the value of the entry
+         * @return `true` to continue the query, `false` to abort the query.
+         */
+        boolean visit(double[] key, T value);
+    }
+
+    /**
+     * Callback for kNN queries, see {@link PointMap#queryKnn(double[], int, PointVisitorKnn)}.
+     * Entries are visited in order of increasing distance, except for radius queries, see
+     * {@link PointMap#queryRadius(double[], double, PointDistance, PointVisitorKnn)}.
+     * The key is the internal key of the index and must not be modified.
+     */
+    @FunctionalInterface
+    interface PointVisitorKnn<T> {
+        /**
+         * @param key   the key of the entry
+         * @param value the value of the entry
+         * @param dist  the distance of the entry from the query center
+         * @return `true` to continue the query, `false` to abort the query.
+         */
+        boolean visit(double[] key, T value, double dist);
+    }
+
+    /**
+     * Callback for window queries, see {@link BoxMap#queryIntersect(double[], double[], BoxVisitor)}.
+     * The keys are the internal keys of the index and must not be modified.
+     */
+    @FunctionalInterface
+    interface BoxVisitor<T> {
+        /**
+         * @param min   the minimum corner of the entry
+         * @param max   the maximum corner of the entry
+         * @param value the value of the entry
+         * @return `true` to continue the query, `false` to abort the query.
+         */
+        boolean visit(double[] min, double[] max, T value);
+    }
+
+    /**
+     * Callback for kNN queries, see {@link BoxMap#queryKnn(double[], int, BoxVisitorKnn)}.
+     * Entries are visited in order of increasing distance.
+     * The keys are the internal keys of the index and must not be modified.
+     */
+    @FunctionalInterface
+    interface BoxVisitorKnn<T> {
+        /**
+         * @param min   the minimum corner of the entry
+         * @param max   the maximum corner of the entry
+         * @param value the value of the entry
+         * @param dist  the distance of the entry from the query center
+         * @return `true` to continue the query, `false` to abort the query.
+         */
+        boolean visit(double[] min, double[] max, T value, double dist);
+    }
+
+    /**
+     * Callback for spatial joins, see {@link BoxMap#join(BoxMap, BoxJoinVisitor)}.
+     * Joins may call the visitor concurrently from several threads.
+     * The keys are the internal keys of the indexes and must not be modified.
+     */
+    @FunctionalInterface
+    interface BoxJoinVisitor<T, U> {
+        /**
+         * @param min1   the minimum corner of the entry of the first index
+         * @param max1   the maximum corner of the entry of the first index
+         * @param value1 the value of the entry of the first index
+         * @param min2   the minimum corner of the entry of the second index
+         * @param max2   the maximum corner of the entry of the second index
+         * @param value2 the value of the entry of the second index
+         */
+        void visit(double[] min1, double[] max1, T value1, double[] min2, double[] max2, U value2);
+    }
+
     class PEComparator implements Comparator<PointEntryKnn<?>> {
 
         @Override
@@ -20,6 +20,7 @@ package org.tinspin.index;
 public class IndexConfig {
     private int dimensions = 3;
 	private boolean defensiveKeyCopy = true;
+	private double balanceFactor = 0;
 
 	protected IndexConfig(int dimensions) {
 		this.dimensions = dimensions;
@@ -55,6 +56,21 @@ public class IndexConfig {
 		return this;
 	}
 
+	/**
+	 * @param balanceFactor
+	 * Weight-balance factor 'alpha' for self-balancing kd-trees. If a subtree contains more
+	 * than 'alpha' of the entries of its parent node, the parent node may be rebuilt as a
+	 * balanced subtree. Smaller values give shallower trees but more frequent rebuilds.
+	 * Valid values are in (0.5, 1), e.g. 0.7. Default is '0', which disables rebalancing.
+	 * <p>
+	 * This setting works only for kd-trees.
+	 * @return this
+	 */
+	public IndexConfig setBalanceFactor(double balanceFactor) {
+		this.balanceFactor = balanceFactor;
+		return this;
+	}
+
 
 	public int getDimensions() {
 		return dimensions;
@@ -63,4 +79,8 @@ public class IndexConfig {
 	public boolean getDefensiveKeyCopy() {
 		return defensiveKeyCopy;
 	}
+
+	public double getBalanceFactor() {
+		return balanceFactor;
+	}
 }
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index;
+
+import org.tinspin.index.kdtree.KDTree;
+import org.tinspin.index.util.ZOrder;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.tinspin.index.Index.*;
+
+/**
+ * kNN join: finds the k nearest neighbors in a {@link PointMap} for every point of a query set.
+ * This uses Euclidean distance.
+ * <p>
+ * The query points are sorted along a z-order curve and split into contiguous chunks that are
+ * executed in parallel. Consecutive queries in a chunk are therefore close to each other.
+ * For the {@link KDTree}, every query is started with an upper bound for the distance of the
+ * k-th neighbor that is derived from the previous query (triangle inequality):
+ * {@code dist_k(q) <= dist_k(prev) + dist(prev, q)}. This prunes most of the tree early on.
+ * <p>
+ * The values of the index must be non-null {@code Integer} ids. The ids and distances of the
+ * neighbors are returned in primitive arrays, see {@link Result}.
+ * The index must not be modified while the join is running.
+ */
+public class KnnJoin {
+
+    /** Number of chunks per thread. More chunks improve load balancing but reduce locality. */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /** Relative slack for the warm start bound, this avoids losing neighbors due to rounding errors. */
+    private static final double BOUND_SLACK = 1e-9;
+
+    private KnnJoin() {}
+
+    /**
+     * Finds the k nearest neighbors in 'tree' for every point of 'queries'.
+     * The join is executed on the {@link ForkJoinPool#commonPool()}.
+     *
+     * @param queries query points
+     * @param tree    the index with Integer ids as values
+     * @param k       number of neighbors
+     * @return the ids and distances of the neighbors, the query id is the position in 'queries'
+     * @see #join(double[][], PointMap, int, Executor)
+     */
+    public static Result join(double[][] queries, PointMap<Integer> tree, int k) {
+        return join(queries, tree, k, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Finds the k nearest neighbors in 'tree' for every point of 'queries'.
+     *
+     * @param queries  query points
+     * @param tree     the index with Integer ids as values
+     * @param k        number of neighbors
+     * @param executor executor for the queries, e.g. a {@link ForkJoinPool}
+     * @return the ids and distances of the neighbors, the query id is the position in 'queries'
+     */
+    public static Result join(double[][] queries, PointMap<Integer> tree, int k, Executor executor) {
+        int[] queryIds = new int[queries.length];
+        Arrays.setAll(queryIds, i -> i);
+        return join(queries, queryIds, tree, k, executor);
+    }
+
+    /**
+     * Finds the k nearest neighbors in 'b' for every point in 'a'.
+     * The join is executed on the {@link ForkJoinPool#commonPool()}.
+     *
+     * @param a the query points with Integer ids as values
+     * @param b the index with Integer ids as values
+     * @param k number of neighbors
+     * @return the ids and distances of the neighbors
+     * @see #join(PointMap, PointMap, int, Executor)
+     */
+    public static Result join(PointMap<Integer> a, PointMap<Integer> b, int k) {
+        return join(a, b, k, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Finds the k nearest neighbors in 'b' for every point in 'a'.
+     *
+     * @param a        the query points with Integer ids as values
+     * @param b        the index with Integer ids as values
+     * @param k        number of neighbors
+     * @param executor executor for the queries, e.g. a {@link ForkJoinPool}
+     * @return the ids and distances of the neighbors
+     */
+    public static Result join(PointMap<Integer> a, PointMap<Integer> b, int k, Executor executor) {
+        double[][] queries = new double[a.size()][];
+        int[] queryIds = new int[queries.length];
+        int n = 0;
+        for (PointIterator<Integer> it = a.iterator(); it.hasNext(); ) {
+            PointEntry<Integer> e = it.next();
+            queries[n] = e.point();
+            queryIds[n++] = e.value();
+        }
+        return join(queries, queryIds, b, k, executor);
+    }
+
+    private static Result join(double[][] queries, int[] queryIds, PointMap<Integer> tree, int k,
+                               Executor executor) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must not be negative: " + k);
+        }
+        int nQueries = queries.length;
+        int dims = tree.getDims();
+        int[] ids = new int[nQueries * k];
+        double[] dists = new double[nQueries * k];
+        Arrays.fill(ids, -1);
+        Arrays.fill(dists, Double.POSITIVE_INFINITY);
+        Result result = new Result(k, queryIds, ids, dists);
+        if (nQueries == 0 || k == 0 || tree.size() == 0) {
+            return result;
+        }
+
+        double[] flat = new double[nQueries * dims];
+        for (int i = 0; i < nQueries; i++) {
+            if (queries[i].length != dims) {
+                throw new IllegalArgumentException("Query has " + queries[i].length + " dimensions, expected " + dims);
+            }
+            System.arraycopy(queries[i], 0, flat, i * dims, dims);
+        }
+        int[] order = ZOrder.order(flat, null, dims);
+
+        int parallelism = executor instanceof ForkJoinPool
+                ? ((ForkJoinPool) executor).getParallelism()
+                : Runtime.getRuntime().availableProcessors();
+        int nChunks = Math.min(nQueries, parallelism * CHUNKS_PER_THREAD);
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[nChunks];
+        for (int c = 0; c < nChunks; c++) {
+            int from = (int) ((long) nQueries * c / nChunks);
+            int to = (int) ((long) nQueries * (c + 1) / nChunks);
+            futures[c] = CompletableFuture.runAsync(
+                    () -> new Chunk(tree, k, ids, dists).run(queries, order, from, to), executor);
+        }
+        try {
+            CompletableFuture.allOf(futures).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+        return result;
+    }
+
+    /**
+     * Executes a chunk of queries in z-order and writes the neighbors into the result arrays.
+     */
+    private static class Chunk implements PointVisitorKnn<Integer> {
+        private final PointMap<Integer> tree;
+        private final KDTree<Integer> kdTree;
+        private final int k;
+        private final int[] ids;
+        private final double[] dists;
+        private int pos;
+        private int n;
+
+        @SuppressWarnings("unchecked")
+        Chunk(PointMap<Integer> tree, int k, int[] ids, double[] dists) {
+            this.tree = tree;
+            this.kdTree = tree instanceof KDTree ? (KDTree<Integer>) tree : null;
+            this.k = k;
+            this.ids = ids;
+            this.dists = dists;
+        }
+
+        void run(double[][] queries, int[] order, int from, int to) {
+            double[] prev = null;
+            double prevMaxDist = Double.POSITIVE_INFINITY;
+            for (int i = from; i < to; i++) {
+                int q = order[i];
+                double[] center = queries[q];
+                if (kdTree == null) {
+                    query(q, center, Double.POSITIVE_INFINITY);
+                    continue;
+                }
+                double bound = Double.POSITIVE_INFINITY;
+                if (prev != null && prevMaxDist < Double.POSITIVE_INFINITY) {
+                    bound = (prevMaxDist + PointDistance.L2.dist(prev, center)) * (1 + BOUND_SLACK);
+                }
+                if (query(q, center, bound) < k && bound < Double.POSITIVE_INFINITY) {
+                    // The bound was too tight, this can only happen because of rounding errors.
+                    query(q, center, Double.POSITIVE_INFINITY);
+                }
+                prev = center;
+                prevMaxDist = n == k ? dists[q * k + k - 1] : Double.POSITIVE_INFINITY;
+            }
+        }
+
+        private int query(int q, double[] center, double maxDist) {
+            pos = q * k;
+            n = 0;
+            if (kdTree != null) {
+                kdTree.queryKnn(center, k, maxDist, this);
+            } else {
+                tree.queryKnn(center, k, this);
+            }
+            return n;
+        }
+
+        @Override
+        public boolean visit(double[] key, Integer value, double dist) {
+            ids[pos + n] = value;
+            dists[pos + n] = dist;
+            return ++n < k;
+        }
+    }
+
+    /**
+     * The result of a kNN join. Every query has 'k' slots, ordered by distance. If the index has
+     * fewer than 'k' entries, the remaining slots have the id '-1' and the distance infinity.
+     * <pre>
+     * for (int q = 0; q &lt; result.size(); q++) {
+     *     int queryId = result.queryId(q);
+     *     for (int i = 0; i &lt; result.k(); i++) {
+     *         int id = result.id(q, i);
+     *         double dist = result.dist(q, i);
+     *     }
+     * }
+     * </pre>
+     */
+    public static class Result {
+        private final int k;
+        private final int[] queryIds;
+        private final int[] ids;
+        private final double[] dists;
+
+        private Result(int k, int[] queryIds, int[] ids, double[] dists) {
+            this.k = k;
+            this.queryIds = queryIds;
+            this.ids = ids;
+            this.dists = dists;
+        }
+
+        /**
+         * @return The number of queries.
+         */
+        public int size() {
+            return queryIds.length;
+        }
+
+        /**
+         * @return The number of neighbor slots per query.
+         */
+        public int k() {
+            return k;
+        }
+
+        /**
+         * @param q query position
+         * @return The id of the query point.
+         */
+        public int queryId(int q) {
+            return queryIds[q];
+        }
+
+        /**
+         * @param q query position
+         * @param i neighbor position, {@code 0 <= i < k}
+         * @return The id of the i-th neighbor or '-1'.
+         */
+        public int id(int q, int i) {
+            return ids[q * k + i];
+        }
+
+        /**
+         * @param q query position
+         * @param i neighbor position, {@code 0 <= i < k}
+         * @return The distance of the i-th neighbor or infinity.
+         */
+        public double dist(int q, int i) {
+            return dists[q * k + i];
+        }
+
+        /**
+         * @return The ids of the neighbors of all queries, 'k' per query. The array is not copied.
+         */
+        public int[] ids() {
+            return ids;
+        }
+
+        /**
+         * @return The distances of the neighbors of all queries, 'k' per query. The array is not copied.
+         */
+        public double[] dists() {
+            return dists;
+        }
+    }
+}
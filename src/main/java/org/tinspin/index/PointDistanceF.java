@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index;
+
+/**
+ * Single precision variant of {@link PointDistance}, see {@link PointMapF}.
+ */
+@FunctionalInterface
+public interface PointDistanceF {
+
+	/** L1/Manhattan/taxi distance. */
+	PointDistanceF L1 = PointDistanceF::l1;
+	/** L2/Euclidean distance. */
+	PointDistanceF L2 = PointDistanceF::l2;
+
+	float dist(float[] p1, float[] p2);
+
+	/**
+	 * Manhattan/Taxi distance / L1.
+	 * @param p1 point 1
+	 * @param p2 point 2
+	 * @return distance
+	 */
+	static float l1(float[] p1, float[] p2) {
+		float dist = 0;
+		for (int i = 0; i < p1.length; i++) {
+			dist += Math.abs(p1[i] - p2[i]);
+		}
+		return dist;
+	}
+
+	/**
+	 * Euclidean distance / L2.
+	 * @param p1 point 1
+	 * @param p2 point 2
+	 * @return distance
+	 */
+	static float l2(float[] p1, float[] p2) {
+		float dist = 0;
+		for (int i = 0; i < p1.length; i++) {
+			float d = p1[i] - p2[i];
+			dist += d*d;
+		}
+		return (float) Math.sqrt(dist);
+	}
+}
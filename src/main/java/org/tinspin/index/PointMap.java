@@ -20,6 +20,9 @@ package org.tinspin.index;
 import org.tinspin.index.array.PointArray;
 import org.tinspin.index.covertree.CoverTree;
 import org.tinspin.index.kdtree.KDTree;
+import org.tinspin.index.kdtree.KDTreeBucket;
+import org.tinspin.index.kdtree.KDTreeOffHeap;
+import org.tinspin.index.kdtree.KDTreeStatic;
 import org.tinspin.index.phtree.PHTreeP;
 import org.tinspin.index.qthypercube.QuadTreeKD;
 import org.tinspin.index.qthypercube2.QuadTreeKD2;
@@ -27,6 +30,20 @@ import org.tinspin.index.qtplain.QuadTreeKD0;
 import org.tinspin.index.rtree.RTree;
 import org.tinspin.index.rtree.RTreeEntry;
 import org.tinspin.index.util.PointMapWrapper;
+import org.tinspin.index.util.Snapshot;
+import org.tinspin.index.util.ValueSerializer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A common interface for spatial indexes (maps) that use points as keys.
@@ -49,6 +66,26 @@ public interface PointMap<T> extends Index {
      */
     void insert(double[] key, T value);
 
+    /**
+     * Insert many points at once.
+     * The default implementation inserts the points one by one. Some indexes provide
+     * faster implementations, for example by building a balanced tree or by inserting
+     * points in an order that improves cache locality.
+     *
+     * @param flatCoords coordinates of all points, i.e. 'dims' values per point
+     * @param values     values, one per point
+     */
+    default void insertAll(double[] flatCoords, T[] values) {
+        int dims = getDims();
+        if (flatCoords.length != values.length * dims) {
+            throw new IllegalArgumentException("Expected " + values.length * dims +
+                    " coordinates but got " + flatCoords.length);
+        }
+        for (int i = 0; i < values.length; i++) {
+            insert(Arrays.copyOfRange(flatCoords, i * dims, (i + 1) * dims), values[i]);
+        }
+    }
+
     /**
      * Remove a point entry.
      *
@@ -94,6 +131,79 @@ public interface PointMap<T> extends Index {
      */
     PointIterator<T> query(double[] min, double[] max);
 
+    /**
+     * Visits all points in the axis-aligned rectangle between 'min' and 'max'.
+     * Native implementations avoid creating result objects.
+     *
+     * @param min     Lower left corner of the query window
+     * @param max     Upper right corner of the query window
+     * @param visitor Callback for each entry. The query is aborted if the visitor returns `false`.
+     */
+    default void query(double[] min, double[] max, PointVisitor<T> visitor) {
+        PointIterator<T> it = query(min, max);
+        while (it.hasNext()) {
+            PointEntry<T> e = it.next();
+            if (!visitor.visit(e.point(), e.value())) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Counts the points in the axis-aligned rectangle between 'min' and 'max'.
+     * The default implementation visits all points in the rectangle. Some indexes maintain
+     * the number of entries of every subtree and do not traverse subtrees that are fully
+     * covered by the rectangle.
+     *
+     * @param min Lower left corner of the query window
+     * @param max Upper right corner of the query window
+     * @return The number of points that lie inside the query rectangle.
+     */
+    default int count(double[] min, double[] max) {
+        int[] n = new int[1];
+        query(min, max, (key, value) -> {
+            n[0]++;
+            return true;
+        });
+        return n[0];
+    }
+
+    /**
+     * The default implementation cannot be split. The kD-tree, {@code QuadTreeKD0}, {@code QuadTreeKD2}
+     * and R-Trees return spliterators that hand off unvisited subtrees when they are split.
+     *
+     * @return A spliterator over all entries.
+     */
+    default Spliterator<PointEntry<T>> spliterator() {
+        return Spliterators.spliteratorUnknownSize(iterator(), Spliterator.NONNULL);
+    }
+
+    /**
+     * The default implementation cannot be split. The kD-tree, {@code QuadTreeKD0}, {@code QuadTreeKD2}
+     * and R-Trees return spliterators that hand off unvisited subtrees when they are split.
+     *
+     * @param min Lower left corner of the query window
+     * @param max Upper right corner of the query window
+     * @return A spliterator over all points that lie inside the query rectangle.
+     */
+    default Spliterator<PointEntry<T>> spliterator(double[] min, double[] max) {
+        return Spliterators.spliteratorUnknownSize(query(min, max), Spliterator.NONNULL);
+    }
+
+    /**
+     * @return A sequential stream over all entries.
+     */
+    default Stream<PointEntry<T>> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * @return A parallel stream over all entries, see {@link #spliterator()}.
+     */
+    default Stream<PointEntry<T>> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
     /**
      * Finds the nearest neighbor. This uses Euclidean distance.
      * Other distance types can only be specified directly on the index implementations.
@@ -116,6 +226,212 @@ public interface PointMap<T> extends Index {
      */
     PointIteratorKnn<T> queryKnn(double[] center, int k);
 
+    /**
+     * Approximate kNN search. This uses Euclidean distance.
+     * Nodes are skipped if their distance, multiplied with {@code (1 + epsilon)}, exceeds the distance
+     * of the current k-th candidate. The i-th result is at most {@code (1 + epsilon)} times farther away
+     * than the exact i-th nearest neighbor, but some of the exact nearest neighbors may be missing
+     * and the results are not necessarily ordered by distance.
+     * With {@code epsilon = 0} the result is exact.
+     * <p>
+     * The default implementation ignores {@code epsilon} and returns the exact result.
+     *
+     * @param center  center point
+     * @param k       number of neighbors
+     * @param epsilon approximation factor, must be {@code >= 0}
+     * @return list of nearest neighbors
+     */
+    default PointIteratorKnn<T> queryKnn(double[] center, int k, double epsilon) {
+        return queryKnn(center, k);
+    }
+
+    /**
+     * Iterates over all entries in order of increasing distance. This uses Euclidean distance.
+     * This is useful if the number of required neighbors is not known in advance, for example
+     * when results are filtered by the caller.
+     * <p>
+     * The kD-tree, quadtrees, R-Trees and the CoverTree implement this with best-first distance
+     * browsing (Hjaltason and Samet): nodes are only expanded when {@code next()} requires it, so
+     * the cost depends only on the number of entries that are actually retrieved.
+     * The default implementation performs a kNN query with {@code k = size()}.
+     *
+     * @param center center point
+     * @return iterator over all entries, nearest first
+     */
+    default PointIteratorKnn<T> queryNearest(double[] center) {
+        return queryKnn(center, size());
+    }
+
+    /**
+     * Visits the k nearest neighbors in order of increasing distance. This uses Euclidean distance.
+     * Native implementations avoid creating result objects.
+     *
+     * @param center  center point
+     * @param k       number of neighbors
+     * @param visitor Callback for each entry. The query is aborted if the visitor returns `false`.
+     */
+    default void queryKnn(double[] center, int k, PointVisitorKnn<T> visitor) {
+        PointIteratorKnn<T> it = queryKnn(center, k);
+        while (it.hasNext()) {
+            PointEntryKnn<T> e = it.next();
+            if (!visitor.visit(e.point(), e.value(), e.dist())) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Visits all points whose distance from 'center' is at most 'radius', in no particular order.
+     * The distance function must not decrease if the difference in any dimension increases and
+     * it must not be smaller than the difference in any single dimension. This is true for
+     * {@link PointDistance#L1}, {@link PointDistance#L2} and all other Minkowski distances.
+     * The default implementation uses a window query around the sphere, native implementations
+     * skip all nodes that do not intersect with the sphere.
+     *
+     * @param center  center point
+     * @param radius  maximum distance
+     * @param distFn  the point distance function to be used
+     * @param visitor Callback for each entry. The query is aborted if the visitor returns `false`.
+     */
+    default void queryRadius(double[] center, double radius, PointDistance distFn, PointVisitorKnn<T> visitor) {
+        double[] min = new double[center.length];
+        double[] max = new double[center.length];
+        for (int d = 0; d < center.length; d++) {
+            min[d] = center[d] - radius;
+            max[d] = center[d] + radius;
+        }
+        query(min, max, (key, value) -> {
+            double dist = distFn.dist(center, key);
+            return dist > radius || visitor.visit(key, value, dist);
+        });
+    }
+
+    /**
+     * @param center center point
+     * @param radius maximum distance
+     * @param distFn the point distance function to be used
+     * @return All points whose distance from 'center' is at most 'radius', in no particular order.
+     * @see #queryRadius(double[], double, PointDistance, PointVisitorKnn)
+     */
+    default List<PointEntryKnn<T>> queryRadius(double[] center, double radius, PointDistance distFn) {
+        ArrayList<PointEntryKnn<T>> result = new ArrayList<>();
+        queryRadius(center, radius, distFn, (key, value, dist) -> result.add(new PointEntryKnn<>(key, value, dist)));
+        return result;
+    }
+
+    /**
+     * Finds the k nearest neighbors of many points in parallel. This uses Euclidean distance.
+     * The queries are executed on the {@link ForkJoinPool#commonPool()}.
+     *
+     * @param centers center points
+     * @param k       number of neighbors
+     * @return the k nearest neighbors of all centers
+     * @see #queryKnnBatch(double[][], int, Executor)
+     */
+    default BatchResult<T> queryKnnBatch(double[][] centers, int k) {
+        return queryKnnBatch(centers, k, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Finds the k nearest neighbors of many points in parallel. This uses Euclidean distance.
+     * The centers are split into chunks which are executed on the executor. Every chunk
+     * reuses a single iterator for all its queries.
+     * The index must not be modified while the queries are running.
+     *
+     * @param centers  center points
+     * @param k        number of neighbors
+     * @param executor executor for the queries, e.g. a {@link ForkJoinPool}
+     * @return the k nearest neighbors of all centers, ordered by distance for each center
+     */
+    default BatchResult<T> queryKnnBatch(double[][] centers, int k, Executor executor) {
+        int capacity = Math.min(k, size());
+        return BatchResult.execute(centers.length, capacity, false, true, executor, (from, to, result) -> {
+            PointIteratorKnn<T> it = null;
+            for (int i = from; i < to; i++) {
+                if (it == null) {
+                    it = queryKnn(centers[i], k);
+                } else {
+                    it.reset(centers[i], k);
+                }
+                while (it.hasNext()) {
+                    PointEntryKnn<T> e = it.next();
+                    result.add(e.point(), e.value(), e.dist());
+                }
+                result.endQuery();
+            }
+        });
+    }
+
+    /**
+     * Executes many window queries in parallel.
+     * The queries are executed on the {@link ForkJoinPool#commonPool()}.
+     *
+     * @param min Lower left corners of the query windows
+     * @param max Upper right corners of the query windows
+     * @return the points in all query windows
+     * @see #queryBatch(double[][], double[][], Executor)
+     */
+    default BatchResult<T> queryBatch(double[][] min, double[][] max) {
+        return queryBatch(min, max, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Executes many window queries in parallel.
+     * The windows are split into chunks which are executed on the executor. Every chunk
+     * uses a single visitor for all its queries.
+     * The index must not be modified while the queries are running.
+     *
+     * @param min      Lower left corners of the query windows
+     * @param max      Upper right corners of the query windows
+     * @param executor executor for the queries, e.g. a {@link ForkJoinPool}
+     * @return the points in all query windows
+     */
+    default BatchResult<T> queryBatch(double[][] min, double[][] max, Executor executor) {
+        if (min.length != max.length) {
+            throw new IllegalArgumentException(
+                    "Expected the same number of min and max corners but got " + min.length + "/" + max.length);
+        }
+        return BatchResult.execute(min.length, 0, false, false, executor, (from, to, result) -> {
+            PointVisitor<T> visitor = (key, value) -> {
+                result.add(key, value);
+                return true;
+            };
+            for (int i = from; i < to; i++) {
+                query(min[i], max[i], visitor);
+                result.endQuery();
+            }
+        });
+    }
+
+    /**
+     * Writes all entries to a binary snapshot file. An existing file is overwritten.
+     * The default implementation writes only the entries, some indexes also write
+     * their tree structure, see {@link Snapshot}.
+     *
+     * @param file       the file
+     * @param serializer serializer for the values
+     * @throws IOException if the file cannot be written
+     */
+    default void writeSnapshot(Path file, ValueSerializer<T> serializer) throws IOException {
+        Snapshot.writePoints(this, file, serializer);
+    }
+
+    /**
+     * Loads all entries from a snapshot file that was written by the same type of index.
+     * The file is memory mapped. The default implementation uses
+     * {@link #insertAll(double[], Object[])} to load the entries.
+     *
+     * @param file       the file
+     * @param serializer serializer for the values
+     * @throws IOException if the file cannot be read
+     * @throws IllegalStateException if this index is not empty
+     * @throws IllegalArgumentException if the snapshot was written by a different type of index
+     *                                  or has a different dimensionality
+     */
+    default void readSnapshot(Path file, ValueSerializer<T> serializer) throws IOException {
+        Snapshot.readPoints(this, file, serializer);
+    }
+
     interface Factory {
         /**
          * Create an array backed PointMap. This is only for testing and rather inefficient for large data sets.
@@ -162,6 +478,42 @@ public interface PointMap<T> extends Index {
             return KDTree.create(cfg);
         }
 
+        /**
+         * Create a kD-Tree that stores its nodes in off-heap buffers.
+         *
+         * @param dims Number of dimensions.
+         * @param <T>  Value type
+         * @return New kD-Tree
+         */
+        static <T> PointMap<T> createKdTreeOffHeap(int dims) {
+            return KDTreeOffHeap.create(dims);
+        }
+
+        /**
+         * Create a bucket kD-Tree that stores up to
+         * {@link KDTreeBucket#DEFAULT_BUCKET_SIZE} entries per leaf.
+         *
+         * @param dims Number of dimensions.
+         * @param <T>  Value type
+         * @return New kD-Tree
+         */
+        static <T> PointMap<T> createKdTreeBucket(int dims) {
+            return KDTreeBucket.create(dims);
+        }
+
+        /**
+         * Create an immutable kD-Tree that stores its nodes implicitly in arrays.
+         *
+         * @param dims       Number of dimensions.
+         * @param flatCoords Coordinates of all entries, see {@link #insertAll(double[], Object[])}.
+         * @param values     Values of all entries.
+         * @param <T>        Value type
+         * @return New immutable kD-Tree
+         */
+        static <T> PointMap<T> createAndLoadKdTreeStatic(int dims, double[] flatCoords, T[] values) {
+            return KDTreeStatic.create(dims, flatCoords, values);
+        }
+
         /**
          * Create a PH-Tree.
          *
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index;
+
+import org.tinspin.index.kdtree.KDTreeF;
+import org.tinspin.index.qthypercube2.QuadTreeKD2F;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * A variant of {@link PointMap} with single precision ({@code float[]}) keys.
+ * <p>
+ * Implementations store the keys as {@code float[]}. This halves the memory required for keys
+ * and improves cache efficiency for large indexes. Distances are also calculated with
+ * single precision, see {@link PointDistanceF}.
+ * <p>
+ * Like {@link PointMap}, implementations act as multimaps, i.e. they allow multiple entries
+ * with identical keys.
+ *
+ * @param <T> Type of the value associated with the point key.
+ */
+public interface PointMapF<T> extends Index {
+
+    /**
+     * Insert a point.
+     *
+     * @param key   point
+     * @param value value
+     */
+    void insert(float[] key, T value);
+
+    /**
+     * Insert many points at once.
+     * The default implementation inserts the points one by one.
+     *
+     * @param flatCoords coordinates of all points, i.e. 'dims' values per point
+     * @param values     values, one per point
+     * @throws IllegalArgumentException if the number of coordinates does not match the number of values
+     * @see PointMap#insertAll(double[], Object[])
+     */
+    default void insertAll(float[] flatCoords, T[] values) {
+        int dims = getDims();
+        if (flatCoords.length != values.length * dims) {
+            throw new IllegalArgumentException("Expected " + values.length * dims +
+                    " coordinates but got " + flatCoords.length);
+        }
+        for (int i = 0; i < values.length; i++) {
+            insert(Arrays.copyOfRange(flatCoords, i * dims, (i + 1) * dims), values[i]);
+        }
+    }
+
+    /**
+     * Remove a point entry.
+     *
+     * @param point the point
+     * @return the value of the entry or null if the entry was not found
+     */
+    T remove(float[] point);
+
+    /**
+     * Update the position of an entry.
+     *
+     * @param oldPoint old position
+     * @param newPoint new position
+     * @return the value of the entry or null if the entry was not found
+     */
+    T update(float[] oldPoint, float[] newPoint);
+
+    /**
+     * Lookup an entry, using exact match.
+     *
+     * @param point the point
+     * @return `true` if an entry was found
+     */
+    boolean contains(float[] point);
+
+    /**
+     * Lookup an entry, using exact match.
+     *
+     * @param point the point
+     * @return the value of the entry or null if the entry was not found
+     */
+    T queryExact(float[] point);
+
+    /**
+     * @return An iterator over all entries.
+     */
+    PointIteratorF<T> iterator();
+
+    /**
+     * @param min Lower left corner of the query window
+     * @param max Upper right corner of the query window
+     * @return All points that lie inside the query rectangle.
+     */
+    PointIteratorF<T> query(float[] min, float[] max);
+
+    /**
+     * Visit all points that lie inside the query rectangle.
+     * The default implementation uses {@link #query(float[], float[])}.
+     *
+     * @param min     Lower left corner of the query window
+     * @param max     Upper right corner of the query window
+     * @param visitor callback for all entries in the query window
+     * @see PointMap#query(double[], double[], Index.PointVisitor)
+     */
+    default void query(float[] min, float[] max, PointVisitorF<T> visitor) {
+        PointIteratorF<T> it = query(min, max);
+        while (it.hasNext()) {
+            PointEntryF<T> e = it.next();
+            if (!visitor.visit(e.point(), e.value())) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Finds the nearest neighbor. This uses Euclidean distance.
+     *
+     * @param center center point
+     * @return the nearest neighbor or null if the index is empty
+     */
+    default PointEntryKnnF<T> query1nn(float[] center) {
+        PointIteratorKnnF<T> it = queryKnn(center, 1);
+        return it.hasNext() ? it.next() : null;
+    }
+
+    /**
+     * Finds the nearest neighbors. This uses Euclidean distance.
+     *
+     * @param center center point
+     * @param k      number of neighbors
+     * @return list of nearest neighbors, ordered by distance
+     */
+    PointIteratorKnnF<T> queryKnn(float[] center, int k);
+
+    /**
+     * Visit the k nearest neighbors in order of increasing distance. This uses Euclidean distance.
+     * The default implementation uses {@link #queryKnn(float[], int)}.
+     *
+     * @param center  center point
+     * @param k       number of neighbors
+     * @param visitor callback for the nearest neighbors
+     */
+    default void queryKnn(float[] center, int k, PointVisitorKnnF<T> visitor) {
+        PointIteratorKnnF<T> it = queryKnn(center, k);
+        while (it.hasNext()) {
+            PointEntryKnnF<T> e = it.next();
+            if (!visitor.visit(e.point(), e.value(), e.dist())) {
+                return;
+            }
+        }
+    }
+
+    interface PointIteratorF<T> extends Iterator<PointEntryF<T>> {
+        /**
+         * Reset the iterator for a new window query. Both arguments must be `null` for
+         * iterators that were created with {@link PointMapF#iterator()}.
+         *
+         * @param min Lower left corner of the query window
+         * @param max Upper right corner of the query window
+         * @return this iterator after reset.
+         */
+        PointIteratorF<T> reset(float[] min, float[] max);
+    }
+
+    interface PointIteratorKnnF<T> extends Iterator<PointEntryKnnF<T>> {
+        PointIteratorKnnF<T> reset(float[] center, int k);
+    }
+
+    /**
+     * Callback for window queries, see {@link PointMapF#query(float[], float[], PointVisitorF)}.
+     * The key must not be modified.
+     *
+     * @param <T> Value type
+     */
+    @FunctionalInterface
+    interface PointVisitorF<T> {
+        /**
+         * @param point the key of the entry
+         * @param value the value of the entry
+         * @return 'false' to abort the query
+         */
+        boolean visit(float[] point, T value);
+    }
+
+    /**
+     * Callback for kNN queries, see {@link PointMapF#queryKnn(float[], int, PointVisitorKnnF)}.
+     * The key must not be modified.
+     *
+     * @param <T> Value type
+     */
+    @FunctionalInterface
+    interface PointVisitorKnnF<T> {
+        /**
+         * @param point the key of the entry
+         * @param value the value of the entry
+         * @param dist  the distance of the entry to the query center
+         * @return 'false' to abort the query
+         */
+        boolean visit(float[] point, T value, float dist);
+    }
+
+    class PointEntryF<T> {
+
+        private float[] point;
+        private T value;
+
+        public PointEntryF(float[] point, T value) {
+            this.point = point;
+            this.value = value;
+        }
+
+        /**
+         * @return The coordinates of the entry.
+         */
+        public float[] point() {
+            return point;
+        }
+
+        /**
+         * @return The value associated with the point.
+         */
+        public T value() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(point) + ";v=" + value;
+        }
+
+        public void setPoint(float[] point) {
+            this.point = point;
+        }
+
+        protected void set(float[] point, T value) {
+            this.point = point;
+            this.value = value;
+        }
+    }
+
+    class PointEntryKnnF<T> extends PointEntryF<T> {
+
+        private final float dist;
+
+        public PointEntryKnnF(float[] point, T value, float dist) {
+            super(point, value);
+            this.dist = dist;
+        }
+
+        public PointEntryKnnF(PointEntryF<T> entry, float dist) {
+            super(entry.point(), entry.value());
+            this.dist = dist;
+        }
+
+        /**
+         * @return the distance to the query center
+         */
+        public float dist() {
+            return dist;
+        }
+    }
+
+    interface Factory {
+        /**
+         * Create a kD-Tree with single precision keys.
+         *
+         * @param dims Number of dimensions.
+         * @param <T>  Value type
+         * @return New kD-Tree
+         */
+        static <T> PointMapF<T> createKdTree(int dims) {
+            return KDTreeF.create(dims);
+        }
+
+        /**
+         * Create a Quadtree with single precision keys, see {@link PointMap.Factory#createQuadtreeHC2(int)}.
+         *
+         * @param dims Number of dimensions.
+         * @param <T>  Value type
+         * @return New Quadtree
+         */
+        static <T> PointMapF<T> createQuadtreeHC2(int dims) {
+            return QuadTreeKD2F.create(dims);
+        }
+    }
+}
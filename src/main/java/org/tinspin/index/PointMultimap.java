@@ -19,6 +19,8 @@ package org.tinspin.index;
 
 import org.tinspin.index.array.PointArray;
 import org.tinspin.index.kdtree.KDTree;
+import org.tinspin.index.kdtree.KDTreeBucket;
+import org.tinspin.index.kdtree.KDTreeOffHeap;
 import org.tinspin.index.phtree.PHTreeMMP;
 import org.tinspin.index.qthypercube.QuadTreeKD;
 import org.tinspin.index.qthypercube2.QuadTreeKD2;
@@ -27,7 +29,9 @@ import org.tinspin.index.rtree.RTree;
 import org.tinspin.index.rtree.RTreeEntry;
 import org.tinspin.index.util.PointMultimapWrapper;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.function.Predicate;
 
 /**
@@ -140,6 +144,49 @@ public interface PointMultimap<T> extends Index {
      */
     PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn);
 
+    /**
+     * Visits all points whose distance from 'center' is at most 'radius', in no particular order.
+     * The distance function must not decrease if the difference in any dimension increases and
+     * it must not be smaller than the difference in any single dimension. This is true for
+     * {@link PointDistance#L1}, {@link PointDistance#L2} and all other Minkowski distances.
+     * The default implementation uses a window query around the sphere, native implementations
+     * skip all nodes that do not intersect with the sphere.
+     *
+     * @param center  center point
+     * @param radius  maximum distance
+     * @param distFn  the point distance function to be used
+     * @param visitor Callback for each entry. The query is aborted if the visitor returns `false`.
+     */
+    default void queryRadius(double[] center, double radius, PointDistance distFn, PointVisitorKnn<T> visitor) {
+        double[] min = new double[center.length];
+        double[] max = new double[center.length];
+        for (int d = 0; d < center.length; d++) {
+            min[d] = center[d] - radius;
+            max[d] = center[d] + radius;
+        }
+        PointIterator<T> it = query(min, max);
+        while (it.hasNext()) {
+            PointEntry<T> e = it.next();
+            double dist = distFn.dist(center, e.point());
+            if (dist <= radius && !visitor.visit(e.point(), e.value(), dist)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param center center point
+     * @param radius maximum distance
+     * @param distFn the point distance function to be used
+     * @return All points whose distance from 'center' is at most 'radius', in no particular order.
+     * @see #queryRadius(double[], double, PointDistance, PointVisitorKnn)
+     */
+    default List<PointEntryKnn<T>> queryRadius(double[] center, double radius, PointDistance distFn) {
+        ArrayList<PointEntryKnn<T>> result = new ArrayList<>();
+        queryRadius(center, radius, distFn, (key, value, dist) -> result.add(new PointEntryKnn<>(key, value, dist)));
+        return result;
+    }
+
 
     interface Factory {
         /**
@@ -176,6 +223,29 @@ public interface PointMultimap<T> extends Index {
             return KDTree.create(cfg);
         }
 
+        /**
+         * Create a kD-Tree that stores its nodes in off-heap buffers.
+         *
+         * @param dims Number of dimensions.
+         * @param <T>  Value type
+         * @return New kD-Tree
+         */
+        static <T> PointMultimap<T> createKdTreeOffHeap(int dims) {
+            return KDTreeOffHeap.create(dims);
+        }
+
+        /**
+         * Create a bucket kD-Tree that stores up to
+         * {@link KDTreeBucket#DEFAULT_BUCKET_SIZE} entries per leaf.
+         *
+         * @param dims Number of dimensions.
+         * @param <T>  Value type
+         * @return New kD-Tree
+         */
+        static <T> PointMultimap<T> createKdTreeBucket(int dims) {
+            return KDTreeBucket.create(dims);
+        }
+
         /**
          * Create a PH-Tree.
          *
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index;
+
+import org.tinspin.index.jfr.KnnQueryEvent;
+import org.tinspin.index.jfr.QueryEvent;
+import org.tinspin.index.jfr.WindowQueryEvent;
+
+/**
+ * Counters of a single query.
+ * <p>
+ * Per-query statistics are disabled by default, they are enabled by registering a listener
+ * with {@link #setListener(Listener)}. The window and kNN iterators of the kD-tree, the quadtrees,
+ * the R-Tree and the CoverTree then collect statistics for every query, i.e. every time an
+ * iterator is created or reset, and report them to the listener when the iterator is exhausted.
+ * Iterators that are not exhausted do not report anything.
+ * <p>
+ * If no listener is registered, iterators do not create any statistics objects and skip all counting.
+ * <p>
+ * Statistics are also collected while Java Flight Recorder records {@link org.tinspin.index.jfr.WindowQueryEvent}
+ * or {@link org.tinspin.index.jfr.KnnQueryEvent}, the events are committed when the query is finished.
+ * <p>
+ * Not all counters are used by all indexes, e.g. heaps are only used by some kNN iterators.
+ */
+public class QueryStats {
+
+	public enum QueryType {
+		/** Window query, including exact point queries. */
+		WINDOW,
+		/** k-nearest neighbor query. */
+		KNN
+	}
+
+	@FunctionalInterface
+	public interface Listener {
+		/**
+		 * Called by the querying thread when a query is finished.
+		 * @param stats the statistics of the query
+		 */
+		void onQuery(QueryStats stats);
+	}
+
+	private static volatile Listener listener = null;
+
+	private final Listener target;
+	private final QueryEvent event;
+	private final long startNanos;
+	public final Class<?> indexClass;
+	public final QueryType type;
+	public final int dims;
+	public final int k;
+	public long nNodesVisited = 0;
+	public long nLeavesVisited = 0;
+	public long nEntriesTested = 0;
+	public long nDistCalc = 0;
+	public long nHeapPush = 0;
+	public long nHeapPop = 0;
+	public long nResults = 0;
+	public long elapsedNanos = 0;
+
+	private QueryStats(Listener target, QueryEvent event, Class<?> indexClass, QueryType type, int dims, int k) {
+		this.target = target;
+		this.event = event;
+		this.indexClass = indexClass;
+		this.type = type;
+		this.dims = dims;
+		this.k = k;
+		this.startNanos = System.nanoTime();
+	}
+
+	/**
+	 * @param listener the listener for all queries of all indexes, or 'null' to disable statistics
+	 */
+	public static void setListener(Listener listener) {
+		QueryStats.listener = listener;
+	}
+
+	public static Listener getListener() {
+		return listener;
+	}
+
+	/**
+	 * Start a new query. This is called by indexes.
+	 * @param indexClass the index
+	 * @param type the query type
+	 * @param dims the dimensionality of the query
+	 * @param k the number of requested neighbors or '0' for window queries
+	 * @return a new statistics object or 'null' if no listener is registered and no JFR event is recorded
+	 */
+	public static QueryStats start(Class<?> indexClass, QueryType type, int dims, int k) {
+		Listener l = listener;
+		if (isEventEnabled(type)) {
+			QueryEvent event = type == QueryType.KNN ? new KnnQueryEvent() : new WindowQueryEvent();
+			event.begin();
+			return new QueryStats(l, event, indexClass, type, dims, k);
+		}
+		return l == null ? null : new QueryStats(l, null, indexClass, type, dims, k);
+	}
+
+	private static boolean isEventEnabled(QueryType type) {
+		// The events do not escape, the JIT removes the allocation.
+		return type == QueryType.KNN ? new KnnQueryEvent().isEnabled() : new WindowQueryEvent().isEnabled();
+	}
+
+	/**
+	 * Finish a query and report it to the listener. This is called by indexes.
+	 * @param stats the statistics or 'null'
+	 * @return always 'null', so callers can clear their reference
+	 */
+	public static QueryStats finish(QueryStats stats) {
+		if (stats != null) {
+			stats.elapsedNanos = System.nanoTime() - stats.startNanos;
+			if (stats.event != null) {
+				stats.event.commit(stats);
+			}
+			if (stats.target != null) {
+				stats.target.onQuery(stats);
+			}
+		}
+		return null;
+	}
+
+	public void visitNode(boolean isLeaf) {
+		nNodesVisited++;
+		if (isLeaf) {
+			nLeavesVisited++;
+		}
+	}
+
+	public Class<?> getIndexClass() {
+		return indexClass;
+	}
+
+	public QueryType getType() {
+		return type;
+	}
+
+	public int getDims() {
+		return dims;
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	public long getNodesVisited() {
+		return nNodesVisited;
+	}
+
+	public long getLeavesVisited() {
+		return nLeavesVisited;
+	}
+
+	public long getEntriesTested() {
+		return nEntriesTested;
+	}
+
+	public long getNDistCalc() {
+		return nDistCalc;
+	}
+
+	public long getHeapPushCount() {
+		return nHeapPush;
+	}
+
+	public long getHeapPopCount() {
+		return nHeapPop;
+	}
+
+	public long getResultCount() {
+		return nResults;
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	@Override
+	public String toString() {
+		return indexClass.getSimpleName() +
+				";type=" + type +
+				";dims=" + dims +
+				";k=" + k +
+				";nNodesVisited=" + nNodesVisited +
+				";nLeavesVisited=" + nLeavesVisited +
+				";nEntriesTested=" + nEntriesTested +
+				";nDistCalc=" + nDistCalc +
+				";nHeapPush=" + nHeapPush +
+				";nHeapPop=" + nHeapPop +
+				";nResults=" + nResults +
+				";elapsedNanos=" + elapsedNanos;
+	}
+}
@@ -117,6 +117,16 @@ public class PointArray<T> implements PointMap<T>, PointMultimap<T> {
 		return new AQueryIterator(min, max);
 	}
 
+	@Override
+	public void queryRadius(double[] center, double radius, PointDistance distFn, PointVisitorKnn<T> visitor) {
+		PointMap.super.queryRadius(center, radius, distFn, visitor);
+	}
+
+	@Override
+	public List<PointEntryKnn<T>> queryRadius(double[] center, double radius, PointDistance distFn) {
+		return PointMap.super.queryRadius(center, radius, distFn);
+	}
+
 	@Override
 	public PointEntryKnn<T> query1nn(double[] center) {
 		PointIteratorKnn<T> it = queryKnn(center, 1);
@@ -198,7 +208,7 @@ public class PointArray<T> implements PointMap<T>, PointMultimap<T> {
 		}
 
 		private ArrayList<PointEntryKnn<T>> knnQuery(double[] center, int k) {
-			ArrayList<PointEntryKnn<T>> ret = new ArrayList<>(k);
+			ArrayList<PointEntryKnn<T>> ret = new ArrayList<>(Math.min(k, phc.length));
 			for (int i = 0; i < phc.length; i++) {
 				double[] p = phc[i];
 				double dist = dist(center, p);
@@ -84,7 +84,7 @@ public class RectArray<T> implements BoxMap<T>, BoxMultimap<T> {
 	@Override
 	public T update(double[] lo1, double[] up1, double[] lo2, double[] up2) {
 		for (int i = 0; i < N; i++) {
-			if (eq(phc[i*2], lo1) && eq(phc[(i*2)+1], up1)) {
+			if (phc[i*2] != null && eq(phc[i*2], lo1) && eq(phc[(i*2)+1], up1)) {
 				System.arraycopy(lo2, 0, phc[i*2], 0, dims);
 				System.arraycopy(up2, 0, phc[(i*2)+1], 0, dims);
 				return values[i].value();
@@ -101,7 +101,7 @@ public class RectArray<T> implements BoxMap<T>, BoxMultimap<T> {
 	@Override
 	public boolean update(double[] lo1, double[] up1, double[] lo2, double[] up2, T value) {
 		for (int i = 0; i < N; i++) {
-			if (eq(phc[i*2], lo1) && eq(phc[(i*2)+1], up1)) {
+			if (phc[i*2] != null && eq(phc[i*2], lo1) && eq(phc[(i*2)+1], up1)) {
 				if (eq(phc[i*2], lo1) && eq(phc[(i*2)+1], up1) && Objects.equals(value, values[i].value())) {
 					System.arraycopy(lo2, 0, phc[i * 2], 0, dims);
 					System.arraycopy(up2, 0, phc[(i * 2) + 1], 0, dims);
@@ -177,7 +177,7 @@ public class RectArray<T> implements BoxMap<T>, BoxMultimap<T> {
 		return new BoxIteratorWrapper<>(min, max, (lower, upper) -> {
 			ArrayList<BoxEntry<T>> results = new ArrayList<>();
 			for (int i = 0; i < N; i++) {
-				if (leq(phc[i*2], upper) && geq(phc[i*2+1], lower)) {
+				if (phc[i*2] != null && leq(phc[i*2], upper) && geq(phc[i*2+1], lower)) {
 					results.add(values[i]);
 				}
 			}
@@ -234,7 +234,7 @@ public class RectArray<T> implements BoxMap<T>, BoxMultimap<T> {
 		}
 
 		private ArrayList<BoxEntryKnn<T>> knnQuery(double[] center, int k) {
-			ArrayList<BoxEntryKnn<T>> ret = new ArrayList<>(k);
+			ArrayList<BoxEntryKnn<T>> ret = new ArrayList<>(Math.min(k, phc.length/2));
 			for (int i = 0; i < phc.length/2; i++) {
 				double[] min = phc[i*2];
 				double[] max = phc[i*2+1];
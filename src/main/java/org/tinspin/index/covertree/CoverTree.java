@@ -23,7 +23,11 @@ import java.util.Iterator;
 
 import org.tinspin.index.PointDistance;
 import org.tinspin.index.PointMap;
+import org.tinspin.index.QueryStats;
 import org.tinspin.index.Stats;
+import org.tinspin.index.jfr.InsertEvent;
+import org.tinspin.index.jfr.LoadEvent;
+import org.tinspin.index.util.KnnList;
 
 
 /**
@@ -76,7 +80,6 @@ public class CoverTree<T> implements PointMap<T> {
 	private final double BASE;
 	private final double LOG_BASE;
 	private final PointDistance dist;
-	private static final PEComparator comparator = new PEComparator();
 	private long nDistCalc = 0;
 	private long nDist1NN = 0;
 	private long nDistKNN = 0;
@@ -110,10 +113,13 @@ public class CoverTree<T> implements PointMap<T> {
 		if (data == null || data.length == 0) {
 			throw new IllegalStateException("Bulk load with empty data no possible.");
 		}
+		LoadEvent event = new LoadEvent();
+		event.begin();
 		CoverTree<T> tree = new CoverTree<>(data[0].point().length, base, distFn);
 		if (data.length == 1) {
 			tree.root = new Node<>(data[0], 0);
 			tree.nEntries++;
+			event.commit(tree, 1);
 			return tree;
 		}
 		
@@ -143,6 +149,7 @@ public class CoverTree<T> implements PointMap<T> {
 		}
 
 		tree.nEntries = data.length;
+		event.commit(tree, data.length);
 
 		return tree;
 	}
@@ -227,24 +234,23 @@ public class CoverTree<T> implements PointMap<T> {
 	@Override
 	public void insert(double[] key, T value) {
 		//System.out.println("Inserting(" + nEntries + "): " + Arrays.toString(key));
+		InsertEvent event = new InsertEvent();
+		event.begin();
 		Node<T> x = new Node<>(new PointEntry<>(key, value), -1);
 		if (root == null) {
 			root = x.initLevel(0);
-			nEntries++;
-			return;
-		}
-		if (!root.hasChildren()) {
+		} else if (!root.hasChildren()) {
 			double dist = d(root, x);
 			//initialize levels from current distance
 			int level = (int) log13(dist);
 			root.setLevel(level + 1);
 			Node<T> q = x.initLevel(level);
 			root.addChild(q, dist);
-			nEntries++;
-			return;
+		} else {
+			insert(root, x);
 		}
-		insert(root, x);
 		nEntries++;
+		event.commit(this);
 	}
 	
 	private void insert(Node<T> p, Node<T> x) {
@@ -718,6 +724,81 @@ public class CoverTree<T> implements PointMap<T> {
 		throw new UnsupportedOperationException();
 		//return null;
 	}
+
+	/**
+	 * Visit all points in the axis-aligned rectangle between 'min' and 'max'.
+	 * Subtrees are skipped if their covering ball does not intersect the rectangle.
+	 * Apart from one temporary point, this does not create any objects.
+	 * @param min lower left corner of query
+	 * @param max upper right corner of query
+	 * @param visitor callback for all entries in the rectangle
+	 */
+	@Override
+	public void query(double[] min, double[] max, PointVisitor<T> visitor) {
+		if (root != null) {
+			query(root, min, max, new double[dims], visitor);
+		}
+	}
+
+	private boolean query(Node<T> p, double[] min, double[] max, double[] closest, PointVisitor<T> visitor) {
+		double[] key = p.point().point();
+		boolean isInside = true;
+		for (int d = 0; d < dims; d++) {
+			// closest point of the rectangle to 'p'
+			closest[d] = Math.max(min[d], Math.min(max[d], key[d]));
+			isInside &= closest[d] == key[d];
+		}
+		if (isInside && !visitor.visit(key, p.point().value())) {
+			return false;
+		}
+		if (!p.hasChildren() || (!isInside && d(p.point(), closest) > p.maxdist(this))) {
+			return true;
+		}
+		ArrayList<Node<T>> children = p.getChildren();
+		for (int i = 0; i < children.size(); i++) {
+			if (!query(children.get(i), min, max, closest, visitor)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Visit all points whose distance from 'center' is at most 'radius'.
+	 * If 'distFn' is the distance function of the tree, subtrees are skipped if
+	 * their covering ball does not intersect with the sphere (triangle inequality).
+	 * Other distance functions use a window query.
+	 * @param center center point
+	 * @param radius maximum distance
+	 * @param distFn the point distance function to be used
+	 * @param visitor callback for all entries in the sphere
+	 */
+	@Override
+	public void queryRadius(double[] center, double radius, PointDistance distFn, PointVisitorKnn<T> visitor) {
+		if (distFn != dist) {
+			PointMap.super.queryRadius(center, radius, distFn, visitor);
+		} else if (root != null) {
+			queryRadius(root, center, radius, visitor);
+		}
+	}
+
+	private boolean queryRadius(Node<T> p, double[] center, double radius, PointVisitorKnn<T> visitor) {
+		double distP = d(p.point(), center);
+		if (distP <= radius && !visitor.visit(p.point().point(), p.point().value(), distP)) {
+			return false;
+		}
+		// All descendants are within 'maxdist' of 'p'
+		if (!p.hasChildren() || distP - p.maxdist(this) > radius) {
+			return true;
+		}
+		ArrayList<Node<T>> children = p.getChildren();
+		for (int i = 0; i < children.size(); i++) {
+			if (!queryRadius(children.get(i), center, radius, visitor)) {
+				return false;
+			}
+		}
+		return true;
+	}
 	
 	@Override
 	public PointEntryKnn<T> query1nn(double[] center) {
@@ -773,14 +854,68 @@ public class CoverTree<T> implements PointMap<T> {
 
 	@Override
 	public PointIteratorKnn<T> queryKnn(double[] center, int k) {
-		return new KNNIterator<>(this).reset(center, k);
+		return new KNNIterator<>(this, 0).reset(center, k);
 		//The kNN search above is consistently 2x faster so we use it instead of
 		//the Hjaltason/Samet algorithm below.
 		//return new CoverTreeQueryKnn<>(this, center, k, dist);
 	}
 
-	private void findNearestNeighbor(Node<T> p, double[] x,
-									 int k, ArrayList<PointEntryKnn<T>> candidates, double distPX) {
+	/**
+	 * Approximate kNN search, see {@link PointMap#queryKnn(double[], int, double)}.
+	 * This uses the distance function of the tree, which is Euclidean distance by default.
+	 * @param center  center point
+	 * @param k       number of neighbors
+	 * @param epsilon approximation factor, must be {@code >= 0}
+	 * @return Iterator over query result
+	 */
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, double epsilon) {
+		return new KNNIterator<>(this, epsilon).reset(center, k);
+	}
+
+	/**
+	 * Iterates over all entries in order of increasing distance.
+	 * This uses the distance function of the tree, which is Euclidean distance by default.
+	 * @param center center point
+	 * @return iterator over all entries, nearest first
+	 * @see PointMap#queryNearest(double[])
+	 */
+	@Override
+	public PointIteratorKnn<T> queryNearest(double[] center) {
+		return new CoverTreeQueryKnn<>(this, center, Integer.MAX_VALUE, dist);
+	}
+
+	/**
+	 * Visit the k nearest neighbors in order of increasing distance.
+	 * This uses the distance function of the tree, which is Euclidean distance by default.
+	 * Apart from the list of candidates, this does not create any objects.
+	 * @param center center point
+	 * @param k number of neighbors
+	 * @param visitor callback for the k nearest neighbors
+	 */
+	@Override
+	public void queryKnn(double[] center, int k, PointVisitorKnn<T> visitor) {
+		if (root == null) {
+			return;
+		}
+		KnnList<PointEntry<T>> candidates = new KnnList<>(Math.min(k, size()));
+		double distPX = d(root.point(), center);
+		nDistKNN++;
+		findNearestNeighbor(root, center, candidates, distPX, 1, null);
+		for (int i = 0; i < candidates.size(); i++) {
+			PointEntry<T> e = candidates.get(i);
+			if (!visitor.visit(e.point(), e.value(), candidates.dist(i))) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @param epsFactor (1 + epsilon) for approximate queries. Children are skipped if they cannot
+	 *                  contain a point that is closer than 1/epsFactor of the current k-th candidate.
+	 */
+	private void findNearestNeighbor(Node<T> p, double[] x, KnnList<PointEntry<T>> candidates,
+									 double distPX, double epsFactor, QueryStats stats) {
 //		Algorithm 1 Find nearest neighbor
 //		function findNearestNeighbor(cover tree p, query
 //		point x, nearest neighbor so far y)
@@ -790,21 +925,17 @@ public class CoverTree<T> implements PointMap<T> {
 //		4: if d(y;x) > d(y;q)-maxdist(q) then
 //		5: y findNearestNeighbor(q;x;y)
 //		6: return y
-		PointEntry<T> nn = p.point();
-		if (candidates.size() < k) {
-			candidates.add(new PointEntryKnn<>(nn.point(), nn.value(), distPX));
-			candidates.sort(comparator);
-		} else if (distPX < candidates.get(k-1).dist()) {
-			candidates.remove(k-1);
-			candidates.add(new PointEntryKnn<>(nn.point(), nn.value(), distPX));
-			candidates.sort(comparator);
+		candidates.add(p.point(), distPX);
+		if (stats != null) {
+			stats.visitNode(!p.hasChildren());
+			stats.nEntriesTested++;
 		}
 
 		if (p.hasChildren()) {
 			ArrayList<Node<T>> children = p.getChildren();
 			for (int i = 0; i < children.size(); i++) {
 				Node<T> q = children.get(i);
-				double distCurrentWorst = candidates.get(candidates.size() - 1).dist();
+				double distCurrentWorst = candidates.maxDist() / epsFactor;
 				
 				//Exclude children that are (compared to x) too close to the node or too far away
 				//to contain any useful points.
@@ -820,8 +951,11 @@ public class CoverTree<T> implements PointMap<T> {
 	//			}
 				double distQX = d(q.point(), x);
 				nDistKNN++;
+				if (stats != null) {
+					stats.nDistCalc++;
+				}
 				if (distCurrentWorst > (distQX - q.maxdist(this))) {
-					findNearestNeighbor(q, x, k, candidates, distQX);
+					findNearestNeighbor(q, x, candidates, distQX, epsFactor, stats);
 				}
 			}
 		}
@@ -830,11 +964,13 @@ public class CoverTree<T> implements PointMap<T> {
 	private static class KNNIterator<T> implements PointIteratorKnn<T> {
 
 		private final CoverTree<T> tree;
+		private final double epsFactor;
 		private final ArrayList<PointEntryKnn<T>> result = new ArrayList<>();
 		private Iterator<PointEntryKnn<T>> iter;
 		
-		public KNNIterator(CoverTree<T> tree) {
+		public KNNIterator(CoverTree<T> tree, double epsilon) {
 			this.tree = tree;
+			this.epsFactor = 1 + epsilon;
 		}
 		
 		@Override
@@ -850,10 +986,22 @@ public class CoverTree<T> implements PointMap<T> {
 		@Override
 		public PointIteratorKnn<T> reset(double[] center, int k) {
 			result.clear();
+			QueryStats stats = QueryStats.start(CoverTree.class, QueryStats.QueryType.KNN, center.length, k);
 			if (tree.root != null) {
+				KnnList<PointEntry<T>> candidates = new KnnList<>(Math.min(k, tree.size()));
 				double distPX = tree.d(tree.root.point(), center);
 				tree.nDistKNN++;
-				tree.findNearestNeighbor(tree.root, center, k, result, distPX);
+				if (stats != null) {
+					stats.nDistCalc++;
+				}
+				tree.findNearestNeighbor(tree.root, center, candidates, distPX, epsFactor, stats);
+				for (int i = 0; i < candidates.size(); i++) {
+					result.add(new PointEntryKnn<>(candidates.get(i), candidates.dist(i)));
+				}
+			}
+			if (stats != null) {
+				stats.nResults = result.size();
+				QueryStats.finish(stats);
 			}
 			iter = result.iterator();
 			return this;
@@ -17,7 +17,7 @@
 package org.tinspin.index.covertree;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.PriorityQueue;
 
 import org.tinspin.index.PointDistance;
@@ -28,6 +28,9 @@ import static org.tinspin.index.Index.*;
 /**
  * kNN search.
  * <p>
+ * The search is incremental: nodes are only expanded when {@link #next()} requires it,
+ * so 'k' can be as large as the tree, see {@link CoverTree#queryNearest(double[])}.
+ * <p>
  * Implementation after Hjaltason and Samet.
  * G. R. Hjaltason and H. Samet., "Distance browsing in spatial databases.", ACM TODS 24(2):265--318. 1999
  * 
@@ -39,16 +42,32 @@ public class CoverTreeQueryKnn<T> implements PointIteratorKnn<T> {
 	
 	private final CoverTree<T> tree;
 	private double[] center;
-	private Iterator<PointEntryKnn<T>> iter;
 	private PointDistance dist;
-	private final ArrayList<PointEntryKnn<T>> candidates = new ArrayList<>();
+	private final double epsFactor;
+	private PointEntryKnn<T> current;
+	private int remaining;
 	private final ArrayList<PointEntryKnn<Object>> pool = new ArrayList<>();
 	private final PriorityQueue<PointEntryKnn<Object>> queue = new PriorityQueue<>(new PEComparator());
 	
 	
 	public CoverTreeQueryKnn(CoverTree<T> tree, double[] center, int k, 
 			PointDistance dist) {
+		this(tree, center, k, dist, 0);
+	}
+
+	/**
+	 * @param tree the tree
+	 * @param center center point
+	 * @param k number of neighbors
+	 * @param dist distance function
+	 * @param epsilon approximation factor for approximate kNN queries. Node distances are multiplied
+	 *                with (1 + epsilon), i.e. nodes are skipped if they cannot contain
+	 *                a point that is closer than maxDist/(1 + epsilon).
+	 */
+	public CoverTreeQueryKnn(CoverTree<T> tree, double[] center, int k, 
+			PointDistance dist, double epsilon) {
 		this.tree = tree;
+		this.epsFactor = 1 + epsilon;
 		reset(center, k, dist == null ? PointDistance.L2 : dist);
 	}
 
@@ -64,44 +83,40 @@ public class CoverTreeQueryKnn<T> implements PointIteratorKnn<T> {
 		if (dist != null) {
 			this.dist = dist;
 		}
-		if (this.dist != PointDistance.L2) {
-			System.err.println("This distance iterator only works for L2 distance");
-		}
 		this.center = center;
 		
 		//reset
 		pool.addAll(queue);
 		queue.clear();
-		candidates.clear();
-		candidates.ensureCapacity(k);
+		current = null;
+		remaining = k;
 
 		//handle 0 cases
 		if (k <= 0 || tree.size() == 0) {
-			iter = candidates.iterator();
 			return;
 		}
 
-		//search
-		search(k);
-		iter = candidates.iterator();
-		//System.out.println("Queue size: " + queue.size());
+		//Initialize queue
+		addToQueue(tree.getRoot());
+		findNext();
 	}
 	
 	
+	/**
+	 * Find the next entry. The search is incremental, i.e. it only expands nodes
+	 * until the next closest entry is found.
+	 */
 	@SuppressWarnings("unchecked")
-	private void search(int k) {
-		//Initialize queue
-		addToQueue(tree.getRoot());
-
-		while (!queue.isEmpty()) {
+	private void findNext() {
+		current = null;
+		while (remaining > 0 && !queue.isEmpty()) {
 			PointEntryKnn<Object> candidate = queue.poll();
 			Object o = candidate.value();
 			if (!(o instanceof Node)) {
 				//data entry
-				candidates.add((PointEntryKnn<T>) candidate);
-				if (candidates.size() >= k) {
-					return;
-				}
+				current = (PointEntryKnn<T>) candidate;
+				remaining--;
+				return;
 			} else {
 				//node
 				ArrayList<Node<T>> entries = ((Node<T>)o).getChildren();
@@ -119,8 +134,8 @@ public class CoverTreeQueryKnn<T> implements PointIteratorKnn<T> {
 		double dRootPoint = dist.dist(center, node.point());
 		double maxDist = node.maxdist(tree);
 		double dRootNode = maxDist > dRootPoint ? 0 : (dRootPoint-maxDist);
-		queue.add(createEntry(node.point().point(), node, dRootNode));
-		queue.add(createEntry(node.point().point(), node.point(), dRootPoint));
+		queue.add(createEntry(node.point().point(), node, dRootNode * epsFactor));
+		queue.add(createEntry(node.point().point(), node.point().value(), dRootPoint));
 	}
 	
 	/**
@@ -141,12 +156,17 @@ public class CoverTreeQueryKnn<T> implements PointIteratorKnn<T> {
 
 	@Override
 	public boolean hasNext() {
-		return iter.hasNext();
+		return current != null;
 	}
 
 	
 	@Override
 	public PointEntryKnn<T> next() {
-		return iter.next();
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		PointEntryKnn<T> ret = current;
+		findNext();
+		return ret;
 	}
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import org.tinspin.index.Index;
+
+/**
+ * Base class of all Java Flight Recorder events of TinSpin indexes.
+ * <p>
+ * Events are created and begun on the stack of the operation. If JFR is not recording or the
+ * event type is disabled, {@link #commit(Index)} does nothing and the JIT removes the allocation.
+ */
+@Category("TinSpin")
+public abstract class IndexEvent extends Event {
+
+	@Label("Index Class")
+	Class<?> indexClass;
+
+	@Label("Dimensions")
+	int dims;
+
+	/**
+	 * End the event and commit it if it is enabled and exceeds the threshold.
+	 * @param index the index that executed the operation
+	 */
+	public void commit(Index index) {
+		if (shouldCommit()) {
+			indexClass = index.getClass();
+			dims = index.getDims();
+			commit();
+		}
+	}
+}
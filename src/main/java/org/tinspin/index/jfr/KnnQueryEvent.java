@@ -0,0 +1,38 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import org.tinspin.index.QueryStats;
+
+@Name("org.tinspin.index.KnnQuery")
+@Label("Index kNN Query")
+@Description("k-nearest neighbor query, from creating or resetting the iterator until it is exhausted")
+public class KnnQueryEvent extends QueryEvent {
+
+	@Label("k")
+	int k;
+
+	@Override
+	public void commit(QueryStats stats) {
+		k = stats.getK();
+		super.commit(stats);
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import org.tinspin.index.Index;
+
+@Name("org.tinspin.index.Load")
+@Label("Index Bulk Load")
+@Description("Insertion of many entries at once, e.g. with insertAll()")
+public class LoadEvent extends IndexEvent {
+
+	@Label("Entry Count")
+	int entryCount;
+
+	/**
+	 * @param index the index
+	 * @param entryCount the number of loaded entries
+	 * @see IndexEvent#commit(Index)
+	 */
+	public void commit(Index index, int entryCount) {
+		if (shouldCommit()) {
+			this.entryCount = entryCount;
+			commit(index);
+		}
+	}
+}
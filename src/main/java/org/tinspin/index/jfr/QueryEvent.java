@@ -0,0 +1,49 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.jfr;
+
+import jdk.jfr.Label;
+import org.tinspin.index.QueryStats;
+
+/**
+ * Base class of query events. Query events are not created by the iterators directly, they are
+ * attached to the {@link QueryStats} of the query, see {@link QueryStats#start(Class, QueryStats.QueryType, int, int)}.
+ * The event ends when the iterator is exhausted, iterators that are not exhausted do not report anything.
+ */
+public abstract class QueryEvent extends IndexEvent {
+
+	@Label("Result Count")
+	long resultCount;
+
+	@Label("Nodes Visited")
+	long nodesVisited;
+
+	/**
+	 * End the event and commit it if it exceeds the threshold.
+	 * @param stats the statistics of the query
+	 */
+	public void commit(QueryStats stats) {
+		if (shouldCommit()) {
+			indexClass = stats.getIndexClass();
+			dims = stats.getDims();
+			resultCount = stats.getResultCount();
+			nodesVisited = stats.getNodesVisited();
+			commit();
+		}
+	}
+}
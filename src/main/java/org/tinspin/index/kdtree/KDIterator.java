@@ -3,6 +3,8 @@ package org.tinspin.index.kdtree;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
 
+import org.tinspin.index.QueryStats;
+
 import static org.tinspin.index.Index.*;
 
 /**
@@ -48,6 +50,9 @@ public class KDIterator<T> implements PointIterator<T> {
 			}
 			IteratorPos<T> ni = stack.get(size++);
 			ni.set(node, min, max, depth, dims);
+			if (stats != null) {
+				stats.visitNode(node.isLeaf());
+			}
 		}
 
 		IteratorPos<T> peek() {
@@ -68,6 +73,7 @@ public class KDIterator<T> implements PointIterator<T> {
 	private Node<T> next = null;
 	private double[] min;
 	private double[] max;
+	private QueryStats stats;
 	
 	KDIterator(KDTree<T> tree, double[] min, double[] max) {
 		this.stack = new IteratorStack();
@@ -86,8 +92,14 @@ public class KDIterator<T> implements PointIterator<T> {
 			}
 			if (itPos.doKey) {
 				itPos.doKey = false;
+				if (stats != null) {
+					stats.nEntriesTested++;
+				}
 				if (KDTree.isEnclosed(node.point(), min, max)) {
 					next = node;
+					if (stats != null) {
+						stats.nResults++;
+					}
 					return;
 				}
 			}
@@ -99,6 +111,7 @@ public class KDIterator<T> implements PointIterator<T> {
 			stack.pop();
 		}
 		next = null;
+		stats = QueryStats.finish(stats);
 	}
 	
 	@Override
@@ -130,10 +143,11 @@ public class KDIterator<T> implements PointIterator<T> {
 		this.min = min;
 		this.max = max;
 		next = null;
+		stats = QueryStats.start(KDTree.class, QueryStats.QueryType.WINDOW, min.length, 0);
 		if (tree.getRoot() != null) {
 			stack.prepareAndPush(tree.getRoot(), min, max, 0, tree.getDims());
-			findNext();
 		}
+		findNext();
 		return this;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.kdtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import org.tinspin.index.PointMapF.PointEntryF;
+import org.tinspin.index.PointMapF.PointIteratorF;
+
+/**
+ * Resetable query iterator for {@link KDTreeF}.
+ *
+ * @param <T> Value type
+ */
+public class KDIteratorF<T> implements PointIteratorF<T> {
+
+	private static class IteratorPos<T> {
+		private NodeF<T> node;
+		private boolean doLeft;
+		private boolean doKey;
+		private boolean doRight;
+
+		void set(NodeF<T> node, float[] min, float[] max) {
+			this.node = node;
+			float[] key = node.point();
+			int pos = node.getDim();
+			doLeft = min[pos] <= key[pos];
+			doRight = max[pos] >= key[pos];
+			doKey = true;
+		}
+	}
+
+	private final ArrayList<IteratorPos<T>> stack = new ArrayList<>();
+	private int stackSize = 0;
+	private final KDTreeF<T> tree;
+	private NodeF<T> next = null;
+	private float[] min;
+	private float[] max;
+
+	KDIteratorF(KDTreeF<T> tree, float[] min, float[] max) {
+		this.tree = tree;
+		reset(min, max);
+	}
+
+	private void push(NodeF<T> node) {
+		if (stackSize == stack.size()) {
+			stack.add(new IteratorPos<>());
+		}
+		stack.get(stackSize++).set(node, min, max);
+	}
+
+	private void findNext() {
+		while (stackSize > 0) {
+			IteratorPos<T> itPos = stack.get(stackSize - 1);
+			NodeF<T> node = itPos.node;
+			if (itPos.doLeft && node.getLo() != null) {
+				itPos.doLeft = false;
+				push(node.getLo());
+				continue;
+			}
+			if (itPos.doKey) {
+				itPos.doKey = false;
+				if (KDTreeF.isEnclosed(node.point(), min, max)) {
+					next = node;
+					return;
+				}
+			}
+			if (itPos.doRight && node.getHi() != null) {
+				itPos.doRight = false;
+				push(node.getHi());
+				continue;
+			}
+			stackSize--;
+		}
+		next = null;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return next != null;
+	}
+
+	@Override
+	public PointEntryF<T> next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		NodeF<T> ret = next;
+		findNext();
+		return ret;
+	}
+
+	/**
+	 * Reset the iterator. This iterator can be reused in order to reduce load on the
+	 * garbage collector.
+	 *
+	 * @param min lower left corner of query or 'null' for all entries
+	 * @param max upper right corner of query or 'null' for all entries
+	 * @return this.
+	 */
+	@Override
+	public PointIteratorF<T> reset(float[] min, float[] max) {
+		if (min == null) {
+			min = new float[tree.getDims()];
+			max = new float[tree.getDims()];
+			Arrays.fill(min, Float.NEGATIVE_INFINITY);
+			Arrays.fill(max, Float.POSITIVE_INFINITY);
+		}
+		stackSize = 0;
+		this.min = min;
+		this.max = max;
+		next = null;
+		if (tree.getRoot() != null) {
+			push(tree.getRoot());
+			findNext();
+		}
+		return this;
+	}
+}
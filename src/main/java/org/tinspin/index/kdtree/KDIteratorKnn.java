@@ -33,12 +33,16 @@ public class KDIteratorKnn<T> implements PointIteratorKnn<T> {
     MinHeap<NodeDist<T>> queueN = MinHeap.create((t1, t2) -> t1.closestDist < t2.closestDist);
     MinMaxHeap<PointEntryKnn<T>> queueV = MinMaxHeap.create((t1, t2) -> t1.dist() < t2.dist());
     double maxNodeDist = Double.POSITIVE_INFINITY;
+    // Node distances are multiplied with (1 + epsilon) before they are compared with entries.
+    private final double epsFactor;
     private PointEntryKnn<T> current;
     private int remaining;
     private double[] center;
     private double currentDistance;
+    private QueryStats stats;
 
-    KDIteratorKnn(Node<T> root, int minResults, double[] center, PointDistance distFn, PointFilterKnn<T> filterFn) {
+    KDIteratorKnn(Node<T> root, int minResults, double[] center, PointDistance distFn, PointFilterKnn<T> filterFn, double epsilon) {
+        this.epsFactor = 1 + epsilon;
         this.filterFn = filterFn;
         this.distFn = distFn;
         this.root = root;
@@ -52,7 +56,9 @@ public class KDIteratorKnn<T> implements PointIteratorKnn<T> {
         this.remaining = minResults;
         this.maxNodeDist = Double.POSITIVE_INFINITY;
         this.current = null;
+        this.stats = QueryStats.start(KDTree.class, QueryStats.QueryType.KNN, center.length, minResults);
         if (minResults <= 0 || root == null) {
+            stats = QueryStats.finish(stats);
             return this;
         }
         queueN.clear();
@@ -61,6 +67,10 @@ public class KDIteratorKnn<T> implements PointIteratorKnn<T> {
         // Initialize queue, use d=0 because every imaginable point lies inside the root Node
         double[] closest = center.clone();
         queueN.push(new NodeDist<>(distFn.dist(center, closest), root, closest));
+        if (stats != null) {
+            stats.nDistCalc++;
+            stats.nHeapPush++;
+        }
         findNextElement();
         return this;
     }
@@ -88,7 +98,7 @@ public class KDIteratorKnn<T> implements PointIteratorKnn<T> {
         while (remaining > 0 && !(queueN.isEmpty() && queueV.isEmpty())) {
             boolean useV = !queueV.isEmpty();
             if (useV && !queueN.isEmpty()) {
-                useV = queueV.peekMin().dist() <= queueN.peekMin().closestDist;
+                useV = queueV.peekMin().dist() <= queueN.peekMin().closestDist * epsFactor;
             }
             if (useV) {
                 // data entry
@@ -97,25 +107,43 @@ public class KDIteratorKnn<T> implements PointIteratorKnn<T> {
                 --remaining;
                 this.current = result;
                 currentDistance = result.dist();
+                if (stats != null) {
+                    stats.nHeapPop++;
+                    stats.nResults++;
+                }
                 return;
             } else {
                 // inner node
                 NodeDist<T> entry = queueN.peekMin();
                 queueN.popMin();
+                if (stats != null) {
+                    stats.nHeapPop++;
+                }
 
-                if (entry.closestDist > maxNodeDist && queueV.size() >= remaining) {
+                if (entry.closestDist * epsFactor > maxNodeDist && queueV.size() >= remaining) {
                     // ignore this node
                     continue;
                 }
 
                 Node<T> node = entry.node;
                 double d = distFn.dist(center, node.point());
+                if (stats != null) {
+                    stats.visitNode(node.isLeaf());
+                    stats.nEntriesTested++;
+                    stats.nDistCalc++;
+                }
                 // Using '<=' allows dealing with infinite distances.
                 if (filterFn.test(node, d) && d <= maxNodeDist) {
                     queueV.push(new PointEntryKnn<>(node, d));
+                    if (stats != null) {
+                        stats.nHeapPush++;
+                    }
                     if (queueV.size() >= remaining) {
                         if (queueV.size() > remaining) {
                             queueV.popMax();
+                            if (stats != null) {
+                                stats.nHeapPop++;
+                            }
                         }
                         double dMax = queueV.peekMax().dist();
                         maxNodeDist = Math.min(maxNodeDist, dMax);
@@ -133,6 +161,7 @@ public class KDIteratorKnn<T> implements PointIteratorKnn<T> {
         }
         current = null;
         currentDistance = Double.POSITIVE_INFINITY;
+        stats = QueryStats.finish(stats);
     }
 
     void createEntryHi(NodeDist<T> entry) {
@@ -145,12 +174,18 @@ public class KDIteratorKnn<T> implements PointIteratorKnn<T> {
             newClosest = entry.closest.clone();  // copy
             newClosest[splitDim] = splitX;
             newClosestDist = distFn.dist(newClosest, center);
+            if (stats != null) {
+                stats.nDistCalc++;
+            }
         } else {
             newClosest = entry.closest;
             newClosestDist = entry.closestDist;
         }
-        if (newClosestDist <= maxNodeDist) {
+        if (newClosestDist * epsFactor <= maxNodeDist) {
             queueN.push(new NodeDist<>(newClosestDist, node.getHi(), newClosest));
+            if (stats != null) {
+                stats.nHeapPush++;
+            }
         }
     }
 
@@ -164,13 +199,19 @@ public class KDIteratorKnn<T> implements PointIteratorKnn<T> {
             newClosest = entry.closest.clone();  // copy
             newClosest[splitDim] = splitX;
             newClosestDist = distFn.dist(newClosest, center);
+            if (stats != null) {
+                stats.nDistCalc++;
+            }
         } else {
             newClosest = entry.closest;
             newClosestDist = entry.closestDist;
         }
 
-        if (newClosestDist <= maxNodeDist) {
+        if (newClosestDist * epsFactor <= maxNodeDist) {
             queueN.push(new NodeDist<>(newClosestDist, node.getLo(), newClosest));
+            if (stats != null) {
+                stats.nHeapPush++;
+            }
         }
     }
 
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.kdtree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Builder for balanced kD-trees.
+ * <p>
+ * Every node is the median of its subtree with respect to the node's splitting dimension.
+ * The median is found with quickselect, so building a tree takes O(n log n).
+ * <p>
+ * The loader maintains the same invariant as {@link KDTree#insert(double[], Object)}:
+ * all keys in the 'lower' subtree of a node are strictly smaller than the node's key in the
+ * node's splitting dimension. Keys with equal values always end up in the 'upper' subtree.
+ * <p>
+ * Subtrees are disjoint ranges of the key array, so they can be built in parallel,
+ * see {@link #load(ForkJoinPool)}.
+ *
+ * @param <T> Value type
+ */
+class KDLoader<T> {
+
+	/** Subtrees with fewer entries are built sequentially. */
+	private static final int PARALLEL_THRESHOLD = 10_000;
+
+	private final double[][] keys;
+	private final T[] values;
+	private final int dims;
+
+	/**
+	 * @param keys Keys. The array is reordered during loading but the keys are not copied.
+	 * @param values Values. The array is reordered during loading.
+	 * @param dims Number of dimensions
+	 */
+	KDLoader(double[][] keys, T[] values, int dims) {
+		this.keys = keys;
+		this.values = values;
+		this.dims = dims;
+	}
+
+	Node<T> load() {
+		return build(0, keys.length, 0);
+	}
+
+	/**
+	 * @param dim the splitting dimension of the root
+	 * @return the root of the tree
+	 */
+	Node<T> load(int dim) {
+		return build(0, keys.length, dim);
+	}
+
+	/**
+	 * Build the tree in parallel. Large 'lower' subtrees are built by separate tasks.
+	 * @param pool the pool for building subtrees
+	 * @return the root of the tree
+	 */
+	Node<T> load(ForkJoinPool pool) {
+		return pool.invoke(new BuildTask(0, keys.length, 0));
+	}
+
+	/**
+	 * Same as {@link #build(int, int, int)}, except that 'lower' subtrees with at least
+	 * {@link #PARALLEL_THRESHOLD} entries are forked.
+	 */
+	private class BuildTask extends RecursiveTask<Node<T>> {
+		private static final long serialVersionUID = 1L;
+		private final int lo0;
+		private final int hi;
+		private final int dim0;
+
+		BuildTask(int lo, int hi, int dim) {
+			this.lo0 = lo;
+			this.hi = hi;
+			this.dim0 = dim;
+		}
+
+		@Override
+		protected Node<T> compute() {
+			List<Node<T>> parents = new ArrayList<>();
+			List<BuildTask> tasks = new ArrayList<>();
+			Node<T> top = null;
+			Node<T> parent = null;
+			int lo = lo0;
+			int dim = dim0;
+			while (hi - lo >= PARALLEL_THRESHOLD) {
+				int pos = split(lo, hi, dim);
+				Node<T> n = new Node<>(keys[pos], values[pos], dim, false);
+				n.setCount(hi - lo);
+				int nextDim = (dim + 1) % dims;
+				if (pos - lo >= PARALLEL_THRESHOLD) {
+					BuildTask task = new BuildTask(lo, pos, nextDim);
+					task.fork();
+					tasks.add(task);
+					parents.add(n);
+				} else {
+					n.setLeft(build(lo, pos, nextDim));
+				}
+				if (parent == null) {
+					top = n;
+				} else {
+					parent.setRight(n);
+				}
+				parent = n;
+				lo = pos + 1;
+				dim = nextDim;
+			}
+			Node<T> rest = build(lo, hi, dim);
+			if (parent == null) {
+				top = rest;
+			} else {
+				parent.setRight(rest);
+			}
+			for (int i = tasks.size() - 1; i >= 0; i--) {
+				parents.get(i).setLeft(tasks.get(i).join());
+			}
+			return top;
+		}
+	}
+
+	/**
+	 * Build a subtree for the entries in [lo, hi).
+	 * We only recurse into the 'lower' half, which is never larger than half the entries,
+	 * and iterate over the 'upper' half. This limits the recursion depth to O(log n),
+	 * even if many keys have equal coordinates.
+	 */
+	private Node<T> build(int lo, int hi, int dim) {
+		Node<T> top = null;
+		Node<T> parent = null;
+		while (lo < hi) {
+			int pos = split(lo, hi, dim);
+			Node<T> n = new Node<>(keys[pos], values[pos], dim, false);
+			n.setCount(hi - lo);
+			int nextDim = (dim + 1) % dims;
+			n.setLeft(build(lo, pos, nextDim));
+			if (parent == null) {
+				top = n;
+			} else {
+				parent.setRight(n);
+			}
+			parent = n;
+			lo = pos + 1;
+			dim = nextDim;
+		}
+		return top;
+	}
+
+	/**
+	 * Find the median of [lo, hi) in dimension 'dim'.
+	 * @return The position of the median. All keys before this position are smaller than the median,
+	 * 		   all keys after this position are larger or equal.
+	 */
+	private int split(int lo, int hi, int dim) {
+		int mid = (lo + hi) >>> 1;
+		select(lo, hi - 1, mid, dim);
+		// [lo, mid) <= median <= (mid, hi). We move all keys that are equal to the median
+		// to the end of the lower part so that the node becomes the 'lowest' of these keys.
+		double median = keys[mid][dim];
+		int pos = mid;
+		for (int i = mid - 1; i >= lo; i--) {
+			if (keys[i][dim] == median) {
+				swap(i, --pos);
+			}
+		}
+		return pos;
+	}
+
+	/**
+	 * Quickselect: reorder [lo, hi] such that position 'k' holds the k-th smallest key
+	 * in dimension 'dim', all keys before 'k' are smaller or equal and all keys after 'k'
+	 * are larger or equal.
+	 */
+	private void select(int lo, int hi, int k, int dim) {
+		while (hi > lo) {
+			// median of three
+			int mid = (lo + hi) >>> 1;
+			if (keys[mid][dim] < keys[lo][dim]) {
+				swap(lo, mid);
+			}
+			if (keys[hi][dim] < keys[lo][dim]) {
+				swap(lo, hi);
+			}
+			if (keys[hi][dim] < keys[mid][dim]) {
+				swap(mid, hi);
+			}
+			double pivot = keys[mid][dim];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (keys[i][dim] < pivot) {
+					i++;
+				}
+				while (keys[j][dim] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					swap(i++, j--);
+				}
+			}
+			if (k <= j) {
+				hi = j;
+			} else if (k >= i) {
+				lo = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private void swap(int i, int j) {
+		double[] k = keys[i];
+		keys[i] = keys[j];
+		keys[j] = k;
+		T v = values[i];
+		values[i] = values[j];
+		values[j] = v;
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.kdtree;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.tinspin.index.util.Snapshot;
+import org.tinspin.index.util.SnapshotInput;
+import org.tinspin.index.util.SnapshotOutput;
+import org.tinspin.index.util.ValueSerializer;
+
+/**
+ * Snapshots of kD-trees.
+ * <p>
+ * After the header, the file contains a flag that indicates whether the tree's invariant is
+ * broken, followed by all nodes in pre-order. Every node consists of a byte with child flags
+ * ({@link #HAS_LO}, {@link #HAS_HI}), the key and the value. The splitting dimension of a node
+ * is not stored, it follows from the depth of the node.
+ * <p>
+ * Reading and writing use explicit stacks because degenerated trees can be very deep.
+ * The subtree counts of the nodes are not stored, they are recalculated while reading.
+ */
+class KDSnapshot {
+
+	private static final byte HAS_LO = 1;
+	private static final byte HAS_HI = 2;
+
+	private KDSnapshot() {
+	}
+
+	static <T> void write(KDTree<T> tree, Path file, ValueSerializer<T> serializer) throws IOException {
+		try (SnapshotOutput out = SnapshotOutput.create(file, Snapshot.KDTREE, tree.getDims(), tree.size())) {
+			out.writeByte((byte) (tree.isInvariantBroken() ? 1 : 0));
+			if (tree.getRoot() == null) {
+				return;
+			}
+			@SuppressWarnings("unchecked")
+			Node<T>[] stack = (Node<T>[]) new Node<?>[64];
+			int top = 0;
+			stack[top++] = tree.getRoot();
+			while (top > 0) {
+				Node<T> n = stack[--top];
+				Node<T> lo = n.getLo();
+				Node<T> hi = n.getHi();
+				out.writeByte((byte) ((lo != null ? HAS_LO : 0) | (hi != null ? HAS_HI : 0)));
+				out.writeDoubles(n.point());
+				out.writeValue(n.value(), serializer);
+				if (top + 2 > stack.length) {
+					stack = Arrays.copyOf(stack, stack.length * 2);
+				}
+				// 'lo' has to be written first, so it is pushed last
+				if (hi != null) {
+					stack[top++] = hi;
+				}
+				if (lo != null) {
+					stack[top++] = lo;
+				}
+			}
+		}
+	}
+
+	static <T> void read(KDTree<T> tree, Path file, ValueSerializer<T> serializer) throws IOException {
+		Snapshot.checkEmpty(tree.size());
+		int dims = tree.getDims();
+		try (SnapshotInput in = SnapshotInput.open(file, Snapshot.KDTREE, dims)) {
+			boolean invariantBroken = in.readByte() != 0;
+			int size = in.size();
+			if (size == 0) {
+				return;
+			}
+			// The stack contains nodes whose children have not been read yet, together with the
+			// flags of the missing children.
+			@SuppressWarnings("unchecked")
+			Node<T>[] stack = (Node<T>[]) new Node<?>[64];
+			byte[] flags = new byte[stack.length];
+			int top = 0;
+			flags[top] = in.readByte();
+			Node<T> root = readNode(in, 0, dims, serializer);
+			stack[top++] = root;
+			for (int i = 1; i < size; i++) {
+				while ((flags[top - 1] & (HAS_LO | HAS_HI)) == 0) {
+					updateCount(stack[--top]);
+				}
+				Node<T> parent = stack[top - 1];
+				int dim = (parent.getDim() + 1) % dims;
+				byte childFlags = in.readByte();
+				Node<T> child = readNode(in, dim, dims, serializer);
+				if ((flags[top - 1] & HAS_LO) != 0) {
+					parent.setLeft(child);
+					flags[top - 1] &= ~HAS_LO;
+				} else {
+					parent.setRight(child);
+					flags[top - 1] &= ~HAS_HI;
+				}
+				if (top == stack.length) {
+					stack = Arrays.copyOf(stack, stack.length * 2);
+					flags = Arrays.copyOf(flags, flags.length * 2);
+				}
+				flags[top] = childFlags;
+				stack[top++] = child;
+			}
+			while (top > 0) {
+				updateCount(stack[--top]);
+			}
+			tree.setRoot(root, size, invariantBroken);
+		}
+	}
+
+	/**
+	 * Nodes are removed from the stack after their subtrees are complete.
+	 */
+	private static void updateCount(Node<?> n) {
+		int count = 1;
+		if (n.getLo() != null) {
+			count += n.getLo().getCount();
+		}
+		if (n.getHi() != null) {
+			count += n.getHi().getCount();
+		}
+		n.setCount(count);
+	}
+
+	private static <T> Node<T> readNode(SnapshotInput in, int dim, int dims, ValueSerializer<T> serializer)
+			throws IOException {
+		double[] key = new double[dims];
+		in.readDoubles(key);
+		return new Node<>(key, in.readValue(serializer), dim, false);
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.kdtree;
+
+import org.tinspin.index.util.NodeSpliterator;
+
+import static org.tinspin.index.Index.*;
+
+/**
+ * Spliterator for window queries. Splitting hands off unvisited subtrees.
+ *
+ * @param <T> Value type
+ */
+class KDSpliterator<T> extends NodeSpliterator<Node<T>, PointEntry<T>> {
+
+	private final double[] min;
+	private final double[] max;
+	private final int dims;
+
+	KDSpliterator(KDTree<T> tree, double[] min, double[] max) {
+		this(min, max, tree.getDims());
+		if (tree.getRoot() != null) {
+			addNode(tree.getRoot(), 0);
+		}
+	}
+
+	private KDSpliterator(double[] min, double[] max, int dims) {
+		this.min = min;
+		this.max = max;
+		this.dims = dims;
+	}
+
+	@Override
+	protected void expand(Node<T> node, int depth) {
+		double[] key = node.point();
+		int pos = depth % dims;
+		if (KDTree.isEnclosed(key, min, max)) {
+			addResult(node);
+		}
+		if (node.getHi() != null && max[pos] >= key[pos]) {
+			addNode(node.getHi(), depth + 1);
+		}
+		if (node.getLo() != null && min[pos] <= key[pos]) {
+			addNode(node.getLo(), depth + 1);
+		}
+	}
+
+	@Override
+	protected long estimateSize(Node<T> node) {
+		return node.getCount();
+	}
+
+	@Override
+	protected KDSpliterator<T> create() {
+		return new KDSpliterator<>(min, max, dims);
+	}
+}
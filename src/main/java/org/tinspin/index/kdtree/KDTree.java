@@ -17,12 +17,20 @@
  */
 package org.tinspin.index.kdtree;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Predicate;
 
 import org.tinspin.index.*;
+import org.tinspin.index.jfr.InsertEvent;
+import org.tinspin.index.jfr.LoadEvent;
+import org.tinspin.index.jfr.RemoveEvent;
+import org.tinspin.index.util.KnnHeap;
 import org.tinspin.index.util.MutableRef;
 import org.tinspin.index.util.StringBuilderLn;
+import org.tinspin.index.util.ValueSerializer;
 
 /**
  * A simple KD-Tree implementation. 
@@ -34,6 +42,8 @@ import org.tinspin.index.util.StringBuilderLn;
 public class KDTree<T> implements PointMap<T>, PointMultimap<T> {
 
 	public static final boolean DEBUG = false;
+	//Credit for repairing the invariant that is earned by every modification, see repairInvariant().
+	private static final int REPAIR_CREDIT = 16;
 
 	private final int dims;
 	/** Defensive keys copying. If `false`, the kd-tree will store the passed in
@@ -61,25 +71,146 @@ public class KDTree<T> implements PointMap<T>, PointMultimap<T> {
 	//When it is not broken, we use the simple search. If it gets broken, we use the slower search.
 	//This is especially useful in scenarios where 'remove()' is not required or where
 	//points have never the same values (such as for physical measurements or other experimental results).
+	//
+	//A removal can only break the invariant if it moves up a key from a 'lower' branch that contains
+	//another key with the same value. The affected subtree is then rebuilt, see repairInvariant().
 	private boolean invariantBroken = false;
+	private long repairCredit = 0;
 
 	private Node<T> root;
 
+	//In persistent mode, modifications never change existing nodes. Instead, all nodes on the
+	//path to a modified node are copied (path copying) and the tree gets a new root. After every
+	//modification, the new version is published in 'version', see snapshot().
+	private final boolean persistent;
+	private volatile Version<T> version;
+	private final boolean readOnly;
+
+	//Weight-balance factor for rebalancing, or 0 if rebalancing is disabled, see rebalance().
+	private final double alpha;
+	//Maximum size since the last rebuild of the whole tree.
+	private int maxSize = 0;
+	//Rebuilding a subtree that consists of equal keys does not reduce its depth. After such a
+	//futile rebuild, rebalance() waits until a new node is twice as deep, see rebalance().
+	private int minRebalanceDepth = 0;
+	//Number of subtree rebuilds in rebalance(), for tests.
+	private int nRebalance = 0;
+	//The path of the current insert, reused across inserts.
+	private final ArrayList<Node<T>> insertPath = new ArrayList<>();
+
 
-	private KDTree(int dims, boolean defensiveKeyCopy) {
+	private KDTree(int dims, boolean defensiveKeyCopy, boolean persistent, double alpha) {
 		if (DEBUG) {
 			System.err.println("Warning: DEBUG enabled");
 		}
+		if (alpha != 0 && (alpha <= 0.5 || alpha >= 1)) {
+			throw new IllegalArgumentException("Balance factor must be 0 or in (0.5, 1): " + alpha);
+		}
 		this.dims = dims;
 		this.defensiveKeyCopy = defensiveKeyCopy;
+		this.persistent = persistent;
+		this.readOnly = false;
+		this.alpha = alpha;
+		publish();
+	}
+
+	private KDTree(KDTree<T> tree, Version<T> v) {
+		this.dims = tree.dims;
+		this.defensiveKeyCopy = tree.defensiveKeyCopy;
+		this.alpha = tree.alpha;
+		this.persistent = false;
+		this.readOnly = true;
+		this.root = v.root;
+		this.size = v.size;
+		this.invariantBroken = v.invariantBroken;
 	}
 
 	public static <T> KDTree<T> create(int dims) {
-		return new KDTree<>(dims, true);
+		return new KDTree<>(dims, true, false, 0);
 	}
 
+	/**
+	 * @param config configuration, see also {@link IndexConfig#setBalanceFactor(double)}
+	 * @return a new tree
+	 * @param <T> Value type
+	 */
 	public static <T> KDTree<T> create(IndexConfig config) {
-		return new KDTree<>(config.getDimensions(), config.getDefensiveKeyCopy());
+		return new KDTree<>(config.getDimensions(), config.getDefensiveKeyCopy(), false, config.getBalanceFactor());
+	}
+
+	/**
+	 * Create a persistent kD-tree. Modifications copy all nodes on the path to the modified
+	 * node instead of changing existing nodes, see {@link #snapshot()}.
+	 * Modifications are about 2x slower than in a normal kD-tree.
+	 * @param dims dimensions
+	 * @return a new persistent tree
+	 * @param <T> Value type
+	 */
+	public static <T> KDTree<T> createPersistent(int dims) {
+		return new KDTree<>(dims, true, true, 0);
+	}
+
+	/**
+	 * @param config configuration
+	 * @return a new persistent tree
+	 * @param <T> Value type
+	 * @see #createPersistent(int)
+	 */
+	public static <T> KDTree<T> createPersistent(IndexConfig config) {
+		return new KDTree<>(config.getDimensions(), config.getDefensiveKeyCopy(), true, config.getBalanceFactor());
+	}
+
+	/**
+	 * Returns an immutable snapshot of the tree. This is cheap because the snapshot shares all
+	 * nodes with the tree, and it does not require any locking: a snapshot can be taken and
+	 * queried by any thread while another thread modifies the tree.
+	 * Modifications of the tree are not visible in the snapshot.
+	 * <p>
+	 * Writers must still be serialized, i.e. at most one thread may modify the tree at any time.
+	 * The modifications of 'update()' become visible as a single modification.
+	 *
+	 * @return a read-only snapshot of the current version of the tree
+	 * @throws IllegalStateException if the tree is not persistent, see {@link #createPersistent(int)}
+	 */
+	public KDTree<T> snapshot() {
+		if (readOnly) {
+			return this;
+		}
+		if (!persistent) {
+			throw new IllegalStateException("Snapshots require a persistent tree, see createPersistent()");
+		}
+		return new KDTree<>(this, version);
+	}
+
+	/**
+	 * @return 'true' if this tree was created with {@link #createPersistent(int)}.
+	 */
+	public boolean isPersistent() {
+		return persistent;
+	}
+
+	private void publish() {
+		if (persistent) {
+			version = new Version<>(root, size, invariantBroken);
+		}
+	}
+
+	private void checkWritable() {
+		if (readOnly) {
+			throw new UnsupportedOperationException("Snapshots are read-only");
+		}
+	}
+
+	private static class Version<T> {
+		final Node<T> root;
+		final int size;
+		final boolean invariantBroken;
+
+		Version(Node<T> root, int size, boolean invariantBroken) {
+			this.root = root;
+			this.size = size;
+			this.invariantBroken = invariantBroken;
+		}
 	}
 
 	/**
@@ -90,14 +221,302 @@ public class KDTree<T> implements PointMap<T>, PointMultimap<T> {
 	 */
 	@Override
 	public void insert(double[] key, T value) {
+		insertWithEvent(key, value);
+		publish();
+	}
+
+	private void insertWithEvent(double[] key, T value) {
+		InsertEvent event = new InsertEvent();
+		event.begin();
+		insertNode(key, value);
+		event.commit(this);
+	}
+
+	private void insertNode(double[] key, T value) {
+		checkWritable();
 		size++;
 		modCount++;
 		if (root == null) {
 			root = new Node<>(key, value, 0, defensiveKeyCopy);
+			maxSize = Math.max(maxSize, size);
 			return;
 		}
-		Node<T> n = root;
-		while ((n = n.getClosestNodeOrAddPoint(key, value, dims, defensiveKeyCopy)) != null) ;
+		ArrayList<Node<T>> path = null;
+		if (alpha > 0) {
+			path = insertPath;
+			path.clear();
+		}
+		if (persistent) {
+			// copy the path to the new node
+			Node<T> n = root.copy();
+			root = n;
+			Node<T> next;
+			while (true) {
+				if (path != null) {
+					path.add(n);
+				}
+				if ((next = n.getClosestNodeOrAddPoint(key, value, dims, defensiveKeyCopy)) == null) {
+					break;
+				}
+				Node<T> copy = next.copy();
+				if (next == n.getHi()) {
+					n.setRight(copy);
+				} else {
+					n.setLeft(copy);
+				}
+				n = copy;
+			}
+		} else if (path != null) {
+			Node<T> n = root;
+			while (n != null) {
+				path.add(n);
+				n = n.getClosestNodeOrAddPoint(key, value, dims, defensiveKeyCopy);
+			}
+		} else {
+			Node<T> n = root;
+			while ((n = n.getClosestNodeOrAddPoint(key, value, dims, defensiveKeyCopy)) != null) ;
+		}
+		if (path != null) {
+			rebalance(path);
+			// do not keep the nodes alive
+			path.clear();
+		}
+		repairInvariant(null, -1);
+	}
+
+	/**
+	 * Insert many points at once.
+	 * If the tree is empty, this creates a balanced tree, see {@link KDLoader}.
+	 * Otherwise, the points are inserted one by one.
+	 *
+	 * @param flatCoords coordinates of all points, i.e. 'dims' values per point
+	 * @param values values, one per point
+	 */
+	@Override
+	public void insertAll(double[] flatCoords, T[] values) {
+		LoadEvent event = new LoadEvent();
+		event.begin();
+		if (root != null) {
+			PointMap.super.insertAll(flatCoords, values);
+		} else {
+			load(flatCoords, values);
+			publish();
+		}
+		event.commit(this, values.length);
+	}
+
+	private void load(double[] flatCoords, T[] values) {
+		checkWritable();
+		if (flatCoords.length != values.length * dims) {
+			throw new IllegalArgumentException("Expected " + values.length * dims +
+					" coordinates but got " + flatCoords.length);
+		}
+		double[][] keys = new double[values.length][];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = Arrays.copyOfRange(flatCoords, i * dims, (i + 1) * dims);
+		}
+		root = new KDLoader<>(keys, values.clone(), dims).load();
+		size += values.length;
+		maxSize = size;
+		invariantBroken = false;
+		modCount++;
+	}
+
+	/**
+	 * Build a balanced tree from the given entries, see {@link KDLoader}.
+	 * If the tree is not empty, the existing entries are included, i.e. the whole tree is rebuilt.
+	 * The resulting tree has depth O(log n), independent of the order of the entries.
+	 *
+	 * @param keys keys, one per entry. The keys are only copied if the tree was created with
+	 *             'defensiveKeyCopy'.
+	 * @param values values, one per entry
+	 */
+	public void load(double[][] keys, T[] values) {
+		load(keys, values, null);
+	}
+
+	/**
+	 * Build a balanced tree from the given entries, see {@link #load(double[][], Object[])}.
+	 * Large subtrees are built in parallel.
+	 *
+	 * @param keys keys, one per entry
+	 * @param values values, one per entry
+	 * @param pool the pool for building subtrees in parallel, or 'null' for building the tree sequentially
+	 */
+	public void load(double[][] keys, T[] values, ForkJoinPool pool) {
+		checkWritable();
+		if (keys.length != values.length) {
+			throw new IllegalArgumentException("Expected the same number of keys and values but got " +
+					keys.length + "/" + values.length);
+		}
+		LoadEvent event = new LoadEvent();
+		event.begin();
+		int n = size + keys.length;
+		double[][] allKeys = new double[n][];
+		@SuppressWarnings("unchecked")
+		T[] allValues = (T[]) new Object[n];
+		int pos = root == null ? 0 : collect(root, allKeys, allValues);
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i].length != dims) {
+				throw new IllegalArgumentException("Expected " + dims + " dimensions but got " + keys[i].length);
+			}
+			allKeys[pos] = defensiveKeyCopy ? keys[i].clone() : keys[i];
+			allValues[pos++] = values[i];
+		}
+		KDLoader<T> loader = new KDLoader<>(allKeys, allValues, dims);
+		root = pool == null ? loader.load() : loader.load(pool);
+		size = n;
+		maxSize = n;
+		invariantBroken = false;
+		modCount++;
+		publish();
+		event.commit(this, keys.length);
+	}
+
+	/**
+	 * Copy all entries of a subtree into the arrays.
+	 * @return the number of entries
+	 */
+	private int collect(Node<T> node, double[][] keys, T[] values) {
+		int pos = 0;
+		ArrayDeque<Node<T>> stack = new ArrayDeque<>();
+		stack.push(node);
+		while (!stack.isEmpty()) {
+			Node<T> n = stack.pop();
+			keys[pos] = n.point();
+			values[pos++] = n.value();
+			if (n.getLo() != null) {
+				stack.push(n.getLo());
+			}
+			if (n.getHi() != null) {
+				stack.push(n.getHi());
+			}
+		}
+		return pos;
+	}
+
+	/**
+	 * Rebalancing (only if 'alpha' > 0), this works like a scapegoat tree:
+	 * If the depth of a new node exceeds log_{1/alpha}(size), there must be an ancestor
+	 * where one subtree contains more than 'alpha' of the entries of the ancestor.
+	 * The lowest such ancestor is rebuilt as a balanced subtree, see {@link KDLoader}.
+	 * After many removals (size < alpha * maxSize), the whole tree is rebuilt.
+	 * This guarantees a depth of O(log n) with amortized O(log n) rebuilding cost per insert,
+	 * unless there are many keys with equal coordinates.
+	 * <p>
+	 * Equal keys always go to the 'upper' subtree (see {@link KDLoader}), so a subtree of equal keys
+	 * cannot be balanced. If a rebuild does not reduce the depth of the new node, the rebuilt
+	 * subtree is discarded and rebalancing is suspended until a new node is twice as deep.
+	 * This keeps the rebuilding cost amortized O(1) per insert for such subtrees.
+	 * @param path the path from the root to the parent of the new node
+	 */
+	private void rebalance(ArrayList<Node<T>> path) {
+		maxSize = Math.max(maxSize, size);
+		if (path.size() <= Math.log(size) / Math.log(1 / alpha) || path.size() < minRebalanceDepth) {
+			return;
+		}
+		for (int i = path.size() - 1; i >= 0; i--) {
+			Node<T> n = path.get(i);
+			double maxCount = alpha * n.getCount();
+			if (count(n.getLo()) > maxCount || count(n.getHi()) > maxCount) {
+				nRebalance++;
+				Node<T> subtree = rebuild(n);
+				// the new node is at depth 'path.size() - i + 1' of the old subtree
+				if (depth(subtree) > path.size() - i) {
+					minRebalanceDepth = 2 * path.size();
+					return;
+				}
+				replaceSubtree(path, i, subtree);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of levels of the subtree. This is iterative because subtrees with
+	 *         equal keys can be very deep.
+	 */
+	private static int depth(Node<?> node) {
+		int depth = 0;
+		ArrayList<Node<?>> level = new ArrayList<>();
+		level.add(node);
+		while (!level.isEmpty()) {
+			depth++;
+			ArrayList<Node<?>> next = new ArrayList<>();
+			for (Node<?> n : level) {
+				if (n.getLo() != null) {
+					next.add(n.getLo());
+				}
+				if (n.getHi() != null) {
+					next.add(n.getHi());
+				}
+			}
+			level = next;
+		}
+		return depth;
+	}
+
+	/**
+	 * Replace the subtree of the i-th node on the path.
+	 * @param path the path from the root to the node
+	 * @param i position of the node on the path
+	 * @param subtree the new subtree
+	 */
+	private void replaceSubtree(ArrayList<Node<T>> path, int i, Node<T> subtree) {
+		if (i == 0) {
+			root = subtree;
+		} else if (path.get(i - 1).getLo() == path.get(i)) {
+			path.get(i - 1).setLeft(subtree);
+		} else {
+			path.get(i - 1).setRight(subtree);
+		}
+	}
+
+	private static int count(Node<?> n) {
+		return n == null ? 0 : n.getCount();
+	}
+
+	/**
+	 * @return a balanced copy of the subtree. The original subtree is not modified.
+	 */
+	private Node<T> rebuild(Node<T> node) {
+		int n = node.getCount();
+		double[][] keys = new double[n][];
+		@SuppressWarnings("unchecked")
+		T[] values = (T[]) new Object[n];
+		collect(node, keys, values);
+		return new KDLoader<>(keys, values, dims).load(node.getDim());
+	}
+
+	/**
+	 * Repair the invariant (see 'invariantBroken') with amortized cost.
+	 * Every modification earns {@link #REPAIR_CREDIT}. If a removal broke the invariant, the
+	 * affected subtree is rebuilt immediately if the credit covers its size. Otherwise, the
+	 * tree uses the slow exact-match search until the credit covers the whole tree, which is
+	 * then rebuilt. This costs amortized O(log n) per modification.
+	 * @param path the path from the root to a leaf
+	 * @param broken position of the highest node on the path whose subtree may violate
+	 *               the invariant, or -1
+	 */
+	private void repairInvariant(ArrayList<Node<T>> path, int broken) {
+		repairCredit += REPAIR_CREDIT;
+		if (broken >= 0) {
+			int n = path.get(broken).getCount();
+			if (invariantBroken || n > repairCredit) {
+				invariantBroken = true;
+			} else {
+				repairCredit -= n;
+				replaceSubtree(path, broken, rebuild(path.get(broken)));
+			}
+		}
+		if (invariantBroken && repairCredit >= size) {
+			repairCredit -= size;
+			if (root != null) {
+				root = rebuild(root);
+			}
+			maxSize = size;
+			invariantBroken = false;
+		}
 	}
 
 	/**
@@ -212,12 +631,25 @@ public class KDTree<T> implements PointMap<T>, PointMultimap<T> {
 
 	@Override
 	public boolean removeIf(double[] key, Predicate<PointEntry<T>> pred) {
+		boolean removed = removeWithEvent(key, pred);
+		publish();
+		return removed;
+	}
+
+	private boolean removeWithEvent(double[] key, Predicate<PointEntry<T>> pred) {
+		RemoveEvent event = new RemoveEvent();
+		event.begin();
+		boolean removed = removeNode(key, pred);
+		event.commit(this);
+		return removed;
+	}
+
+	private boolean removeNode(double[] key, Predicate<PointEntry<T>> pred) {
+		checkWritable();
 		if (root == null) {
 			return false;
 		}
 
-		invariantBroken = true;
-
 		//find
 		RemoveResult<T> removeResult = new RemoveResult<>();
 		Node<T> eToRemove = findNodeExact(key, removeResult, pred);
@@ -235,8 +667,13 @@ public class KDTree<T> implements PointMap<T>, PointMultimap<T> {
 			return true;
 		}
 		
-		// find replacement
-		while (eToRemove != null && !eToRemove.isLeaf()) {
+		// Find replacements: the removed node is replaced by a node from its subtree, which is
+		// replaced by a node from its subtree, ..., until we reach a leaf.
+		// All these nodes are on the path from the root to the leaf.
+		ArrayList<Node<T>> replaced = new ArrayList<>();
+		// the first replaced node whose 'lower' branch still contains a key equal to its new key
+		int broken = -1;
+		while (!eToRemove.isLeaf()) {
 			//recurse
 			int pos = removeResult.pos;
 			removeResult.node = null; 
@@ -258,30 +695,112 @@ public class KDTree<T> implements PointMap<T>, PointMultimap<T> {
 			} else if (eToRemove.getLo() != null) {
 				//get replacement from left
 				removeResult.best = Double.NEGATIVE_INFINITY;
+				removeResult.nBest = 0;
 				removeMaxLeaf(eToRemove.getLo(), eToRemove, pos, removeResult);
+				if (removeResult.nBest > 1 && broken < 0) {
+					broken = replaced.size();
+				}
 			}
-			eToRemove.set(removeResult.node.point(), removeResult.node.value());
+			replaced.add(eToRemove);
 			eToRemove = removeResult.node;
 		} 
 		//leaf node
-		Node<T> parent = removeResult.nodeParent; 
-		if (parent != null) {
-			if (parent.getLo() == eToRemove) {
-				parent.setLeft(null);
-			} else if (parent.getHi() == eToRemove) {
-				parent.setRight(null);
-			} else { 
-				throw new IllegalStateException();
-			}
+		replaced.add(eToRemove);
+		ArrayList<Node<T>> path = new ArrayList<>();
+		if (!findPath(root, eToRemove, path)) {
+			throw new IllegalStateException();
+		}
+		if (persistent) {
+			copyPath(path, replaced);
+		}
+		for (int i = 0; i < replaced.size() - 1; i++) {
+			Node<T> next = replaced.get(i + 1);
+			replaced.get(i).set(next.point(), next.value());
+		}
+		// Decrement the subtree counts of all nodes on the path from the root to the leaf.
+		for (int i = 0; i < path.size(); i++) {
+			Node<T> n = path.get(i);
+			n.setCount(n.getCount() - 1);
+		}
+		Node<T> leaf = path.get(path.size() - 1);
+		Node<T> parent = path.get(path.size() - 2); 
+		if (parent.getLo() == leaf) {
+			parent.setLeft(null);
+		} else if (parent.getHi() == leaf) {
+			parent.setRight(null);
+		} else { 
+			throw new IllegalStateException();
 		}
 		size--;
+		if (alpha > 0 && size < alpha * maxSize) {
+			// see rebalance()
+			root = rebuild(root);
+			maxSize = size;
+			invariantBroken = false;
+		} else if (broken >= 0) {
+			// all replaced nodes are on the path
+			repairInvariant(path, path.indexOf(replaced.get(broken)));
+		} else {
+			repairInvariant(null, -1);
+		}
 		return true;
 	}
 
+	/**
+	 * Replaces all nodes on the path with copies and sets a new root.
+	 * @param path the path from the root to a leaf
+	 * @param nodes nodes on the path, they are replaced with their copies
+	 */
+	private void copyPath(ArrayList<Node<T>> path, ArrayList<Node<T>> nodes) {
+		int j = 0;
+		Node<T> parentCopy = null;
+		for (int i = 0; i < path.size(); i++) {
+			Node<T> n = path.get(i);
+			Node<T> copy = n.copy();
+			if (parentCopy == null) {
+				root = copy;
+			} else if (parentCopy.getLo() == n) {
+				parentCopy.setLeft(copy);
+			} else {
+				parentCopy.setRight(copy);
+			}
+			if (j < nodes.size() && nodes.get(j) == n) {
+				nodes.set(j++, copy);
+			}
+			path.set(i, copy);
+			parentCopy = copy;
+		}
+		if (j != nodes.size()) {
+			throw new IllegalStateException();
+		}
+	}
+
+	private static <T> boolean findPath(Node<T> n, Node<T> leaf, ArrayList<Node<T>> path) {
+		double[] key = leaf.point();
+		int start = path.size();
+		do {
+			path.add(n);
+			if (n == leaf) {
+				return true;
+			}
+			double nodeX = n.point()[n.getDim()];
+			double keyX = key[n.getDim()];
+			//Removal may move equal keys into the 'lower' branch, see 'invariantBroken'.
+			if (keyX == nodeX && n.getLo() != null && findPath(n.getLo(), leaf, path)) {
+				return true;
+			}
+			n = (keyX >= nodeX) ? n.getHi() : n.getLo();
+		} while (n != null);
+		path.subList(start, path.size()).clear();
+		return false;
+	}
+
 	private static class RemoveResult<T> {
 		Node<T> node = null;
 		Node<T> nodeParent = null;
 		double best;
+		// number of keys that are equal to 'best', see removeMaxLeaf()
+		int nBest;
 		int pos;
 	}
 	
@@ -317,13 +836,21 @@ public class KDTree<T> implements PointMap<T>, PointMultimap<T> {
 		}
 	}
 	
+	/**
+	 * This also counts the keys that are equal to the maximum. Keys that are not visited are
+	 * smaller than the maximum, unless the invariant is already broken.
+	 */
 	private void removeMaxLeaf(Node<T> node, Node<T> parent, int pos, RemoveResult<T> result) {
 		//Split in 'interesting' dimension
 		if (pos == node.getDim()) {
 			//We strictly look for leaf nodes with left==null
 			if (node.getHi() != null) {
 				removeMaxLeaf(node.getHi(), node, pos, result);
+				if (node.point()[pos] == result.best) {
+					result.nBest++;
+				}
 			} else if (node.point()[pos] >= result.best) {
+				countBest(node.point()[pos], result);
 				result.node = node;
 				result.nodeParent = parent;
 				result.best = node.point()[pos];
@@ -334,6 +861,7 @@ public class KDTree<T> implements PointMap<T>, PointMultimap<T> {
 			//First, check local key. 
 			double localX = node.point()[pos];
 			if (localX >= result.best) {
+				countBest(localX, result);
 				result.node = node;
 				result.nodeParent = parent;
 				result.best = localX;
@@ -347,6 +875,10 @@ public class KDTree<T> implements PointMap<T>, PointMultimap<T> {
 			}
 		}
 	}
+
+	private static void countBest(double x, RemoveResult<?> result) {
+		result.nBest = x == result.best ? result.nBest + 1 : 1;
+	}
 	
 	/**
 	 * Reinsert the key.
@@ -359,12 +891,17 @@ public class KDTree<T> implements PointMap<T>, PointMultimap<T> {
 		if (root == null) {
 			return null;
 		}
-		T value = remove(oldKey);
+		MutableRef<T> ref = new MutableRef<>();
+		removeWithEvent(oldKey, e -> {
+			ref.set(e.value());
+			return true;
+		});
+		T value = ref.get();
 		if (value != null) {
-			insert(newKey, value);
-			return value;
+			insertWithEvent(newKey, value);
 		}
-		return null;
+		publish();
+		return value;
 	}
 
 	/**
@@ -380,8 +917,9 @@ public class KDTree<T> implements PointMap<T>, PointMultimap<T> {
 		if (root == null) {
 			return false;
 		}
-		if (remove(oldKey, value)) {
-			insert(newKey, value);
+		if (removeWithEvent(oldKey, e -> Objects.equals(e.value(), value))) {
+			insertWithEvent(newKey, value);
+			publish();
 			return true;
 		}
 		return false;
@@ -406,10 +944,38 @@ public class KDTree<T> implements PointMap<T>, PointMultimap<T> {
 	 */
 	@Override
 	public void clear() {
+		checkWritable();
 		size = 0;
+		maxSize = 0;
+		minRebalanceDepth = 0;
 		root = null;
 		invariantBroken = false;
 		modCount++;
+		publish();
+	}
+
+	/**
+	 * Writes the tree to a snapshot file, including the tree structure, see {@link KDSnapshot}.
+	 * @param file the file
+	 * @param serializer serializer for the values
+	 * @throws IOException if the file cannot be written
+	 */
+	@Override
+	public void writeSnapshot(Path file, ValueSerializer<T> serializer) throws IOException {
+		KDSnapshot.write(this, file, serializer);
+	}
+
+	/**
+	 * Restores a tree from a snapshot file that was written by a kD-tree. The nodes are
+	 * restored directly, i.e. the tree has exactly the same structure as the original tree.
+	 * @param file the file
+	 * @param serializer serializer for the values
+	 * @throws IOException if the file cannot be read
+	 * @throws IllegalStateException if this tree is not empty
+	 */
+	@Override
+	public void readSnapshot(Path file, ValueSerializer<T> serializer) throws IOException {
+		KDSnapshot.read(this, file, serializer);
 	}
 
 	/**
@@ -423,6 +989,161 @@ public class KDTree<T> implements PointMap<T>, PointMultimap<T> {
 		return new KDIterator<>(this, min, max);
 	}
 
+	/**
+	 * Returns a spliterator over all points in the axis-aligned rectangle between 'min' and 'max'.
+	 * When the spliterator is split, it hands off unvisited subtrees.
+	 * @param min lower left corner of query
+	 * @param max upper right corner of query
+	 * @return a spliterator over all entries in the rectangle
+	 */
+	@Override
+	public Spliterator<PointEntry<T>> spliterator(double[] min, double[] max) {
+		return new KDSpliterator<>(this, min, max);
+	}
+
+	/**
+	 * Visit all points in the axis-aligned rectangle between 'min' and 'max'.
+	 * This does not create any objects.
+	 * @param min lower left corner of query
+	 * @param max upper right corner of query
+	 * @param visitor callback for all entries in the rectangle
+	 */
+	@Override
+	public void query(double[] min, double[] max, PointVisitor<T> visitor) {
+		if (root != null) {
+			query(root, min, max, visitor);
+		}
+	}
+
+	/**
+	 * Visit all points whose distance from 'center' is at most 'radius'.
+	 * Subtrees whose region does not intersect with the sphere are not traversed.
+	 * Apart from one temporary point, this does not create any objects.
+	 * @param center center point
+	 * @param radius maximum distance
+	 * @param distFn the point distance function to be used
+	 * @param visitor callback for all entries in the sphere
+	 */
+	@Override
+	public void queryRadius(double[] center, double radius, PointDistance distFn, PointVisitorKnn<T> visitor) {
+		if (root != null) {
+			queryRadius(root, center, radius, distFn, center.clone(), visitor);
+		}
+	}
+
+	@Override
+	public List<PointEntryKnn<T>> queryRadius(double[] center, double radius, PointDistance distFn) {
+		return PointMap.super.queryRadius(center, radius, distFn);
+	}
+
+	/**
+	 * Count the points in the axis-aligned rectangle between 'min' and 'max'.
+	 * Subtrees whose region is fully covered by the rectangle are not traversed,
+	 * instead their entry count is used.
+	 * @param min lower left corner of query
+	 * @param max upper right corner of query
+	 * @return the number of entries in the rectangle
+	 */
+	@Override
+	public int count(double[] min, double[] max) {
+		if (root == null) {
+			return 0;
+		}
+		double[] lo = new double[dims];
+		double[] hi = new double[dims];
+		Arrays.fill(lo, Double.NEGATIVE_INFINITY);
+		Arrays.fill(hi, Double.POSITIVE_INFINITY);
+		return count(root, min, max, lo, hi);
+	}
+
+	/**
+	 * @param lo lower left corner of the region of the subtree (inclusive)
+	 * @param hi upper right corner of the region of the subtree (inclusive)
+	 */
+	private static <T> int count(Node<T> node, double[] min, double[] max, double[] lo, double[] hi) {
+		if (isEnclosed(lo, hi, min, max)) {
+			return node.getCount();
+		}
+		double[] key = node.point();
+		int pos = node.getDim();
+		int n = isEnclosed(key, min, max) ? 1 : 0;
+		// The region boundaries are inclusive because removal may move equal keys into the 'lower' branch.
+		if (node.getLo() != null && min[pos] <= key[pos]) {
+			double h = hi[pos];
+			hi[pos] = key[pos];
+			n += count(node.getLo(), min, max, lo, hi);
+			hi[pos] = h;
+		}
+		if (node.getHi() != null && max[pos] >= key[pos]) {
+			double l = lo[pos];
+			lo[pos] = key[pos];
+			n += count(node.getHi(), min, max, lo, hi);
+			lo[pos] = l;
+		}
+		return n;
+	}
+
+	/**
+	 * @return 'true' if the box [lo, hi] is fully enclosed by [min, max]
+	 */
+	private static boolean isEnclosed(double[] lo, double[] hi, double[] min, double[] max) {
+		for (int i = 0; i < lo.length; i++) {
+			if (lo[i] < min[i] || hi[i] > max[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static <T> boolean query(Node<T> node, double[] min, double[] max, PointVisitor<T> visitor) {
+		// We recurse into the 'lower' branch and iterate over the 'upper' branch.
+		do {
+			double[] key = node.point();
+			int pos = node.getDim();
+			if (node.getLo() != null && min[pos] <= key[pos] && !query(node.getLo(), min, max, visitor)) {
+				return false;
+			}
+			if (isEnclosed(key, min, max) && !visitor.visit(key, node.value())) {
+				return false;
+			}
+			node = max[pos] >= key[pos] ? node.getHi() : null;
+		} while (node != null);
+		return true;
+	}
+
+	/**
+	 * @param closest the point of the region of the subtree that is closest to 'center'
+	 */
+	private static <T> boolean queryRadius(Node<T> node, double[] center, double radius, PointDistance distFn,
+			double[] closest, PointVisitorKnn<T> visitor) {
+		double[] key = node.point();
+		double dist = distFn.dist(center, key);
+		if (dist <= radius && !visitor.visit(key, node.value(), dist)) {
+			return false;
+		}
+		int pos = node.getDim();
+		double c = closest[pos];
+		if (node.getLo() != null) {
+			closest[pos] = Math.min(c, key[pos]);
+			// The distance only needs to be recalculated if the closest point has changed
+			if ((closest[pos] == c || distFn.dist(center, closest) <= radius)
+					&& !queryRadius(node.getLo(), center, radius, distFn, closest, visitor)) {
+				closest[pos] = c;
+				return false;
+			}
+		}
+		if (node.getHi() != null) {
+			closest[pos] = Math.max(c, key[pos]);
+			if ((closest[pos] == c || distFn.dist(center, closest) <= radius)
+					&& !queryRadius(node.getHi(), center, radius, distFn, closest, visitor)) {
+				closest[pos] = c;
+				return false;
+			}
+		}
+		closest[pos] = c;
+		return true;
+	}
+
 	static boolean isEnclosed(double[] point, double[] min, double[] max) {
 		for (int i = 0; i < point.length; i++) {
 			if (point[i] < min[i] || point[i] > max[i]) {
@@ -432,105 +1153,204 @@ public class KDTree<T> implements PointMap<T>, PointMultimap<T> {
 		return true;
 	}
 
-	private List<PointEntryKnn<T>> knnQuery(double[] center, int k, PointDistance distFn) {
+	/**
+	 * Visit the k nearest neighbors in order of increasing distance. This uses Euclidean distance.
+	 * Apart from the candidate heap and the traversal stack, this does not create any objects.
+	 * @param center center point
+	 * @param k number of neighbors
+	 * @param visitor callback for the k nearest neighbors
+	 */
+	@Override
+	public void queryKnn(double[] center, int k, PointVisitorKnn<T> visitor) {
+		queryKnn(center, k, Double.POSITIVE_INFINITY, visitor);
+	}
+
+	/**
+	 * Visit the k nearest neighbors in order of increasing distance, ignoring all points that are
+	 * farther away than 'maxDist'. This uses Euclidean distance.
+	 * A good upper bound for the distance of the k-th neighbor prunes most of the tree early on,
+	 * e.g. when consecutive queries are close to each other.
+	 * @param center center point
+	 * @param k number of neighbors
+	 * @param maxDist maximum distance of the neighbors
+	 * @param visitor callback for the k nearest neighbors
+	 */
+	public void queryKnn(double[] center, int k, double maxDist, PointVisitorKnn<T> visitor) {
 		if (root == null) {
-			return Collections.emptyList();
-		}
-		ArrayList<PointEntryKnn<T>> candidates = new ArrayList<>(k);
-		rangeSearchKNN(root, center, candidates, k, Double.POSITIVE_INFINITY, distFn);
-		return candidates;
-	}
-
-	private double rangeSearchKNN(Node<T> node, double[] center,
-                                  ArrayList<PointEntryKnn<T>> candidates, int k, double maxRange, PointDistance distFn) {
-    	int pos = node.getDim();
-    	if (node.getLo() != null && (center[pos] < node.point()[pos] || node.getHi() == null)) {
-        	//go down
-    		maxRange = rangeSearchKNN(node.getLo(), center, candidates, k, maxRange, distFn);
-        	//refine result
-    		if (center[pos] + maxRange >= node.point()[pos]) {
-    			maxRange = addCandidate(node, center, candidates, k, maxRange, distFn);
-        		if (node.getHi() != null) {
-        			maxRange = rangeSearchKNN(node.getHi(), center, candidates, k, maxRange, distFn);
-        		}
-    		}
-    	} else if (node.getHi() != null) {
-        	//go down
-    		maxRange = rangeSearchKNN(node.getHi(), center, candidates, k, maxRange, distFn);
-        	//refine result
-    		if (center[pos] <= node.point()[pos] + maxRange) {
-    			maxRange = addCandidate(node, center, candidates, k, maxRange, distFn);
-        		if (node.getLo() != null) {
-        			maxRange = rangeSearchKNN(node.getLo(), center, candidates, k, maxRange, distFn);
-        		}
-    		}
-    	} else {
-    		//leaf -> first (probably best) match!
-    		maxRange = addCandidate(node, center, candidates, k, maxRange, distFn);
-    	}
-    	return maxRange;
-    }
+			return;
+		}
+		KnnSearch search = new KnnSearch(PointDistance.L2);
+		search.run(center, k, maxDist, null);
+		for (int i = 0; i < search.size(); i++) {
+			Node<T> n = search.get(i);
+			if (!visitor.visit(n.point(), n.value(), search.dist(i))) {
+				return;
+			}
+		}
+	}
 
+	/**
+	 * Depth-first kNN search with an explicit stack and a bounded max-heap of candidates.
+	 * For Euclidean distance, the heap contains squared distances.
+	 * A search can be reused for several queries.
+	 */
+	private class KnnSearch {
 
-    private static final Comparator<PointEntryKnn<?>> compKnn =
-    		(PointEntryKnn<?> point1, PointEntryKnn<?> point2) -> {
-    			double deltaDist = point1.dist() - point2.dist();
-    			return deltaDist < 0 ? -1 : (deltaDist > 0 ? 1 : 0);
-    		};
+		private final PointDistance distFn;
+		private final boolean squared;
+		private final KnnHeap<Node<T>> candidates = new KnnHeap<>(0);
+		/** Nodes whose 'near' subtree is being searched. */
+		@SuppressWarnings("unchecked")
+		private Node<T>[] stack = (Node<T>[]) new Node<?>[32];
+		private int stackSize = 0;
+		private double[] center;
+		private QueryStats stats;
 
-    
-    private double addCandidate(Node<T> node, double[] center,
-                                ArrayList<PointEntryKnn<T>> candidates, int k, double maxRange, PointDistance distFn) {
-    	nDistKNN++;
-    	//add ?
-    	double dist = distFn.dist(center, node.point());
-    	if (dist > maxRange) {
-    		//don't add if too far away
-    		return maxRange;
-    	}
-    	if (dist == maxRange && candidates.size() >= k) {
-    		//don't add if we already have enough equally good results.
-    		return maxRange;
-    	}
-		PointEntryKnn<T> cand;
-    	if (candidates.size() >= k) {
-    		cand = candidates.remove(k - 1);
-    		cand.set(node, dist);
-    	} else {
-    		cand = new PointEntryKnn<>(node, dist);
-    	}
-    	int insertionPos = Collections.binarySearch(candidates, cand, compKnn);
-    	insertionPos = insertionPos >= 0 ? insertionPos : -(insertionPos+1);
-    	candidates.add(insertionPos, cand);
-    	return candidates.size() < k ? maxRange : candidates.get(candidates.size() - 1).dist();
-    }
+		KnnSearch(PointDistance distFn) {
+			this.distFn = distFn;
+			this.squared = distFn == PointDistance.L2;
+		}
+
+		void run(double[] center, int k, double maxDist, QueryStats stats) {
+			this.center = center;
+			this.stats = stats;
+			candidates.reset(k, squared ? maxDist * maxDist : maxDist);
+			if (root != null) {
+				search(root);
+			}
+			candidates.sort();
+			Arrays.fill(stack, null);
+			this.center = null;
+			this.stats = null;
+		}
+
+		// The methods below are kept small so that the JIT can inline them into the search loop.
+		private void search(Node<T> start) {
+			descend(start);
+			while (stackSize > 0) {
+				Node<T> node = stack[--stackSize];
+				//The 'near' subtree has been searched, refine result
+				int pos = node.getDim();
+				double split = node.point()[pos];
+				Node<T> lo = node.getLo();
+				Node<T> hi = node.getHi();
+				boolean nearIsLo = lo != null && (center[pos] < split || hi == null);
+				double delta = nearIsLo ? split - center[pos] : center[pos] - split;
+				if (delta <= 0 || isInRange(delta)) {
+					addCandidate(node);
+					Node<T> far = nearIsLo ? hi : lo;
+					if (far != null) {
+						descend(far);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Push the path from 'node' down to a leaf, always following the 'near' child.
+		 * The leaf itself is not pushed, it is the first (probably best) match.
+		 */
+		private void descend(Node<T> node) {
+			while (true) {
+				if (stats != null) {
+					stats.visitNode(node.isLeaf());
+				}
+				int pos = node.getDim();
+				Node<T> next;
+				if (node.getLo() != null && (center[pos] < node.point()[pos] || node.getHi() == null)) {
+					next = node.getLo();
+				} else if (node.getHi() != null) {
+					next = node.getHi();
+				} else {
+					addCandidate(node);
+					return;
+				}
+				if (stackSize == stack.length) {
+					stack = Arrays.copyOf(stack, stackSize * 2);
+				}
+				stack[stackSize++] = node;
+				node = next;
+			}
+		}
+
+		private boolean isInRange(double delta) {
+			double max = candidates.maxDist();
+			return squared ? delta * delta <= max : delta <= max;
+		}
+
+		private void addCandidate(Node<T> node) {
+			nDistKNN++;
+			if (stats != null) {
+				stats.nEntriesTested++;
+				stats.nDistCalc++;
+			}
+			if (squared) {
+				addCandidateL2(node);
+			} else {
+				candidates.add(node, distFn.dist(center, node.point()));
+			}
+		}
 
+		private void addCandidateL2(Node<T> node) {
+			//Entries that are too far away are rejected early
+			double[] point = node.point();
+			double max = candidates.maxDist();
+			double dist = 0;
+			for (int i = 0; i < point.length && dist <= max; i++) {
+				double d = center[i] - point[i];
+				dist += d * d;
+			}
+			//don't add if too far away or if we already have enough equally good results.
+			candidates.add(node, dist);
+		}
+
+		int size() {
+			return candidates.size();
+		}
+
+		Node<T> get(int i) {
+			return candidates.get(i);
+		}
+
+		double dist(int i) {
+			return squared ? Math.sqrt(candidates.dist(i)) : candidates.dist(i);
+		}
+	}
 
     private static class KDQueryIteratorKnn<T> implements PointIteratorKnn<T> {
 
-    	private Iterator<PointEntryKnn<T>> it;
-    	private final KDTree<T> tree;
-		private final PointDistance distFn;
+    	private final KDTree<T>.KnnSearch search;
+		private int pos;
 
 		public KDQueryIteratorKnn(KDTree<T> tree, double[] center, int k, PointDistance distFn) {
-			this.tree = tree;
-			this.distFn = distFn;
+			this.search = tree.new KnnSearch(distFn);
 			reset(center, k);
 		}
 
 		@Override
 		public boolean hasNext() {
-			return it.hasNext();
+			return pos < search.size();
 		}
 
 		@Override
 		public PointEntryKnn<T> next() {
-			return it.next();
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			PointEntryKnn<T> e = new PointEntryKnn<>(search.get(pos), search.dist(pos));
+			pos++;
+			return e;
 		}
 
 		@Override
 		public KDQueryIteratorKnn<T> reset(double[] center, int k) {
-			it = tree.knnQuery(center, k, distFn).iterator();
+			QueryStats stats = QueryStats.start(KDTree.class, QueryStats.QueryType.KNN, center.length, k);
+			search.run(center, k, Double.POSITIVE_INFINITY, stats);
+			pos = 0;
+			if (stats != null) {
+				stats.nResults = search.size();
+				QueryStats.finish(stats);
+			}
 			return this;
 		}
     }
@@ -602,12 +1422,18 @@ public class KDTree<T> implements PointMap<T>, PointMultimap<T> {
 
 	@Override
 	public PointIterator<T> iterator() {
-		if (root == null) {
-			return query(new double[dims], new double[dims]);
-		}
-		//return query(root.);
-		//TODO
-		throw new UnsupportedOperationException();
+		return query(infinity(Double.NEGATIVE_INFINITY), infinity(Double.POSITIVE_INFINITY));
+	}
+
+	@Override
+	public Spliterator<PointEntry<T>> spliterator() {
+		return spliterator(infinity(Double.NEGATIVE_INFINITY), infinity(Double.POSITIVE_INFINITY));
+	}
+
+	private double[] infinity(double inf) {
+		double[] a = new double[dims];
+		Arrays.fill(a, inf);
+		return a;
 	}
 
 	@Override
@@ -617,20 +1443,50 @@ public class KDTree<T> implements PointMap<T>, PointMultimap<T> {
 
 	@Override
 	public PointIteratorKnn<T> queryKnn(double[] center, int k) {
-		if (size < 1_000_000 && k <= 10) {
+		if (size < 1_000_000) {
 			return new KDQueryIteratorKnn<>(this, center, k, PointDistance.L2);
 		}
-		return new KDIteratorKnn<>(root, k, center, PointDistance.L2, (e, d) -> true);
+		return new KDIteratorKnn<>(root, k, center, PointDistance.L2, (e, d) -> true, 0);
 	}
 
 	@Override
 	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn) {
-		// For small trees, the old iterator is about 3x faster.
-		// For 1M it is about even, for 10M the new HS-iterator is about 2x faster.
-		if (size < 1_000_000 && k <= 10) {
+		// Depth-first search with a bounded heap (KDQueryIteratorKnn) vs best-first search
+		// (KDIteratorKnn), KnnLargeKBenchmark with CUBE_P in 3D, JDK 17, average microseconds:
+		//   n=100K: k=1: 6.5 vs 10.4; k=100: 110 vs 149; k=10000: 5076 vs 6351
+		//   n=1M:   k=1: 13.6 vs 15.3; k=100: 185 vs 190; k=10000: 9390 vs 7658
+		// (for n=1M, the depth-first numbers are from the visitor). Below 1M entries the depth-first
+		// search is faster for any 'k'. At 1M both are about even, except for very large 'k'.
+		// mvn -Pjmh test-compile exec:exec -Djmh.args="KnnLargeKBenchmark -e Reset -p data=CUBE_P -p n=100000,1000000"
+		if (size < 1_000_000) {
 			return new KDQueryIteratorKnn<>(this, center, k, distFn);
 		}
-		return new KDIteratorKnn<>(root, k, center, distFn, (e, d) -> true);
+		return new KDIteratorKnn<>(root, k, center, distFn, (e, d) -> true, 0);
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, double epsilon) {
+		return queryKnn(center, k, PointDistance.L2, epsilon);
+	}
+
+	/**
+	 * Approximate kNN search, see {@link PointMap#queryKnn(double[], int, double)}.
+	 * @param center  center point
+	 * @param k       number of neighbors
+	 * @param distFn  the point distance function to be used
+	 * @param epsilon approximation factor, must be {@code >= 0}
+	 * @return Iterator over query result
+	 */
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn, double epsilon) {
+		if (epsilon == 0) {
+			return queryKnn(center, k, distFn);
+		}
+		return new KDIteratorKnn<>(root, k, center, distFn, (e, d) -> true, epsilon);
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryNearest(double[] center) {
+		return new KDIteratorKnn<>(root, Integer.MAX_VALUE, center, PointDistance.L2, (e, d) -> true, 0);
 	}
 
 	@Override
@@ -646,4 +1502,22 @@ public class KDTree<T> implements PointMap<T>, PointMultimap<T> {
 	Node<T> getRoot() {
 		return root;
 	}
+
+	boolean isInvariantBroken() {
+		return invariantBroken;
+	}
+
+	int getRebalanceCount() {
+		return nRebalance;
+	}
+
+	void setRoot(Node<T> root, int size, boolean invariantBroken) {
+		checkWritable();
+		this.root = root;
+		this.size = size;
+		this.maxSize = size;
+		this.invariantBroken = invariantBroken;
+		modCount++;
+		publish();
+	}
 }
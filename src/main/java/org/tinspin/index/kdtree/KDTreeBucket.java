@@ -0,0 +1,1046 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.kdtree;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+import org.tinspin.index.*;
+import org.tinspin.index.util.StringBuilderLn;
+
+/**
+ * A bucket kD-tree, i.e. a variant of the {@link KDTree} that stores its entries in leaves.
+ * <p>
+ * Inner nodes only contain a splitting dimension and a splitting value. Entries with a
+ * coordinate (in the splitting dimension) that is larger or equal to the splitting value
+ * are stored in the 'upper' subtree.
+ * A leaf stores up to 'bucketSize' entries. The coordinates of a leaf are stored in a single
+ * 'double[]' with one contiguous block per dimension (struct-of-arrays), so leaf scans are
+ * tight loops over an array. Compared to the {@link KDTree}, the number of nodes is
+ * reduced by about 'bucketSize'.
+ * <p>
+ * A full leaf is split at the median of the dimension with the largest extent. Leaves that
+ * contain only identical keys cannot be split, they grow beyond 'bucketSize'. Empty leaves are
+ * removed. Entries never move between leaves, so, unlike in the {@link KDTree}, removing entries
+ * does not affect exact match lookups.
+ * <p>
+ * Leaf splits cannot balance the tree if entries are inserted in sorted order. If an insertion
+ * creates a path that is longer than log_{1/alpha}(size) with alpha=0.7, the largest unbalanced
+ * subtree on that path is rebuilt, see scapegoat trees.
+ * <p>
+ * Keys are always copied into the leaves. Query results contain a copy of the key.
+ *
+ * @param <T> Value type
+ */
+public class KDTreeBucket<T> implements PointMap<T>, PointMultimap<T> {
+
+	public static final int DEFAULT_BUCKET_SIZE = 32;
+
+	private static final Object NOT_FOUND = new Object();
+	/** Maximum fraction of entries in one child before a subtree is rebuilt. */
+	private static final double ALPHA = 0.7;
+	private static final double LOG_INV_ALPHA = Math.log(1 / ALPHA);
+
+	private final int dims;
+	private final int bucketSize;
+	private BNode root = null;
+	private int size = 0;
+	private long nDistKNN = 0;
+
+	private KDTreeBucket(int dims, int bucketSize) {
+		if (bucketSize < 2) {
+			throw new IllegalArgumentException("Bucket size must be >= 2: " + bucketSize);
+		}
+		this.dims = dims;
+		this.bucketSize = bucketSize;
+	}
+
+	public static <T> KDTreeBucket<T> create(int dims) {
+		return new KDTreeBucket<>(dims, DEFAULT_BUCKET_SIZE);
+	}
+
+	/**
+	 * @param dims dimensions
+	 * @param bucketSize maximum number of entries in a leaf
+	 * @return New tree
+	 * @param <T> Value type
+	 */
+	public static <T> KDTreeBucket<T> create(int dims, int bucketSize) {
+		return new KDTreeBucket<>(dims, bucketSize);
+	}
+
+	/**
+	 * @param config Index configuration. Keys are always copied, i.e. the 'defensiveKeyCopy'
+	 *               flag is ignored.
+	 * @return New tree
+	 * @param <T> Value type
+	 */
+	public static <T> KDTreeBucket<T> create(IndexConfig config) {
+		return new KDTreeBucket<>(config.getDimensions(), DEFAULT_BUCKET_SIZE);
+	}
+
+	/**
+	 * A node is either an inner node (dim, split, lo, hi) or a leaf (coords, values, size).
+	 */
+	private static class BNode {
+		int dim;
+		double split;
+		BNode lo;
+		BNode hi;
+		/** Coordinates of a leaf, 'coords[d * capacity + i]' is coordinate 'd' of entry 'i'. */
+		double[] coords;
+		Object[] values;
+		int size;
+
+		BNode(int dims, int capacity) {
+			coords = new double[dims * capacity];
+			values = new Object[capacity];
+		}
+
+		BNode(int dim, double split, BNode lo, BNode hi) {
+			this.dim = dim;
+			this.split = split;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		boolean isLeaf() {
+			return coords != null;
+		}
+
+		int capacity() {
+			return values.length;
+		}
+
+		double get(int d, int i) {
+			return coords[d * values.length + i];
+		}
+
+		void add(double[] key, Object value) {
+			int cap = values.length;
+			for (int d = 0; d < key.length; d++) {
+				coords[d * cap + size] = key[d];
+			}
+			values[size++] = value;
+		}
+
+		/**
+		 * Remove entry 'i' by replacing it with the last entry.
+		 */
+		Object remove(int i) {
+			int cap = values.length;
+			int last = --size;
+			Object value = values[i];
+			for (int off = 0; off < coords.length; off += cap) {
+				coords[off + i] = coords[off + last];
+			}
+			values[i] = values[last];
+			values[last] = null;
+			return value;
+		}
+
+		void grow(int dims) {
+			int cap = values.length;
+			int newCap = cap * 2;
+			double[] c = new double[dims * newCap];
+			for (int d = 0; d < dims; d++) {
+				System.arraycopy(coords, d * cap, c, d * newCap, size);
+			}
+			coords = c;
+			values = Arrays.copyOf(values, newCap);
+		}
+
+		boolean isKeyEqual(int i, double[] key) {
+			int cap = values.length;
+			for (int d = 0; d < key.length; d++) {
+				if (coords[d * cap + i] != key[d]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		boolean isEnclosed(int i, double[] min, double[] max) {
+			int cap = values.length;
+			for (int d = 0; d < min.length; d++) {
+				double x = coords[d * cap + i];
+				if (x < min[d] || x > max[d]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		double[] readKey(int i, double[] key) {
+			int cap = values.length;
+			for (int d = 0; d < key.length; d++) {
+				key[d] = coords[d * cap + i];
+			}
+			return key;
+		}
+	}
+
+	@FunctionalInterface
+	private interface EntryFilter {
+		boolean test(BNode leaf, int pos);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T value(BNode leaf, int pos) {
+		return (T) leaf.values[pos];
+	}
+
+	private PointEntry<T> readEntry(BNode leaf, int pos) {
+		return new PointEntry<>(leaf.readKey(pos, new double[dims]), value(leaf, pos));
+	}
+
+	/**
+	 * Insert a key-value pair.
+	 *
+	 * @param key   the key
+	 * @param value the value
+	 */
+	@Override
+	public void insert(double[] key, T value) {
+		if (root == null) {
+			root = new BNode(dims, bucketSize);
+		}
+		BNode n = root;
+		int depth = 0;
+		while (true) {
+			if (n.isLeaf()) {
+				if (n.size < n.capacity()) {
+					n.add(key, value);
+					size++;
+					break;
+				}
+				if (!split(n)) {
+					// only identical keys
+					n.grow(dims);
+					continue;
+				}
+			}
+			n = key[n.dim] >= n.split ? n.hi : n.lo;
+			depth++;
+		}
+		if (depth > Math.log(size) / LOG_INV_ALPHA) {
+			rebalance(key, depth);
+		}
+	}
+
+	/**
+	 * Find the lowest node on the path to 'key' where one child contains more than 'alpha'
+	 * of the entries and rebuild the subtree.
+	 */
+	private void rebalance(double[] key, int depth) {
+		BNode[] path = new BNode[depth + 1];
+		BNode n = root;
+		for (int i = 0; i < depth; i++) {
+			path[i] = n;
+			n = key[n.dim] >= n.split ? n.hi : n.lo;
+		}
+		path[depth] = n;
+		int childSize = n.size;
+		for (int i = depth - 1; i >= 0; i--) {
+			BNode node = path[i];
+			BNode sibling = node.lo == path[i + 1] ? node.hi : node.lo;
+			int nodeSize = childSize + countEntries(sibling);
+			if (childSize > ALPHA * nodeSize) {
+				BNode rebuilt = rebuild(node, nodeSize);
+				if (i == 0) {
+					root = rebuilt;
+				} else if (path[i - 1].lo == node) {
+					path[i - 1].lo = rebuilt;
+				} else {
+					path[i - 1].hi = rebuilt;
+				}
+				return;
+			}
+			childSize = nodeSize;
+		}
+	}
+
+	private static int countEntries(BNode node) {
+		int n = 0;
+		while (!node.isLeaf()) {
+			n += countEntries(node.lo);
+			node = node.hi;
+		}
+		return n + node.size;
+	}
+
+	private BNode rebuild(BNode node, int nEntries) {
+		@SuppressWarnings("unchecked")
+		PointEntry<Object>[] entries = (PointEntry<Object>[]) new PointEntry<?>[nEntries];
+		collect(node, entries, 0);
+		return build(entries, 0, nEntries);
+	}
+
+	private int collect(BNode node, PointEntry<Object>[] entries, int pos) {
+		while (!node.isLeaf()) {
+			pos = collect(node.lo, entries, pos);
+			node = node.hi;
+		}
+		for (int i = 0; i < node.size; i++) {
+			entries[pos++] = new PointEntry<>(node.readKey(i, new double[dims]), node.values[i]);
+		}
+		return pos;
+	}
+
+	/**
+	 * Build a balanced subtree from entries[from, to). Like in {@link #split(BNode)}, the
+	 * splitting value is the median of the dimension with the largest extent.
+	 */
+	private BNode build(PointEntry<Object>[] entries, int from, int to) {
+		int n = to - from;
+		int dim = n <= bucketSize ? -1 : widestDimension(entries, from, to);
+		if (dim < 0) {
+			BNode leaf = new BNode(dims, Math.max(bucketSize, n));
+			for (int i = from; i < to; i++) {
+				leaf.add(entries[i].point(), entries[i].value());
+			}
+			return leaf;
+		}
+		Arrays.sort(entries, from, to, Comparator.comparingDouble(e -> e.point()[dim]));
+		// The 'lower' part must not be empty and must not contain the splitting value.
+		int mid = from + n / 2;
+		while (entries[mid].point()[dim] == entries[from].point()[dim]) {
+			mid++;
+		}
+		while (entries[mid - 1].point()[dim] == entries[mid].point()[dim]) {
+			mid--;
+		}
+		return new BNode(dim, entries[mid].point()[dim], build(entries, from, mid), build(entries, mid, to));
+	}
+
+	/**
+	 * @return the dimension with the largest extent or -1 if all keys are identical.
+	 */
+	private int widestDimension(PointEntry<Object>[] entries, int from, int to) {
+		int dim = -1;
+		double maxExtent = 0;
+		for (int d = 0; d < dims; d++) {
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for (int i = from; i < to; i++) {
+				double x = entries[i].point()[d];
+				min = Math.min(min, x);
+				max = Math.max(max, x);
+			}
+			if (max - min > maxExtent) {
+				maxExtent = max - min;
+				dim = d;
+			}
+		}
+		return dim;
+	}
+
+	/**
+	 * Split a leaf at the median of the dimension with the largest extent.
+	 * The leaf becomes an inner node.
+	 * @return 'false' if all keys in the leaf are identical, i.e. if the leaf cannot be split.
+	 */
+	private boolean split(BNode leaf) {
+		int n = leaf.size;
+		int dim = -1;
+		double maxExtent = 0;
+		for (int d = 0; d < dims; d++) {
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < n; i++) {
+				double x = leaf.get(d, i);
+				min = Math.min(min, x);
+				max = Math.max(max, x);
+			}
+			if (max - min > maxExtent) {
+				maxExtent = max - min;
+				dim = d;
+			}
+		}
+		if (dim < 0) {
+			return false;
+		}
+
+		double[] sorted = Arrays.copyOfRange(leaf.coords, dim * leaf.capacity(), dim * leaf.capacity() + n);
+		Arrays.sort(sorted);
+		// The 'lower' part must not be empty: the split value must be larger than the minimum.
+		int mid = n / 2;
+		while (sorted[mid] == sorted[0]) {
+			mid++;
+		}
+		double split = sorted[mid];
+
+		int nHi = n - mid;
+		BNode lo = new BNode(dims, Math.max(bucketSize, mid));
+		BNode hi = new BNode(dims, Math.max(bucketSize, nHi));
+		double[] key = new double[dims];
+		for (int i = 0; i < n; i++) {
+			leaf.readKey(i, key);
+			(key[dim] >= split ? hi : lo).add(key, leaf.values[i]);
+		}
+		leaf.coords = null;
+		leaf.values = null;
+		leaf.size = 0;
+		leaf.dim = dim;
+		leaf.split = split;
+		leaf.lo = lo;
+		leaf.hi = hi;
+		return true;
+	}
+
+	private BNode findLeaf(double[] key) {
+		BNode n = root;
+		while (n != null && !n.isLeaf()) {
+			n = key[n.dim] >= n.split ? n.hi : n.lo;
+		}
+		return n;
+	}
+
+	private Object findValue(double[] key, EntryFilter filter) {
+		BNode leaf = findLeaf(key);
+		if (leaf != null) {
+			for (int i = 0; i < leaf.size; i++) {
+				if (leaf.isKeyEqual(i, key) && filter.test(leaf, i)) {
+					return leaf.values[i];
+				}
+			}
+		}
+		return NOT_FOUND;
+	}
+
+	/**
+	 * Check whether a given key exists.
+	 *
+	 * @param key the key to check
+	 * @return true iff the key exists
+	 */
+	@Override
+	public boolean contains(double[] key) {
+		return findValue(key, (leaf, i) -> true) != NOT_FOUND;
+	}
+
+	@Override
+	public boolean contains(double[] key, T value) {
+		return findValue(key, (leaf, i) -> Objects.equals(value, leaf.values[i])) != NOT_FOUND;
+	}
+
+	/**
+	 * Lookup an entry, using exact match.
+	 *
+	 * @param point the point
+	 * @return an iterator over all entries at the given point
+	 */
+	@Override
+	public PointIterator<T> queryExactPoint(double[] point) {
+		return query(point, point);
+	}
+
+	/**
+	 * Get the value associates with the key.
+	 *
+	 * @param key the key to look up
+	 * @return the value for the key or 'null' if the key was not found
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public T queryExact(double[] key) {
+		Object v = findValue(key, (leaf, i) -> true);
+		return v == NOT_FOUND ? null : (T) v;
+	}
+
+	/**
+	 * Remove a key.
+	 * @param key key to remove
+	 * @return the value associated with the key or 'null' if the key was not found
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public T remove(double[] key) {
+		Object v = removeEntry(key, (leaf, i) -> true);
+		return v == NOT_FOUND ? null : (T) v;
+	}
+
+	/**
+	 * Remove an entry.
+	 *
+	 * @param key the point
+	 * @param value the value
+	 * @return `true` iff an entry was found and removed
+	 */
+	@Override
+	public boolean remove(double[] key, T value) {
+		return removeEntry(key, (leaf, i) -> Objects.equals(value, leaf.values[i])) != NOT_FOUND;
+	}
+
+	@Override
+	public boolean removeIf(double[] key, Predicate<PointEntry<T>> pred) {
+		return removeEntry(key, (leaf, i) -> pred.test(readEntry(leaf, i))) != NOT_FOUND;
+	}
+
+	/**
+	 * @return the value of the removed entry or NOT_FOUND.
+	 */
+	private Object removeEntry(double[] key, EntryFilter filter) {
+		BNode grandParent = null;
+		BNode parent = null;
+		BNode n = root;
+		while (n != null && !n.isLeaf()) {
+			grandParent = parent;
+			parent = n;
+			n = key[n.dim] >= n.split ? n.hi : n.lo;
+		}
+		if (n == null) {
+			return NOT_FOUND;
+		}
+		for (int i = 0; i < n.size; i++) {
+			if (n.isKeyEqual(i, key) && filter.test(n, i)) {
+				Object value = n.remove(i);
+				size--;
+				if (n.size == 0 && parent != null) {
+					// Remove the empty leaf, the sibling replaces the parent.
+					BNode sibling = parent.lo == n ? parent.hi : parent.lo;
+					if (grandParent == null) {
+						root = sibling;
+					} else if (grandParent.lo == parent) {
+						grandParent.lo = sibling;
+					} else {
+						grandParent.hi = sibling;
+					}
+				}
+				return value;
+			}
+		}
+		return NOT_FOUND;
+	}
+
+	/**
+	 * Reinsert the key.
+	 * @param oldKey old key
+	 * @param newKey new key
+	 * @return the value associated with the key or 'null' if the key was not found.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public T update(double[] oldKey, double[] newKey) {
+		Object v = removeEntry(oldKey, (leaf, i) -> true);
+		if (v == NOT_FOUND) {
+			return null;
+		}
+		insert(newKey, (T) v);
+		return (T) v;
+	}
+
+	/**
+	 * Reinsert the key.
+	 *
+	 * @param oldKey old key
+	 * @param newKey new key
+	 * @param value  the value of the entry that should be updated
+	 * @return `true` iff the entry was found and updated
+	 */
+	@Override
+	public boolean update(double[] oldKey, double[] newKey, T value) {
+		if (remove(oldKey, value)) {
+			insert(newKey, value);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Get the number of key-value pairs in the tree.
+	 * @return the size
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Removes all elements from the tree.
+	 */
+	@Override
+	public void clear() {
+		size = 0;
+		root = null;
+	}
+
+	/**
+	 * Query the tree, returning all points in the axis-aligned rectangle between 'min' and 'max'.
+	 * @param min lower left corner of query
+	 * @param max upper right corner of query
+	 * @return all entries in the rectangle
+	 */
+	@Override
+	public PointIterator<T> query(double[] min, double[] max) {
+		return new KDIteratorBucket().reset(min, max);
+	}
+
+	@Override
+	public PointIterator<T> iterator() {
+		return new KDIteratorBucket().reset(null, null);
+	}
+
+	/**
+	 * Visit all points in the axis-aligned rectangle between 'min' and 'max'.
+	 * Apart from a copy of the key of every result, this does not create any objects.
+	 * @param min lower left corner of query
+	 * @param max upper right corner of query
+	 * @param visitor callback for all entries in the rectangle
+	 */
+	@Override
+	public void query(double[] min, double[] max, PointVisitor<T> visitor) {
+		if (root != null) {
+			query(root, min, max, visitor);
+		}
+	}
+
+	private boolean query(BNode node, double[] min, double[] max, PointVisitor<T> visitor) {
+		// We recurse into the 'lower' branch and iterate over the 'upper' branch.
+		while (!node.isLeaf()) {
+			boolean doLo = min[node.dim] < node.split;
+			boolean doHi = max[node.dim] >= node.split;
+			if (doLo && doHi) {
+				if (!query(node.lo, min, max, visitor)) {
+					return false;
+				}
+				node = node.hi;
+			} else {
+				node = doLo ? node.lo : node.hi;
+			}
+		}
+		for (int i = 0; i < node.size; i++) {
+			if (node.isEnclosed(i, min, max)
+					&& !visitor.visit(node.readKey(i, new double[dims]), value(node, i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private class KDIteratorBucket implements PointIterator<T> {
+
+		private BNode[] stack = new BNode[16];
+		private int stackSize = 0;
+		private BNode leaf;
+		private int pos;
+		private double[] min;
+		private double[] max;
+		private QueryStats stats;
+
+		private void push(BNode node) {
+			if (stackSize == stack.length) {
+				stack = Arrays.copyOf(stack, stackSize * 2);
+			}
+			stack[stackSize++] = node;
+			if (stats != null) {
+				stats.visitNode(node.isLeaf());
+			}
+		}
+
+		private void findNext() {
+			while (true) {
+				if (leaf != null) {
+					while (++pos < leaf.size) {
+						if (stats != null) {
+							stats.nEntriesTested++;
+						}
+						if (leaf.isEnclosed(pos, min, max)) {
+							if (stats != null) {
+								stats.nResults++;
+							}
+							return;
+						}
+					}
+					leaf = null;
+				}
+				if (stackSize == 0) {
+					stats = QueryStats.finish(stats);
+					return;
+				}
+				BNode node = stack[--stackSize];
+				if (node.isLeaf()) {
+					leaf = node;
+					pos = -1;
+				} else {
+					if (max[node.dim] >= node.split) {
+						push(node.hi);
+					}
+					if (min[node.dim] < node.split) {
+						push(node.lo);
+					}
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return leaf != null;
+		}
+
+		@Override
+		public PointEntry<T> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			PointEntry<T> e = readEntry(leaf, pos);
+			findNext();
+			return e;
+		}
+
+		/**
+		 * Reset the iterator. This iterator can be reused in order to reduce load on the
+		 * garbage collector.
+		 *
+		 * @param min lower left corner of query or 'null' for all entries
+		 * @param max upper right corner of query or 'null' for all entries
+		 * @return this.
+		 */
+		@Override
+		public PointIterator<T> reset(double[] min, double[] max) {
+			if (min == null) {
+				min = new double[dims];
+				max = new double[dims];
+				Arrays.fill(min, Double.NEGATIVE_INFINITY);
+				Arrays.fill(max, Double.POSITIVE_INFINITY);
+			}
+			stackSize = 0;
+			leaf = null;
+			this.min = min;
+			this.max = max;
+			stats = QueryStats.start(KDTreeBucket.class, QueryStats.QueryType.WINDOW, min.length, 0);
+			if (root != null) {
+				push(root);
+			}
+			findNext();
+			return this;
+		}
+	}
+
+	/**
+	 * Candidates of a kNN search.
+	 */
+	private class KnnCandidates {
+		private final BNode[] leaves;
+		private final int[] positions;
+		private final double[] dists;
+		private int size = 0;
+		private final double[] center;
+		private final PointDistance distFn;
+		/** Distances of the entries of a leaf. */
+		private double[] buffer = new double[bucketSize];
+		private final double[] key = new double[dims];
+		private final QueryStats stats;
+
+		KnnCandidates(double[] center, int k, PointDistance distFn, QueryStats stats) {
+			this.leaves = new BNode[k];
+			this.positions = new int[k];
+			this.dists = new double[k];
+			this.center = center;
+			this.distFn = distFn;
+			this.stats = stats;
+		}
+
+		/**
+		 * Check all entries of a leaf. For Euclidean distance, the squared distances are
+		 * computed one dimension at a time, i.e. in a single pass over the coordinates.
+		 */
+		void addLeaf(BNode leaf) {
+			int n = leaf.size;
+			nDistKNN += n;
+			if (stats != null) {
+				stats.nEntriesTested += n;
+				stats.nDistCalc += n;
+			}
+			if (distFn != PointDistance.L2) {
+				for (int i = 0; i < n; i++) {
+					add(leaf, i, distFn.dist(center, leaf.readKey(i, key)));
+				}
+				return;
+			}
+			if (buffer.length < n) {
+				buffer = new double[leaf.capacity()];
+			}
+			double[] dist2 = buffer;
+			double[] coords = leaf.coords;
+			int cap = leaf.capacity();
+			Arrays.fill(dist2, 0, n, 0);
+			for (int d = 0; d < dims; d++) {
+				double c = center[d];
+				int off = d * cap;
+				for (int i = 0; i < n; i++) {
+					double delta = coords[off + i] - c;
+					dist2[i] += delta * delta;
+				}
+			}
+			for (int i = 0; i < n; i++) {
+				double max = maxDist();
+				if (dist2[i] < max * max) {
+					add(leaf, i, Math.sqrt(dist2[i]));
+				}
+			}
+		}
+
+		private void add(BNode leaf, int pos, double dist) {
+			int k = leaves.length;
+			//don't add if too far away or if we already have enough equally good results.
+			if (size == k) {
+				if (k == 0 || dist >= dists[k - 1]) {
+					return;
+				}
+				size--;
+			}
+			int i = size;
+			while (i > 0 && dists[i - 1] > dist) {
+				leaves[i] = leaves[i - 1];
+				positions[i] = positions[i - 1];
+				dists[i] = dists[i - 1];
+				i--;
+			}
+			leaves[i] = leaf;
+			positions[i] = pos;
+			dists[i] = dist;
+			size++;
+		}
+
+		double maxDist() {
+			if (size < leaves.length) {
+				return Double.POSITIVE_INFINITY;
+			}
+			return size == 0 ? Double.NEGATIVE_INFINITY : dists[size - 1];
+		}
+	}
+
+	private KnnCandidates knnSearch(double[] center, int k, PointDistance distFn, QueryStats stats) {
+		KnnCandidates candidates = new KnnCandidates(center, Math.min(k, size()), distFn, stats);
+		if (root != null) {
+			rangeSearchKNN(root, candidates);
+		}
+		if (stats != null) {
+			stats.nResults = candidates.size;
+			QueryStats.finish(stats);
+		}
+		return candidates;
+	}
+
+	private void rangeSearchKNN(BNode node, KnnCandidates candidates) {
+		if (candidates.stats != null) {
+			candidates.stats.visitNode(node.isLeaf());
+		}
+		if (node.isLeaf()) {
+			candidates.addLeaf(node);
+			return;
+		}
+		double delta = candidates.center[node.dim] - node.split;
+		rangeSearchKNN(delta >= 0 ? node.hi : node.lo, candidates);
+		//The other subtree may contain closer entries
+		if (Math.abs(delta) < candidates.maxDist()) {
+			rangeSearchKNN(delta >= 0 ? node.lo : node.hi, candidates);
+		}
+	}
+
+	/**
+	 * Visit the k nearest neighbors in order of increasing distance. This uses Euclidean distance.
+	 * Apart from the list of candidates and a copy of the key of every result,
+	 * this does not create any objects.
+	 * @param center center point
+	 * @param k number of neighbors
+	 * @param visitor callback for the k nearest neighbors
+	 */
+	@Override
+	public void queryKnn(double[] center, int k, PointVisitorKnn<T> visitor) {
+		KnnCandidates candidates = knnSearch(center, k, PointDistance.L2, null);
+		for (int i = 0; i < candidates.size; i++) {
+			BNode leaf = candidates.leaves[i];
+			int pos = candidates.positions[i];
+			if (!visitor.visit(leaf.readKey(pos, new double[dims]), value(leaf, pos), candidates.dists[i])) {
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void queryRadius(double[] center, double radius, PointDistance distFn, PointVisitorKnn<T> visitor) {
+		PointMap.super.queryRadius(center, radius, distFn, visitor);
+	}
+
+	@Override
+	public List<PointEntryKnn<T>> queryRadius(double[] center, double radius, PointDistance distFn) {
+		return PointMap.super.queryRadius(center, radius, distFn);
+	}
+
+	@Override
+	public PointEntryKnn<T> query1nn(double[] center) {
+		PointIteratorKnn<T> it = queryKnn(center, 1);
+		return it.hasNext() ? it.next() : null;
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k) {
+		return queryKnn(center, k, PointDistance.L2);
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn) {
+		return new KDIteratorKnnBucket(distFn).reset(center, k);
+	}
+
+	private class KDIteratorKnnBucket implements PointIteratorKnn<T> {
+
+		private final PointDistance distFn;
+		private KnnCandidates candidates;
+		private int pos;
+
+		KDIteratorKnnBucket(PointDistance distFn) {
+			this.distFn = distFn;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return pos < candidates.size;
+		}
+
+		@Override
+		public PointEntryKnn<T> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			BNode leaf = candidates.leaves[pos];
+			int i = candidates.positions[pos];
+			PointEntryKnn<T> e = new PointEntryKnn<>(
+					leaf.readKey(i, new double[dims]), value(leaf, i), candidates.dists[pos]);
+			pos++;
+			return e;
+		}
+
+		@Override
+		public PointIteratorKnn<T> reset(double[] center, int k) {
+			candidates = knnSearch(center, k, distFn,
+					QueryStats.start(KDTreeBucket.class, QueryStats.QueryType.KNN, center.length, k));
+			pos = 0;
+			return this;
+		}
+	}
+
+	/**
+	 * Returns a printable list of the tree.
+	 * @return the tree as String
+	 */
+	@Override
+	public String toStringTree() {
+		StringBuilderLn sb = new StringBuilderLn();
+		if (root == null) {
+			sb.append("empty tree");
+		} else {
+			toStringTree(sb, root, 0);
+		}
+		return sb.toString();
+	}
+
+	private void toStringTree(StringBuilderLn sb, BNode node, int depth) {
+		if (!node.isLeaf()) {
+			toStringTree(sb, node.lo, depth + 1);
+		}
+		for (int i = 0; i < depth; i++) {
+			sb.append(".");
+		}
+		sb.append(" ");
+		if (node.isLeaf()) {
+			sb.append("leaf n=").append(node.size).append(":");
+			for (int i = 0; i < node.size; i++) {
+				sb.append(" ").append(Arrays.toString(node.readKey(i, new double[dims])));
+				sb.append(" v=").append(node.values[i]);
+			}
+		} else {
+			sb.append("dim=").append(node.dim).append(" split=").append(node.split);
+		}
+		sb.appendLn();
+		if (!node.isLeaf()) {
+			toStringTree(sb, node.hi, depth + 1);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "KDTreeBucket;size=" + size + ";bucketSize=" + bucketSize;
+	}
+
+	@Override
+	public KDStatsBucket getStats() {
+		KDStatsBucket s = new KDStatsBucket(this);
+		if (root == null) {
+			return s;
+		}
+		// Explicit stack, the tree may be degenerate
+		BNode[] nodes = new BNode[16];
+		int[] depths = new int[16];
+		int stackSize = 0;
+		nodes[stackSize] = root;
+		depths[stackSize++] = 0;
+		while (stackSize > 0) {
+			BNode node = nodes[--stackSize];
+			int depth = depths[stackSize];
+			s.nNodes++;
+			if (depth > s.maxDepth) {
+				s.maxDepth = depth;
+			}
+			if (node.isLeaf()) {
+				s.nLeaf++;
+				s.maxValuesInNode = Math.max(s.maxValuesInNode, node.size);
+				continue;
+			}
+			s.nInner++;
+			if (stackSize + 2 > nodes.length) {
+				nodes = Arrays.copyOf(nodes, nodes.length * 2);
+				depths = Arrays.copyOf(depths, depths.length * 2);
+			}
+			nodes[stackSize] = node.lo;
+			depths[stackSize++] = depth + 1;
+			nodes[stackSize] = node.hi;
+			depths[stackSize++] = depth + 1;
+		}
+		return s;
+	}
+
+	/**
+	 * Statistics container class.
+	 */
+	public static class KDStatsBucket extends Stats {
+		public KDStatsBucket(KDTreeBucket<?> tree) {
+			super(tree.nDistKNN, 0, tree.nDistKNN);
+			this.dims = tree.dims;
+			this.nEntries = tree.size;
+			this.maxNodeSize = tree.bucketSize;
+		}
+	}
+
+	@Override
+	public int getDims() {
+		return dims;
+	}
+
+	@Override
+	public int getNodeCount() {
+		return getStats().getNodeCount();
+	}
+
+	@Override
+	public int getDepth() {
+		return getStats().getMaxDepth();
+	}
+}
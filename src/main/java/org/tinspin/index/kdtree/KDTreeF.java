@@ -0,0 +1,569 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.kdtree;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+import org.tinspin.index.*;
+import org.tinspin.index.util.KnnList;
+import org.tinspin.index.util.MutableRef;
+import org.tinspin.index.util.StringBuilderLn;
+
+/**
+ * A variant of the {@link KDTree} with single precision keys.
+ * <p>
+ * The nodes store their keys as {@code float[]} which halves the memory required for keys.
+ * Window and kNN queries compare and calculate distances in single precision.
+ * The tree structure and the invariant handling are the same as in {@link KDTree}.
+ *
+ * @param <T> Value type
+ */
+public class KDTreeF<T> implements PointMapF<T> {
+
+	private final int dims;
+	/** Defensive keys copying, see {@link KDTree}. */
+	private final boolean defensiveKeyCopy;
+	private int size = 0;
+	private int modCount = 0;
+	private long nDistKNN = 0;
+	// See KDTree for details.
+	private boolean invariantBroken = false;
+
+	private NodeF<T> root;
+
+	private KDTreeF(int dims, boolean defensiveKeyCopy) {
+		this.dims = dims;
+		this.defensiveKeyCopy = defensiveKeyCopy;
+	}
+
+	public static <T> KDTreeF<T> create(int dims) {
+		return new KDTreeF<>(dims, true);
+	}
+
+	public static <T> KDTreeF<T> create(IndexConfig config) {
+		return new KDTreeF<>(config.getDimensions(), config.getDefensiveKeyCopy());
+	}
+
+	/**
+	 * Insert a key-value pair.
+	 *
+	 * @param key   the key
+	 * @param value the value
+	 */
+	@Override
+	public void insert(float[] key, T value) {
+		size++;
+		modCount++;
+		if (root == null) {
+			root = new NodeF<>(key, value, 0, defensiveKeyCopy);
+			return;
+		}
+		NodeF<T> n = root;
+		while ((n = n.getClosestNodeOrAddPoint(key, value, dims, defensiveKeyCopy)) != null) ;
+	}
+
+	/**
+	 * Check whether a given key exists.
+	 *
+	 * @param key the key to check
+	 * @return true iff the key exists
+	 */
+	@Override
+	public boolean contains(float[] key) {
+		return findNodeExact(key, new RemoveResult<>(), e -> true) != null;
+	}
+
+	/**
+	 * Get the value associates with the key.
+	 *
+	 * @param key the key to look up
+	 * @return the value for the key or 'null' if the key was not found
+	 */
+	@Override
+	public T queryExact(float[] key) {
+		NodeF<T> e = findNodeExact(key, new RemoveResult<>(), entry -> true);
+		return e == null ? null : e.value();
+	}
+
+	private NodeF<T> findNodeExact(float[] key, RemoveResult<T> resultDepth, Predicate<PointEntryF<T>> filter) {
+		if (root == null) {
+			return null;
+		}
+		return invariantBroken
+				? findNodeExactSlow(key, root, null, resultDepth, filter)
+				: findNodeExactFast(key, null, resultDepth, filter);
+	}
+
+	private NodeF<T> findNodeExactFast(float[] key, NodeF<T> parent, RemoveResult<T> resultDepth,
+			Predicate<PointEntryF<T>> filter) {
+		NodeF<T> n = root;
+		do {
+			float[] nodeKey = n.point();
+			float nodeX = nodeKey[n.getDim()];
+			float keyX = key[n.getDim()];
+			if (keyX == nodeX && Arrays.equals(key, nodeKey) && filter.test(n)) {
+				resultDepth.pos = n.getDim();
+				resultDepth.nodeParent = parent;
+				return n;
+			}
+			parent = n;
+			n = (keyX >= nodeX) ? n.getHi() : n.getLo();
+		} while (n != null);
+		return n;
+	}
+
+	private NodeF<T> findNodeExactSlow(float[] key, NodeF<T> n, NodeF<T> parent, RemoveResult<T> resultDepth,
+			Predicate<PointEntryF<T>> filter) {
+		do {
+			float[] nodeKey = n.point();
+			float nodeX = nodeKey[n.getDim()];
+			float keyX = key[n.getDim()];
+			if (keyX == nodeX) {
+				if (Arrays.equals(key, nodeKey) && filter.test(n)) {
+					resultDepth.pos = n.getDim();
+					resultDepth.nodeParent = parent;
+					return n;
+				}
+				//Broken invariant? We need to check the 'lower' part as well...
+				if (n.getLo() != null) {
+					NodeF<T> n2 = findNodeExactSlow(key, n.getLo(), n, resultDepth, filter);
+					if (n2 != null) {
+						return n2;
+					}
+				}
+			}
+			parent = n;
+			n = (keyX >= nodeX) ? n.getHi() : n.getLo();
+		} while (n != null);
+		return n;
+	}
+
+	/**
+	 * Remove a key.
+	 * @param key key to remove
+	 * @return the value associated with the key or 'null' if the key was not found
+	 */
+	@Override
+	public T remove(float[] key) {
+		MutableRef<T> ref = new MutableRef<>();
+		removeIf(key, e -> {
+			ref.set(e.value());
+			return true;
+		});
+		return ref.get();
+	}
+
+	/**
+	 * Remove the first entry with the given key that matches the predicate.
+	 * @param key key to remove
+	 * @param pred predicate for the entry
+	 * @return `true` iff an entry was found and removed
+	 */
+	public boolean removeIf(float[] key, Predicate<PointEntryF<T>> pred) {
+		if (root == null) {
+			return false;
+		}
+
+		invariantBroken = true;
+
+		//find
+		RemoveResult<T> removeResult = new RemoveResult<>();
+		NodeF<T> eToRemove = findNodeExact(key, removeResult, pred);
+		if (eToRemove == null) {
+			return false;
+		}
+
+		//remove
+		modCount++;
+		if (eToRemove == root && size == 1) {
+			root = null;
+			size = 0;
+			invariantBroken = false;
+			return true;
+		}
+
+		// find replacement
+		while (eToRemove != null && !eToRemove.isLeaf()) {
+			//recurse
+			int pos = removeResult.pos;
+			removeResult.node = null;
+			if (eToRemove.getHi() != null) {
+				//get replacement from right
+				//This is preferable, because it cannot break the invariant
+				removeResult.best = Float.POSITIVE_INFINITY;
+				removeMinLeaf(eToRemove.getHi(), eToRemove, pos, removeResult);
+			} else if (eToRemove.getLo() != null) {
+				//get replacement from left
+				removeResult.best = Float.NEGATIVE_INFINITY;
+				removeMaxLeaf(eToRemove.getLo(), eToRemove, pos, removeResult);
+			}
+			eToRemove.set(removeResult.node.point(), removeResult.node.value());
+			eToRemove = removeResult.node;
+		}
+		//leaf node
+		NodeF<T> parent = removeResult.nodeParent;
+		if (parent != null) {
+			if (parent.getLo() == eToRemove) {
+				parent.setLeft(null);
+			} else if (parent.getHi() == eToRemove) {
+				parent.setRight(null);
+			} else {
+				throw new IllegalStateException();
+			}
+		}
+		size--;
+		return true;
+	}
+
+	private static class RemoveResult<T> {
+		NodeF<T> node = null;
+		NodeF<T> nodeParent = null;
+		float best;
+		int pos;
+	}
+
+	private void removeMinLeaf(NodeF<T> node, NodeF<T> parent, int pos, RemoveResult<T> result) {
+		//Split in 'interesting' dimension
+		if (pos == node.getDim()) {
+			//We strictly look for leaf nodes with left==null
+			// -> left!=null means the left child is at least as small as the current node
+			if (node.getLo() != null) {
+				removeMinLeaf(node.getLo(), node, pos, result);
+			} else if (node.point()[pos] <= result.best) {
+				result.node = node;
+				result.nodeParent = parent;
+				result.best = node.point()[pos];
+				result.pos = node.getDim();
+			}
+		} else {
+			//split in any other dimension.
+			//First, check local key.
+			float localX = node.point()[pos];
+			if (localX <= result.best) {
+				result.node = node;
+				result.nodeParent = parent;
+				result.best = localX;
+				result.pos = node.getDim();
+			}
+			if (node.getLo() != null) {
+				removeMinLeaf(node.getLo(), node, pos, result);
+			}
+			if (node.getHi() != null) {
+				removeMinLeaf(node.getHi(), node, pos, result);
+			}
+		}
+	}
+
+	private void removeMaxLeaf(NodeF<T> node, NodeF<T> parent, int pos, RemoveResult<T> result) {
+		//Split in 'interesting' dimension
+		if (pos == node.getDim()) {
+			//We strictly look for leaf nodes with left==null
+			if (node.getHi() != null) {
+				removeMaxLeaf(node.getHi(), node, pos, result);
+			} else if (node.point()[pos] >= result.best) {
+				result.node = node;
+				result.nodeParent = parent;
+				result.best = node.point()[pos];
+				result.pos = node.getDim();
+			}
+		} else {
+			//split in any other dimension.
+			//First, check local key.
+			float localX = node.point()[pos];
+			if (localX >= result.best) {
+				result.node = node;
+				result.nodeParent = parent;
+				result.best = localX;
+				result.pos = node.getDim();
+			}
+			if (node.getLo() != null) {
+				removeMaxLeaf(node.getLo(), node, pos, result);
+			}
+			if (node.getHi() != null) {
+				removeMaxLeaf(node.getHi(), node, pos, result);
+			}
+		}
+	}
+
+	/**
+	 * Reinsert the key.
+	 * @param oldKey old key
+	 * @param newKey new key
+	 * @return the value associated with the key or 'null' if the key was not found.
+	 */
+	@Override
+	public T update(float[] oldKey, float[] newKey) {
+		if (root == null) {
+			return null;
+		}
+		T value = remove(oldKey);
+		if (value != null) {
+			insert(newKey, value);
+			return value;
+		}
+		return null;
+	}
+
+	/**
+	 * Get the number of key-value pairs in the tree.
+	 * @return the size
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Removes all elements from the tree.
+	 */
+	@Override
+	public void clear() {
+		size = 0;
+		root = null;
+		invariantBroken = false;
+		modCount++;
+	}
+
+	/**
+	 * Query the tree, returning all points in the axis-aligned rectangle between 'min' and 'max'.
+	 * @param min lower left corner of query
+	 * @param max upper right corner of query
+	 * @return all entries in the rectangle
+	 */
+	@Override
+	public KDIteratorF<T> query(float[] min, float[] max) {
+		return new KDIteratorF<>(this, min, max);
+	}
+
+	@Override
+	public KDIteratorF<T> iterator() {
+		return new KDIteratorF<>(this, null, null);
+	}
+
+	/**
+	 * Visit all points in the axis-aligned rectangle between 'min' and 'max'.
+	 * This does not create any objects.
+	 * @param min lower left corner of query
+	 * @param max upper right corner of query
+	 * @param visitor callback for all entries in the rectangle
+	 */
+	@Override
+	public void query(float[] min, float[] max, PointVisitorF<T> visitor) {
+		if (root != null) {
+			query(root, min, max, visitor);
+		}
+	}
+
+	private static <T> boolean query(NodeF<T> node, float[] min, float[] max, PointVisitorF<T> visitor) {
+		// We recurse into the 'lower' branch and iterate over the 'upper' branch.
+		do {
+			float[] key = node.point();
+			int pos = node.getDim();
+			if (node.getLo() != null && min[pos] <= key[pos] && !query(node.getLo(), min, max, visitor)) {
+				return false;
+			}
+			if (isEnclosed(key, min, max) && !visitor.visit(key, node.value())) {
+				return false;
+			}
+			node = max[pos] >= key[pos] ? node.getHi() : null;
+		} while (node != null);
+		return true;
+	}
+
+	static boolean isEnclosed(float[] point, float[] min, float[] max) {
+		for (int i = 0; i < point.length; i++) {
+			if (point[i] < min[i] || point[i] > max[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private KnnList<NodeF<T>> knnSearch(float[] center, int k) {
+		KnnList<NodeF<T>> candidates = new KnnList<>(Math.min(k, size()));
+		if (root != null) {
+			rangeSearchKNN(root, center, candidates, Float.POSITIVE_INFINITY);
+		}
+		return candidates;
+	}
+
+	/**
+	 * Visit the k nearest neighbors in order of increasing distance. This uses Euclidean distance.
+	 * Apart from the list of candidates, this does not create any objects.
+	 * @param center center point
+	 * @param k number of neighbors
+	 * @param visitor callback for the k nearest neighbors
+	 */
+	@Override
+	public void queryKnn(float[] center, int k, PointVisitorKnnF<T> visitor) {
+		KnnList<NodeF<T>> candidates = knnSearch(center, k);
+		for (int i = 0; i < candidates.size(); i++) {
+			NodeF<T> n = candidates.get(i);
+			if (!visitor.visit(n.point(), n.value(), (float) candidates.dist(i))) {
+				return;
+			}
+		}
+	}
+
+	@Override
+	public PointIteratorKnnF<T> queryKnn(float[] center, int k) {
+		return new KDQueryIteratorKnnF().reset(center, k);
+	}
+
+	private float rangeSearchKNN(NodeF<T> node, float[] center, KnnList<NodeF<T>> candidates, float maxRange) {
+		int pos = node.getDim();
+		if (node.getLo() != null && (center[pos] < node.point()[pos] || node.getHi() == null)) {
+			//go down
+			maxRange = rangeSearchKNN(node.getLo(), center, candidates, maxRange);
+			//refine result
+			if (center[pos] + maxRange >= node.point()[pos]) {
+				maxRange = addCandidate(node, center, candidates);
+				if (node.getHi() != null) {
+					maxRange = rangeSearchKNN(node.getHi(), center, candidates, maxRange);
+				}
+			}
+		} else if (node.getHi() != null) {
+			//go down
+			maxRange = rangeSearchKNN(node.getHi(), center, candidates, maxRange);
+			//refine result
+			if (center[pos] <= node.point()[pos] + maxRange) {
+				maxRange = addCandidate(node, center, candidates);
+				if (node.getLo() != null) {
+					maxRange = rangeSearchKNN(node.getLo(), center, candidates, maxRange);
+				}
+			}
+		} else {
+			//leaf -> first (probably best) match!
+			maxRange = addCandidate(node, center, candidates);
+		}
+		return maxRange;
+	}
+
+	private float addCandidate(NodeF<T> node, float[] center, KnnList<NodeF<T>> candidates) {
+		nDistKNN++;
+		//don't add if too far away or if we already have enough equally good results.
+		return (float) candidates.add(node, PointDistanceF.l2(center, node.point()));
+	}
+
+	private class KDQueryIteratorKnnF implements PointIteratorKnnF<T> {
+
+		private KnnList<NodeF<T>> candidates;
+		private int pos;
+
+		@Override
+		public boolean hasNext() {
+			return pos < candidates.size();
+		}
+
+		@Override
+		public PointEntryKnnF<T> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			PointEntryKnnF<T> e = new PointEntryKnnF<>(candidates.get(pos), (float) candidates.dist(pos));
+			pos++;
+			return e;
+		}
+
+		@Override
+		public KDQueryIteratorKnnF reset(float[] center, int k) {
+			candidates = knnSearch(center, k);
+			pos = 0;
+			return this;
+		}
+	}
+
+	/**
+	 * Returns a printable list of the tree.
+	 * @return the tree as String
+	 */
+	@Override
+	public String toStringTree() {
+		StringBuilderLn sb = new StringBuilderLn();
+		if (root == null) {
+			sb.append("empty tree");
+		} else {
+			toStringTree(sb, root, 0);
+		}
+		return sb.toString();
+	}
+
+	private void toStringTree(StringBuilderLn sb, NodeF<T> node, int depth) {
+		if (node.getLo() != null) {
+			toStringTree(sb, node.getLo(), depth+1);
+		}
+		for (int i = 0; i < depth; i++) {
+			sb.append(".");
+		}
+		sb.append(" ");
+		sb.append(Arrays.toString(node.point()));
+		sb.append(" v=").append(node.value());
+		sb.append(" l/r=");
+		sb.append(node.getLo() == null ? null : Arrays.toString(node.getLo().point()));
+		sb.append("/");
+		sb.append(node.getHi() == null ? null : Arrays.toString(node.getHi().point()));
+		sb.appendLn();
+		if (node.getHi() != null) {
+			toStringTree(sb, node.getHi(), depth+1);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "KDTreeF;size=" + size +
+				";center=" + (root==null ? "null" : Arrays.toString(root.point()));
+	}
+
+	@Override
+	public KDStatsF getStats() {
+		KDStatsF s = new KDStatsF(this);
+		if (root != null) {
+			root.checkNode(s, 0);
+		}
+		return s;
+	}
+
+	/**
+	 * Statistics container class.
+	 */
+	public static class KDStatsF extends Stats {
+		public KDStatsF(KDTreeF<?> tree) {
+			super(tree.nDistKNN, 0, tree.nDistKNN);
+		}
+	}
+
+	@Override
+	public int getDims() {
+		return dims;
+	}
+
+	@Override
+	public int getNodeCount() {
+		return getStats().getNodeCount();
+	}
+
+	@Override
+	public int getDepth() {
+		return getStats().getMaxDepth();
+	}
+
+	NodeF<T> getRoot() {
+		return root;
+	}
+}
@@ -0,0 +1,1091 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.kdtree;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+import org.tinspin.index.*;
+import org.tinspin.index.util.StringBuilderLn;
+
+/**
+ * A variant of the {@link KDTree} that stores its nodes outside the Java heap.
+ * <p>
+ * The nodes are stored in direct {@link ByteBuffer}s. Every node is a fixed size record
+ * that contains the 'int' offsets of its children, an 'int' handle of its value and the
+ * coordinates of its key. The values themselves are stored in an on-heap array.
+ * As a result, the tree consists of only a few objects (one per buffer), it is
+ * invisible to the garbage collector and nodes are laid out contiguously in memory.
+ * The off-heap memory is released when the buffers are garbage collected, e.g. after
+ * {@link #clear()} or when the tree is no longer referenced.
+ * <p>
+ * Keys are always copied into the buffers. Query results contain a copy of the key.
+ * The tree structure and the invariant handling are the same as in {@link KDTree}.
+ *
+ * @param <T> Value type
+ */
+public class KDTreeOffHeap<T> implements PointMap<T>, PointMultimap<T> {
+
+	/** Maximum number of nodes per buffer, as power of two. */
+	private static final int MAX_CHUNK_BITS = 16;
+	private static final int NULL = -1;
+	// Node layout in bytes. The key is 8-byte aligned.
+	private static final int LO = 0;
+	private static final int HI = 4;
+	private static final int VALUE = 8;
+	private static final int DIM = 12;
+	private static final int KEY = 16;
+
+	private final int dims;
+	private final int nodeSize;
+	private final int chunkBits;
+	private final int chunkMask;
+	private ByteBuffer[] chunks = new ByteBuffer[0];
+	/** Number of allocated node slots, including free slots. */
+	private int nNodeSlots = 0;
+	/** Free nodes are chained via their LO field. */
+	private int freeNodes = NULL;
+	private Object[] values = new Object[16];
+	private int nValueSlots = 0;
+	private int[] freeValues = new int[16];
+	private int nFreeValues = 0;
+
+	private int root = NULL;
+	private int size = 0;
+	private long nDistKNN = 0;
+	// See KDTree for details.
+	private boolean invariantBroken = false;
+
+	private KDTreeOffHeap(int dims) {
+		this.dims = dims;
+		this.nodeSize = KEY + dims * Double.BYTES;
+		// Every buffer must be smaller than 2GB
+		int bits = MAX_CHUNK_BITS;
+		while (bits > 0 && ((long) nodeSize << bits) > Integer.MAX_VALUE) {
+			bits--;
+		}
+		this.chunkBits = bits;
+		this.chunkMask = (1 << bits) - 1;
+	}
+
+	public static <T> KDTreeOffHeap<T> create(int dims) {
+		return new KDTreeOffHeap<>(dims);
+	}
+
+	/**
+	 * @param config Index configuration. Keys are always copied, i.e. the 'defensiveKeyCopy'
+	 *               flag is ignored.
+	 * @return New tree
+	 * @param <T> Value type
+	 */
+	public static <T> KDTreeOffHeap<T> create(IndexConfig config) {
+		return new KDTreeOffHeap<>(config.getDimensions());
+	}
+
+	// Node access
+
+	private ByteBuffer chunk(int node) {
+		return chunks[node >>> chunkBits];
+	}
+
+	private int offset(int node) {
+		return (node & chunkMask) * nodeSize;
+	}
+
+	private int getLo(int node) {
+		return chunk(node).getInt(offset(node) + LO);
+	}
+
+	private int getHi(int node) {
+		return chunk(node).getInt(offset(node) + HI);
+	}
+
+	private void setLo(int node, int lo) {
+		chunk(node).putInt(offset(node) + LO, lo);
+	}
+
+	private void setHi(int node, int hi) {
+		chunk(node).putInt(offset(node) + HI, hi);
+	}
+
+	private int getValueHandle(int node) {
+		return chunk(node).getInt(offset(node) + VALUE);
+	}
+
+	@SuppressWarnings("unchecked")
+	private T getValue(int node) {
+		return (T) values[getValueHandle(node)];
+	}
+
+	private int getDim(int node) {
+		return chunk(node).getInt(offset(node) + DIM);
+	}
+
+	private double getKey(int node, int dim) {
+		return chunk(node).getDouble(offset(node) + KEY + dim * Double.BYTES);
+	}
+
+	private boolean isLeaf(int node) {
+		return getLo(node) == NULL && getHi(node) == NULL;
+	}
+
+	private double[] readKey(int node, double[] key) {
+		ByteBuffer b = chunk(node);
+		int pos = offset(node) + KEY;
+		for (int i = 0; i < dims; i++) {
+			key[i] = b.getDouble(pos + i * Double.BYTES);
+		}
+		return key;
+	}
+
+	private double[] readKey(int node) {
+		return readKey(node, new double[dims]);
+	}
+
+	private PointEntry<T> readEntry(int node) {
+		return new PointEntry<>(readKey(node), getValue(node));
+	}
+
+	private boolean isKeyEqual(int node, double[] key) {
+		ByteBuffer b = chunk(node);
+		int pos = offset(node) + KEY;
+		for (int i = 0; i < dims; i++) {
+			if (b.getDouble(pos + i * Double.BYTES) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isEnclosed(int node, double[] min, double[] max) {
+		ByteBuffer b = chunk(node);
+		int pos = offset(node) + KEY;
+		for (int i = 0; i < dims; i++) {
+			double x = b.getDouble(pos + i * Double.BYTES);
+			if (x < min[i] || x > max[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Copy key and value handle from 'src' to 'dst'.
+	 */
+	private void setKeyAndValue(int dst, int src) {
+		ByteBuffer bSrc = chunk(src);
+		ByteBuffer bDst = chunk(dst);
+		int posSrc = offset(src);
+		int posDst = offset(dst);
+		bDst.putInt(posDst + VALUE, bSrc.getInt(posSrc + VALUE));
+		for (int i = 0; i < dims; i++) {
+			int p = KEY + i * Double.BYTES;
+			bDst.putDouble(posDst + p, bSrc.getDouble(posSrc + p));
+		}
+	}
+
+	// Memory management
+
+	private int newNode(double[] key, int valueHandle, int dim) {
+		int node;
+		if (freeNodes != NULL) {
+			node = freeNodes;
+			freeNodes = getLo(node);
+		} else {
+			node = nNodeSlots++;
+			int chunkId = node >>> chunkBits;
+			if (chunkId == chunks.length) {
+				chunks = Arrays.copyOf(chunks, chunkId + 1);
+				chunks[chunkId] = ByteBuffer.allocateDirect(nodeSize << chunkBits).order(ByteOrder.nativeOrder());
+			}
+		}
+		ByteBuffer b = chunk(node);
+		int pos = offset(node);
+		b.putInt(pos + LO, NULL);
+		b.putInt(pos + HI, NULL);
+		b.putInt(pos + VALUE, valueHandle);
+		b.putInt(pos + DIM, dim);
+		for (int i = 0; i < dims; i++) {
+			b.putDouble(pos + KEY + i * Double.BYTES, key[i]);
+		}
+		return node;
+	}
+
+	private void freeNode(int node) {
+		setLo(node, freeNodes);
+		freeNodes = node;
+	}
+
+	private int newValue(T value) {
+		int handle;
+		if (nFreeValues > 0) {
+			handle = freeValues[--nFreeValues];
+		} else {
+			if (nValueSlots == values.length) {
+				values = Arrays.copyOf(values, values.length * 2);
+			}
+			handle = nValueSlots++;
+		}
+		values[handle] = value;
+		return handle;
+	}
+
+	@SuppressWarnings("unchecked")
+	private T freeValue(int handle) {
+		T value = (T) values[handle];
+		values[handle] = null;
+		if (nFreeValues == freeValues.length) {
+			freeValues = Arrays.copyOf(freeValues, freeValues.length * 2);
+		}
+		freeValues[nFreeValues++] = handle;
+		return value;
+	}
+
+	/**
+	 * Insert a key-value pair.
+	 *
+	 * @param key   the key
+	 * @param value the value
+	 */
+	@Override
+	public void insert(double[] key, T value) {
+		size++;
+		int handle = newValue(value);
+		if (root == NULL) {
+			root = newNode(key, handle, 0);
+			return;
+		}
+		int n = root;
+		while (true) {
+			int dim = getDim(n);
+			if (key[dim] >= getKey(n, dim)) {
+				int hi = getHi(n);
+				if (hi == NULL) {
+					setHi(n, newNode(key, handle, (dim + 1) % dims));
+					return;
+				}
+				n = hi;
+			} else {
+				int lo = getLo(n);
+				if (lo == NULL) {
+					setLo(n, newNode(key, handle, (dim + 1) % dims));
+					return;
+				}
+				n = lo;
+			}
+		}
+	}
+
+	/**
+	 * Check whether a given key exists.
+	 *
+	 * @param key the key to check
+	 * @return true iff the key exists
+	 */
+	@Override
+	public boolean contains(double[] key) {
+		return findNodeExact(key, new RemoveResult(), n -> true) != NULL;
+	}
+
+	@Override
+	public boolean contains(double[] key, T value) {
+		return findNodeExact(key, new RemoveResult(), n -> Objects.equals(value, getValue(n))) != NULL;
+	}
+
+	/**
+	 * Lookup an entry, using exact match.
+	 *
+	 * @param point the point
+	 * @return an iterator over all entries at the given point
+	 */
+	@Override
+	public PointIterator<T> queryExactPoint(double[] point) {
+		return query(point, point);
+	}
+
+	/**
+	 * Get the value associates with the key.
+	 *
+	 * @param key the key to look up
+	 * @return the value for the key or 'null' if the key was not found
+	 */
+	@Override
+	public T queryExact(double[] key) {
+		int n = findNodeExact(key, new RemoveResult(), x -> true);
+		return n == NULL ? null : getValue(n);
+	}
+
+	private int findNodeExact(double[] key, RemoveResult resultDepth, IntPredicate filter) {
+		if (root == NULL) {
+			return NULL;
+		}
+		return invariantBroken
+				? findNodeExactSlow(key, root, NULL, resultDepth, filter)
+				: findNodeExactFast(key, resultDepth, filter);
+	}
+
+	private int findNodeExactFast(double[] key, RemoveResult resultDepth, IntPredicate filter) {
+		int parent = NULL;
+		int n = root;
+		do {
+			int dim = getDim(n);
+			double nodeX = getKey(n, dim);
+			double keyX = key[dim];
+			if (keyX == nodeX && isKeyEqual(n, key) && filter.test(n)) {
+				resultDepth.pos = dim;
+				resultDepth.nodeParent = parent;
+				return n;
+			}
+			parent = n;
+			n = (keyX >= nodeX) ? getHi(n) : getLo(n);
+		} while (n != NULL);
+		return NULL;
+	}
+
+	private int findNodeExactSlow(double[] key, int n, int parent, RemoveResult resultDepth, IntPredicate filter) {
+		do {
+			int dim = getDim(n);
+			double nodeX = getKey(n, dim);
+			double keyX = key[dim];
+			if (keyX == nodeX) {
+				if (isKeyEqual(n, key) && filter.test(n)) {
+					resultDepth.pos = dim;
+					resultDepth.nodeParent = parent;
+					return n;
+				}
+				//Broken invariant? We need to check the 'lower' part as well...
+				if (getLo(n) != NULL) {
+					int n2 = findNodeExactSlow(key, getLo(n), n, resultDepth, filter);
+					if (n2 != NULL) {
+						return n2;
+					}
+				}
+			}
+			parent = n;
+			n = (keyX >= nodeX) ? getHi(n) : getLo(n);
+		} while (n != NULL);
+		return NULL;
+	}
+
+	/**
+	 * Remove a key.
+	 * @param key key to remove
+	 * @return the value associated with the key or 'null' if the key was not found
+	 */
+	@Override
+	public T remove(double[] key) {
+		int handle = removeNode(key, n -> true);
+		return handle == NULL ? null : freeValue(handle);
+	}
+
+	/**
+	 * Remove an entry.
+	 *
+	 * @param key the point
+	 * @param value the value
+	 * @return `true` iff an entry was found and removed
+	 */
+	@Override
+	public boolean remove(double[] key, T value) {
+		int handle = removeNode(key, n -> Objects.equals(value, getValue(n)));
+		if (handle == NULL) {
+			return false;
+		}
+		freeValue(handle);
+		return true;
+	}
+
+	@Override
+	public boolean removeIf(double[] key, Predicate<PointEntry<T>> pred) {
+		int handle = removeNode(key, n -> pred.test(readEntry(n)));
+		if (handle == NULL) {
+			return false;
+		}
+		freeValue(handle);
+		return true;
+	}
+
+	/**
+	 * @return the value handle of the removed entry or NULL if no entry was removed.
+	 * The value handle is not released.
+	 */
+	private int removeNode(double[] key, IntPredicate filter) {
+		if (root == NULL) {
+			return NULL;
+		}
+
+		//find
+		RemoveResult removeResult = new RemoveResult();
+		int eToRemove = findNodeExact(key, removeResult, filter);
+		if (eToRemove == NULL) {
+			return NULL;
+		}
+		int handle = getValueHandle(eToRemove);
+
+		//remove
+		if (eToRemove == root && size == 1) {
+			freeNode(root);
+			root = NULL;
+			size = 0;
+			invariantBroken = false;
+			return handle;
+		}
+
+		// find replacement
+		while (!isLeaf(eToRemove)) {
+			//recurse
+			int pos = removeResult.pos;
+			removeResult.node = NULL;
+			if (getHi(eToRemove) != NULL) {
+				//get replacement from right
+				//This is preferable, because it cannot break the invariant
+				removeResult.best = Double.POSITIVE_INFINITY;
+				removeMinLeaf(getHi(eToRemove), eToRemove, pos, removeResult);
+			} else {
+				//get replacement from left
+				removeResult.best = Double.NEGATIVE_INFINITY;
+				removeResult.nBest = 0;
+				removeMaxLeaf(getLo(eToRemove), eToRemove, pos, removeResult);
+				//Moving one of several equal keys up leaves the others in the 'lower' branch.
+				if (removeResult.nBest > 1) {
+					invariantBroken = true;
+				}
+			}
+			setKeyAndValue(eToRemove, removeResult.node);
+			eToRemove = removeResult.node;
+		}
+		//leaf node
+		int parent = removeResult.nodeParent;
+		if (parent != NULL) {
+			if (getLo(parent) == eToRemove) {
+				setLo(parent, NULL);
+			} else if (getHi(parent) == eToRemove) {
+				setHi(parent, NULL);
+			} else {
+				throw new IllegalStateException();
+			}
+		}
+		freeNode(eToRemove);
+		size--;
+		return handle;
+	}
+
+	private static class RemoveResult {
+		int node = NULL;
+		int nodeParent = NULL;
+		double best;
+		// number of keys that are equal to 'best', see removeMaxLeaf()
+		int nBest;
+		int pos;
+	}
+
+	private void removeMinLeaf(int node, int parent, int pos, RemoveResult result) {
+		//Split in 'interesting' dimension
+		if (pos == getDim(node)) {
+			//We strictly look for leaf nodes with left==null
+			// -> left!=null means the left child is at least as small as the current node
+			if (getLo(node) != NULL) {
+				removeMinLeaf(getLo(node), node, pos, result);
+			} else if (getKey(node, pos) <= result.best) {
+				result.node = node;
+				result.nodeParent = parent;
+				result.best = getKey(node, pos);
+				result.pos = getDim(node);
+			}
+		} else {
+			//split in any other dimension.
+			//First, check local key.
+			double localX = getKey(node, pos);
+			if (localX <= result.best) {
+				result.node = node;
+				result.nodeParent = parent;
+				result.best = localX;
+				result.pos = getDim(node);
+			}
+			if (getLo(node) != NULL) {
+				removeMinLeaf(getLo(node), node, pos, result);
+			}
+			if (getHi(node) != NULL) {
+				removeMinLeaf(getHi(node), node, pos, result);
+			}
+		}
+	}
+
+	/**
+	 * This also counts the keys that are equal to the maximum. Keys that are not visited are
+	 * smaller than the maximum, unless the invariant is already broken.
+	 */
+	private void removeMaxLeaf(int node, int parent, int pos, RemoveResult result) {
+		//Split in 'interesting' dimension
+		if (pos == getDim(node)) {
+			//We strictly look for leaf nodes with left==null
+			if (getHi(node) != NULL) {
+				removeMaxLeaf(getHi(node), node, pos, result);
+				if (getKey(node, pos) == result.best) {
+					result.nBest++;
+				}
+			} else if (getKey(node, pos) >= result.best) {
+				countBest(getKey(node, pos), result);
+				result.node = node;
+				result.nodeParent = parent;
+				result.best = getKey(node, pos);
+				result.pos = getDim(node);
+			}
+		} else {
+			//split in any other dimension.
+			//First, check local key.
+			double localX = getKey(node, pos);
+			if (localX >= result.best) {
+				countBest(localX, result);
+				result.node = node;
+				result.nodeParent = parent;
+				result.best = localX;
+				result.pos = getDim(node);
+			}
+			if (getLo(node) != NULL) {
+				removeMaxLeaf(getLo(node), node, pos, result);
+			}
+			if (getHi(node) != NULL) {
+				removeMaxLeaf(getHi(node), node, pos, result);
+			}
+		}
+	}
+
+	private static void countBest(double x, RemoveResult result) {
+		result.nBest = x == result.best ? result.nBest + 1 : 1;
+	}
+
+	/**
+	 * Reinsert the key.
+	 * @param oldKey old key
+	 * @param newKey new key
+	 * @return the value associated with the key or 'null' if the key was not found.
+	 */
+	@Override
+	public T update(double[] oldKey, double[] newKey) {
+		if (root == NULL) {
+			return null;
+		}
+		T value = remove(oldKey);
+		if (value != null) {
+			insert(newKey, value);
+			return value;
+		}
+		return null;
+	}
+
+	/**
+	 * Reinsert the key.
+	 *
+	 * @param oldKey old key
+	 * @param newKey new key
+	 * @param value  the value of the entry that should be updated
+	 * @return `true` iff the entry was found and updated
+	 */
+	@Override
+	public boolean update(double[] oldKey, double[] newKey, T value) {
+		if (root == NULL) {
+			return false;
+		}
+		if (remove(oldKey, value)) {
+			insert(newKey, value);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Get the number of key-value pairs in the tree.
+	 * @return the size
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Removes all elements from the tree. This releases all buffers.
+	 */
+	@Override
+	public void clear() {
+		size = 0;
+		root = NULL;
+		invariantBroken = false;
+		chunks = new ByteBuffer[0];
+		nNodeSlots = 0;
+		freeNodes = NULL;
+		values = new Object[16];
+		nValueSlots = 0;
+		nFreeValues = 0;
+	}
+
+	/**
+	 * Query the tree, returning all points in the axis-aligned rectangle between 'min' and 'max'.
+	 * @param min lower left corner of query
+	 * @param max upper right corner of query
+	 * @return all entries in the rectangle
+	 */
+	@Override
+	public PointIterator<T> query(double[] min, double[] max) {
+		return new KDIteratorOffHeap().reset(min, max);
+	}
+
+	@Override
+	public PointIterator<T> iterator() {
+		return new KDIteratorOffHeap().reset(null, null);
+	}
+
+	/**
+	 * Visit all points in the axis-aligned rectangle between 'min' and 'max'.
+	 * Apart from a copy of the key of every result, this does not create any objects.
+	 * @param min lower left corner of query
+	 * @param max upper right corner of query
+	 * @param visitor callback for all entries in the rectangle
+	 */
+	@Override
+	public void query(double[] min, double[] max, PointVisitor<T> visitor) {
+		if (root != NULL) {
+			query(root, min, max, visitor);
+		}
+	}
+
+	private boolean query(int node, double[] min, double[] max, PointVisitor<T> visitor) {
+		// We recurse into the 'lower' branch and iterate over the 'upper' branch.
+		do {
+			int pos = getDim(node);
+			double x = getKey(node, pos);
+			int lo = getLo(node);
+			if (lo != NULL && min[pos] <= x && !query(lo, min, max, visitor)) {
+				return false;
+			}
+			if (isEnclosed(node, min, max) && !visitor.visit(readKey(node), getValue(node))) {
+				return false;
+			}
+			node = max[pos] >= x ? getHi(node) : NULL;
+		} while (node != NULL);
+		return true;
+	}
+
+	private class KDIteratorOffHeap implements PointIterator<T> {
+
+		private static final int DO_LEFT = 1;
+		private static final int DO_KEY = 2;
+		private static final int DO_RIGHT = 4;
+
+		private int[] stackNodes = new int[16];
+		private int[] stackFlags = new int[16];
+		private int stackSize = 0;
+		private int next = NULL;
+		private double[] min;
+		private double[] max;
+		private QueryStats stats;
+
+		private void push(int node) {
+			if (stackSize == stackNodes.length) {
+				stackNodes = Arrays.copyOf(stackNodes, stackSize * 2);
+				stackFlags = Arrays.copyOf(stackFlags, stackSize * 2);
+			}
+			int pos = getDim(node);
+			double x = getKey(node, pos);
+			stackNodes[stackSize] = node;
+			stackFlags[stackSize] = DO_KEY | (min[pos] <= x ? DO_LEFT : 0) | (max[pos] >= x ? DO_RIGHT : 0);
+			stackSize++;
+			if (stats != null) {
+				stats.visitNode(isLeaf(node));
+			}
+		}
+
+		private void findNext() {
+			while (stackSize > 0) {
+				int node = stackNodes[stackSize - 1];
+				int flags = stackFlags[stackSize - 1];
+				if ((flags & DO_LEFT) != 0) {
+					stackFlags[stackSize - 1] = flags & ~DO_LEFT;
+					if (getLo(node) != NULL) {
+						push(getLo(node));
+					}
+					continue;
+				}
+				if ((flags & DO_KEY) != 0) {
+					stackFlags[stackSize - 1] = flags & ~DO_KEY;
+					if (stats != null) {
+						stats.nEntriesTested++;
+					}
+					if (isEnclosed(node, min, max)) {
+						next = node;
+						if (stats != null) {
+							stats.nResults++;
+						}
+						return;
+					}
+					continue;
+				}
+				stackSize--;
+				if ((flags & DO_RIGHT) != 0 && getHi(node) != NULL) {
+					push(getHi(node));
+				}
+			}
+			next = NULL;
+			stats = QueryStats.finish(stats);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != NULL;
+		}
+
+		@Override
+		public PointEntry<T> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			PointEntry<T> e = readEntry(next);
+			findNext();
+			return e;
+		}
+
+		/**
+		 * Reset the iterator. This iterator can be reused in order to reduce load on the
+		 * garbage collector.
+		 *
+		 * @param min lower left corner of query or 'null' for all entries
+		 * @param max upper right corner of query or 'null' for all entries
+		 * @return this.
+		 */
+		@Override
+		public PointIterator<T> reset(double[] min, double[] max) {
+			if (min == null) {
+				min = new double[dims];
+				max = new double[dims];
+				Arrays.fill(min, Double.NEGATIVE_INFINITY);
+				Arrays.fill(max, Double.POSITIVE_INFINITY);
+			}
+			stackSize = 0;
+			this.min = min;
+			this.max = max;
+			next = NULL;
+			stats = QueryStats.start(KDTreeOffHeap.class, QueryStats.QueryType.WINDOW, min.length, 0);
+			if (root != NULL) {
+				push(root);
+			}
+			findNext();
+			return this;
+		}
+	}
+
+	/**
+	 * Candidates of a kNN search.
+	 */
+	private class KnnCandidates {
+		private final int[] nodes;
+		private final double[] dists;
+		private int size = 0;
+		private final double[] center;
+		private final double[] buffer = new double[dims];
+		private final PointDistance distFn;
+		private final QueryStats stats;
+
+		KnnCandidates(double[] center, int k, PointDistance distFn, QueryStats stats) {
+			this.nodes = new int[k];
+			this.dists = new double[k];
+			this.center = center;
+			this.distFn = distFn;
+			this.stats = stats;
+		}
+
+		/**
+		 * @return the new maximum distance
+		 */
+		double add(int node) {
+			nDistKNN++;
+			if (stats != null) {
+				stats.nEntriesTested++;
+				stats.nDistCalc++;
+			}
+			double dist = distFn.dist(center, readKey(node, buffer));
+			int k = nodes.length;
+			//don't add if too far away or if we already have enough equally good results.
+			if (size == k) {
+				if (k == 0 || dist >= dists[k - 1]) {
+					return maxDist();
+				}
+				size--;
+			}
+			int pos = size;
+			while (pos > 0 && dists[pos - 1] > dist) {
+				nodes[pos] = nodes[pos - 1];
+				dists[pos] = dists[pos - 1];
+				pos--;
+			}
+			nodes[pos] = node;
+			dists[pos] = dist;
+			size++;
+			return maxDist();
+		}
+
+		double maxDist() {
+			if (size < nodes.length) {
+				return Double.POSITIVE_INFINITY;
+			}
+			return size == 0 ? Double.NEGATIVE_INFINITY : dists[size - 1];
+		}
+	}
+
+	private KnnCandidates knnSearch(double[] center, int k, PointDistance distFn, QueryStats stats) {
+		KnnCandidates candidates = new KnnCandidates(center, Math.min(k, size()), distFn, stats);
+		if (root != NULL) {
+			rangeSearchKNN(root, candidates, Double.POSITIVE_INFINITY);
+		}
+		if (stats != null) {
+			stats.nResults = candidates.size;
+			QueryStats.finish(stats);
+		}
+		return candidates;
+	}
+
+	private double rangeSearchKNN(int node, KnnCandidates candidates, double maxRange) {
+		double[] center = candidates.center;
+		int pos = getDim(node);
+		double x = getKey(node, pos);
+		int lo = getLo(node);
+		int hi = getHi(node);
+		if (candidates.stats != null) {
+			candidates.stats.visitNode(lo == NULL && hi == NULL);
+		}
+		if (lo != NULL && (center[pos] < x || hi == NULL)) {
+			//go down
+			maxRange = rangeSearchKNN(lo, candidates, maxRange);
+			//refine result
+			if (center[pos] + maxRange >= x) {
+				maxRange = candidates.add(node);
+				if (hi != NULL) {
+					maxRange = rangeSearchKNN(hi, candidates, maxRange);
+				}
+			}
+		} else if (hi != NULL) {
+			//go down
+			maxRange = rangeSearchKNN(hi, candidates, maxRange);
+			//refine result
+			if (center[pos] <= x + maxRange) {
+				maxRange = candidates.add(node);
+				if (lo != NULL) {
+					maxRange = rangeSearchKNN(lo, candidates, maxRange);
+				}
+			}
+		} else {
+			//leaf -> first (probably best) match!
+			maxRange = candidates.add(node);
+		}
+		return maxRange;
+	}
+
+	/**
+	 * Visit the k nearest neighbors in order of increasing distance. This uses Euclidean distance.
+	 * Apart from the list of candidates and a copy of the key of every result,
+	 * this does not create any objects.
+	 * @param center center point
+	 * @param k number of neighbors
+	 * @param visitor callback for the k nearest neighbors
+	 */
+	@Override
+	public void queryKnn(double[] center, int k, PointVisitorKnn<T> visitor) {
+		KnnCandidates candidates = knnSearch(center, k, PointDistance.L2, null);
+		for (int i = 0; i < candidates.size; i++) {
+			int n = candidates.nodes[i];
+			if (!visitor.visit(readKey(n), getValue(n), candidates.dists[i])) {
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void queryRadius(double[] center, double radius, PointDistance distFn, PointVisitorKnn<T> visitor) {
+		PointMap.super.queryRadius(center, radius, distFn, visitor);
+	}
+
+	@Override
+	public List<PointEntryKnn<T>> queryRadius(double[] center, double radius, PointDistance distFn) {
+		return PointMap.super.queryRadius(center, radius, distFn);
+	}
+
+	@Override
+	public PointEntryKnn<T> query1nn(double[] center) {
+		PointIteratorKnn<T> it = queryKnn(center, 1);
+		return it.hasNext() ? it.next() : null;
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k) {
+		return queryKnn(center, k, PointDistance.L2);
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn) {
+		return new KDIteratorKnnOffHeap(distFn).reset(center, k);
+	}
+
+	private class KDIteratorKnnOffHeap implements PointIteratorKnn<T> {
+
+		private final PointDistance distFn;
+		private KnnCandidates candidates;
+		private int pos;
+
+		KDIteratorKnnOffHeap(PointDistance distFn) {
+			this.distFn = distFn;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return pos < candidates.size;
+		}
+
+		@Override
+		public PointEntryKnn<T> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			int n = candidates.nodes[pos];
+			PointEntryKnn<T> e = new PointEntryKnn<>(readKey(n), getValue(n), candidates.dists[pos]);
+			pos++;
+			return e;
+		}
+
+		@Override
+		public PointIteratorKnn<T> reset(double[] center, int k) {
+			candidates = knnSearch(center, k, distFn,
+					QueryStats.start(KDTreeOffHeap.class, QueryStats.QueryType.KNN, center.length, k));
+			pos = 0;
+			return this;
+		}
+	}
+
+	/**
+	 * Returns a printable list of the tree.
+	 * @return the tree as String
+	 */
+	@Override
+	public String toStringTree() {
+		StringBuilderLn sb = new StringBuilderLn();
+		if (root == NULL) {
+			sb.append("empty tree");
+		} else {
+			toStringTree(sb, root, 0);
+		}
+		return sb.toString();
+	}
+
+	private void toStringTree(StringBuilderLn sb, int node, int depth) {
+		int lo = getLo(node);
+		int hi = getHi(node);
+		if (lo != NULL) {
+			toStringTree(sb, lo, depth+1);
+		}
+		for (int i = 0; i < depth; i++) {
+			sb.append(".");
+		}
+		sb.append(" ");
+		sb.append(Arrays.toString(readKey(node)));
+		sb.append(" v=").append(getValue(node));
+		sb.append(" l/r=");
+		sb.append(lo == NULL ? null : Arrays.toString(readKey(lo)));
+		sb.append("/");
+		sb.append(hi == NULL ? null : Arrays.toString(readKey(hi)));
+		sb.appendLn();
+		if (hi != NULL) {
+			toStringTree(sb, hi, depth+1);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "KDTreeOffHeap;size=" + size +
+				";center=" + (root == NULL ? "null" : Arrays.toString(readKey(root)));
+	}
+
+	@Override
+	public KDStatsOffHeap getStats() {
+		KDStatsOffHeap s = new KDStatsOffHeap(this);
+		if (root == NULL) {
+			return s;
+		}
+		// Explicit stack, the tree may be degenerate
+		int[] nodes = new int[16];
+		int[] depths = new int[16];
+		int stackSize = 0;
+		nodes[stackSize] = root;
+		depths[stackSize++] = 0;
+		while (stackSize > 0) {
+			int node = nodes[--stackSize];
+			int depth = depths[stackSize];
+			s.nNodes++;
+			if (depth > s.maxDepth) {
+				s.maxDepth = depth;
+			}
+			if (stackSize + 2 > nodes.length) {
+				nodes = Arrays.copyOf(nodes, nodes.length * 2);
+				depths = Arrays.copyOf(depths, depths.length * 2);
+			}
+			if (getLo(node) != NULL) {
+				nodes[stackSize] = getLo(node);
+				depths[stackSize++] = depth + 1;
+			}
+			if (getHi(node) != NULL) {
+				nodes[stackSize] = getHi(node);
+				depths[stackSize++] = depth + 1;
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Statistics container class.
+	 */
+	public static class KDStatsOffHeap extends Stats {
+		/** Allocated off-heap memory in bytes. */
+		public final long offHeapBytes;
+
+		public KDStatsOffHeap(KDTreeOffHeap<?> tree) {
+			super(tree.nDistKNN, 0, tree.nDistKNN);
+			this.dims = tree.dims;
+			this.nEntries = tree.size;
+			this.offHeapBytes = (long) tree.chunks.length * (tree.nodeSize << tree.chunkBits);
+		}
+
+		public long getOffHeapBytes() {
+			return offHeapBytes;
+		}
+	}
+
+	@Override
+	public int getDims() {
+		return dims;
+	}
+
+	@Override
+	public int getNodeCount() {
+		return getStats().getNodeCount();
+	}
+
+	@Override
+	public int getDepth() {
+		return getStats().getMaxDepth();
+	}
+}
@@ -0,0 +1,709 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.kdtree;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import org.tinspin.index.*;
+import org.tinspin.index.util.StringBuilderLn;
+
+/**
+ * An immutable kD-tree for data sets that are built once and then only queried.
+ * <p>
+ * The tree is a complete binary tree that is stored implicitly in arrays in Eytzinger order:
+ * the children of inner node 'i' are '2i+1' and '2i+2'. There are no node objects and no child
+ * pointers, inner nodes consist only of a splitting dimension and a splitting value.
+ * The entries are stored in a single flat 'double[]' in leaf order, each of the 2^depth leaves
+ * holds between leafSize/2 and leafSize entries.
+ * <p>
+ * Entries with a coordinate (in the splitting dimension) that is smaller than the splitting
+ * value are in the 'lower' subtree, entries with a larger coordinate are in the 'upper' subtree.
+ * Entries that are equal to the splitting value may be in both subtrees.
+ * <p>
+ * All modifying operations throw an {@link UnsupportedOperationException}.
+ *
+ * @param <T> Value type
+ */
+public class KDTreeStatic<T> implements PointMap<T> {
+
+	public static final int DEFAULT_LEAF_SIZE = 16;
+
+	private final int dims;
+	private final int size;
+	/** Number of leaves, always a power of two. */
+	private final int nLeaves;
+	private final int depth;
+	/** Splitting dimension and value of the inner nodes, in Eytzinger order. */
+	private final int[] splitDims;
+	private final double[] splitValues;
+	/** Coordinates of all entries in leaf order, 'coords[i * dims + d]'. */
+	private final double[] coords;
+	private final Object[] values;
+	private long nDistKNN = 0;
+
+	private KDTreeStatic(int dims, double[] flatCoords, Object[] values, int leafSize) {
+		if (leafSize < 1) {
+			throw new IllegalArgumentException("Leaf size must be >= 1: " + leafSize);
+		}
+		if (flatCoords.length != values.length * dims) {
+			throw new IllegalArgumentException("Expected " + values.length * dims
+					+ " coordinates but got " + flatCoords.length);
+		}
+		this.dims = dims;
+		this.size = values.length;
+		int nl = 1;
+		int d = 0;
+		while (nl * (long) leafSize < size) {
+			nl <<= 1;
+			d++;
+		}
+		this.nLeaves = nl;
+		this.depth = d;
+		this.splitDims = new int[nl - 1];
+		this.splitValues = new double[nl - 1];
+
+		int[] order = new int[size];
+		Arrays.setAll(order, i -> i);
+		build(flatCoords, order, 0, 0, nl);
+
+		this.coords = new double[size * dims];
+		this.values = new Object[size];
+		for (int i = 0; i < size; i++) {
+			System.arraycopy(flatCoords, order[i] * dims, coords, i * dims, dims);
+			this.values[i] = values[order[i]];
+		}
+	}
+
+	/**
+	 * Create a tree with the entries of another map.
+	 * @param map the entries of the tree
+	 * @return New tree
+	 * @param <T> Value type
+	 */
+	public static <T> KDTreeStatic<T> create(PointMap<T> map) {
+		int dims = map.getDims();
+		double[] flatCoords = new double[map.size() * dims];
+		Object[] values = new Object[map.size()];
+		int i = 0;
+		for (PointIterator<T> it = map.iterator(); it.hasNext(); i++) {
+			PointEntry<T> e = it.next();
+			System.arraycopy(e.point(), 0, flatCoords, i * dims, dims);
+			values[i] = e.value();
+		}
+		return new KDTreeStatic<>(dims, flatCoords, values, DEFAULT_LEAF_SIZE);
+	}
+
+	/**
+	 * Create a tree from flat arrays, see {@link PointMap#insertAll(double[], Object[])}.
+	 * @param dims dimensions
+	 * @param flatCoords the coordinates, {@code flatCoords[i * dims + d]} is coordinate 'd' of entry 'i'.
+	 *                   The arrays are copied, they are not modified.
+	 * @param values the values
+	 * @return New tree
+	 * @param <T> Value type
+	 */
+	public static <T> KDTreeStatic<T> create(int dims, double[] flatCoords, T[] values) {
+		return new KDTreeStatic<>(dims, flatCoords, values, DEFAULT_LEAF_SIZE);
+	}
+
+	/**
+	 * Create a tree from flat arrays, see {@link #create(int, double[], Object[])}.
+	 * @param dims dimensions
+	 * @param flatCoords the coordinates, see {@link #create(int, double[], Object[])}
+	 * @param values the values
+	 * @param leafSize maximum number of entries in a leaf
+	 * @return New tree
+	 * @param <T> Value type
+	 */
+	public static <T> KDTreeStatic<T> create(int dims, double[] flatCoords, T[] values, int leafSize) {
+		return new KDTreeStatic<>(dims, flatCoords, values, leafSize);
+	}
+
+	private int leafStart(int leaf) {
+		return (int) ((long) leaf * size / nLeaves);
+	}
+
+	/**
+	 * Build the subtree of inner node 'node' that contains the leaves [leafFrom, leafTo).
+	 * This partitions 'order' so that the entries of the subtree are in leaf order.
+	 */
+	private void build(double[] flat, int[] order, int node, int leafFrom, int leafTo) {
+		if (leafTo - leafFrom <= 1) {
+			return;
+		}
+		int from = leafStart(leafFrom);
+		int to = leafStart(leafTo);
+		int leafMid = (leafFrom + leafTo) >>> 1;
+		int mid = leafStart(leafMid);
+		int dim = 0;
+		double maxExtent = -1;
+		for (int d = 0; d < dims; d++) {
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for (int i = from; i < to; i++) {
+				double x = flat[order[i] * dims + d];
+				min = Math.min(min, x);
+				max = Math.max(max, x);
+			}
+			if (max - min > maxExtent) {
+				maxExtent = max - min;
+				dim = d;
+			}
+		}
+		splitDims[node] = dim;
+		if (mid < to) {
+			select(flat, order, from, to, mid, dim);
+			splitValues[node] = flat[order[mid] * dims + dim];
+		} else {
+			// the 'upper' subtree is empty
+			splitValues[node] = Double.POSITIVE_INFINITY;
+		}
+		build(flat, order, 2 * node + 1, leafFrom, leafMid);
+		build(flat, order, 2 * node + 2, leafMid, leafTo);
+	}
+
+	/**
+	 * Partition order[from, to) such that the entry at 'k' is the k-th smallest in dimension 'dim',
+	 * i.e. order[from, k) are smaller or equal and order[k, to) are larger or equal.
+	 */
+	private void select(double[] flat, int[] order, int from, int to, int k, int dim) {
+		int lo = from;
+		int hi = to - 1;
+		while (lo < hi) {
+			double pivot = flat[order[(lo + hi) >>> 1] * dims + dim];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (flat[order[i] * dims + dim] < pivot) {
+					i++;
+				}
+				while (flat[order[j] * dims + dim] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					int tmp = order[i];
+					order[i++] = order[j];
+					order[j--] = tmp;
+				}
+			}
+			if (k <= j) {
+				hi = j;
+			} else if (k >= i) {
+				lo = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private T value(int pos) {
+		return (T) values[pos];
+	}
+
+	private double[] readKey(int pos) {
+		return Arrays.copyOfRange(coords, pos * dims, pos * dims + dims);
+	}
+
+	private boolean isEnclosed(int pos, double[] min, double[] max) {
+		int off = pos * dims;
+		for (int d = 0; d < dims; d++) {
+			double x = coords[off + d];
+			if (x < min[d] || x > max[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void insert(double[] key, T value) {
+		throw new UnsupportedOperationException("KDTreeStatic is immutable");
+	}
+
+	@Override
+	public T remove(double[] point) {
+		throw new UnsupportedOperationException("KDTreeStatic is immutable");
+	}
+
+	@Override
+	public T update(double[] oldPoint, double[] newPoint) {
+		throw new UnsupportedOperationException("KDTreeStatic is immutable");
+	}
+
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException("KDTreeStatic is immutable");
+	}
+
+	@Override
+	public boolean contains(double[] point) {
+		return findExact(point) >= 0;
+	}
+
+	@Override
+	public T queryExact(double[] point) {
+		int pos = findExact(point);
+		return pos < 0 ? null : value(pos);
+	}
+
+	/**
+	 * @return the position of the first entry with the given key or -1 if there is no such entry.
+	 */
+	private int findExact(double[] key) {
+		MutableInt result = new MutableInt();
+		result.value = -1;
+		query(0, key, key, (pos) -> {
+			result.value = pos;
+			return false;
+		});
+		return result.value;
+	}
+
+	private static class MutableInt {
+		int value;
+	}
+
+	@FunctionalInterface
+	private interface PositionVisitor {
+		boolean visit(int pos);
+	}
+
+	/**
+	 * @return 'false' if the visitor aborted the query.
+	 */
+	private boolean query(int node, double[] min, double[] max, PositionVisitor visitor) {
+		int nInner = nLeaves - 1;
+		// We recurse into the 'lower' branch and iterate over the 'upper' branch.
+		while (node < nInner) {
+			int dim = splitDims[node];
+			double split = splitValues[node];
+			boolean doLo = min[dim] <= split;
+			boolean doHi = max[dim] >= split;
+			if (doLo && doHi) {
+				if (!query(2 * node + 1, min, max, visitor)) {
+					return false;
+				}
+				node = 2 * node + 2;
+			} else {
+				node = doLo ? 2 * node + 1 : 2 * node + 2;
+			}
+		}
+		int leaf = node - nInner;
+		for (int pos = leafStart(leaf), end = leafStart(leaf + 1); pos < end; pos++) {
+			if (isEnclosed(pos, min, max) && !visitor.visit(pos)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void query(double[] min, double[] max, PointVisitor<T> visitor) {
+		query(0, min, max, pos -> visitor.visit(readKey(pos), value(pos)));
+	}
+
+	@Override
+	public int count(double[] min, double[] max) {
+		MutableInt n = new MutableInt();
+		query(0, min, max, pos -> {
+			n.value++;
+			return true;
+		});
+		return n.value;
+	}
+
+	@Override
+	public PointIterator<T> iterator() {
+		return new KDIteratorStatic().reset(null, null);
+	}
+
+	@Override
+	public PointIterator<T> query(double[] min, double[] max) {
+		return new KDIteratorStatic().reset(min, max);
+	}
+
+	private class KDIteratorStatic implements PointIterator<T> {
+
+		/** Nodes to visit. The stack can never contain more than one node per level. */
+		private final int[] stack = new int[depth + 1];
+		private int stackSize = 0;
+		private int pos;
+		private int end;
+		private double[] min;
+		private double[] max;
+		private QueryStats stats;
+
+		private void findNext() {
+			int nInner = nLeaves - 1;
+			while (true) {
+				while (++pos < end) {
+					if (stats != null) {
+						stats.nEntriesTested++;
+					}
+					if (isEnclosed(pos, min, max)) {
+						if (stats != null) {
+							stats.nResults++;
+						}
+						return;
+					}
+				}
+				if (stackSize == 0) {
+					stats = QueryStats.finish(stats);
+					return;
+				}
+				int node = stack[--stackSize];
+				// descend to a leaf, the 'upper' children are visited later
+				while (node < nInner) {
+					if (stats != null) {
+						stats.visitNode(false);
+					}
+					int dim = splitDims[node];
+					double split = splitValues[node];
+					boolean doLo = min[dim] <= split;
+					boolean doHi = max[dim] >= split;
+					if (doLo && doHi) {
+						stack[stackSize++] = 2 * node + 2;
+						node = 2 * node + 1;
+					} else {
+						node = doLo ? 2 * node + 1 : 2 * node + 2;
+					}
+				}
+				if (stats != null) {
+					stats.visitNode(true);
+				}
+				int leaf = node - nInner;
+				pos = leafStart(leaf) - 1;
+				end = leafStart(leaf + 1);
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return pos < end;
+		}
+
+		@Override
+		public PointEntry<T> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			PointEntry<T> e = new PointEntry<>(readKey(pos), value(pos));
+			findNext();
+			return e;
+		}
+
+		/**
+		 * Reset the iterator. This iterator can be reused in order to reduce load on the
+		 * garbage collector.
+		 *
+		 * @param min lower left corner of query or 'null' for all entries
+		 * @param max upper right corner of query or 'null' for all entries
+		 * @return this.
+		 */
+		@Override
+		public PointIterator<T> reset(double[] min, double[] max) {
+			if (min == null) {
+				min = new double[dims];
+				max = new double[dims];
+				Arrays.fill(min, Double.NEGATIVE_INFINITY);
+				Arrays.fill(max, Double.POSITIVE_INFINITY);
+			}
+			this.min = min;
+			this.max = max;
+			stats = QueryStats.start(KDTreeStatic.class, QueryStats.QueryType.WINDOW, min.length, 0);
+			stackSize = 0;
+			stack[stackSize++] = 0;
+			pos = 0;
+			end = 0;
+			findNext();
+			return this;
+		}
+	}
+
+	/**
+	 * Candidates of a kNN search.
+	 */
+	private class KnnCandidates {
+		private final int[] positions;
+		private final double[] dists;
+		private int size = 0;
+		private final double[] center;
+		private final PointDistance distFn;
+		private final double epsilon;
+		private final QueryStats stats;
+
+		KnnCandidates(double[] center, int k, PointDistance distFn, double epsilon, QueryStats stats) {
+			this.positions = new int[k];
+			this.dists = new double[k];
+			this.center = center;
+			this.distFn = distFn;
+			this.epsilon = epsilon;
+			this.stats = stats;
+		}
+
+		void addLeaf(int from, int to) {
+			nDistKNN += to - from;
+			if (stats != null) {
+				stats.nEntriesTested += to - from;
+				stats.nDistCalc += to - from;
+			}
+			if (distFn != PointDistance.L2) {
+				for (int pos = from; pos < to; pos++) {
+					add(pos, distFn.dist(center, readKey(pos)));
+				}
+				return;
+			}
+			// Squared Euclidean distance, entries that are too far away are skipped early
+			for (int pos = from; pos < to; pos++) {
+				double max = maxDist();
+				double max2 = max * max;
+				double dist2 = 0;
+				int off = pos * dims;
+				for (int d = 0; d < dims && dist2 < max2; d++) {
+					double delta = coords[off + d] - center[d];
+					dist2 += delta * delta;
+				}
+				if (dist2 < max2) {
+					add(pos, Math.sqrt(dist2));
+				}
+			}
+		}
+
+		private void add(int pos, double dist) {
+			int k = positions.length;
+			//don't add if too far away or if we already have enough equally good results.
+			if (size == k) {
+				if (k == 0 || dist >= dists[k - 1]) {
+					return;
+				}
+				size--;
+			}
+			int i = size;
+			while (i > 0 && dists[i - 1] > dist) {
+				positions[i] = positions[i - 1];
+				dists[i] = dists[i - 1];
+				i--;
+			}
+			positions[i] = pos;
+			dists[i] = dist;
+			size++;
+		}
+
+		double maxDist() {
+			if (size < positions.length) {
+				return Double.POSITIVE_INFINITY;
+			}
+			return size == 0 ? Double.NEGATIVE_INFINITY : dists[size - 1];
+		}
+	}
+
+	private KnnCandidates knnSearch(double[] center, int k, PointDistance distFn, double epsilon,
+			QueryStats stats) {
+		KnnCandidates candidates = new KnnCandidates(center, Math.min(k, size()), distFn, epsilon, stats);
+		if (size > 0) {
+			rangeSearchKNN(0, candidates);
+		}
+		if (stats != null) {
+			stats.nResults = candidates.size;
+			QueryStats.finish(stats);
+		}
+		return candidates;
+	}
+
+	private void rangeSearchKNN(int node, KnnCandidates candidates) {
+		int nInner = nLeaves - 1;
+		if (candidates.stats != null) {
+			candidates.stats.visitNode(node >= nInner);
+		}
+		if (node >= nInner) {
+			int leaf = node - nInner;
+			candidates.addLeaf(leafStart(leaf), leafStart(leaf + 1));
+			return;
+		}
+		double delta = candidates.center[splitDims[node]] - splitValues[node];
+		int near = delta >= 0 ? 2 * node + 2 : 2 * node + 1;
+		rangeSearchKNN(near, candidates);
+		//The other subtree may contain closer entries
+		if (Math.abs(delta) * (1 + candidates.epsilon) < candidates.maxDist()) {
+			rangeSearchKNN(near == 2 * node + 1 ? 2 * node + 2 : 2 * node + 1, candidates);
+		}
+	}
+
+	@Override
+	public void queryKnn(double[] center, int k, PointVisitorKnn<T> visitor) {
+		KnnCandidates candidates = knnSearch(center, k, PointDistance.L2, 0, null);
+		for (int i = 0; i < candidates.size; i++) {
+			int pos = candidates.positions[i];
+			if (!visitor.visit(readKey(pos), value(pos), candidates.dists[i])) {
+				return;
+			}
+		}
+	}
+
+	@Override
+	public PointEntryKnn<T> query1nn(double[] center) {
+		KnnCandidates candidates = knnSearch(center, 1, PointDistance.L2, 0, null);
+		if (candidates.size == 0) {
+			return null;
+		}
+		int pos = candidates.positions[0];
+		return new PointEntryKnn<>(readKey(pos), value(pos), candidates.dists[0]);
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k) {
+		return queryKnn(center, k, PointDistance.L2);
+	}
+
+	/**
+	 * @param center  center point
+	 * @param k       number of neighbors
+	 * @param distFn  the point distance function to be used
+	 * @return Iterator over query result
+	 */
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn) {
+		return new KDIteratorKnnStatic(distFn, 0).reset(center, k);
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, double epsilon) {
+		return new KDIteratorKnnStatic(PointDistance.L2, epsilon).reset(center, k);
+	}
+
+	private class KDIteratorKnnStatic implements PointIteratorKnn<T> {
+
+		private final PointDistance distFn;
+		private final double epsilon;
+		private KnnCandidates candidates;
+		private int pos;
+
+		KDIteratorKnnStatic(PointDistance distFn, double epsilon) {
+			this.distFn = distFn;
+			this.epsilon = epsilon;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return pos < candidates.size;
+		}
+
+		@Override
+		public PointEntryKnn<T> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			int i = candidates.positions[pos];
+			PointEntryKnn<T> e = new PointEntryKnn<>(readKey(i), value(i), candidates.dists[pos]);
+			pos++;
+			return e;
+		}
+
+		@Override
+		public PointIteratorKnn<T> reset(double[] center, int k) {
+			candidates = knnSearch(center, k, distFn, epsilon,
+					QueryStats.start(KDTreeStatic.class, QueryStats.QueryType.KNN, center.length, k));
+			pos = 0;
+			return this;
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int getDims() {
+		return dims;
+	}
+
+	@Override
+	public KDStatsStatic getStats() {
+		return new KDStatsStatic(this);
+	}
+
+	/**
+	 * Statistics container class.
+	 */
+	public static class KDStatsStatic extends Stats {
+		public KDStatsStatic(KDTreeStatic<?> tree) {
+			super(tree.nDistKNN, 0, tree.nDistKNN);
+			this.dims = tree.dims;
+			this.nEntries = tree.size;
+			this.nInner = tree.nLeaves - 1;
+			this.nLeaf = tree.nLeaves;
+			this.nNodes = nInner + nLeaf;
+			this.maxDepth = tree.depth;
+			for (int i = 0; i < tree.nLeaves; i++) {
+				maxValuesInNode = Math.max(maxValuesInNode, tree.leafStart(i + 1) - tree.leafStart(i));
+			}
+		}
+	}
+
+	@Override
+	public int getNodeCount() {
+		return 2 * nLeaves - 1;
+	}
+
+	@Override
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Returns a printable list of the tree.
+	 * @return the tree as String
+	 */
+	@Override
+	public String toStringTree() {
+		StringBuilderLn sb = new StringBuilderLn();
+		toStringTree(sb, 0, 0);
+		return sb.toString();
+	}
+
+	private void toStringTree(StringBuilderLn sb, int node, int level) {
+		int nInner = nLeaves - 1;
+		if (node < nInner) {
+			toStringTree(sb, 2 * node + 1, level + 1);
+		}
+		for (int i = 0; i < level; i++) {
+			sb.append(".");
+		}
+		sb.append(" ");
+		if (node < nInner) {
+			sb.append("dim=").append(splitDims[node]).append(" split=").append(splitValues[node]);
+		} else {
+			int leaf = node - nInner;
+			sb.append("leaf n=").append(leafStart(leaf + 1) - leafStart(leaf)).append(":");
+			for (int pos = leafStart(leaf); pos < leafStart(leaf + 1); pos++) {
+				sb.append(" ").append(Arrays.toString(readKey(pos))).append(" v=").append(values[pos]);
+			}
+		}
+		sb.appendLn();
+		if (node < nInner) {
+			toStringTree(sb, 2 * node + 2, level + 1);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "KDTreeStatic;size=" + size + ";depth=" + depth;
+	}
+}
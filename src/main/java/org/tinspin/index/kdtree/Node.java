@@ -34,15 +34,33 @@ public class Node<T> extends Index.PointEntry<T> {
 	private Node<T> left;
 	private Node<T> right;
 	private final int dim;
+	/** Number of entries in the subtree, including this node. */
+	private int count = 1;
 	
 	Node(double[] p, T value, int dim, boolean defensiveKeyCopy) {
 		super(defensiveKeyCopy ? p.clone() : p, value);
 		this.dim = dim;
 	}
+
+	/**
+	 * Copy constructor for path copying, the key and the subnodes are shared with the original node.
+	 */
+	private Node(Node<T> n) {
+		super(n.point(), n.value());
+		this.dim = n.dim;
+		this.left = n.left;
+		this.right = n.right;
+		this.count = n.count;
+	}
+
+	Node<T> copy() {
+		return new Node<>(this);
+	}
 	
 	Node<T> getClosestNodeOrAddPoint(double[] p, T value, int dims, boolean defensiveKeyCopy) {
 		//Find best sub-node.
 		//If there is no node, we create one and return null
+		count++;
 		if (p[dim] >= point()[dim]) {
 			if (right != null) {
 				return right;
@@ -99,6 +117,14 @@ public class Node<T> extends Index.PointEntry<T> {
 		return dim;
 	}
 
+	int getCount() {
+		return count;
+	}
+
+	void setCount(int count) {
+		this.count = count;
+	}
+
 	public void set(double[] point, T value) {
 		super.set(point, value);
 	}
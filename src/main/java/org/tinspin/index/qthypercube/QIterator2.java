@@ -20,6 +20,8 @@ package org.tinspin.index.qthypercube;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
 
+import org.tinspin.index.QueryStats;
+
 import static org.tinspin.index.Index.*;
 
 /**
@@ -48,6 +50,9 @@ public class QIterator2<T> implements PointIterator<T> {
 			StackEntry<T> ni = stack.get(size++);
 			
 			ni.set(node, min, max);
+			if (stats != null) {
+				stats.visitNode(node.isLeaf());
+			}
 			return ni;
 		}
 
@@ -69,6 +74,7 @@ public class QIterator2<T> implements PointIterator<T> {
 	private PointEntry<T> next = null;
 	private double[] min;
 	private double[] max;
+	private QueryStats stats;
 	
 	private static class StackEntry<T> {
 		long pos;
@@ -140,8 +146,14 @@ public class QIterator2<T> implements PointIterator<T> {
 			while (se.pos < se.len) {
 				if (se.isLeaf()) {
 					PointEntry<T> e = se.vals.get((int) se.pos++);
+					if (stats != null) {
+						stats.nEntriesTested++;
+					}
 					if (QUtil.isPointEnclosed(e.point(), min, max)) {
 						next = e;
+						if (stats != null) {
+							stats.nResults++;
+						}
 						return;
 					}
 				} else {
@@ -160,6 +172,7 @@ public class QIterator2<T> implements PointIterator<T> {
 			stack.pop();
 		}
 		next = null;
+		stats = QueryStats.finish(stats);
 	}
 	
 
@@ -193,10 +206,11 @@ public class QIterator2<T> implements PointIterator<T> {
 		this.min = min;
 		this.max = max;
 		next = null;
+		stats = QueryStats.start(QuadTreeKD.class, QueryStats.QueryType.WINDOW, min.length, 0);
 		if (tree.getRoot() != null) {
 			stack.prepareAndPush(tree.getRoot(), min, max);
-			findNext();
 		}
+		findNext();
 		return this;
 	}
 }
\ No newline at end of file
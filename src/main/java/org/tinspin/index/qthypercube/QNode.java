@@ -21,7 +21,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.function.Predicate;
 
+import org.tinspin.index.PointDistance;
 import org.tinspin.index.qthypercube.QuadTreeKD.QStats;
+import org.tinspin.index.util.KnnList;
 
 import static org.tinspin.index.Index.*;
 
@@ -268,6 +270,102 @@ public class QNode<T> {
 		return values;
 	}
 
+	/**
+	 * Visit all entries in the rectangle between 'min' and 'max'.
+	 * @return 'false' if the visitor aborted the query
+	 */
+	boolean query(double[] min, double[] max, PointVisitor<T> visitor) {
+		if (values != null) {
+			for (int i = 0; i < values.size(); i++) {
+				PointEntry<T> e = values.get(i);
+				if (QUtil.isPointEnclosed(e.point(), min, max) && !visitor.visit(e.point(), e.value())) {
+					return false;
+				}
+			}
+			return true;
+		}
+		// Hypercube navigation: only visit quadrants that overlap with the query rectangle.
+		// 'm1' has a bit set if the upper quadrant overlaps, 'm0' has a bit set if the lower
+		// quadrant does not overlap.
+		long m0 = 0;
+		long m1 = 0;
+		for (int d = 0; d < center.length; d++) {
+			m0 <<= 1;
+			m1 <<= 1;
+			if (max[d] >= center[d]) {
+				m1 |= 1;
+				if (min[d] >= center[d]) {
+					m0 |= 1;
+				}
+			}
+		}
+		for (long pos = m0; ; ) {
+			QNode<T> sub = subs[(int) pos];
+			if (sub != null && !sub.query(min, max, visitor)) {
+				return false;
+			}
+			// next valid position, see QIterator1
+			long next = (((pos | ~m1) + 1) & m1) | m0;
+			if (next <= pos) {
+				return true;
+			}
+			pos = next;
+		}
+	}
+
+	/**
+	 * Visit all entries whose distance from 'point' is at most 'radius'.
+	 * Subnodes are only visited if they intersect with the sphere.
+	 * @return 'false' if the visitor aborted the query
+	 */
+	boolean queryRadius(double[] point, double radius, PointDistance distFn, PointVisitorKnn<T> visitor) {
+		if (values != null) {
+			for (int i = 0; i < values.size(); i++) {
+				PointEntry<T> e = values.get(i);
+				double dist = distFn.dist(point, e.point());
+				if (dist <= radius && !visitor.visit(e.point(), e.value(), dist)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		for (QNode<T> sub : subs) {
+			//EPS_MUL: entries may lie slightly outside of the node due to rounding errors
+			if (sub != null
+					&& QUtil.distToRectNode(point, sub.center, sub.radius*QUtil.EPS_MUL, distFn) <= radius
+					&& !sub.queryRadius(point, radius, distFn, visitor)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Depth-first kNN search with Euclidean distance.
+	 * Subnodes are only visited if they are closer than the current k-th candidate.
+	 */
+	void queryKnn(double[] center, KnnList<PointEntry<T>> candidates) {
+		if (values != null) {
+			for (int i = 0; i < values.size(); i++) {
+				PointEntry<T> e = values.get(i);
+				candidates.add(e, PointDistance.L2.dist(center, e.point()));
+			}
+			return;
+		}
+		// Visit the subnode that contains 'center' first, this quickly reduces the search radius.
+		int first = calcSubPosition(center);
+		if (subs[first] != null) {
+			subs[first].queryKnn(center, candidates);
+		}
+		for (int i = 0; i < subs.length; i++) {
+			QNode<T> sub = subs[i];
+			if (i != first && sub != null
+					&& QUtil.distToRectNodeL2(center, sub.center, sub.radius) < candidates.maxDist()) {
+				sub.queryKnn(center, candidates);
+			}
+		}
+	}
+
 	
 	@Override
 	public String toString() {
@@ -20,6 +20,8 @@ package org.tinspin.index.qthypercube;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
 
+import org.tinspin.index.QueryStats;
+
 import static org.tinspin.index.Index.*;
 
 /**
@@ -34,6 +36,7 @@ public class QRIterator<T> implements BoxIterator<T> {
 	private BoxEntry<T> next = null;
 	private double[] min;
 	private double[] max;
+	private QueryStats stats;
 	
 	QRIterator(QuadTreeRKD<T> tree, double[] min, double[] max) {
 		this.stack = new IteratorStack();
@@ -58,14 +61,21 @@ public class QRIterator<T> implements BoxIterator<T> {
 			}
 			while (se.posE < se.lenE) {
 				BoxEntry<T> e = se.vals.get(se.posE++);
+				if (stats != null) {
+					stats.nEntriesTested++;
+				}
 				if (QUtil.overlap(min, max, e.min(), e.max())) {
 					next = e;
+					if (stats != null) {
+						stats.nResults++;
+					}
 					return;
 				}
 			}
 			stack.pop();
 		}
 		next = null;
+		stats = QueryStats.finish(stats);
 	}
 	
 	@Override
@@ -97,10 +107,11 @@ public class QRIterator<T> implements BoxIterator<T> {
 		this.min = min;
 		this.max = max;
 		next = null;
+		stats = QueryStats.start(QuadTreeRKD.class, QueryStats.QueryType.WINDOW, min.length, 0);
 		if (tree.getRoot() != null) {
 			stack.prepareAndPush(tree.getRoot(), min, max);
-			findNext();
 		}
+		findNext();
 		return this;
 	}
 	
@@ -123,6 +134,9 @@ public class QRIterator<T> implements BoxIterator<T> {
 			StackEntry<T> ni = stack.get(size++);
 			
 			ni.set(node, min, max);
+			if (stats != null) {
+				stats.visitNode(!node.hasChildNodes());
+			}
 			return ni;
 		}
 
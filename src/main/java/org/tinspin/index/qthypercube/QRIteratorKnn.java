@@ -18,6 +18,7 @@
 package org.tinspin.index.qthypercube;
 
 import org.tinspin.index.BoxDistance;
+import org.tinspin.index.QueryStats;
 import org.tinspin.index.util.MinHeap;
 import org.tinspin.index.util.MinMaxHeap;
 
@@ -38,6 +39,7 @@ public class QRIteratorKnn<T> implements BoxIteratorKnn<T> {
     private int remaining;
     private double[] center;
     private double currentDistance;
+    private QueryStats stats;
 
     QRIteratorKnn(QRNode<T> root, int minResults, double[] center, BoxDistance distFn, BoxFilterKnn<T> filterFn) {
         this.filterFn = filterFn;
@@ -53,13 +55,18 @@ public class QRIteratorKnn<T> implements BoxIteratorKnn<T> {
         this.remaining = minResults;
         this.maxNodeDist = Double.POSITIVE_INFINITY;
         this.current = null;
+        this.stats = QueryStats.start(QuadTreeRKD.class, QueryStats.QueryType.KNN, center.length, minResults);
         if (minResults <= 0 || root == null) {
+            stats = QueryStats.finish(stats);
             return this;
         }
         queueN.clear();
         queueV.clear();
 
         queueN.push(new NodeDistT(0, root));
+        if (stats != null) {
+            stats.nHeapPush++;
+        }
         findNextElement();
         return this;
     }
@@ -94,6 +101,10 @@ public class QRIteratorKnn<T> implements BoxIteratorKnn<T> {
                 BoxEntryKnn<T> result = queueV.peekMin();
                 queueV.popMin();
                 --remaining;
+                if (stats != null) {
+                    stats.nHeapPop++;
+                    stats.nResults++;
+                }
                 this.current = result;
                 currentDistance = result.dist();
                 return;
@@ -101,6 +112,9 @@ public class QRIteratorKnn<T> implements BoxIteratorKnn<T> {
                 // inner node
                 NodeDistT top = queueN.peekMin();
                 queueN.popMin();
+                if (stats != null) {
+                    stats.nHeapPop++;
+                }
                 QRNode<T> node = top.node;
                 double dNode = top.dist;
 
@@ -108,17 +122,30 @@ public class QRIteratorKnn<T> implements BoxIteratorKnn<T> {
                     // ignore this node
                     continue;
                 }
+                if (stats != null) {
+                    stats.visitNode(!node.hasChildNodes());
+                }
 
                 if (node.hasValues()) {
                     for (BoxEntry<T> entry : node.getEntries()) {
                         double d = distFn.dist(center, entry);
+                        if (stats != null) {
+                            stats.nEntriesTested++;
+                            stats.nDistCalc++;
+                        }
                         if (filterFn.test(entry, d)) {
                             // Using '<=' allows dealing with infinite distances.
                             if (d <= maxNodeDist) {
                                 queueV.push(new BoxEntryKnn<>(entry, d));
+                                if (stats != null) {
+                                    stats.nHeapPush++;
+                                }
                                 if (queueV.size() >= remaining) {
                                     if (queueV.size() > remaining) {
                                         queueV.popMax();
+                                        if (stats != null) {
+                                            stats.nHeapPop++;
+                                        }
                                     }
                                     double dMax = queueV.peekMax().dist();
                                     maxNodeDist = Math.min(maxNodeDist, dMax);
@@ -132,8 +159,14 @@ public class QRIteratorKnn<T> implements BoxIteratorKnn<T> {
                         // For nodes we always use EDGE distance.
                         if (subnode != null) {
                             double dist = distToRectNodeEDGE(center, subnode.getCenter(), subnode.getRadius());
+                            if (stats != null) {
+                                stats.nDistCalc++;
+                            }
                             if (dist <= maxNodeDist) {
                                 queueN.push(new NodeDistT(dist, subnode));
+                                if (stats != null) {
+                                    stats.nHeapPush++;
+                                }
                             }
                         }
                     }
@@ -142,6 +175,7 @@ public class QRIteratorKnn<T> implements BoxIteratorKnn<T> {
         }
         current = null;
         currentDistance = Double.MAX_VALUE;
+        stats = QueryStats.finish(stats);
     }
 
     private class NodeDistT {
@@ -90,6 +90,16 @@ class QUtil {
 		return true;
 	}
 
+	public static boolean overlap(double[] center, double radius, 
+			double[] center2, double radius2) {
+		for (int d = 0; d < center.length; d++) {
+			if (center[d]+radius < center2[d]-radius2 || center[d]-radius > center2[d]+radius2) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	public static boolean isRectEnclosed(double[] minEnclosed, double[] maxEnclosed,
 			double[] minOuter, double[] maxOuter) {
 		for (int d = 0; d < minOuter.length; d++) {
@@ -126,6 +136,27 @@ class QUtil {
 		return true;
 	}
 
+	/**
+	 * Calculates the Euclidean distance to the edge of a node without creating any objects.
+	 * @param point the point
+	 * @param nodeCenter the center of the node
+	 * @param nodeRadius radius of the node
+	 * @return distance to edge of the node or 0 if the point is inside the node
+	 */
+	static double distToRectNodeL2(double[] point, double[] nodeCenter, double nodeRadius) {
+		double dist = 0;
+		for (int i = 0; i < point.length; i++) {
+			double d = 0;
+			if (point[i] > nodeCenter[i] + nodeRadius) {
+				d = point[i] - (nodeCenter[i] + nodeRadius);
+			} else if (point[i] < nodeCenter[i] - nodeRadius) {
+				d = (nodeCenter[i] - nodeRadius) - point[i];
+			}
+			dist += d * d;
+		}
+		return Math.sqrt(dist);
+	}
+
 	/**
 	 * Calculates distance to the edge of a node.
 	 * @param point the point
@@ -21,8 +21,13 @@ import java.util.*;
 import java.util.function.Predicate;
 
 import org.tinspin.index.*;
+import org.tinspin.index.jfr.InsertEvent;
+import org.tinspin.index.jfr.LoadEvent;
+import org.tinspin.index.jfr.RemoveEvent;
+import org.tinspin.index.util.KnnList;
 import org.tinspin.index.util.MathTools;
 import org.tinspin.index.util.StringBuilderLn;
+import org.tinspin.index.util.ZOrder;
 
 /**
  * This is a MX-quadtree implementation with configurable maximum depth, maximum nodes size, and
@@ -125,6 +130,8 @@ public class QuadTreeKD<T> implements PointMap<T>, PointMultimap<T> {
 	 */
 	@Override
 	public void insert(double[] key, T value) {
+		InsertEvent event = new InsertEvent();
+		event.begin();
 		size++;
 		PointEntry<T> e = new PointEntry<>(key, value);
 		if (root == null) {
@@ -142,6 +149,29 @@ public class QuadTreeKD<T> implements PointMap<T>, PointMultimap<T> {
 		while (r != null) {
 			r = r.tryPut(e, maxNodeSize, depth++ > MAX_DEPTH);
 		}
+		event.commit(this);
+	}
+
+	/**
+	 * Insert many points at once.
+	 * The points are inserted in z-order. This means that consecutive insertions descend
+	 * into the same part of the tree, which improves cache locality.
+	 *
+	 * @param flatCoords coordinates of all points, i.e. 'dims' values per point
+	 * @param values values, one per point
+	 */
+	@Override
+	public void insertAll(double[] flatCoords, T[] values) {
+		if (flatCoords.length != values.length * dims) {
+			throw new IllegalArgumentException("Expected " + values.length * dims +
+					" coordinates but got " + flatCoords.length);
+		}
+		LoadEvent event = new LoadEvent();
+		event.begin();
+		for (int i : ZOrder.order(flatCoords, null, dims)) {
+			insert(Arrays.copyOfRange(flatCoords, i * dims, (i + 1) * dims), values[i]);
+		}
+		event.commit(this, values.length);
 	}
 
 	private void adjustRootSize(double[] key) {
@@ -209,15 +239,14 @@ public class QuadTreeKD<T> implements PointMap<T>, PointMultimap<T> {
 	 */
 	@Override
 	public T remove(double[] key) {
-		if (root == null) {
-			return null;
-		}
-		PointEntry<T> e = root.remove(null, key, maxNodeSize, x -> true);
-		if (e == null) {
-			return null;
+		RemoveEvent event = new RemoveEvent();
+		event.begin();
+		PointEntry<T> e = root == null ? null : root.remove(null, key, maxNodeSize, x -> true);
+		if (e != null) {
+			size--;
 		}
-		size--;
-		return e.value();
+		event.commit(this);
+		return e == null ? null : e.value();
 	}
 
 	@Override
@@ -227,15 +256,14 @@ public class QuadTreeKD<T> implements PointMap<T>, PointMultimap<T> {
 
 	@Override
 	public boolean removeIf(double[] key, Predicate<PointEntry<T>> condition) {
-		if (root == null) {
-			return false;
+		RemoveEvent event = new RemoveEvent();
+		event.begin();
+		PointEntry<T> e = root == null ? null : root.remove(null, key, maxNodeSize, condition);
+		if (e != null) {
+			size--;
 		}
-		PointEntry<T> e = root.remove(null, key, maxNodeSize, condition);
-		if (e == null) {
-			return false;
-		}
-		size--;
-		return true;
+		event.commit(this);
+		return e != null;
 	}
 
 	/**
@@ -371,6 +399,40 @@ public class QuadTreeKD<T> implements PointMap<T>, PointMultimap<T> {
 		//return new QIterator<>(this, min, max);
 	}
 
+	/**
+	 * Visit all points in the axis-aligned rectangle between 'min' and 'max'.
+	 * This does not create any objects.
+	 * @param min lower left corner of query
+	 * @param max upper right corner of query
+	 * @param visitor callback for all entries in the rectangle
+	 */
+	@Override
+	public void query(double[] min, double[] max, PointVisitor<T> visitor) {
+		if (root != null) {
+			root.query(min, max, visitor);
+		}
+	}
+
+	/**
+	 * Visit all points whose distance from 'center' is at most 'radius'.
+	 * Quadrants that do not intersect with the sphere are not traversed.
+	 * @param center center point
+	 * @param radius maximum distance
+	 * @param distFn the point distance function to be used
+	 * @param visitor callback for all entries in the sphere
+	 */
+	@Override
+	public void queryRadius(double[] center, double radius, PointDistance distFn, PointVisitorKnn<T> visitor) {
+		if (root != null) {
+			root.queryRadius(center, radius, distFn, visitor);
+		}
+	}
+
+	@Override
+	public List<PointEntryKnn<T>> queryRadius(double[] center, double radius, PointDistance distFn) {
+		return PointMap.super.queryRadius(center, radius, distFn);
+	}
+
 	@Override
 	public PointEntryKnn<T> query1nn(double[] center) {
 		return PointMap.super.query1nn(center);
@@ -386,7 +448,29 @@ public class QuadTreeKD<T> implements PointMap<T>, PointMultimap<T> {
 	 */
 	@Override
 	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance dist) {
-		return new QIteratorKnn<>(root, k, center, dist, (e, d) -> true);
+		return new QIteratorKnn<>(root, k, center, dist, (e, d) -> true, 0);
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, double epsilon) {
+		return queryKnn(center, k, PointDistance.L2, epsilon);
+	}
+
+	/**
+	 * Approximate kNN search, see {@link PointMap#queryKnn(double[], int, double)}.
+	 * @param center  center point
+	 * @param k       number of neighbors
+	 * @param dist   the point distance function to be used
+	 * @param epsilon approximation factor, must be {@code >= 0}
+	 * @return Iterator over query result
+	 */
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance dist, double epsilon) {
+		return new QIteratorKnn<>(root, k, center, dist, (e, d) -> true, epsilon);
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryNearest(double[] center) {
+		return new QIteratorKnn<>(root, Integer.MAX_VALUE, center, PointDistance.L2, (e, d) -> true, 0);
 	}
 
 	/**
@@ -475,12 +559,11 @@ public class QuadTreeKD<T> implements PointMap<T>, PointMultimap<T> {
 
 	@Override
 	public PointIterator<T> iterator() {
-		if (root == null) {
-			return query(new double[dims], new double[dims]);
-		}
-		//return query(root.);
-		//TODO
-		throw new UnsupportedOperationException();
+		double[] min = new double[dims];
+		double[] max = new double[dims];
+		Arrays.fill(min, Double.NEGATIVE_INFINITY);
+		Arrays.fill(max, Double.POSITIVE_INFINITY);
+		return query(min, max);
 	}
 
 	@Override
@@ -488,6 +571,28 @@ public class QuadTreeKD<T> implements PointMap<T>, PointMultimap<T> {
 		return queryKnn(center, k, PointDistance.L2);
 	}
 
+	/**
+	 * Visit the k nearest neighbors in order of increasing distance. This uses Euclidean distance.
+	 * Apart from the list of candidates, this does not create any objects.
+	 * @param center center point
+	 * @param k number of neighbors
+	 * @param visitor callback for the k nearest neighbors
+	 */
+	@Override
+	public void queryKnn(double[] center, int k, PointVisitorKnn<T> visitor) {
+		if (root == null) {
+			return;
+		}
+		KnnList<PointEntry<T>> candidates = new KnnList<>(Math.min(k, size()));
+		root.queryKnn(center, candidates);
+		for (int i = 0; i < candidates.size(); i++) {
+			PointEntry<T> e = candidates.get(i);
+			if (!visitor.visit(e.point(), e.value(), candidates.dist(i))) {
+				return;
+			}
+		}
+	}
+
 	@Override
 	public int getNodeCount() {
 		return getStats().getNodeCount();
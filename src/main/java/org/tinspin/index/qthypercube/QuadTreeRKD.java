@@ -18,13 +18,18 @@
 package org.tinspin.index.qthypercube;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Predicate;
 
 import org.tinspin.index.*;
+import org.tinspin.index.jfr.InsertEvent;
+import org.tinspin.index.jfr.LoadEvent;
+import org.tinspin.index.jfr.RemoveEvent;
 import org.tinspin.index.qthypercube.QuadTreeKD.QStats;
 import org.tinspin.index.util.BoxIteratorWrapper;
 import org.tinspin.index.util.MathTools;
 import org.tinspin.index.util.StringBuilderLn;
+import org.tinspin.index.util.ZOrder;
 
 /**
  * A simple MX-quadtree implementation with configurable maximum depth, maximum nodes size, and
@@ -142,6 +147,8 @@ public class QuadTreeRKD<T> implements BoxMap<T>, BoxMultimap<T> {
 	 */
 	@Override
 	public void insert(double[] keyL, double[] keyU, T value) {
+		InsertEvent event = new InsertEvent();
+		event.begin();
 		size++;
 		BoxEntry<T> e = new BoxEntry<>(keyL, keyU, value);
 		if (root == null) {
@@ -153,6 +160,31 @@ public class QuadTreeRKD<T> implements BoxMap<T>, BoxMultimap<T> {
 		while (r != null) {
 			r = r.tryPut(e, maxNodeSize, depth++>MAX_DEPTH);
 		}
+		event.commit(this);
+	}
+
+	/**
+	 * Insert many boxes at once.
+	 * The boxes are inserted in z-order of their centers. This means that consecutive
+	 * insertions descend into the same part of the tree, which improves cache locality.
+	 *
+	 * @param flatMin minimum corners of all boxes, i.e. 'dims' values per box
+	 * @param flatMax maximum corners of all boxes, i.e. 'dims' values per box
+	 * @param values values, one per box
+	 */
+	@Override
+	public void insertAll(double[] flatMin, double[] flatMax, T[] values) {
+		if (flatMin.length != values.length * dims || flatMax.length != values.length * dims) {
+			throw new IllegalArgumentException("Expected " + values.length * dims +
+					" coordinates but got " + flatMin.length + "/" + flatMax.length);
+		}
+		LoadEvent event = new LoadEvent();
+		event.begin();
+		for (int i : ZOrder.order(flatMin, flatMax, dims)) {
+			insert(Arrays.copyOfRange(flatMin, i * dims, (i + 1) * dims),
+					Arrays.copyOfRange(flatMax, i * dims, (i + 1) * dims), values[i]);
+		}
+		event.commit(this, values.length);
 	}
 
 	private void initializeRoot(double[] keyL, double[] keyU) {
@@ -234,15 +266,14 @@ public class QuadTreeRKD<T> implements BoxMap<T>, BoxMultimap<T> {
 	 */
 	@Override
 	public T remove(double[] keyL, double[] keyU) {
-		if (root == null) {
-			return null;
-		}
-		BoxEntry<T> e = root.remove(null, keyL, keyU, maxNodeSize, x -> true);
-		if (e == null) {
-			return null;
+		RemoveEvent event = new RemoveEvent();
+		event.begin();
+		BoxEntry<T> e = root == null ? null : root.remove(null, keyL, keyU, maxNodeSize, x -> true);
+		if (e != null) {
+			size--;
 		}
-		size--;
-		return e.value();
+		event.commit(this);
+		return e == null ? null : e.value();
 	}
 
 	@Override
@@ -252,15 +283,14 @@ public class QuadTreeRKD<T> implements BoxMap<T>, BoxMultimap<T> {
 
 	@Override
 	public boolean removeIf(double[] lower, double[] upper, Predicate<BoxEntry<T>> condition) {
-		if (root == null) {
-			return false;
+		RemoveEvent event = new RemoveEvent();
+		event.begin();
+		BoxEntry<T> e = root == null ? null : root.remove(null, lower, upper, maxNodeSize, condition);
+		if (e != null) {
+			size--;
 		}
-		BoxEntry<T> e = root.remove(null, lower, upper, maxNodeSize, condition);
-		if (e == null) {
-			return false;
-		}
-		size--;
-		return true;
+		event.commit(this);
+		return e != null;
 	}
 
 	@Override
@@ -382,6 +412,24 @@ public class QuadTreeRKD<T> implements BoxMap<T>, BoxMultimap<T> {
 		return new QRIterator<>(this, min, max);
 	}
 
+	/**
+	 * Spatial join. If 'other' is also a QuadTreeRKD, both trees are traversed synchronously and only
+	 * pairs of nodes with overlapping regions are visited, see {@link QRJoin}.
+	 * @see BoxMap#join(BoxMap, BoxJoinVisitor, ForkJoinPool)
+	 */
+	@Override
+	public <U> void join(BoxMap<U> other, BoxJoinVisitor<T, U> visitor, ForkJoinPool pool) {
+		if (other instanceof QuadTreeRKD) {
+			QuadTreeRKD<U> tree2 = (QuadTreeRKD<U>) other;
+			if (dims != tree2.dims) {
+				throw new IllegalArgumentException("Dimensions differ: " + dims + "/" + tree2.dims);
+			}
+			QRJoin.join(root, tree2.root, visitor, pool);
+		} else {
+			BoxMap.super.join(other, visitor, pool);
+		}
+	}
+
 	@Override
 	public BoxEntryKnn<T> query1nn(double[] center) {
 		return queryKnn(center, 1).next();
@@ -456,9 +504,11 @@ public class QuadTreeRKD<T> implements BoxMap<T>, BoxMultimap<T> {
 
 	@Override
 	public BoxIterator<T> iterator() {
-		// TODO Auto-generated method stub
-		throw new UnsupportedOperationException();
-		//return null;
+		double[] min = new double[dims];
+		double[] max = new double[dims];
+		Arrays.fill(min, Double.NEGATIVE_INFINITY);
+		Arrays.fill(max, Double.POSITIVE_INFINITY);
+		return queryIntersect(min, max);
 	}
 
 	@Override
@@ -471,6 +521,11 @@ public class QuadTreeRKD<T> implements BoxMap<T>, BoxMultimap<T> {
 		return new QRIteratorKnn<>(root, k, center, distFn, (t, d) -> true);
 	}
 
+	@Override
+	public BoxIteratorKnn<T> queryNearest(double[] center) {
+		return new QRIteratorKnn<>(root, Integer.MAX_VALUE, center, BoxDistance.EDGE, (t, d) -> true);
+	}
+
 	@Override
 	public int getDepth() {
 		return getStats().getMaxDepth();
@@ -20,6 +20,8 @@ package org.tinspin.index.qthypercube2;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
 
+import org.tinspin.index.QueryStats;
+
 import static org.tinspin.index.Index.*;
 
 /**
@@ -48,6 +50,9 @@ public class QIterator0<T> implements PointIterator<T> {
 			StackEntry<T> ni = stack.get(size++);
 			
 			ni.set(node);
+			if (stats != null) {
+				stats.visitNode(node.isLeaf());
+			}
 			return ni;
 		}
 
@@ -69,6 +74,7 @@ public class QIterator0<T> implements PointIterator<T> {
 	private PointEntry<T> next = null;
 	private double[] min;
 	private double[] max;
+	private QueryStats stats;
 	
 	private static class StackEntry<T> {
 		int pos;
@@ -108,8 +114,14 @@ public class QIterator0<T> implements PointIterator<T> {
 				int pos = se.pos++;
 				if (se.isLeaf()) {
 					PointEntry<T> e = (PointEntry<T>) se.entries[pos];
+					if (stats != null) {
+						stats.nEntriesTested++;
+					}
 					if (QUtil.isPointEnclosed(e.point(), min, max)) {
 						next = e;
+						if (stats != null) {
+							stats.nResults++;
+						}
 						return;
 					}
 				} else {
@@ -121,8 +133,14 @@ public class QIterator0<T> implements PointIterator<T> {
 						}
 					} else if (e != null) {
 						PointEntry<T> qe = (PointEntry<T>) e;
+						if (stats != null) {
+							stats.nEntriesTested++;
+						}
 						if (QUtil.isPointEnclosed(qe.point(), min, max)) {
 							next = qe;
+							if (stats != null) {
+								stats.nResults++;
+							}
 							return;
 						}
 					}
@@ -131,6 +149,7 @@ public class QIterator0<T> implements PointIterator<T> {
 			stack.pop();
 		}
 		next = null;
+		stats = QueryStats.finish(stats);
 	}
 	
 	
@@ -163,10 +182,11 @@ public class QIterator0<T> implements PointIterator<T> {
 		this.min = min;
 		this.max = max;
 		next = null;
+		stats = QueryStats.start(QuadTreeKD2.class, QueryStats.QueryType.WINDOW, min.length, 0);
 		if (tree.getRoot() != null) {
 			stack.prepareAndPush(tree.getRoot());
-			findNext();
 		}
+		findNext();
 		return this;
 	}
 }
\ No newline at end of file
@@ -20,6 +20,8 @@ package org.tinspin.index.qthypercube2;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
 
+import org.tinspin.index.QueryStats;
+
 import static org.tinspin.index.Index.*;
 
 /**
@@ -48,6 +50,9 @@ public class QIterator2<T> implements PointIterator<T> {
 			StackEntry<T> ni = stack.get(size++);
 			
 			ni.set(node, min, max);
+			if (stats != null) {
+				stats.visitNode(node.isLeaf());
+			}
 			return ni;
 		}
 
@@ -69,6 +74,7 @@ public class QIterator2<T> implements PointIterator<T> {
 	private PointEntry<T> next = null;
 	private double[] min;
 	private double[] max;
+	private QueryStats stats;
 	
 	private static class StackEntry<T> {
 		long pos;
@@ -141,8 +147,14 @@ public class QIterator2<T> implements PointIterator<T> {
 			while (se.pos < se.len) {
 				if (se.isLeaf()) {
 					PointEntry<T> e = (PointEntry<T>) se.entries[(int) se.pos++];
+					if (stats != null) {
+						stats.nEntriesTested++;
+					}
 					if (QUtil.isPointEnclosed(e.point(), min, max)) {
 						next = e;
+						if (stats != null) {
+							stats.nResults++;
+						}
 						return;
 					}
 				} else {
@@ -159,8 +171,14 @@ public class QIterator2<T> implements PointIterator<T> {
 							se = stack.prepareAndPush(node, min, max);
 						} else {
 							PointEntry<T> qe = (PointEntry<T>) e;
+							if (stats != null) {
+								stats.nEntriesTested++;
+							}
 							if (QUtil.isPointEnclosed(qe.point(), min, max)) {
 								next = qe;
+								if (stats != null) {
+									stats.nResults++;
+								}
 								return;
 							}
 						}
@@ -170,6 +188,7 @@ public class QIterator2<T> implements PointIterator<T> {
 			stack.pop();
 		}
 		next = null;
+		stats = QueryStats.finish(stats);
 	}
 	
 
@@ -203,10 +222,11 @@ public class QIterator2<T> implements PointIterator<T> {
 		this.min = min;
 		this.max = max;
 		next = null;
+		stats = QueryStats.start(QuadTreeKD2.class, QueryStats.QueryType.WINDOW, min.length, 0);
 		if (tree.getRoot() != null) {
 			stack.prepareAndPush(tree.getRoot(), min, max);
-			findNext();
 		}
+		findNext();
 		return this;
 	}
 }
\ No newline at end of file
@@ -20,7 +20,9 @@ package org.tinspin.index.qthypercube2;
 import java.util.Arrays;
 import java.util.function.Predicate;
 
+import org.tinspin.index.PointDistance;
 import org.tinspin.index.qthypercube2.QuadTreeKD2.QStats;
+import org.tinspin.index.util.KnnList;
 
 import static org.tinspin.index.Index.*;
 
@@ -47,6 +49,8 @@ public class QNode<T> {
 	private Object[] subs;
 	private int nValues = 0;
 	private boolean isLeaf;
+	// number of entries in the subtree, only used if this is not a leaf
+	private int count;
 	
 	@SuppressWarnings("unchecked")
 	QNode(double[] center, double radius) {
@@ -63,6 +67,7 @@ public class QNode<T> {
 		this.subs = new Object[1 << center.length];
 		subs[subNodePos] = subNode;
 		this.isLeaf = false;
+		this.count = subNode.getCount();
 	}
 
 	@SuppressWarnings("unused")
@@ -74,6 +79,7 @@ public class QNode<T> {
 		
 		//traverse subs?
 		if (!isLeaf()) {
+			count++;
 			return getOrCreateSub(e, maxNodeSize, enforceLeaf);
 		}
 		
@@ -94,6 +100,7 @@ public class QNode<T> {
 		clearValues();
 		subs = new Object[1 << center.length];
 		isLeaf = false;
+		count = nVal + 1;
 		for (int i = 0; i < nVal; i++) {
 			PointEntry<T> e2 = vals[i];
 			QNode<T> sub = getOrCreateSub(e2, maxNodeSize, enforceLeaf);
@@ -212,12 +219,14 @@ public class QNode<T> {
 			if (o instanceof QNode) {
 				PointEntry<T> removed = ((QNode<T>)o).remove(this, key, maxNodeSize, pred);
 				if (removed != null) {
+					count--;
 					checkAndMergeLeafNodesInParent(parent, maxNodeSize);
 				}
 				return removed;
 			} else if (o instanceof PointEntry) {
 				PointEntry<T> e = (PointEntry<T>) o;
 				if (removeSub(parent, key, pos, e, maxNodeSize, pred)) {
+					count--;
 					return e;
 				}
 			}
@@ -258,6 +267,10 @@ public class QNode<T> {
 				QNode<T> sub = (QNode<T>) e;
 				PointEntry<T> ret = sub.update(this, keyOld, keyNew, maxNodeSize, requiresReinsert,
 						currentDepth+1, maxDepth, pred);
+				if (ret != null && requiresReinsert[0]) {
+					// the entry has left the subnode, it may be reinserted below
+					count--;
+				}
 				if (ret != null && requiresReinsert[0] && 
 						QUtil.fitsIntoNode(ret.point(), center, radius/QUtil.EPS_MUL)) {
 					requiresReinsert[0] = false;
@@ -272,6 +285,7 @@ public class QNode<T> {
 			PointEntry<T> qe = (PointEntry<T>) e;
 			if (QUtil.isPointEqual(qe.point(), keyOld) && pred.test(qe)) {
 				removeValue(pos);
+				count--;
 				qe.setPoint(keyNew);
 				if (QUtil.fitsIntoNode(keyNew, center, radius/QUtil.EPS_MUL)) {
 					// reinsert locally
@@ -416,6 +430,167 @@ public class QNode<T> {
 		return isLeaf ? values : subs;
 	}
 
+	/**
+	 * @return the number of entries in the subtree
+	 */
+	int getCount() {
+		return isLeaf ? nValues : count;
+	}
+
+	/**
+	 * Count all entries in the rectangle between 'min' and 'max'.
+	 * Subnodes that are fully enclosed by the rectangle are not traversed.
+	 */
+	@SuppressWarnings("unchecked")
+	int count(double[] min, double[] max) {
+		int n = 0;
+		if (isLeaf) {
+			for (int i = 0; i < nValues; i++) {
+				if (QUtil.isPointEnclosed(values[i].point(), min, max)) {
+					n++;
+				}
+			}
+			return n;
+		}
+		for (int i = 0; i < subs.length; i++) {
+			Object o = subs[i];
+			if (o instanceof QNode) {
+				QNode<T> sub = (QNode<T>) o;
+				// EPS_MUL: entries may lie slightly outside of the node due to rounding errors
+				if (QUtil.isNodeEnclosed(sub.center, sub.radius*QUtil.EPS_MUL, min, max)) {
+					n += sub.getCount();
+				} else if (QUtil.overlap(min, max, sub.center, sub.radius)) {
+					n += sub.count(min, max);
+				}
+			} else if (o != null && QUtil.isPointEnclosed(((PointEntry<T>) o).point(), min, max)) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Visit all entries in the rectangle between 'min' and 'max'.
+	 * @return 'false' if the visitor aborted the query
+	 */
+	@SuppressWarnings("unchecked")
+	boolean query(double[] min, double[] max, PointVisitor<T> visitor) {
+		if (isLeaf) {
+			for (int i = 0; i < nValues; i++) {
+				PointEntry<T> e = values[i];
+				if (QUtil.isPointEnclosed(e.point(), min, max) && !visitor.visit(e.point(), e.value())) {
+					return false;
+				}
+			}
+			return true;
+		}
+		// Hypercube navigation: only visit quadrants that overlap with the query rectangle.
+		// 'm1' has a bit set if the upper quadrant overlaps, 'm0' has a bit set if the lower
+		// quadrant does not overlap.
+		long m0 = 0;
+		long m1 = 0;
+		for (int d = 0; d < center.length; d++) {
+			m0 <<= 1;
+			m1 <<= 1;
+			if (max[d] >= center[d]) {
+				m1 |= 1;
+				if (min[d] >= center[d]) {
+					m0 |= 1;
+				}
+			}
+		}
+		for (long pos = m0; ; ) {
+			Object o = subs[(int) pos];
+			if (o instanceof QNode) {
+				if (!((QNode<T>) o).query(min, max, visitor)) {
+					return false;
+				}
+			} else if (o != null) {
+				PointEntry<T> e = (PointEntry<T>) o;
+				if (QUtil.isPointEnclosed(e.point(), min, max) && !visitor.visit(e.point(), e.value())) {
+					return false;
+				}
+			}
+			// next valid position, see QIterator1
+			long next = (((pos | ~m1) + 1) & m1) | m0;
+			if (next <= pos) {
+				return true;
+			}
+			pos = next;
+		}
+	}
+
+	/**
+	 * Visit all entries whose distance from 'point' is at most 'radius'.
+	 * Subnodes are only visited if they intersect with the sphere.
+	 * @return 'false' if the visitor aborted the query
+	 */
+	@SuppressWarnings("unchecked")
+	boolean queryRadius(double[] point, double radius, PointDistance distFn, PointVisitorKnn<T> visitor) {
+		if (isLeaf) {
+			for (int i = 0; i < nValues; i++) {
+				PointEntry<T> e = values[i];
+				double dist = distFn.dist(point, e.point());
+				if (dist <= radius && !visitor.visit(e.point(), e.value(), dist)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		for (Object o : subs) {
+			if (o instanceof QNode) {
+				QNode<T> sub = (QNode<T>) o;
+				//EPS_MUL: entries may lie slightly outside of the node due to rounding errors
+				if (QUtil.distToRectNode(point, sub.center, sub.radius*QUtil.EPS_MUL, distFn) <= radius
+						&& !sub.queryRadius(point, radius, distFn, visitor)) {
+					return false;
+				}
+			} else if (o != null) {
+				PointEntry<T> e = (PointEntry<T>) o;
+				double dist = distFn.dist(point, e.point());
+				if (dist <= radius && !visitor.visit(e.point(), e.value(), dist)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Depth-first kNN search with Euclidean distance.
+	 * Subnodes are only visited if they are closer than the current k-th candidate.
+	 */
+	void queryKnn(double[] center, KnnList<PointEntry<T>> candidates) {
+		if (isLeaf) {
+			for (int i = 0; i < nValues; i++) {
+				PointEntry<T> e = values[i];
+				candidates.add(e, PointDistance.L2.dist(center, e.point()));
+			}
+			return;
+		}
+		// Visit the slot that contains 'center' first, this quickly reduces the search radius.
+		int first = calcSubPosition(center);
+		queryKnn(subs[first], center, candidates);
+		for (int i = 0; i < subs.length; i++) {
+			if (i != first) {
+				queryKnn(subs[i], center, candidates);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> void queryKnn(Object o, double[] center, KnnList<PointEntry<T>> candidates) {
+		if (o instanceof QNode) {
+			QNode<T> sub = (QNode<T>) o;
+			if (QUtil.distToRectNodeL2(center, sub.center, sub.radius) < candidates.maxDist()) {
+				sub.queryKnn(center, candidates);
+			}
+		} else if (o != null) {
+			PointEntry<T> e = (PointEntry<T>) o;
+			candidates.add(e, PointDistance.L2.dist(center, e.point()));
+		}
+	}
+
 
 	@Override
 	public String toString() {
@@ -476,12 +651,14 @@ public class QNode<T> {
 			}
 			int nSubs = 0;
 			int nFoundValues = 0;
+			int nTotal = 0;
 			for (int i = 0; i < subs.length; i++) {
 				Object n = subs[i];
 				//TODO check pos
 				if (n instanceof QNode) {
 					nSubs++;
 					((QNode<T>)n).checkNode(s, this, depth+1);
+					nTotal += ((QNode<T>)n).getCount();
 				} else if (n != null) {
 					s.nEntries++;
 					nFoundValues++;
@@ -491,6 +668,9 @@ public class QNode<T> {
 			if (nValues != nFoundValues) {
 				throw new IllegalStateException();
 			}
+			if (nTotal + nFoundValues != count) {
+				throw new IllegalStateException("count=" + count + " but found " + (nTotal + nFoundValues));
+			}
 			s.histoValues[nFoundValues]++;
 			s.histo(nSubs);
 		}
@@ -0,0 +1,596 @@
+/*
+ * Copyright 2016-2017 Tilmann Zaeschke
+ * 
+ * This file is part of TinSpin.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.qthypercube2;
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+import org.tinspin.index.PointDistanceF;
+import org.tinspin.index.qthypercube2.QuadTreeKD2.QStats;
+import org.tinspin.index.util.KnnList;
+
+import static org.tinspin.index.PointMapF.*;
+
+/**
+ * Node class for the {@link QuadTreeKD2F}. This is the same as {@link QNode}, except that
+ * entries have single precision keys. Node centers and radii still use double precision.
+ * <p>
+ * A node can be in one of two modes: "directory node" and "leaf node".
+ * Directory nodes have an 2^dim array of "subs", where ich entry can be one of: a point, a subnode, or null.
+ * Leaf nodes have an array of "values" which are all points.
+ * <p>
+ * A new subnode is inserted in "subs" if a slot in "subs" already contains a point.
+ *
+ *
+ * @author ztilmann
+ *
+ * @param <T> Value type.
+ */
+public class QNodeF<T> {
+
+	private double[] center;
+	private double radius;
+	// null indicates that we have sub-node i.o. values
+	private PointEntryF<T>[] values;
+	private Object[] subs;
+	private int nValues = 0;
+	private boolean isLeaf;
+	
+	@SuppressWarnings("unchecked")
+	QNodeF(double[] center, double radius) {
+		this.center = center;
+		this.radius = radius;
+		this.values = (PointEntryF<T>[]) new PointEntryF<?>[2];
+		this.isLeaf = true;
+	}
+
+	QNodeF(double[] center, double radius, QNodeF<T> subNode, int subNodePos) {
+		this.center = center;
+		this.radius = radius;
+		this.values = null;
+		this.subs = new Object[1 << center.length];
+		subs[subNodePos] = subNode;
+		this.isLeaf = false;
+	}
+
+	@SuppressWarnings("unused")
+	QNodeF<T> tryPut(PointEntryF<T> e, int maxNodeSize, boolean enforceLeaf) {
+		if (QuadTreeKD2.DEBUG && !QUtil.fitsIntoNode(e.point(), center, radius)) {
+			throw new IllegalStateException("e=" + Arrays.toString(e.point()) + 
+					" center/radius=" + Arrays.toString(center) + "/" + radius);
+		}
+		
+		//traverse subs?
+		if (!isLeaf()) {
+			return getOrCreateSub(e, maxNodeSize, enforceLeaf);
+		}
+		
+		//add if:
+		//a) we have space
+		//b) we have maxDepth
+		//c) elements are equal (work only for n=1, avoids splitting
+		//   in cases where splitting won't help. For n>1 the
+		//   local limit is (temporarily) violated.
+		if (nValues < maxNodeSize || enforceLeaf || areAllPointsIdentical(e)) {
+			addValue(e, maxNodeSize);
+			return null;
+		}
+		
+		//split
+		PointEntryF<T>[] vals = values;
+		int nVal = nValues;
+		clearValues();
+		subs = new Object[1 << center.length];
+		isLeaf = false;
+		for (int i = 0; i < nVal; i++) {
+			PointEntryF<T> e2 = vals[i];
+			QNodeF<T> sub = getOrCreateSub(e2, maxNodeSize, enforceLeaf);
+			while (sub != null) {
+				//This may recurse if all entries fall 
+				//into the same subnode
+				sub = sub.tryPut(e2, maxNodeSize, false);
+			}
+		}
+		return getOrCreateSub(e, maxNodeSize, enforceLeaf);
+	}
+
+	private boolean areAllPointsIdentical(PointEntryF<T> e) {
+		//This discovers situation where a node overflows, but splitting won't help because all points are identical
+		for (int i = 0; i < nValues; i++) {
+			if (!QUtil.isPointEqual(e.point(), values[i].point())) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	PointEntryF<T>[] getValues() {
+		return values;
+	}
+	
+	private void addValue(PointEntryF<T> e, int maxNodeSize) {
+		//Allow overflow over max node size (for example for lots of identical values in node)
+		int maxLen = nValues >= maxNodeSize ? nValues * 2 : maxNodeSize;
+		if (nValues >= getValues().length) {
+			values = Arrays.copyOf(getValues(), Math.min(nValues * 3, maxLen));
+		}
+		getValues()[nValues++] = e;
+	}
+	
+	private void removeValue(int pos) {
+		if (isLeaf) {
+			if (pos < --nValues) {
+				System.arraycopy(getValues(), pos+1, getValues(), pos, nValues-pos);
+			}
+			getValues()[nValues] = null;
+		} else {
+			nValues--;
+			subs[pos] = null;
+		}
+	}
+	
+	private void clearValues() {
+		values = null;
+		nValues = 0;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private QNodeF<T> getOrCreateSub(PointEntryF<T> e, int maxNodeSize, boolean enforceLeaf) {
+		int pos = calcSubPosition(e.point());
+		Object n = subs[pos];
+		
+		if (n instanceof QNodeF) {
+			return (QNodeF<T>)n;
+		}
+		
+		if (n == null) {
+			subs[pos] = e;
+			nValues++;
+			return null;
+		}
+
+		PointEntryF<T> e2 = (PointEntryF<T>) n;
+		nValues--;
+		QNodeF<T> sub = createSubForEntry(pos);
+		subs[pos] = sub;
+		sub.tryPut(e2, maxNodeSize, enforceLeaf);
+		return sub;
+	}
+	
+	private QNodeF<T> createSubForEntry(int subNodePos) {
+		double[] centerSub = new double[center.length];
+		int mask = 1<<center.length;
+		//This ensures that the subsnodes completely cover the area of
+		//the parent node.
+		double radiusSub = radius/2.0;
+		for (int d = 0; d < center.length; d++) {
+			mask >>= 1;
+			if ((subNodePos & mask) > 0) {
+				centerSub[d] = center[d]+radiusSub;
+			} else {
+				centerSub[d] = center[d]-radiusSub; 
+			}
+		}
+		return new QNodeF<>(centerSub, radiusSub);		
+	}
+	
+	/**
+	 * The subnode position has reverse ordering of the point's
+	 * dimension ordering. Dimension 0 of a point is the highest
+	 * ordered bit in the position.
+	 * @param p point
+	 * @return subnode position
+	 */
+	int calcSubPosition(float[] p) {
+		int subNodePos = 0;
+		for (int d = 0; d < center.length; d++) {
+			subNodePos <<= 1;
+			if (p[d] >= center[d]) {
+				subNodePos |= 1;
+			}
+		}
+		return subNodePos;
+	}
+
+	@SuppressWarnings("unchecked")
+	PointEntryF<T> remove(QNodeF<T> parent, float[] key, int maxNodeSize, Predicate<PointEntryF<T>> pred) {
+		if (!isLeaf()) {
+			int pos = calcSubPosition(key);
+			Object o = subs[pos];
+			if (o instanceof QNodeF) {
+				PointEntryF<T> removed = ((QNodeF<T>)o).remove(this, key, maxNodeSize, pred);
+				if (removed != null) {
+					checkAndMergeLeafNodesInParent(parent, maxNodeSize);
+				}
+				return removed;
+			} else if (o instanceof PointEntryF) {
+				PointEntryF<T> e = (PointEntryF<T>) o;
+				if (removeSub(parent, key, pos, e, maxNodeSize, pred)) {
+					return e;
+				}
+			}
+			return null;
+		}
+		
+		for (int i = 0; i < nValues; i++) {
+			PointEntryF<T> e = values[i];
+			if (removeSub(parent, key, i, e, maxNodeSize, pred)) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	private boolean removeSub(
+			QNodeF<T> parent, float[] key, int pos, PointEntryF<T> e, int maxNodeSize, Predicate<PointEntryF<T>> pred) {
+		if (QUtil.isPointEqual(e.point(), key) && pred.test(e)) {
+			removeValue(pos);
+			checkAndMergeLeafNodesInParent(parent, maxNodeSize);
+			return true;
+		}
+		return false;
+	}
+	
+	@SuppressWarnings("unchecked")
+	PointEntryF<T> update(QNodeF<T> parent, float[] keyOld, float[] keyNew, int maxNodeSize,
+			boolean[] requiresReinsert, int currentDepth, int maxDepth, Predicate<PointEntryF<T>> pred) {
+		if (!isLeaf()) {
+			int pos = calcSubPosition(keyOld);
+			Object e = subs[pos];
+			if (e == null) {
+				return null;
+			}
+			if (e instanceof QNodeF) {
+				QNodeF<T> sub = (QNodeF<T>) e;
+				PointEntryF<T> ret = sub.update(this, keyOld, keyNew, maxNodeSize, requiresReinsert,
+						currentDepth+1, maxDepth, pred);
+				if (ret != null && requiresReinsert[0] && 
+						QUtil.fitsIntoNode(ret.point(), center, radius/QUtil.EPS_MUL)) {
+					requiresReinsert[0] = false;
+					QNodeF<T> r = this;
+					while (r != null) {
+						r = r.tryPut(ret, maxNodeSize, currentDepth++ > maxDepth);
+					}
+				}
+				return ret;
+			}
+			// Entry
+			PointEntryF<T> qe = (PointEntryF<T>) e;
+			if (QUtil.isPointEqual(qe.point(), keyOld) && pred.test(qe)) {
+				removeValue(pos);
+				qe.setPoint(keyNew);
+				if (QUtil.fitsIntoNode(keyNew, center, radius/QUtil.EPS_MUL)) {
+					// reinsert locally
+					QNodeF<T> r = this;
+					while (r != null) {
+						r = r.tryPut(qe, maxNodeSize, currentDepth++ > maxDepth);
+					}
+					requiresReinsert[0] = false;
+				} else {
+					requiresReinsert[0] = true;
+					checkAndMergeLeafNodesInParent(parent, maxNodeSize);
+				}
+				return qe;
+			}
+			return null;
+		}
+		
+		for (int i = 0; i < nValues; i++) {
+			PointEntryF<T> e = getValues()[i];
+			if (QUtil.isPointEqual(e.point(), keyOld) && pred.test(e)) {
+				removeValue(i);
+				e.setPoint(keyNew);
+				updateSub(keyNew, e, parent, maxNodeSize, requiresReinsert);
+				return e;
+			}
+		}
+		requiresReinsert[0] = false;
+		return null;
+	}
+
+	private void updateSub(float[] keyNew, PointEntryF<T> e, QNodeF<T> parent, int maxNodeSize, boolean[] requiresReinsert) {
+		if (QUtil.fitsIntoNode(keyNew, center, radius/QUtil.EPS_MUL)) {
+			// reinsert locally
+			addValue(e, maxNodeSize);
+			requiresReinsert[0] = false;
+		} else {
+			requiresReinsert[0] = true;
+			checkAndMergeLeafNodesInParent(parent, maxNodeSize);
+		}
+	}
+
+	private boolean checkMergeSingleLeaf(QNodeF<T> parent) {
+		// Merge single value into parent if  possible
+		if (!isLeaf() || parent == null || nValues > 1) {
+			return false;
+		}
+		for (int i = 0; i < parent.subs.length; i++) {
+			if (parent.subs[i] == this) {
+				parent.subs[i] = values[0];
+				parent.nValues++;
+				nValues = 0;
+				return true;
+			}
+		}
+		throw new IllegalStateException();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void checkAndMergeLeafNodesInParent(QNodeF<T> parent, int maxNodeSize) {
+		if (!checkMergeSingleLeaf(parent) && parent != null) {
+			parent.checkAndMergeLeafNodes(maxNodeSize);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void checkAndMergeLeafNodes(int maxNodeSize) {
+		//check: We start with including all local values: nValues
+		int nTotal = 0;
+		for (int i = 0; i < subs.length; i++) {
+			Object e = subs[i];
+			if (e instanceof QNodeF) {
+				QNodeF<T> sub = (QNodeF<T>) e;
+				if (!sub.isLeaf()) {
+					//can't merge directory nodes.
+					//Merge only makes sense if we switch to list-mode, for which we don;t support subnodes!
+					return;
+				}
+				nTotal += sub.getValueCount();
+			} else if (e instanceof PointEntryF) {
+				nTotal++;
+			}
+		}
+		if (nTotal > maxNodeSize) {
+			//too many children
+			return;
+		}
+
+		//okay, let's merge.
+		values = (PointEntryF<T>[]) new PointEntryF<?>[nTotal];
+		nValues = 0;
+		for (int i = 0; i < subs.length; i++) {
+			Object e = subs[i];
+			if (e instanceof QNodeF) {
+				QNodeF<T> sub = (QNodeF<T>) e; 
+				for (int j = 0; j < sub.nValues; j++) {
+					values[nValues++] = sub.values[j];
+				}
+			} else if (e instanceof PointEntryF) {
+				values[nValues++] = (PointEntryF<T>) e;
+			}
+		}
+		subs = null;
+		isLeaf = true;
+	}
+
+	double[] getCenter() {
+		return center;
+	}
+
+	double getRadius() {
+		return radius;
+	}
+
+	@SuppressWarnings("unchecked")
+	PointEntryF<T> getExact(float[] key, Predicate<PointEntryF<T>> pred) {
+		if (!isLeaf()) {
+			int pos = calcSubPosition(key);
+			Object sub = subs[pos];
+			if (sub instanceof QNodeF) {
+				return ((QNodeF<T>)sub).getExact(key, pred);
+			} else  if (sub != null) {
+				PointEntryF<T> e = (PointEntryF<T>) sub;
+				if (QUtil.isPointEqual(e.point(), key) && pred.test(e)) {
+					return e;
+				}
+			}
+			return null;
+		}
+		
+		for (int i = 0; i < nValues; i++) {
+			PointEntryF<T> e = values[i];
+			if (QUtil.isPointEqual(e.point(), key) && pred.test(e)) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	Object[] getEntries() {
+		return isLeaf ? values : subs;
+	}
+
+	/**
+	 * Visit all entries in the rectangle between 'min' and 'max'.
+	 * @return 'false' if the visitor aborted the query
+	 */
+	@SuppressWarnings("unchecked")
+	boolean query(float[] min, float[] max, PointVisitorF<T> visitor) {
+		if (isLeaf) {
+			for (int i = 0; i < nValues; i++) {
+				PointEntryF<T> e = values[i];
+				if (QUtil.isPointEnclosed(e.point(), min, max) && !visitor.visit(e.point(), e.value())) {
+					return false;
+				}
+			}
+			return true;
+		}
+		// Hypercube navigation: only visit quadrants that overlap with the query rectangle.
+		// 'm1' has a bit set if the upper quadrant overlaps, 'm0' has a bit set if the lower
+		// quadrant does not overlap.
+		long m0 = 0;
+		long m1 = 0;
+		for (int d = 0; d < center.length; d++) {
+			m0 <<= 1;
+			m1 <<= 1;
+			if (max[d] >= center[d]) {
+				m1 |= 1;
+				if (min[d] >= center[d]) {
+					m0 |= 1;
+				}
+			}
+		}
+		for (long pos = m0; ; ) {
+			Object o = subs[(int) pos];
+			if (o instanceof QNodeF) {
+				if (!((QNodeF<T>) o).query(min, max, visitor)) {
+					return false;
+				}
+			} else if (o != null) {
+				PointEntryF<T> e = (PointEntryF<T>) o;
+				if (QUtil.isPointEnclosed(e.point(), min, max) && !visitor.visit(e.point(), e.value())) {
+					return false;
+				}
+			}
+			// next valid position, see QIterator1
+			long next = (((pos | ~m1) + 1) & m1) | m0;
+			if (next <= pos) {
+				return true;
+			}
+			pos = next;
+		}
+	}
+
+	/**
+	 * Depth-first kNN search with Euclidean distance.
+	 * Subnodes are only visited if they are closer than the current k-th candidate.
+	 */
+	void queryKnn(float[] center, KnnList<PointEntryF<T>> candidates) {
+		if (isLeaf) {
+			for (int i = 0; i < nValues; i++) {
+				PointEntryF<T> e = values[i];
+				candidates.add(e, PointDistanceF.l2(center, e.point()));
+			}
+			return;
+		}
+		// Visit the slot that contains 'center' first, this quickly reduces the search radius.
+		int first = calcSubPosition(center);
+		queryKnn(subs[first], center, candidates);
+		for (int i = 0; i < subs.length; i++) {
+			if (i != first) {
+				queryKnn(subs[i], center, candidates);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> void queryKnn(Object o, float[] center, KnnList<PointEntryF<T>> candidates) {
+		if (o instanceof QNodeF) {
+			QNodeF<T> sub = (QNodeF<T>) o;
+			if (QUtil.distToRectNodeL2(center, sub.center, sub.radius) < candidates.maxDist()) {
+				sub.queryKnn(center, candidates);
+			}
+		} else if (o != null) {
+			PointEntryF<T> e = (PointEntryF<T>) o;
+			candidates.add(e, PointDistanceF.l2(center, e.point()));
+		}
+	}
+
+
+	@Override
+	public String toString() {
+		return "center/radius=" + Arrays.toString(center) + "/" + radius + 
+				" " + System.identityHashCode(this);
+	}
+
+	@SuppressWarnings("unchecked")
+	void checkNode(QStats s, QNodeF<T> parent, int depth) {
+		if (depth > s.maxDepth) {
+			s.maxDepth = depth;
+		}
+		s.nNodes++;
+		
+		if (parent != null) {
+			if (!QUtil.isNodeEnclosed(center, radius, parent.center, parent.radius*QUtil.EPS_MUL)) {
+				throw new IllegalStateException("Node " + this + " at depth " + depth
+						+ " is not enclosed by its parent " + parent);
+			}
+		}
+		if (values != null) {
+			s.nLeaf++;
+			s.nEntries += nValues;
+			s.histoValues[nValues]++;
+			s.maxValuesInNode = Math.max(s.maxValuesInNode, nValues);
+			for (int i = 0; i < nValues; i++) {
+				PointEntryF<T> e = values[i];
+				checkEntry(e);
+			}
+			if (subs != null) {
+				throw new IllegalStateException();
+			}
+			if (nValues < 2 && parent != null) {
+				// Leaf nodes (except the root) must contain at least two values.
+				throw new IllegalStateException();
+			}
+		} else {
+			s.nInner++;
+			if (subs.length != 1L<<s.dims) {
+				throw new IllegalStateException();
+			}
+			int nSubs = 0;
+			int nFoundValues = 0;
+			for (int i = 0; i < subs.length; i++) {
+				Object n = subs[i];
+				if (n instanceof QNodeF) {
+					nSubs++;
+					((QNodeF<T>)n).checkNode(s, this, depth+1);
+				} else if (n != null) {
+					s.nEntries++;
+					nFoundValues++;
+					checkEntry(n);
+					float[] p = ((PointEntryF<T>) n).point();
+					if (calcSubPosition(p) != i) {
+						throw new IllegalStateException("Entry " + Arrays.toString(p)
+								+ " is at the wrong position " + i + " in node " + this);
+					}
+				}
+			}
+			if (nValues != nFoundValues) {
+				throw new IllegalStateException();
+			}
+			s.histoValues[nFoundValues]++;
+			s.histo(nSubs);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void checkEntry(Object o) {
+		PointEntryF<T> e = (PointEntryF<T>) o;
+		if (!QUtil.fitsIntoNode(e.point(), center, radius*QUtil.EPS_MUL)) {
+			throw new IllegalStateException("Entry " + Arrays.toString(e.point())
+					+ " does not fit into node " + this);
+		}
+		
+	}
+	
+	boolean isLeaf() {
+		return isLeaf;
+	}
+
+	public int getValueCount() {
+		return nValues;
+	}
+
+
+	void adjustRadius(double radius) {
+		if (!isLeaf()) {
+			throw new IllegalStateException();
+		}
+		this.radius = radius;
+	}
+}
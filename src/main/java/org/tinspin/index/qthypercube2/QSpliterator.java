@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.qthypercube2;
+
+import org.tinspin.index.util.NodeSpliterator;
+
+import static org.tinspin.index.Index.*;
+
+/**
+ * Spliterator for window queries. Splitting hands off unvisited quadrants.
+ *
+ * @param <T> Value type
+ */
+class QSpliterator<T> extends NodeSpliterator<QNode<T>, PointEntry<T>> {
+
+	private final double[] min;
+	private final double[] max;
+
+	QSpliterator(QuadTreeKD2<T> tree, double[] min, double[] max) {
+		this(min, max);
+		if (tree.getRoot() != null) {
+			addNode(tree.getRoot(), 0);
+		}
+	}
+
+	private QSpliterator(double[] min, double[] max) {
+		this.min = min;
+		this.max = max;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	protected void expand(QNode<T> node, int depth) {
+		Object[] entries = node.getEntries();
+		if (node.isLeaf()) {
+			for (int i = 0; i < node.getValueCount(); i++) {
+				PointEntry<T> e = (PointEntry<T>) entries[i];
+				if (QUtil.isPointEnclosed(e.point(), min, max)) {
+					addResult(e);
+				}
+			}
+			return;
+		}
+		for (Object o : entries) {
+			if (o instanceof QNode) {
+				QNode<T> sub = (QNode<T>) o;
+				if (QUtil.overlap(min, max, sub.getCenter(), sub.getRadius())) {
+					addNode(sub, depth + 1);
+				}
+			} else if (o != null && QUtil.isPointEnclosed(((PointEntry<T>) o).point(), min, max)) {
+				addResult((PointEntry<T>) o);
+			}
+		}
+	}
+
+	@Override
+	protected long estimateSize(QNode<T> node) {
+		return node.getCount();
+	}
+
+	@Override
+	protected QSpliterator<T> create() {
+		return new QSpliterator<>(min, max);
+	}
+}
@@ -49,6 +49,36 @@ class QUtil {
 		return true;
 	}
 
+	public static boolean isPointEnclosed(float[] point, float[] min, float[] max) {
+		for (int d = 0; d < min.length; d++) {
+			if (point[d] < min[d] || point[d] > max[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Single precision version of {@link #fitsIntoNode(double[], double[], double)}.
+	 */
+	public static boolean fitsIntoNode(float[] point, double[] center, double radius) {
+		for (int d = 0; d < center.length; d++) {
+			if (point[d] < center[d] - radius || point[d] >= center[d] + radius) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public static boolean isPointEqual(float[] p1, float[] p2) {
+		for (int d = 0; d < p1.length; d++) {
+			if (p1[d] != p2[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	public static boolean isPointEqual(double[] p1, double[] p2) {
 		for (int d = 0; d < p1.length; d++) {
 			if (p1[d] != p2[d]) {
@@ -76,6 +106,15 @@ class QUtil {
 		return true;
 	}
 
+	public static boolean overlap(float[] min, float[] max, double[] center, double radius) {
+		for (int d = 0; d < min.length; d++) {
+			if (max[d] < center[d]-radius || min[d] > center[d]+radius) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	public static boolean isRectEnclosed(double[] minEnclosed, double[] maxEnclosed,
 			double[] minOuter, double[] maxOuter) {
 		for (int d = 0; d < minOuter.length; d++) {
@@ -97,6 +136,60 @@ class QUtil {
 		return true;
 	}
 
+	/**
+	 * @return 'true' if the node is fully enclosed by the rectangle between 'min' and 'max'.
+	 */
+	public static boolean isNodeEnclosed(double[] center, double radius, double[] min, double[] max) {
+		for (int d = 0; d < center.length; d++) {
+			if (center[d] - radius < min[d] || center[d] + radius > max[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Calculates the Euclidean distance to the edge of a node without creating any objects.
+	 * @param point the point
+	 * @param nodeCenter the center of the node
+	 * @param nodeRadius radius of the node
+	 * @return distance to edge of the node or 0 if the point is inside the node
+	 */
+	static double distToRectNodeL2(double[] point, double[] nodeCenter, double nodeRadius) {
+		double dist = 0;
+		for (int i = 0; i < point.length; i++) {
+			double d = 0;
+			if (point[i] > nodeCenter[i] + nodeRadius) {
+				d = point[i] - (nodeCenter[i] + nodeRadius);
+			} else if (point[i] < nodeCenter[i] - nodeRadius) {
+				d = (nodeCenter[i] - nodeRadius) - point[i];
+			}
+			dist += d * d;
+		}
+		return Math.sqrt(dist);
+	}
+
+	/**
+	 * Single precision version of {@link #distToRectNodeL2(double[], double[], double)}.
+	 * @param point the point
+	 * @param nodeCenter the center of the node
+	 * @param nodeRadius radius of the node
+	 * @return distance to edge of the node or 0 if the point is inside the node
+	 */
+	static float distToRectNodeL2(float[] point, double[] nodeCenter, double nodeRadius) {
+		float dist = 0;
+		for (int i = 0; i < point.length; i++) {
+			float d = 0;
+			if (point[i] > nodeCenter[i] + nodeRadius) {
+				d = (float) (point[i] - (nodeCenter[i] + nodeRadius));
+			} else if (point[i] < nodeCenter[i] - nodeRadius) {
+				d = (float) ((nodeCenter[i] - nodeRadius) - point[i]);
+			}
+			dist += d * d;
+		}
+		return (float) Math.sqrt(dist);
+	}
+
 	/**
 	 * Calculates distance to the edge of a node.
 	 * @param point the point
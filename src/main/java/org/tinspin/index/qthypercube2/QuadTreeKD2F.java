@@ -0,0 +1,437 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.qthypercube2;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+import org.tinspin.index.*;
+import org.tinspin.index.qthypercube2.QuadTreeKD2.QStats;
+import org.tinspin.index.util.KnnList;
+import org.tinspin.index.util.MathTools;
+import org.tinspin.index.util.StringBuilderLn;
+
+/**
+ * A variant of the {@link QuadTreeKD2} with single precision keys.
+ * <p>
+ * Entries store their keys as {@code float[]} which halves the memory required for keys.
+ * Node centers and radii use double precision, i.e. the tree structure and the precision
+ * considerations are the same as for {@link QuadTreeKD2}.
+ *
+ * @param <T> Value type.
+ */
+public class QuadTreeKD2F<T> implements PointMapF<T> {
+
+	private static final int MAX_DEPTH = 50;
+	// This is the MINIMUM MAX_NODE_SIZE. MAX__NODE_SIZE is adjust upwards automatically
+	// with increasing dimensionality
+	private static final int DEFAULT_MAX_NODE_SIZE = 10;
+	private static final double INITIAL_RADIUS = Double.MAX_VALUE;
+	private final int dims;
+	private final int maxNodeSize;
+	private QNodeF<T> root = null;
+	private int size = 0;
+
+	private QuadTreeKD2F(int dims, int maxNodeSize) {
+		this.dims = dims;
+		this.maxNodeSize = maxNodeSize;
+	}
+
+	/**
+	 * @param dims dimensions, usually 2 or 3
+	 * @return New quadtree
+	 * @param <T> Value type
+	 */
+	public static <T> QuadTreeKD2F<T> create(int dims) {
+		int maxNodeSize = DEFAULT_MAX_NODE_SIZE;
+		if (2 * dims > DEFAULT_MAX_NODE_SIZE) {
+			maxNodeSize = 2*dims;
+		}
+		return new QuadTreeKD2F<>(dims, maxNodeSize);
+	}
+
+	/**
+	 * @param dims dimensions, usually 2 or 3
+	 * @param maxNodeSize maximum entries per node, default is 10
+	 * @return New quadtree
+	 * @param <T> Value type
+	 */
+	public static <T> QuadTreeKD2F<T> create(int dims, int maxNodeSize) {
+		return new QuadTreeKD2F<>(dims, maxNodeSize);
+	}
+
+	/**
+	 * Insert a key-value pair.
+	 * @param key the key
+	 * @param value the value
+	 */
+	@Override
+	public void insert(float[] key, T value) {
+		size++;
+		PointEntryF<T> e = new PointEntryF<>(key, value);
+		if (root == null) {
+			// See QuadTreeKD2: the center is aligned to a power of two.
+			root = new QNodeF<>(MathTools.floorPowerOfTwoCopy(key), INITIAL_RADIUS);
+		}
+		if (root.getRadius() == INITIAL_RADIUS) {
+			adjustRootSize(key);
+		}
+		ensureCoverage(e);
+		QNodeF<T> r = root;
+		int depth = 0;
+		while (r != null) {
+			r = r.tryPut(e, maxNodeSize, depth++ > MAX_DEPTH);
+		}
+	}
+
+	private void adjustRootSize(float[] key) {
+		// Idea: we calculate the root size only when adding a point that is distinct from the root's center
+		if (!root.isLeaf() || root.getValueCount() == 0) {
+			return;
+		}
+		if (root.getRadius() == INITIAL_RADIUS) {
+			// Root size has not been initialized yet.
+			// We start by getting the maximum horizontal distance between the node center and any point in the node
+			double dMax = MathTools.maxDelta(key, root.getCenter());
+			for (int i = 0; i < root.getValueCount(); i++) {
+				dMax = Math.max(dMax, MathTools.maxDelta(root.getValues()[i].point(), root.getCenter()));
+			}
+			// We calculate the minimum required radius that is also a power of two.
+			// This radius can be divided by 2 many times without precision problems.
+			double radius = MathTools.ceilPowerOfTwo(dMax + QUtil.EPS_MUL);
+			if (radius > 0) {
+				root.adjustRadius(radius);
+			} else if (root.getValueCount() >= maxNodeSize - 1) {
+				// all entries have (approximately?) the same coordinates. We just set an arbitrary radius here.
+				root.adjustRadius(1000);
+			}
+		}
+	}
+
+	/**
+	 * Check whether a given key exists.
+	 * @param key the key to check
+	 * @return true iff the key exists
+	 */
+	@Override
+	public boolean contains(float[] key) {
+		if (root == null) {
+			return false;
+		}
+		return root.getExact(key, entry -> true) != null;
+	}
+
+	/**
+	 * Get the value associates with the key.
+	 * @param key the key to look up
+	 * @return the value for the key or 'null' if the key was not found
+	 */
+	@Override
+	public T queryExact(float[] key) {
+		if (root == null) {
+			return null;
+		}
+		PointEntryF<T> e = root.getExact(key, entry -> true);
+		return e == null ? null : e.value();
+	}
+
+	/**
+	 * Remove a key.
+	 * @param key key to remove
+	 * @return the value associated with the key or 'null' if the key was not found
+	 */
+	@Override
+	public T remove(float[] key) {
+		if (root == null) {
+			return null;
+		}
+		PointEntryF<T> e = root.remove(null, key, maxNodeSize, x -> true);
+		if (e == null) {
+			return null;
+		}
+		size--;
+		return e.value();
+	}
+
+	/**
+	 * Remove the first entry with the given key that matches the predicate.
+	 * @param key key to remove
+	 * @param condition predicate for the entry
+	 * @return `true` iff an entry was found and removed
+	 */
+	public boolean removeIf(float[] key, Predicate<PointEntryF<T>> condition) {
+		if (root == null) {
+			return false;
+		}
+		PointEntryF<T> e = root.remove(null, key, maxNodeSize, condition);
+		if (e == null) {
+			return false;
+		}
+		size--;
+		return true;
+	}
+
+	/**
+	 * Reinsert the key.
+	 * @param oldKey old key
+	 * @param newKey new key
+	 * @return the value associated with the key or 'null' if the key was not found.
+	 */
+	@Override
+	public T update(float[] oldKey, float[] newKey) {
+		return updateIf(oldKey, newKey, e -> true);
+	}
+
+	/**
+	 * Reinsert the key.
+	 * @param oldKey old key
+	 * @param newKey new key
+	 * @param condition A predicate that must evaluate to 'true' for an entry to be updated.
+	 * @return the value associated with the key or 'null' if the key was not found.
+	 */
+	public T updateIf(float[] oldKey, float[] newKey, Predicate<PointEntryF<T>> condition) {
+		if (root == null) {
+			return null;
+		}
+		boolean[] requiresReinsert = new boolean[]{false};
+		PointEntryF<T> e = root.update(null, oldKey, newKey, maxNodeSize, requiresReinsert,
+				0, MAX_DEPTH, condition);
+		if (e == null) {
+			//not found
+			return null;
+		}
+		if (requiresReinsert[0]) {
+			//does not fit in root node...
+			ensureCoverage(e);
+			QNodeF<T> r = root;
+			int depth = 0;
+			while (r != null) {
+				r = r.tryPut(e, maxNodeSize, depth++>MAX_DEPTH);
+			}
+		}
+		return e.value();
+	}
+
+	/**
+	 * Ensure that the tree covers the entry.
+	 * @param e Entry to cover.
+	 */
+	private void ensureCoverage(PointEntryF<T> e) {
+		float[] p = e.point();
+		while(!QUtil.fitsIntoNode(p, root.getCenter(), root.getRadius())) {
+			double[] center = root.getCenter();
+			double radius = root.getRadius();
+			double[] center2 = new double[center.length];
+			double radius2 = radius*2;
+			int subNodePos = 0;
+			for (int d = 0; d < center.length; d++) {
+				subNodePos <<= 1;
+				if (p[d] < center[d]-radius) {
+					center2[d] = center[d]-radius;
+					//root will end up in upper quadrant in this
+					//dimension
+					subNodePos |= 1;
+				} else {
+					//extend upwards, even if extension unnecessary for this dimension.
+					center2[d] = center[d]+radius;
+				}
+			}
+			root = new QNodeF<>(center2, radius2, root, subNodePos);
+		}
+	}
+
+	/**
+	 * Get the number of key-value pairs in the tree.
+	 * @return the size
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Removes all elements from the tree.
+	 */
+	@Override
+	public void clear() {
+		size = 0;
+		root = null;
+	}
+
+	/**
+	 * Query the tree, returning all points in the axis-aligned rectangle between 'min' and 'max'.
+	 * @param min lower left corner of query
+	 * @param max upper right corner of query
+	 * @return all entries in the rectangle
+	 */
+	@Override
+	public PointIteratorF<T> query(float[] min, float[] max) {
+		return new QIteratorF<>(this, min, max);
+	}
+
+	@Override
+	public PointIteratorF<T> iterator() {
+		return new QIteratorF<>(this, null, null);
+	}
+
+	/**
+	 * Visit all points in the axis-aligned rectangle between 'min' and 'max'.
+	 * This does not create any objects.
+	 * @param min lower left corner of query
+	 * @param max upper right corner of query
+	 * @param visitor callback for all entries in the rectangle
+	 */
+	@Override
+	public void query(float[] min, float[] max, PointVisitorF<T> visitor) {
+		if (root != null) {
+			root.query(min, max, visitor);
+		}
+	}
+
+	private KnnList<PointEntryF<T>> knnSearch(float[] center, int k) {
+		KnnList<PointEntryF<T>> candidates = new KnnList<>(Math.min(k, size()));
+		if (root != null) {
+			root.queryKnn(center, candidates);
+		}
+		return candidates;
+	}
+
+	@Override
+	public PointIteratorKnnF<T> queryKnn(float[] center, int k) {
+		return new QIteratorKnnF().reset(center, k);
+	}
+
+	/**
+	 * Visit the k nearest neighbors in order of increasing distance. This uses Euclidean distance.
+	 * Apart from the list of candidates, this does not create any objects.
+	 * @param center center point
+	 * @param k number of neighbors
+	 * @param visitor callback for the k nearest neighbors
+	 */
+	@Override
+	public void queryKnn(float[] center, int k, PointVisitorKnnF<T> visitor) {
+		KnnList<PointEntryF<T>> candidates = knnSearch(center, k);
+		for (int i = 0; i < candidates.size(); i++) {
+			PointEntryF<T> e = candidates.get(i);
+			if (!visitor.visit(e.point(), e.value(), (float) candidates.dist(i))) {
+				return;
+			}
+		}
+	}
+
+	private class QIteratorKnnF implements PointIteratorKnnF<T> {
+
+		private KnnList<PointEntryF<T>> candidates;
+		private int pos;
+
+		@Override
+		public boolean hasNext() {
+			return pos < candidates.size();
+		}
+
+		@Override
+		public PointEntryKnnF<T> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			PointEntryKnnF<T> e = new PointEntryKnnF<>(candidates.get(pos), (float) candidates.dist(pos));
+			pos++;
+			return e;
+		}
+
+		@Override
+		public QIteratorKnnF reset(float[] center, int k) {
+			candidates = knnSearch(center, k);
+			pos = 0;
+			return this;
+		}
+	}
+
+	/**
+	 * Returns a printable list of the tree.
+	 * @return the tree as String
+	 */
+	@Override
+	public String toStringTree() {
+		StringBuilderLn sb = new StringBuilderLn();
+		if (root == null) {
+			sb.append("empty tree");
+		} else {
+			toStringTree(sb, root, 0, 0);
+		}
+		return sb.toString();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void toStringTree(StringBuilderLn sb, QNodeF<T> node,
+							  int depth, int posInParent) {
+		String prefix = ".".repeat(depth);
+		sb.append(prefix + posInParent + " d=" + depth);
+		sb.append(" nV=" + node.getValueCount());
+		sb.append(" " + Arrays.toString(node.getCenter()));
+		sb.appendLn("/" + node.getRadius());
+		prefix += " ";
+		for (int i = 0; i < node.getEntries().length; i++) {
+			Object o = node.getEntries()[i];
+			if (o instanceof QNodeF) {
+				QNodeF<T> sub = (QNodeF<T>) o;
+				toStringTree(sb, sub, depth+1, i);
+			} else if (o != null) {
+				PointEntryF<T> e = (PointEntryF<T>) o;
+				sb.append(prefix).append(Arrays.toString(e.point()));
+				sb.append(" v=").append(e.value()).appendLn();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "QuadTreeKD2F;maxNodeSize=" + maxNodeSize +
+				";maxDepth=" + MAX_DEPTH +
+				";center/radius=" + (root==null ? "null" :
+					(Arrays.toString(root.getCenter()) + "/" + root.getRadius()));
+	}
+
+	@Override
+	public QStats getStats() {
+		QStats s = new QStats(dims);
+		if (root != null) {
+			root.checkNode(s, null, 0);
+		}
+		return s;
+	}
+
+	@Override
+	public int getDims() {
+		return dims;
+	}
+
+	@Override
+	public int getNodeCount() {
+		return getStats().getNodeCount();
+	}
+
+	@Override
+	public int getDepth() {
+		return getStats().getMaxDepth();
+	}
+
+	QNodeF<T> getRoot() {
+		return root;
+	}
+}
@@ -18,6 +18,7 @@
 package org.tinspin.index.qtplain;
 
 import org.tinspin.index.PointDistance;
+import org.tinspin.index.QueryStats;
 import org.tinspin.index.util.MinHeap;
 import org.tinspin.index.util.MinMaxHeap;
 
@@ -35,12 +36,16 @@ public class QIteratorKnn<T> implements PointIteratorKnn<T> {
     MinHeap<NodeDistT> queueN = MinHeap.create((t1, t2) -> t1.dist < t2.dist);
     MinMaxHeap<PointEntryKnn<T>> queueV = MinMaxHeap.create((t1, t2) -> t1.dist() < t2.dist());
     double maxNodeDist = Double.POSITIVE_INFINITY;
+    // Node distances are multiplied with (1 + epsilon) before they are compared with entries.
+    private final double epsFactor;
     private PointEntryKnn<T> current;
     private int remaining;
     private double[] center;
     private double currentDistance;
+    private QueryStats stats;
 
-    QIteratorKnn(QNode<T> root, int minResults, double[] center, PointDistance distFn, PointFilterKnn<T> filterFn) {
+    QIteratorKnn(QNode<T> root, int minResults, double[] center, PointDistance distFn, PointFilterKnn<T> filterFn, double epsilon) {
+        this.epsFactor = 1 + epsilon;
         this.filterFn = filterFn;
         this.distFn = distFn;
         this.root = root;
@@ -54,13 +59,18 @@ public class QIteratorKnn<T> implements PointIteratorKnn<T> {
         this.remaining = minResults;
         this.maxNodeDist = Double.POSITIVE_INFINITY;
         this.current = null;
+        this.stats = QueryStats.start(QuadTreeKD0.class, QueryStats.QueryType.KNN, center.length, minResults);
         if (minResults <= 0 || root == null) {
+            stats = QueryStats.finish(stats);
             return this;
         }
         queueN.clear();
         queueV.clear();
 
         queueN.push(new NodeDistT(0, root));
+        if (stats != null) {
+            stats.nHeapPush++;
+        }
         findNextElement();
         return this;
     }
@@ -88,13 +98,17 @@ public class QIteratorKnn<T> implements PointIteratorKnn<T> {
         while (remaining > 0 && !(queueN.isEmpty() && queueV.isEmpty())) {
             boolean useV = !queueV.isEmpty();
             if (useV && !queueN.isEmpty()) {
-                useV = queueV.peekMin().dist() <= queueN.peekMin().dist;
+                useV = queueV.peekMin().dist() <= queueN.peekMin().dist * epsFactor;
             }
             if (useV) {
                 // data entry
                 PointEntryKnn<T> result = queueV.peekMin();
                 queueV.popMin();
                 --remaining;
+                if (stats != null) {
+                    stats.nHeapPop++;
+                    stats.nResults++;
+                }
                 this.current = result;
                 currentDistance = result.dist();
                 return;
@@ -102,23 +116,39 @@ public class QIteratorKnn<T> implements PointIteratorKnn<T> {
                 // inner node
                 NodeDistT top = queueN.peekMin();
                 queueN.popMin();
+                if (stats != null) {
+                    stats.nHeapPop++;
+                }
                 QNode<T> node = top.node;
                 double dNode = top.dist;
 
-                if (dNode > maxNodeDist && queueV.size() >= remaining) {
+                if (dNode * epsFactor > maxNodeDist && queueV.size() >= remaining) {
                     // ignore this node
                     continue;
                 }
+                if (stats != null) {
+                    stats.visitNode(node.isLeaf());
+                }
 
                 if (node.isLeaf()) {
                     for (PointEntry<T> entry : node.getEntries()) {
                         double d = distFn.dist(center, entry.point());
+                        if (stats != null) {
+                            stats.nEntriesTested++;
+                            stats.nDistCalc++;
+                        }
                         // Using '<=' allows dealing with infinite distances.
                         if (filterFn.test(entry, d) && d <= maxNodeDist) {
                             queueV.push(new PointEntryKnn<>(entry, d));
+                            if (stats != null) {
+                                stats.nHeapPush++;
+                            }
                             if (queueV.size() >= remaining) {
                                 if (queueV.size() > remaining) {
                                     queueV.popMax();
+                                    if (stats != null) {
+                                        stats.nHeapPop++;
+                                    }
                                 }
                                 double dMax = queueV.peekMax().dist();
                                 maxNodeDist = Math.min(maxNodeDist, dMax);
@@ -128,8 +158,14 @@ public class QIteratorKnn<T> implements PointIteratorKnn<T> {
                 } else {
                     for (QNode<T> subnode : node.getChildNodes()) {
                         double dist = distToRectNode(center, subnode.getCenter(), subnode.getRadius(), distFn);
-                        if (dist <= maxNodeDist) {
+                        if (stats != null) {
+                            stats.nDistCalc++;
+                        }
+                        if (dist * epsFactor <= maxNodeDist) {
                             queueN.push(new NodeDistT(dist, subnode));
+                            if (stats != null) {
+                                stats.nHeapPush++;
+                            }
                         }
                     }
                 }
@@ -137,6 +173,7 @@ public class QIteratorKnn<T> implements PointIteratorKnn<T> {
         }
         current = null;
         currentDistance = Double.MAX_VALUE;
+        stats = QueryStats.finish(stats);
     }
 
     private class NodeDistT {
@@ -22,7 +22,9 @@ import java.util.Arrays;
 import java.util.Iterator;
 import java.util.function.Predicate;
 
+import org.tinspin.index.PointDistance;
 import org.tinspin.index.qtplain.QuadTreeKD0.QStats;
+import org.tinspin.index.util.KnnList;
 
 import static org.tinspin.index.Index.*;
 
@@ -40,6 +42,8 @@ public class QNode<T> {
 	//null indicates that we have sub-nopde i.o. values
 	private ArrayList<PointEntry<T>> values;
 	private ArrayList<QNode<T>> subs;
+	//number of entries in the subtree, only used if this is not a leaf
+	private int count;
 	
 	QNode(double[] center, double radius) {
 		this.center = center;
@@ -53,6 +57,7 @@ public class QNode<T> {
 		this.values = null;
 		this.subs = new ArrayList<>();
 		subs.add(subNode);
+		this.count = subNode.getCount();
 	}
 
 	@SuppressWarnings("unused")
@@ -64,6 +69,7 @@ public class QNode<T> {
 		
 		//traverse subs?
 		if (values == null) {
+			count++;
 			return getOrCreateSub(e);
 		}
 		
@@ -83,6 +89,7 @@ public class QNode<T> {
 		ArrayList<PointEntry<T>> vals = values;
 		values = null;
 		subs = new ArrayList<>();
+		count = vals.size() + 1;
 		for (int i = 0; i < vals.size(); i++) {
 			PointEntry<T> e2 = vals.get(i);
 			QNode<T> sub = getOrCreateSub(e2);
@@ -140,7 +147,11 @@ public class QNode<T> {
 		if (values == null) {
 			QNode<T> sub = findSubNode(key);
 			if (sub != null) {
-				return sub.remove(this, key, maxNodeSize, pred);
+				PointEntry<T> e = sub.remove(this, key, maxNodeSize, pred);
+				if (e != null) {
+					count--;
+				}
+				return e;
 			}
 			return null;
 		}
@@ -169,6 +180,10 @@ public class QNode<T> {
 			}
 			PointEntry<T> ret = sub.update(this, keyOld, keyNew, maxNodeSize, requiresReinsert,
 					currentDepth+1, maxDepth, pred);
+			if (ret != null && requiresReinsert[0]) {
+				//the entry has left the subtree, it may be reinserted below
+				count--;
+			}
 			if (ret != null && requiresReinsert[0] && 
 					QUtil.fitsIntoNode(ret.point(), center, radius)) {
 				requiresReinsert[0] = false;
@@ -257,6 +272,119 @@ public class QNode<T> {
 		return values;
 	}
 
+	/**
+	 * @return the number of entries in the subtree
+	 */
+	int getCount() {
+		return values != null ? values.size() : count;
+	}
+
+	/**
+	 * Count all entries in the rectangle between 'min' and 'max'.
+	 * Subnodes that are fully enclosed by the rectangle are not traversed.
+	 */
+	int count(double[] min, double[] max) {
+		int n = 0;
+		if (values != null) {
+			for (int i = 0; i < values.size(); i++) {
+				if (QUtil.isPointEnclosed(values.get(i).point(), min, max)) {
+					n++;
+				}
+			}
+			return n;
+		}
+		for (int i = 0; i < subs.size(); i++) {
+			QNode<T> sub = subs.get(i);
+			//EPS_MUL: entries may lie slightly outside of the node due to rounding errors
+			if (QUtil.isNodeEnclosed(sub.center, sub.radius*QUtil.EPS_MUL, min, max)) {
+				n += sub.getCount();
+			} else if (QUtil.overlap(min, max, sub.center, sub.radius)) {
+				n += sub.count(min, max);
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Visit all entries in the rectangle between 'min' and 'max'.
+	 * @return 'false' if the visitor aborted the query
+	 */
+	boolean query(double[] min, double[] max, PointVisitor<T> visitor) {
+		if (values != null) {
+			for (int i = 0; i < values.size(); i++) {
+				PointEntry<T> e = values.get(i);
+				if (QUtil.isPointEnclosed(e.point(), min, max) && !visitor.visit(e.point(), e.value())) {
+					return false;
+				}
+			}
+			return true;
+		}
+		for (int i = 0; i < subs.size(); i++) {
+			QNode<T> sub = subs.get(i);
+			if (QUtil.overlap(min, max, sub.center, sub.radius) && !sub.query(min, max, visitor)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Visit all entries whose distance from 'point' is at most 'radius'.
+	 * Subnodes are only visited if they intersect with the sphere.
+	 * @return 'false' if the visitor aborted the query
+	 */
+	boolean queryRadius(double[] point, double radius, PointDistance distFn, PointVisitorKnn<T> visitor) {
+		if (values != null) {
+			for (int i = 0; i < values.size(); i++) {
+				PointEntry<T> e = values.get(i);
+				double dist = distFn.dist(point, e.point());
+				if (dist <= radius && !visitor.visit(e.point(), e.value(), dist)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		for (int i = 0; i < subs.size(); i++) {
+			QNode<T> sub = subs.get(i);
+			//EPS_MUL: entries may lie slightly outside of the node due to rounding errors
+			if (QUtil.distToRectNode(point, sub.center, sub.radius*QUtil.EPS_MUL, distFn) <= radius
+					&& !sub.queryRadius(point, radius, distFn, visitor)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Depth-first kNN search with Euclidean distance.
+	 * Subnodes are only visited if they are closer than the current k-th candidate.
+	 */
+	void queryKnn(double[] center, KnnList<PointEntry<T>> candidates) {
+		if (values != null) {
+			for (int i = 0; i < values.size(); i++) {
+				PointEntry<T> e = values.get(i);
+				candidates.add(e, QUtil.distance(center, e.point()));
+			}
+			return;
+		}
+		// Visit the subnode that contains 'center' first, this quickly reduces the search radius.
+		QNode<T> first = null;
+		for (int i = 0; i < subs.size(); i++) {
+			QNode<T> sub = subs.get(i);
+			if (QUtil.fitsIntoNode(center, sub.center, sub.radius)) {
+				first = sub;
+				sub.queryKnn(center, candidates);
+				break;
+			}
+		}
+		for (int i = 0; i < subs.size(); i++) {
+			QNode<T> sub = subs.get(i);
+			if (sub != first && QUtil.distToRectNodeL2(center, sub.center, sub.radius) < candidates.maxDist()) {
+				sub.queryKnn(center, candidates);
+			}
+		}
+	}
+
 	Iterator<?> getChildIterator() {
 		if (values != null) {
 			return values.iterator();
@@ -320,9 +448,14 @@ public class QNode<T> {
 				throw new IllegalStateException();
 			}
 		} else {
+			int nTotal = 0;
 			for (int i = 0; i < subs.size(); i++) {
 				QNode<T> n = subs.get(i);
 				n.checkNode(s, this, depth+1);
+				nTotal += n.getCount();
+			}
+			if (nTotal != count) {
+				throw new IllegalStateException("count=" + count + " but subnodes have " + nTotal);
 			}
 		}
 	}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.qtplain;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.tinspin.index.Index.BoxEntry;
+import org.tinspin.index.Index.BoxJoinVisitor;
+
+/**
+ * Synchronous traversal of two quadtrees for spatial joins.
+ * <p>
+ * The entries of two nodes 'a' and 'b' are joined in three steps:
+ * the entries stored in 'a' are joined with all entries in the subtree of 'b',
+ * the entries stored in 'b' are joined with the subtrees of the child nodes of 'a',
+ * and finally all pairs of child nodes with overlapping regions are joined recursively.
+ * Pairs of child nodes in the top {@link #PARALLEL_DEPTH} levels are executed as separate
+ * fork/join tasks.
+ *
+ * @param <T> Value type of the first tree
+ * @param <U> Value type of the second tree
+ */
+class QRJoin<T, U> extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Number of levels that create fork/join tasks. */
+	private static final int PARALLEL_DEPTH = 2;
+
+	private final QRNode<T> node1;
+	private final QRNode<U> node2;
+	private final BoxJoinVisitor<T, U> visitor;
+	private final int depth;
+
+	private QRJoin(QRNode<T> node1, QRNode<U> node2, BoxJoinVisitor<T, U> visitor, int depth) {
+		this.node1 = node1;
+		this.node2 = node2;
+		this.visitor = visitor;
+		this.depth = depth;
+	}
+
+	static <T, U> void join(QRNode<T> root1, QRNode<U> root2, BoxJoinVisitor<T, U> visitor, ForkJoinPool pool) {
+		if (root1 == null || root2 == null || !overlap(root1, root2)) {
+			return;
+		}
+		pool.invoke(new QRJoin<>(root1, root2, visitor, 0));
+	}
+
+	@Override
+	protected void compute() {
+		joinEntries(node1, node2);
+		if (!node1.hasChildNodes() || !node2.hasChildNodes()) {
+			return;
+		}
+		if (depth >= PARALLEL_DEPTH) {
+			joinChildNodes(node1, node2);
+			return;
+		}
+		ArrayList<QRJoin<T, U>> tasks = new ArrayList<>();
+		ArrayList<QRNode<T>> sub1s = node1.getChildNodes();
+		for (int i1 = 0; i1 < sub1s.size(); i1++) {
+			QRNode<T> sub1 = sub1s.get(i1);
+			ArrayList<QRNode<U>> sub2s = node2.getChildNodes();
+			for (int i2 = 0; i2 < sub2s.size(); i2++) {
+				QRNode<U> sub2 = sub2s.get(i2);
+				if (overlap(sub1, sub2)) {
+					tasks.add(new QRJoin<>(sub1, sub2, visitor, depth + 1));
+				}
+			}
+		}
+		invokeAll(tasks);
+	}
+
+	private void join(QRNode<T> n1, QRNode<U> n2) {
+		joinEntries(n1, n2);
+		if (n1.hasChildNodes() && n2.hasChildNodes()) {
+			joinChildNodes(n1, n2);
+		}
+	}
+
+	private void joinChildNodes(QRNode<T> n1, QRNode<U> n2) {
+		ArrayList<QRNode<T>> sub1s = n1.getChildNodes();
+		for (int i1 = 0; i1 < sub1s.size(); i1++) {
+			QRNode<T> sub1 = sub1s.get(i1);
+			ArrayList<QRNode<U>> sub2s = n2.getChildNodes();
+			for (int i2 = 0; i2 < sub2s.size(); i2++) {
+				QRNode<U> sub2 = sub2s.get(i2);
+				if (overlap(sub1, sub2)) {
+					join(sub1, sub2);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Join the entries of 'n1' with the subtree of 'n2', and the entries of 'n2' with
+	 * the child nodes of 'n1'.
+	 */
+	private void joinEntries(QRNode<T> n1, QRNode<U> n2) {
+		ArrayList<BoxEntry<T>> entries1 = n1.getEntries();
+		if (entries1 != null) {
+			for (int i = 0; i < entries1.size(); i++) {
+				BoxEntry<T> e1 = entries1.get(i);
+				if (QUtil.overlap(e1.min(), e1.max(), n2.getCenter(), n2.getRadius())) {
+					query2(n2, e1);
+				}
+			}
+		}
+		ArrayList<BoxEntry<U>> entries2 = n2.getEntries();
+		if (entries2 != null && n1.hasChildNodes()) {
+			for (int i = 0; i < entries2.size(); i++) {
+				BoxEntry<U> e2 = entries2.get(i);
+				ArrayList<QRNode<T>> sub1s = n1.getChildNodes();
+				for (int i1 = 0; i1 < sub1s.size(); i1++) {
+					QRNode<T> sub1 = sub1s.get(i1);
+					if (QUtil.overlap(e2.min(), e2.max(), sub1.getCenter(), sub1.getRadius())) {
+						query1(sub1, e2);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Find all entries in the subtree of 'n2' that intersect with 'e1'.
+	 */
+	private void query2(QRNode<U> n2, BoxEntry<T> e1) {
+		ArrayList<BoxEntry<U>> entries2 = n2.getEntries();
+		if (entries2 != null) {
+			for (int i = 0; i < entries2.size(); i++) {
+				BoxEntry<U> e2 = entries2.get(i);
+				if (QUtil.overlap(e1.min(), e1.max(), e2.min(), e2.max())) {
+					visitor.visit(e1.min(), e1.max(), e1.value(), e2.min(), e2.max(), e2.value());
+				}
+			}
+		}
+		if (n2.hasChildNodes()) {
+			ArrayList<QRNode<U>> sub2s = n2.getChildNodes();
+			for (int i2 = 0; i2 < sub2s.size(); i2++) {
+				QRNode<U> sub2 = sub2s.get(i2);
+				if (QUtil.overlap(e1.min(), e1.max(), sub2.getCenter(), sub2.getRadius())) {
+					query2(sub2, e1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Find all entries in the subtree of 'n1' that intersect with 'e2'.
+	 */
+	private void query1(QRNode<T> n1, BoxEntry<U> e2) {
+		ArrayList<BoxEntry<T>> entries1 = n1.getEntries();
+		if (entries1 != null) {
+			for (int i = 0; i < entries1.size(); i++) {
+				BoxEntry<T> e1 = entries1.get(i);
+				if (QUtil.overlap(e1.min(), e1.max(), e2.min(), e2.max())) {
+					visitor.visit(e1.min(), e1.max(), e1.value(), e2.min(), e2.max(), e2.value());
+				}
+			}
+		}
+		if (n1.hasChildNodes()) {
+			ArrayList<QRNode<T>> sub1s = n1.getChildNodes();
+			for (int i1 = 0; i1 < sub1s.size(); i1++) {
+				QRNode<T> sub1 = sub1s.get(i1);
+				if (QUtil.overlap(e2.min(), e2.max(), sub1.getCenter(), sub1.getRadius())) {
+					query1(sub1, e2);
+				}
+			}
+		}
+	}
+
+	private static boolean overlap(QRNode<?> n1, QRNode<?> n2) {
+		return QUtil.overlap(n1.getCenter(), n1.getRadius(), n2.getCenter(), n2.getRadius());
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.qtplain;
+
+import java.util.ArrayList;
+
+import org.tinspin.index.util.NodeSpliterator;
+
+import static org.tinspin.index.Index.*;
+
+/**
+ * Spliterator for window queries. Splitting hands off unvisited quadrants.
+ *
+ * @param <T> Value type
+ */
+class QSpliterator<T> extends NodeSpliterator<QNode<T>, PointEntry<T>> {
+
+	private final double[] min;
+	private final double[] max;
+
+	QSpliterator(QNode<T> root, double[] min, double[] max) {
+		this(min, max);
+		if (root != null) {
+			addNode(root, 0);
+		}
+	}
+
+	private QSpliterator(double[] min, double[] max) {
+		this.min = min;
+		this.max = max;
+	}
+
+	@Override
+	protected void expand(QNode<T> node, int depth) {
+		ArrayList<PointEntry<T>> values = node.getEntries();
+		if (values != null) {
+			for (int i = 0; i < values.size(); i++) {
+				PointEntry<T> e = values.get(i);
+				if (QUtil.isPointEnclosed(e.point(), min, max)) {
+					addResult(e);
+				}
+			}
+			return;
+		}
+		ArrayList<QNode<T>> subs = node.getChildNodes();
+		for (int i = 0; i < subs.size(); i++) {
+			QNode<T> sub = subs.get(i);
+			if (QUtil.overlap(min, max, sub.getCenter(), sub.getRadius())) {
+				addNode(sub, depth + 1);
+			}
+		}
+	}
+
+	@Override
+	protected long estimateSize(QNode<T> node) {
+		return node.getCount();
+	}
+
+	@Override
+	protected QSpliterator<T> create() {
+		return new QSpliterator<>(min, max);
+	}
+}
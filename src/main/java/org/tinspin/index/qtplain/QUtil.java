@@ -126,6 +126,18 @@ class QUtil {
 		return true;
 	}
 
+	/**
+	 * @return 'true' if the node is fully enclosed by the rectangle between 'min' and 'max'.
+	 */
+	public static boolean isNodeEnclosed(double[] center, double radius, double[] min, double[] max) {
+		for (int d = 0; d < center.length; d++) {
+			if (center[d] - radius < min[d] || center[d] + radius > max[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	public static double distance(double[] p1, double[] p2) {
 		double dist = 0;
 		for (int i = 0; i < p1.length; i++) {
@@ -166,6 +178,27 @@ class QUtil {
 		return distToRectEdge(p, e.min(), e.max());
 	}
 	
+	/**
+	 * Calculates the Euclidean distance to the edge of a node without creating any objects.
+	 * @param point the point
+	 * @param nodeCenter the center of the node
+	 * @param nodeRadius radius of the node
+	 * @return distance to edge of the node or 0 if the point is inside the node
+	 */
+	static double distToRectNodeL2(double[] point, double[] nodeCenter, double nodeRadius) {
+		double dist = 0;
+		for (int i = 0; i < point.length; i++) {
+			double d = 0;
+			if (point[i] > nodeCenter[i] + nodeRadius) {
+				d = point[i] - (nodeCenter[i] + nodeRadius);
+			} else if (point[i] < nodeCenter[i] - nodeRadius) {
+				d = (nodeCenter[i] - nodeRadius) - point[i];
+			}
+			dist += d * d;
+		}
+		return Math.sqrt(dist);
+	}
+
 	/**
 	 * Calculates distance to the edge of a node.
 	 * @param point the point
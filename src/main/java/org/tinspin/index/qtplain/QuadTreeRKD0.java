@@ -18,14 +18,19 @@
 package org.tinspin.index.qtplain;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Predicate;
 
 import org.tinspin.index.*;
+import org.tinspin.index.jfr.InsertEvent;
+import org.tinspin.index.jfr.LoadEvent;
+import org.tinspin.index.jfr.RemoveEvent;
 import org.tinspin.index.qthypercube.QuadTreeRKD;
 import org.tinspin.index.qtplain.QuadTreeKD0.QStats;
 import org.tinspin.index.util.BoxIteratorWrapper;
 import org.tinspin.index.util.MathTools;
 import org.tinspin.index.util.StringBuilderLn;
+import org.tinspin.index.util.ZOrder;
 
 /**
  * A simple MX-quadtree implementation with configurable maximum depth, maximum nodes size, and
@@ -140,6 +145,8 @@ public class QuadTreeRKD0<T> implements BoxMap<T>, BoxMultimap<T> {
 	 */
 	@Override
 	public void insert(double[] keyL, double[] keyU, T value) {
+		InsertEvent event = new InsertEvent();
+		event.begin();
 		size++;
 		BoxEntry<T> e = new BoxEntry<>(keyL, keyU, value);
 		if (root == null) {
@@ -151,6 +158,31 @@ public class QuadTreeRKD0<T> implements BoxMap<T>, BoxMultimap<T> {
 		while (r != null) {
 			r = r.tryPut(e, maxNodeSize, depth++>MAX_DEPTH);
 		}
+		event.commit(this);
+	}
+
+	/**
+	 * Insert many boxes at once.
+	 * The boxes are inserted in z-order of their centers. This means that consecutive
+	 * insertions descend into the same part of the tree, which improves cache locality.
+	 *
+	 * @param flatMin minimum corners of all boxes, i.e. 'dims' values per box
+	 * @param flatMax maximum corners of all boxes, i.e. 'dims' values per box
+	 * @param values values, one per box
+	 */
+	@Override
+	public void insertAll(double[] flatMin, double[] flatMax, T[] values) {
+		if (flatMin.length != values.length * dims || flatMax.length != values.length * dims) {
+			throw new IllegalArgumentException("Expected " + values.length * dims +
+					" coordinates but got " + flatMin.length + "/" + flatMax.length);
+		}
+		LoadEvent event = new LoadEvent();
+		event.begin();
+		for (int i : ZOrder.order(flatMin, flatMax, dims)) {
+			insert(Arrays.copyOfRange(flatMin, i * dims, (i + 1) * dims),
+					Arrays.copyOfRange(flatMax, i * dims, (i + 1) * dims), values[i]);
+		}
+		event.commit(this, values.length);
 	}
 
 	private void initializeRoot(double[] keyL, double[] keyU) {
@@ -236,15 +268,14 @@ public class QuadTreeRKD0<T> implements BoxMap<T>, BoxMultimap<T> {
 	 */
 	@Override
 	public T remove(double[] keyL, double[] keyU) {
-		if (root == null) {
-			return null;
+		RemoveEvent event = new RemoveEvent();
+		event.begin();
+		BoxEntry<T> e = root == null ? null : root.remove(null, keyL, keyU, maxNodeSize, x -> true);
+		if (e != null) {
+			size--;
 		}
-		BoxEntry<T> e = root.remove(null, keyL, keyU, maxNodeSize, x -> true);
-		if (e == null) {
-			return null;
-		}
-		size--;
-		return e.value();
+		event.commit(this);
+		return e == null ? null : e.value();
 	}
 
 	@Override
@@ -254,15 +285,14 @@ public class QuadTreeRKD0<T> implements BoxMap<T>, BoxMultimap<T> {
 
 	@Override
 	public boolean removeIf(double[] lower, double[] upper, Predicate<BoxEntry<T>> condition) {
-		if (root == null) {
-			return false;
+		RemoveEvent event = new RemoveEvent();
+		event.begin();
+		BoxEntry<T> e = root == null ? null : root.remove(null, lower, upper, maxNodeSize, condition);
+		if (e != null) {
+			size--;
 		}
-		BoxEntry<T> e = root.remove(null, lower, upper, maxNodeSize, condition);
-		if (e == null) {
-			return false;
-		}
-		size--;
-		return true;
+		event.commit(this);
+		return e != null;
 	}
 
 	@Override
@@ -380,6 +410,24 @@ public class QuadTreeRKD0<T> implements BoxMap<T>, BoxMultimap<T> {
 		return new QRIterator<>(this, min, max);
 	}
 
+	/**
+	 * Spatial join. If 'other' is also a QuadTreeRKD0, both trees are traversed synchronously and only
+	 * pairs of nodes with overlapping regions are visited, see {@link QRJoin}.
+	 * @see BoxMap#join(BoxMap, BoxJoinVisitor, ForkJoinPool)
+	 */
+	@Override
+	public <U> void join(BoxMap<U> other, BoxJoinVisitor<T, U> visitor, ForkJoinPool pool) {
+		if (other instanceof QuadTreeRKD0) {
+			QuadTreeRKD0<U> tree2 = (QuadTreeRKD0<U>) other;
+			if (dims != tree2.dims) {
+				throw new IllegalArgumentException("Dimensions differ: " + dims + "/" + tree2.dims);
+			}
+			QRJoin.join(root, tree2.root, visitor, pool);
+		} else {
+			BoxMap.super.join(other, visitor, pool);
+		}
+	}
+
 	@Override
 	public BoxEntryKnn<T> query1nn(double[] center) {
 		return queryKnn(center, 1).next();
@@ -397,6 +445,7 @@ public class QuadTreeRKD0<T> implements BoxMap<T>, BoxMultimap<T> {
 		private BoxEntry<T> next = null;
 		private double[] min;
 		private double[] max;
+		private QueryStats stats;
 		
 		QRIterator(QuadTreeRKD0<T> tree, double[] min, double[] max) {
 			this.stack = new ArrayDeque<>();
@@ -415,18 +464,28 @@ public class QuadTreeRKD0<T> implements BoxMap<T>, BoxMultimap<T> {
 						if (QUtil.overlap(min, max, node.getCenter(), node.getRadius())) {
 							it = node.getChildIterator();
 							stack.push(it);
+							if (stats != null) {
+								stats.visitNode(!node.hasChildNodes());
+							}
 						}
 						continue;
 					}
 					BoxEntry<T> e = (BoxEntry<T>) o;
+					if (stats != null) {
+						stats.nEntriesTested++;
+					}
 					if (QUtil.overlap(min, max, e.min(), e.max())) {
 						next = e;
+						if (stats != null) {
+							stats.nResults++;
+						}
 						return;
 					}
 				}
 				stack.pop();
 			}
 			next = null;
+			stats = QueryStats.finish(stats);
 		}
 		
 		@Override
@@ -458,10 +517,14 @@ public class QuadTreeRKD0<T> implements BoxMap<T>, BoxMultimap<T> {
 			this.min = min;
 			this.max = max;
 			next = null;
+			stats = QueryStats.start(QuadTreeRKD0.class, QueryStats.QueryType.WINDOW, min.length, 0);
 			if (tree.root != null) {
 				stack.push(tree.root.getChildIterator());
-				findNext();
+				if (stats != null) {
+					stats.visitNode(!tree.root.hasChildNodes());
+				}
 			}
+			findNext();
 			return this;
 		}
 	}
@@ -535,9 +598,11 @@ public class QuadTreeRKD0<T> implements BoxMap<T>, BoxMultimap<T> {
 
 	@Override
 	public BoxIterator<T> iterator() {
-		// TODO Auto-generated method stub
-		throw new UnsupportedOperationException();
-		//return null;
+		double[] min = new double[dims];
+		double[] max = new double[dims];
+		Arrays.fill(min, Double.NEGATIVE_INFINITY);
+		Arrays.fill(max, Double.POSITIVE_INFINITY);
+		return queryIntersect(min, max);
 	}
 
 	@Override
@@ -545,6 +610,11 @@ public class QuadTreeRKD0<T> implements BoxMap<T>, BoxMultimap<T> {
 		return new QRIteratorKnn<>(root, k, center, BoxDistance.EDGE, (e, d) -> true);
 	}
 
+	@Override
+	public QRIteratorKnn<T> queryNearest(double[] center) {
+		return new QRIteratorKnn<>(root, Integer.MAX_VALUE, center, BoxDistance.EDGE, (e, d) -> true);
+	}
+
 	@Override
 	public BoxIteratorKnn<T> queryKnn(double[] center, int k, BoxDistance distFn) {
 		throw new UnsupportedOperationException();
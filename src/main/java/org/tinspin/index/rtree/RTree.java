@@ -17,12 +17,20 @@
  */
 package org.tinspin.index.rtree;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Predicate;
 
 import org.tinspin.index.*;
+import org.tinspin.index.jfr.InsertEvent;
+import org.tinspin.index.jfr.LoadEvent;
+import org.tinspin.index.jfr.RemoveEvent;
+import org.tinspin.index.util.KnnList;
 import org.tinspin.index.util.MutableRef;
 import org.tinspin.index.util.StringBuilderLn;
+import org.tinspin.index.util.ValueSerializer;
 
 
 /**
@@ -124,8 +132,45 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 	 * @param e the entry
 	 */
 	public void insert(RTreeEntry<T> e) {
+		InsertEvent event = new InsertEvent();
+		event.begin();
 		size++;
 		insertAtDepth(e, 0);
+		event.commit(this);
+	}
+
+	/**
+	 * Insert many boxes at once.
+	 * If the tree is empty, the tree is bulk loaded with STR, see {@link #load(RTreeEntry[])}.
+	 * Otherwise, the boxes are inserted one by one.
+	 * For points, 'flatMin' and 'flatMax' can be the same array.
+	 *
+	 * @param flatMin minimum corners of all boxes, i.e. 'dims' values per box
+	 * @param flatMax maximum corners of all boxes, i.e. 'dims' values per box
+	 * @param values values, one per box
+	 */
+	@Override
+	public void insertAll(double[] flatMin, double[] flatMax, T[] values) {
+		if (size != 0 || values.length == 0) {
+			LoadEvent event = new LoadEvent();
+			event.begin();
+			BoxMap.super.insertAll(flatMin, flatMax, values);
+			event.commit(this, values.length);
+			return;
+		}
+		if (flatMin.length != values.length * dims || flatMax.length != values.length * dims) {
+			throw new IllegalArgumentException("Expected " + values.length * dims +
+					" coordinates but got " + flatMin.length + "/" + flatMax.length);
+		}
+		boolean isPoint = flatMin == flatMax;
+		@SuppressWarnings("unchecked")
+		RTreeEntry<T>[] entries = (RTreeEntry<T>[]) new RTreeEntry<?>[values.length];
+		for (int i = 0; i < entries.length; i++) {
+			double[] min = Arrays.copyOfRange(flatMin, i * dims, (i + 1) * dims);
+			double[] max = isPoint ? min : Arrays.copyOfRange(flatMax, i * dims, (i + 1) * dims);
+			entries[i] = new RTreeEntry<>(min, max, values[i]);
+		}
+		load(entries);
 	}
 	
 	private void insertAtDepth(RTreeEntry<T> e, int desiredInsertionLevel) {
@@ -184,12 +229,46 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 	}
 
 	public void load(RTreeEntry<T>[] entries) {
+		LoadEvent event = new LoadEvent();
+		event.begin();
 		STRLoader<T> bulkLoader = new STRLoader<>();
 		bulkLoader.load(entries);
 		size = bulkLoader.getSize();
 		nNodes = bulkLoader.getNNodes();
 		root = bulkLoader.getRoot();
 		depth = bulkLoader.getDepth();
+		event.commit(this, entries.length);
+	}
+
+	/**
+	 * Writes the tree to a snapshot file, including the tree structure, see {@link RTreeSnapshot}.
+	 * @param file the file
+	 * @param serializer serializer for the values
+	 * @throws IOException if the file cannot be written
+	 */
+	@Override
+	public void writeSnapshot(Path file, ValueSerializer<T> serializer) throws IOException {
+		RTreeSnapshot.write(this, file, serializer);
+	}
+
+	/**
+	 * Restores a tree from a snapshot file that was written by an R-tree. The nodes and their
+	 * MBBs are restored directly, i.e. the tree has exactly the same structure as the original tree.
+	 * @param file the file
+	 * @param serializer serializer for the values
+	 * @throws IOException if the file cannot be read
+	 * @throws IllegalStateException if this tree is not empty
+	 */
+	@Override
+	public void readSnapshot(Path file, ValueSerializer<T> serializer) throws IOException {
+		RTreeSnapshot.read(this, file, serializer);
+	}
+
+	void setRoot(RTreeNode<T> root, int size, int depth, int nNodes) {
+		this.root = root;
+		this.size = size;
+		this.depth = depth;
+		this.nNodes = nNodes;
 	}
 
 	public Object remove(double[] point) {
@@ -205,12 +284,15 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 	 */
 	@Override
 	public T remove(double[] min, double[] max) {
+		RemoveEvent event = new RemoveEvent();
+		event.begin();
 		MutableRef<T> ref = new MutableRef<>();
 		Predicate<RTreeEntry<T>> pred = e -> {
 			ref.set(e.checkExactMatch(min, max) ? e.value() : null);
 			return ref.get() != null;
 		};
 		findNodes(min, max, root, node -> deleteFromNode(node, pred));
+		event.commit(this);
 		return ref.get();
 	}
 
@@ -235,8 +317,12 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 	 */
 	@Override
 	public boolean removeIf(double[] min, double[] max, Predicate<BoxEntry<T>> condition) {
+		RemoveEvent event = new RemoveEvent();
+		event.begin();
 		Predicate<RTreeEntry<T>> pred = e -> e.checkExactMatch(min, max) && condition.test(e);
-		return findNodes(min, max, root, node -> deleteFromNode(node, pred));
+		boolean removed = findNodes(min, max, root, node -> deleteFromNode(node, pred));
+		event.commit(this);
+		return removed;
 	}
 
 	/**
@@ -447,7 +533,150 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 	public RTreeIterator<T> queryIntersect(double[] min, double[] max) {
 		return new RTreeIterator<>(this, min, max);
 	}
+
+	/**
+	 * Returns a spliterator over all boxes that intersect with the rectangle between 'min' and 'max'.
+	 * When the spliterator is split, it hands off unvisited child nodes.
+	 * @param min lower left corner of query
+	 * @param max upper right corner of query
+	 * @return a spliterator over all intersecting entries
+	 */
+	@Override
+	public Spliterator<BoxEntry<T>> spliterator(double[] min, double[] max) {
+		return new RTreeSpliterator<>(this, min, max);
+	}
+
+	@Override
+	public Spliterator<BoxEntry<T>> spliterator() {
+		double[] min = new double[dims];
+		double[] max = new double[dims];
+		Arrays.fill(min, Double.NEGATIVE_INFINITY);
+		Arrays.fill(max, Double.POSITIVE_INFINITY);
+		return spliterator(min, max);
+	}
 	
+	/**
+	 * Visit all boxes that intersect with the rectangle between 'min' and 'max'.
+	 * This does not create any objects.
+	 * @param min lower left corner of query
+	 * @param max upper right corner of query
+	 * @param visitor callback for all intersecting entries
+	 */
+	@Override
+	public void queryIntersect(double[] min, double[] max, BoxVisitor<T> visitor) {
+		if (root != null) {
+			queryIntersect(root, min, max, visitor);
+		}
+	}
+
+	private static <T> boolean queryIntersect(RTreeNode<T> node, double[] min, double[] max,
+			BoxVisitor<T> visitor) {
+		ArrayList<RTreeEntry<T>> entries = node.getEntries();
+		boolean isDir = node instanceof RTreeNodeDir;
+		for (int i = 0; i < entries.size(); i++) {
+			RTreeEntry<T> e = entries.get(i);
+			if (!RTreeEntry.checkOverlap(min, max, e)) {
+				continue;
+			}
+			if (isDir) {
+				if (!queryIntersect((RTreeNode<T>) e, min, max, visitor)) {
+					return false;
+				}
+			} else if (!visitor.visit(e.min(), e.max(), e.value())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Visit all boxes whose distance from 'center' is at most 'radius', in no particular order.
+	 * The distance of a box is the distance to the closest point of the box.
+	 * Nodes whose MBB does not intersect with the sphere are not traversed.
+	 * For the requirements on the distance function, see
+	 * {@link PointMap#queryRadius(double[], double, PointDistance, PointVisitorKnn)}.
+	 * @param center center point
+	 * @param radius maximum distance
+	 * @param distFn the point distance function to be used
+	 * @param visitor callback for all entries in the sphere
+	 */
+	public void queryRadius(double[] center, double radius, PointDistance distFn, BoxVisitorKnn<T> visitor) {
+		if (root != null) {
+			queryRadius(root, center, radius, distFn, new double[dims], visitor);
+		}
+	}
+
+	private static <T> boolean queryRadius(RTreeNode<T> node, double[] center, double radius,
+			PointDistance distFn, double[] closest, BoxVisitorKnn<T> visitor) {
+		ArrayList<RTreeEntry<T>> entries = node.getEntries();
+		boolean isDir = node instanceof RTreeNodeDir;
+		for (int i = 0; i < entries.size(); i++) {
+			RTreeEntry<T> e = entries.get(i);
+			for (int d = 0; d < center.length; d++) {
+				closest[d] = Math.max(e.min()[d], Math.min(e.max()[d], center[d]));
+			}
+			double dist = distFn.dist(center, closest);
+			if (dist > radius) {
+				continue;
+			}
+			if (isDir) {
+				if (!queryRadius((RTreeNode<T>) e, center, radius, distFn, closest, visitor)) {
+					return false;
+				}
+			} else if (!visitor.visit(e.min(), e.max(), e.value(), dist)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Count the entries that intersect with the query rectangle.
+	 * Nodes whose MBB is fully covered by the rectangle are not traversed,
+	 * instead their entry count is used.
+	 * @param min lower left corner of query
+	 * @param max upper right corner of query
+	 * @return the number of entries that intersect with the rectangle
+	 */
+	@Override
+	public int count(double[] min, double[] max) {
+		return root == null ? 0 : count(root, min, max);
+	}
+
+	private static <T> int count(RTreeNode<T> node, double[] min, double[] max) {
+		ArrayList<RTreeEntry<T>> entries = node.getEntries();
+		boolean isDir = node instanceof RTreeNodeDir;
+		int n = 0;
+		for (int i = 0; i < entries.size(); i++) {
+			RTreeEntry<T> e = entries.get(i);
+			if (!RTreeEntry.checkOverlap(min, max, e)) {
+				continue;
+			}
+			if (!isDir) {
+				n++;
+			} else if (RTreeEntry.calcIncludes(min, max, e.min(), e.max())) {
+				n += ((RTreeNode<T>) e).getCount();
+			} else {
+				n += count((RTreeNode<T>) e, min, max);
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Spatial join. If 'other' is also an R-Tree, both trees are traversed synchronously and only
+	 * pairs of nodes with overlapping MBBs are visited, see {@link RTreeJoin}.
+	 * @see BoxMap#join(BoxMap, BoxJoinVisitor, ForkJoinPool)
+	 */
+	@Override
+	public <U> void join(BoxMap<U> other, BoxJoinVisitor<T, U> visitor, ForkJoinPool pool) {
+		if (other instanceof RTree) {
+			RTreeJoin.join(this, (RTree<U>) other, visitor, pool);
+		} else {
+			BoxMap.super.join(other, visitor, pool);
+		}
+	}
+
 	/* (non-Javadoc)
 	 * @see org.tinspin.index.rtree.Index#query1N
 	 */
@@ -466,7 +695,87 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 
 	@Override
 	public RTreeQueryKnn<T> queryKnn(double[] center, int k, BoxDistance dist) {
-		return new RTreeQueryKnn<>(this, k, center, dist, (e, d) -> true);
+		return new RTreeQueryKnn<>(this, k, center, dist, (e, d) -> true, 0);
+	}
+
+	@Override
+	public RTreeQueryKnn<T> queryKnn(double[] center, int k, double epsilon) {
+		return queryKnn(center, k, BoxDistance.EDGE, epsilon);
+	}
+
+	/**
+	 * Approximate kNN search, see {@link BoxMap#queryKnn(double[], int, double)}.
+	 * @param center  center point
+	 * @param k       number of neighbors
+	 * @param dist    the distance function to be used
+	 * @param epsilon approximation factor, must be {@code >= 0}
+	 * @return Iterator over query result
+	 */
+	public RTreeQueryKnn<T> queryKnn(double[] center, int k, BoxDistance dist, double epsilon) {
+		return new RTreeQueryKnn<>(this, k, center, dist, (e, d) -> true, epsilon);
+	}
+
+	@Override
+	public RTreeQueryKnn<T> queryNearest(double[] center) {
+		return new RTreeQueryKnn<>(this, Integer.MAX_VALUE, center, BoxDistance.EDGE, (e, d) -> true, 0);
+	}
+
+	/**
+	 * Visit the k nearest neighbors in order of increasing 'edge distance'.
+	 * Apart from the list of candidates, this does not create any objects.
+	 * @param center center point
+	 * @param k number of neighbors
+	 * @param visitor callback for the k nearest neighbors
+	 */
+	@Override
+	public void queryKnn(double[] center, int k, BoxVisitorKnn<T> visitor) {
+		if (root == null) {
+			return;
+		}
+		KnnList<RTreeEntry<T>> candidates = new KnnList<>(Math.min(k, size()));
+		queryKnn(root, center, candidates);
+		for (int i = 0; i < candidates.size(); i++) {
+			RTreeEntry<T> e = candidates.get(i);
+			if (!visitor.visit(e.min(), e.max(), e.value(), candidates.dist(i))) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Depth-first kNN search. Subnodes are only visited if they are closer than the
+	 * current k-th candidate.
+	 */
+	private void queryKnn(RTreeNode<T> node, double[] center, KnnList<RTreeEntry<T>> candidates) {
+		ArrayList<RTreeEntry<T>> entries = node.getEntries();
+		if (!(node instanceof RTreeNodeDir)) {
+			for (int i = 0; i < entries.size(); i++) {
+				RTreeEntry<T> e = entries.get(i);
+				nDistKNN++;
+				candidates.add(e, BoxDistance.EDGE.dist(center, e));
+			}
+			return;
+		}
+		// Visit the closest subnode first, this quickly reduces the search radius.
+		int first = -1;
+		double firstDist = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < entries.size(); i++) {
+			double d = BoxDistance.EDGE.dist(center, entries.get(i));
+			if (d < firstDist) {
+				first = i;
+				firstDist = d;
+			}
+		}
+		if (first < 0) {
+			return;
+		}
+		queryKnn((RTreeNode<T>) entries.get(first), center, candidates);
+		for (int i = 0; i < entries.size(); i++) {
+			RTreeEntry<T> e = entries.get(i);
+			if (i != first && BoxDistance.EDGE.dist(center, e) < candidates.maxDist()) {
+				queryKnn((RTreeNode<T>) e, center, candidates);
+			}
+		}
 	}
 
 	public Iterable<BoxEntryKnn<T>> queryRangedNearestNeighbor(
@@ -553,6 +862,7 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 			throw new IllegalStateException();
 		}
 		stats.nNodes ++;
+		int nEntries = stats.nEntries;
 		
 		if (node instanceof RTreeNodeLeaf && level != 0) {
 			throw new IllegalStateException();
@@ -570,6 +880,9 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 				stats.nEntries++;
 			}
 		}
+		if (stats.nEntries - nEntries != node.getCount()) {
+			throw new IllegalStateException("Entry count/count " + (stats.nEntries - nEntries) + "/" + node.getCount());
+		}
 
 		if (node instanceof RTreeNodeLeaf && node != root && entries.size() < NODE_MIN_DATA) {
 			throw new IllegalStateException();
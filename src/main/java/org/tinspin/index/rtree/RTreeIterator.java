@@ -21,6 +21,8 @@ import java.util.Arrays;
 import java.util.NoSuchElementException;
 import java.util.function.Predicate;
 
+import org.tinspin.index.QueryStats;
+
 import static org.tinspin.index.Index.*;
 
 public class RTreeIterator<T> implements BoxIterator<T> {
@@ -46,6 +48,9 @@ public class RTreeIterator<T> implements BoxIterator<T> {
 			}
 			
 			ni.init(node);
+			if (stats != null) {
+				stats.visitNode(node instanceof RTreeNodeLeaf);
+			}
 		}
 
 		IterPos<T> peek() {
@@ -64,6 +69,7 @@ public class RTreeIterator<T> implements BoxIterator<T> {
 	private boolean hasNext = true;
 	private RTreeEntry<T> next;
 	private final Predicate<RTreeEntry<T>> filter;
+	private QueryStats stats;
 	
 	private static class IterPos<T> {
 		private RTreeNode<T> node;
@@ -105,9 +111,11 @@ public class RTreeIterator<T> implements BoxIterator<T> {
 		this.min = min;
 		this.max = max;
 		this.hasNext = true;
+		this.stats = QueryStats.start(RTree.class, QueryStats.QueryType.WINDOW, min.length, 0);
 		
 		if (!RTreeEntry.checkOverlap(min, max, tree.getRoot())) {
 			hasNext = false;
+			stats = QueryStats.finish(stats);
 			return null;
 		}
 		this.stack.prepareAndPush(tree.getRoot());
@@ -123,12 +131,18 @@ public class RTreeIterator<T> implements BoxIterator<T> {
 			while (ip.pos < entries.size()) {
 				RTreeEntry<T> e = entries.get(ip.pos);
 				ip.pos++;
+				if (stats != null && !(e instanceof RTreeNode)) {
+					stats.nEntriesTested++;
+				}
 				if (filter.test(e)) {
 					if (e instanceof RTreeNode) {
 						stack.prepareAndPush((RTreeNode<T>) e);
 						continue nextSub;
 					} else {
 						next = e;
+						if (stats != null) {
+							stats.nResults++;
+						}
 						return;
 					}
 				}
@@ -136,6 +150,7 @@ public class RTreeIterator<T> implements BoxIterator<T> {
 			stack.pop();
 		}
 		hasNext = false;
+		stats = QueryStats.finish(stats);
 	}
 	
 	@Override
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.rtree;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.tinspin.index.Index.BoxJoinVisitor;
+
+/**
+ * Synchronous traversal of two R-Trees for spatial joins.
+ * <p>
+ * Starting with the two roots, the join descends into all pairs of child nodes whose MBBs overlap.
+ * If the trees have different depth, only the deeper tree is descended until both nodes are leaves.
+ * Node pairs in the top {@link #PARALLEL_DEPTH} levels are executed as separate fork/join tasks,
+ * below that each task processes its node pair sequentially.
+ *
+ * @param <T> Value type of the first tree
+ * @param <U> Value type of the second tree
+ */
+class RTreeJoin<T, U> extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Number of levels that create fork/join tasks. */
+	private static final int PARALLEL_DEPTH = 2;
+
+	private final RTreeNode<T> node1;
+	private final RTreeNode<U> node2;
+	private final BoxJoinVisitor<T, U> visitor;
+	private final int depth;
+
+	private RTreeJoin(RTreeNode<T> node1, RTreeNode<U> node2, BoxJoinVisitor<T, U> visitor, int depth) {
+		this.node1 = node1;
+		this.node2 = node2;
+		this.visitor = visitor;
+		this.depth = depth;
+	}
+
+	static <T, U> void join(RTree<T> tree1, RTree<U> tree2, BoxJoinVisitor<T, U> visitor, ForkJoinPool pool) {
+		if (tree1.getDims() != tree2.getDims()) {
+			throw new IllegalArgumentException("Dimensions differ: " + tree1.getDims() + "/" + tree2.getDims());
+		}
+		if (tree1.size() == 0 || tree2.size() == 0 || !overlap(tree1.getRoot(), tree2.getRoot())) {
+			return;
+		}
+		pool.invoke(new RTreeJoin<>(tree1.getRoot(), tree2.getRoot(), visitor, 0));
+	}
+
+	@Override
+	protected void compute() {
+		if (depth >= PARALLEL_DEPTH || (node1 instanceof RTreeNodeLeaf && node2 instanceof RTreeNodeLeaf)) {
+			join(node1, node2);
+			return;
+		}
+		ArrayList<RTreeJoin<T, U>> tasks = new ArrayList<>();
+		if (node1 instanceof RTreeNodeDir && node2 instanceof RTreeNodeDir) {
+			for (RTreeNode<T> c1 : ((RTreeNodeDir<T>) node1).getChildren()) {
+				if (overlap(c1, node2)) {
+					for (RTreeNode<U> c2 : ((RTreeNodeDir<U>) node2).getChildren()) {
+						if (overlap(c1, c2)) {
+							tasks.add(new RTreeJoin<>(c1, c2, visitor, depth + 1));
+						}
+					}
+				}
+			}
+		} else if (node1 instanceof RTreeNodeDir) {
+			for (RTreeNode<T> c1 : ((RTreeNodeDir<T>) node1).getChildren()) {
+				if (overlap(c1, node2)) {
+					tasks.add(new RTreeJoin<>(c1, node2, visitor, depth + 1));
+				}
+			}
+		} else {
+			for (RTreeNode<U> c2 : ((RTreeNodeDir<U>) node2).getChildren()) {
+				if (overlap(node1, c2)) {
+					tasks.add(new RTreeJoin<>(node1, c2, visitor, depth + 1));
+				}
+			}
+		}
+		invokeAll(tasks);
+	}
+
+	private void join(RTreeNode<T> n1, RTreeNode<U> n2) {
+		if (n1 instanceof RTreeNodeLeaf) {
+			if (n2 instanceof RTreeNodeLeaf) {
+				joinLeaves((RTreeNodeLeaf<T>) n1, (RTreeNodeLeaf<U>) n2);
+			} else {
+				for (RTreeNode<U> c2 : ((RTreeNodeDir<U>) n2).getChildren()) {
+					if (overlap(n1, c2)) {
+						join(n1, c2);
+					}
+				}
+			}
+			return;
+		}
+		for (RTreeNode<T> c1 : ((RTreeNodeDir<T>) n1).getChildren()) {
+			if (!overlap(c1, n2)) {
+				continue;
+			}
+			if (n2 instanceof RTreeNodeLeaf) {
+				join(c1, n2);
+				continue;
+			}
+			for (RTreeNode<U> c2 : ((RTreeNodeDir<U>) n2).getChildren()) {
+				if (overlap(c1, c2)) {
+					join(c1, c2);
+				}
+			}
+		}
+	}
+
+	private void joinLeaves(RTreeNodeLeaf<T> n1, RTreeNodeLeaf<U> n2) {
+		ArrayList<RTreeEntry<T>> entries1 = n1.getEntries();
+		ArrayList<RTreeEntry<U>> entries2 = n2.getEntries();
+		for (int i = 0; i < entries1.size(); i++) {
+			RTreeEntry<T> e1 = entries1.get(i);
+			// Only entries that overlap with the other node can have results
+			if (!overlap(e1, n2)) {
+				continue;
+			}
+			for (int j = 0; j < entries2.size(); j++) {
+				RTreeEntry<U> e2 = entries2.get(j);
+				if (overlap(e1, e2)) {
+					visitor.visit(e1.min(), e1.max(), e1.value(), e2.min(), e2.max(), e2.value());
+				}
+			}
+		}
+	}
+
+	private static boolean overlap(RTreeEntry<?> e1, RTreeEntry<?> e2) {
+		return RTreeEntry.checkOverlap(e1.min(), e1.max(), e2);
+	}
+}
@@ -24,6 +24,8 @@ import static org.tinspin.index.Index.*;
 abstract class RTreeNode<T> extends RTreeEntry<T> {
 
 	private RTreeNodeDir<T> parent;
+	/** Number of data entries in the subtree. */
+	private int count;
 
 	RTreeNode(int dim) {
 		super(new double[dim], new double[dim], null);
@@ -156,7 +158,29 @@ abstract class RTreeNode<T> extends RTreeEntry<T> {
 	public abstract boolean isUnderfull();
 
 	public void removeEntry(int i) {
-		getEntries().remove(i);
+		RTreeEntry<T> e = getEntries().remove(i);
+		addCount(e instanceof RTreeNode ? -((RTreeNode<T>) e).count : -1);
 		recalcRecursiveMBB();
 	}
+
+	/**
+	 * @return the number of data entries in the subtree
+	 */
+	int getCount() {
+		return count;
+	}
+
+	void setCount(int count) {
+		this.count = count;
+	}
+
+	/**
+	 * Adjusts the entry count of this node and of all parent nodes.
+	 * @param delta the difference
+	 */
+	void addCount(int delta) {
+		for (RTreeNode<T> n = this; n != null; n = n.parent) {
+			n.count += delta;
+		}
+	}
 }
\ No newline at end of file
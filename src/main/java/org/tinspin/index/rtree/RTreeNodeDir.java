@@ -39,6 +39,7 @@ class RTreeNodeDir<T> extends RTreeNode<T> {
 		RTreeNode<T> node = (RTreeNode<T>) e;
 		children.add(node);
 		node.setParent(this);
+		addCount(node.getCount());
 		if (children.size() > 1) {
 			extendMBB(e);
 		} else {
@@ -63,6 +64,7 @@ class RTreeNodeDir<T> extends RTreeNode<T> {
 			if (children.get(i) == e) {
 				e.setParent(null);
 				children.remove(i);
+				addCount(-e.getCount());
 				recalcMBB();
 				recalcParentMBB();
 				return;
@@ -88,6 +90,7 @@ class RTreeNodeDir<T> extends RTreeNode<T> {
 	@Override
 	public void clear() {
 		children.clear();
+		addCount(-getCount());
 		//TODO this may not be necessary
 		resetMBB();
 	}
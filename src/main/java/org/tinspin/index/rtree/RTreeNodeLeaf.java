@@ -31,6 +31,7 @@ class RTreeNodeLeaf<T> extends RTreeNode<T> {
 	@Override
 	public void addEntry(RTreeEntry<T> e) {
 		entries.add(e);
+		addCount(1);
 		if (entries.size() > 1) {
 			extendMBB(e);
 		} else {
@@ -46,6 +47,7 @@ class RTreeNodeLeaf<T> extends RTreeNode<T> {
 	@Override
 	public void clear() {
 		entries.clear();
+		addCount(-getCount());
 		resetMBB();
 	}
 
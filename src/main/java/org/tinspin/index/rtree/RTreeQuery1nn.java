@@ -21,6 +21,7 @@ import java.util.Arrays;
 import java.util.Comparator;
 
 import org.tinspin.index.BoxDistance;
+import org.tinspin.index.QueryStats;
 
 import static org.tinspin.index.Index.*;
 
@@ -52,6 +53,9 @@ public class RTreeQuery1nn<T> {
 		void prepareAndPush(RTreeNode<T> node, double minDist) {
 			IterPos<T> ni = stack[size++];
 			ni.init(node);
+			if (stats != null) {
+				stats.visitNode(node instanceof RTreeNodeLeaf);
+			}
 			if (ni.node instanceof RTreeNodeDir) {
 				sortEntries(ni, minDist);
 			}
@@ -78,6 +82,7 @@ public class RTreeQuery1nn<T> {
 	private double[] center;
 	private IteratorStack stack;
 	private BoxDistance dist;
+	private QueryStats stats;
 	
 	private static class IterPos<T> {
 		final NodeDistT<T>[] subNodes;
@@ -121,12 +126,19 @@ public class RTreeQuery1nn<T> {
 			System.err.println("This distance iterator only works for EDGE distance");
 		}
 		this.center = center;
+		this.stats = QueryStats.start(RTree.class, QueryStats.QueryType.KNN, center.length, 1);
 		if (tree.size() == 0) {
+			stats = QueryStats.finish(stats);
 			return null;
 		}
 		
 		this.stack.prepareAndPush(tree.getRoot(), Double.POSITIVE_INFINITY);
-		return findCandidate();
+		BoxEntryKnn<T> result = findCandidate();
+		if (stats != null) {
+			stats.nResults = 1;
+			stats = QueryStats.finish(stats);
+		}
+		return result;
 	}
 	
 	private BoxEntryKnn<T> findCandidate() {
@@ -149,6 +161,9 @@ public class RTreeQuery1nn<T> {
 					ip.pos++;
 					//this works only for EDGE distance !!!
 					double d = dist(center, e.min(), e.max());
+					if (stats != null) {
+						stats.nEntriesTested++;
+					}
 					if (candidate.dist() > d) {
 						candidate.set(e.min(), e.max(), e.value(), d);
 						currentDist = d; 
@@ -214,6 +229,9 @@ public class RTreeQuery1nn<T> {
 	
 	private double dist(double[] center, double[] min, double[] max) {
 		tree.incNDist1NN();
+		if (stats != null) {
+			stats.nDistCalc++;
+		}
 		return dist.dist(center, min, max);
 	}
 
@@ -33,12 +33,16 @@ public class RTreeQueryKnn<T> implements BoxIteratorKnn<T> {
     MinHeap<NodeDistT> queueN = MinHeap.create((t1, t2) -> t1.dist < t2.dist);
     MinMaxHeap<BoxEntryKnn<T>> queueV = MinMaxHeap.create((t1, t2) -> t1.dist() < t2.dist());
     double maxNodeDist = Double.POSITIVE_INFINITY;
+    // Node distances are multiplied with (1 + epsilon) before they are compared with entries.
+    private final double epsFactor;
     private BoxEntryKnn<T> current;
     private int remaining;
     private double[] center;
     private double currentDistance;
+    private QueryStats stats;
 
-    RTreeQueryKnn(RTree<T> tree, int minResults, double[] center, BoxDistance distFn, BoxFilterKnn<T> filterFn) {
+    RTreeQueryKnn(RTree<T> tree, int minResults, double[] center, BoxDistance distFn, BoxFilterKnn<T> filterFn, double epsilon) {
+        this.epsFactor = 1 + epsilon;
         this.filterFn = filterFn;
         this.distFn = distFn;
         this.tree = tree;
@@ -52,13 +56,18 @@ public class RTreeQueryKnn<T> implements BoxIteratorKnn<T> {
         this.remaining = minResults;
         this.maxNodeDist = Double.POSITIVE_INFINITY;
         this.current = null;
+        this.stats = QueryStats.start(RTree.class, QueryStats.QueryType.KNN, center.length, minResults);
         if (minResults <= 0 || tree.getRoot() == null) {
+            stats = QueryStats.finish(stats);
             return this;
         }
         queueN.clear();
         queueV.clear();
 
         queueN.push(new NodeDistT(0, tree.getRoot()));
+        if (stats != null) {
+            stats.nHeapPush++;
+        }
         findNextElement();
         return this;
     }
@@ -86,13 +95,17 @@ public class RTreeQueryKnn<T> implements BoxIteratorKnn<T> {
         while (remaining > 0 && !(queueN.isEmpty() && queueV.isEmpty())) {
             boolean useV = !queueV.isEmpty();
             if (useV && !queueN.isEmpty()) {
-                useV = queueV.peekMin().dist() <= queueN.peekMin().dist;
+                useV = queueV.peekMin().dist() <= queueN.peekMin().dist * epsFactor;
             }
             if (useV) {
                 // data entry
                 BoxEntryKnn<T> result = queueV.peekMin();
                 queueV.popMin();
                 --remaining;
+                if (stats != null) {
+                    stats.nHeapPop++;
+                    stats.nResults++;
+                }
                 this.current = result;
                 currentDistance = result.dist();
                 return;
@@ -100,24 +113,40 @@ public class RTreeQueryKnn<T> implements BoxIteratorKnn<T> {
                 // inner node
                 NodeDistT top = queueN.peekMin();
                 queueN.popMin();
+                if (stats != null) {
+                    stats.nHeapPop++;
+                }
                 RTreeNode<T> node = top.node;
                 double dNode = top.dist;
 
-                if (dNode > maxNodeDist && queueV.size() >= remaining) {
+                if (dNode * epsFactor > maxNodeDist && queueV.size() >= remaining) {
                     // ignore this node
                     continue;
                 }
+                if (stats != null) {
+                    stats.visitNode(node instanceof RTreeNodeLeaf);
+                }
 
                 if (node instanceof RTreeNodeLeaf) {
                     for (RTreeEntry<T> entry : node.getEntries()) {
                         double d = distFn.dist(center, entry);
+                        if (stats != null) {
+                            stats.nEntriesTested++;
+                            stats.nDistCalc++;
+                        }
                         if (filterFn.test(entry, d)) {
                             // Using '<=' allows dealing with infinite distances.
                             if (d <= maxNodeDist) {
                                 queueV.push(new BoxEntryKnn<>(entry.min(), entry.max(), entry.value(), d));
+                                if (stats != null) {
+                                    stats.nHeapPush++;
+                                }
                                 if (queueV.size() >= remaining) {
                                     if (queueV.size() > remaining) {
                                         queueV.popMax();
+                                        if (stats != null) {
+                                            stats.nHeapPop++;
+                                        }
                                     }
                                     double dMax = queueV.peekMax().dist();
                                     maxNodeDist = Math.min(maxNodeDist, dMax);
@@ -129,8 +158,14 @@ public class RTreeQueryKnn<T> implements BoxIteratorKnn<T> {
                     for (RTreeEntry<T> o : node.getEntries()) {
                         RTreeNode<T> subnode = (RTreeNode<T>) o;
                         double dist = distFn.dist(center, subnode);
-                        if (dist <= maxNodeDist) {
+                        if (stats != null) {
+                            stats.nDistCalc++;
+                        }
+                        if (dist * epsFactor <= maxNodeDist) {
                             queueN.push(new NodeDistT(dist, subnode));
+                            if (stats != null) {
+                                stats.nHeapPush++;
+                            }
                         }
                     }
                 }
@@ -138,6 +173,7 @@ public class RTreeQueryKnn<T> implements BoxIteratorKnn<T> {
         }
         current = null;
         currentDistance = Double.MAX_VALUE;
+        stats = QueryStats.finish(stats);
     }
 
     private class NodeDistT {
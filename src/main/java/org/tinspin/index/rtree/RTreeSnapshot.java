@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.rtree;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+import org.tinspin.index.util.Snapshot;
+import org.tinspin.index.util.SnapshotInput;
+import org.tinspin.index.util.SnapshotOutput;
+import org.tinspin.index.util.ValueSerializer;
+
+/**
+ * Snapshots of R-trees.
+ * <p>
+ * After the header, the file contains the depth of the tree followed by all nodes in pre-order.
+ * Every node consists of the number of entries and the node's MBB. Directory nodes are followed
+ * by their child nodes. Leaf nodes are followed by their entries, every entry consists of a
+ * flag that indicates whether the entry is a point, the min/max corners (only one for points)
+ * and the value.
+ * <p>
+ * Reading restores the MBBs directly from the file, there is no need to recalculate them.
+ */
+class RTreeSnapshot {
+
+	private static final byte BOX = 0;
+	private static final byte POINT = 1;
+
+	private final SnapshotInput in;
+	private final ValueSerializer<?> serializer;
+	private final int dims;
+	private int nNodes = 0;
+	private int size = 0;
+
+	private RTreeSnapshot(SnapshotInput in, ValueSerializer<?> serializer, int dims) {
+		this.in = in;
+		this.serializer = serializer;
+		this.dims = dims;
+	}
+
+	static <T> void write(RTree<T> tree, Path file, ValueSerializer<T> serializer) throws IOException {
+		try (SnapshotOutput out = SnapshotOutput.create(file, Snapshot.RTREE, tree.getDims(), tree.size())) {
+			out.writeInt(tree.getDepth());
+			writeNode(out, tree.getRoot(), tree.getDepth() - 1, serializer);
+		}
+	}
+
+	private static <T> void writeNode(SnapshotOutput out, RTreeNode<T> node, int level,
+			ValueSerializer<T> serializer) throws IOException {
+		ArrayList<RTreeEntry<T>> entries = node.getEntries();
+		out.writeInt(entries.size());
+		out.writeDoubles(node.min());
+		out.writeDoubles(node.max());
+		for (int i = 0; i < entries.size(); i++) {
+			RTreeEntry<T> e = entries.get(i);
+			if (level > 0) {
+				writeNode(out, (RTreeNode<T>) e, level - 1, serializer);
+			} else if (e.min() == e.max()) {
+				out.writeByte(POINT);
+				out.writeDoubles(e.min());
+				out.writeValue(e.value(), serializer);
+			} else {
+				out.writeByte(BOX);
+				out.writeDoubles(e.min());
+				out.writeDoubles(e.max());
+				out.writeValue(e.value(), serializer);
+			}
+		}
+	}
+
+	static <T> void read(RTree<T> tree, Path file, ValueSerializer<T> serializer) throws IOException {
+		Snapshot.checkEmpty(tree.size());
+		try (SnapshotInput in = SnapshotInput.open(file, Snapshot.RTREE, tree.getDims())) {
+			RTreeSnapshot reader = new RTreeSnapshot(in, serializer, tree.getDims());
+			int depth = in.readInt();
+			RTreeNode<T> root = reader.readNode(depth - 1);
+			if (reader.size != in.size()) {
+				throw new IOException("Snapshot contains " + reader.size + " entries, expected " + in.size());
+			}
+			tree.setRoot(root, reader.size, depth, reader.nNodes);
+		}
+	}
+
+	private <T> RTreeNode<T> readNode(int level) throws IOException {
+		int nEntries = in.readInt();
+		RTreeNode<T> node = level > 0 ? new RTreeNodeDir<>(dims) : new RTreeNodeLeaf<>(dims);
+		in.readDoubles(node.min());
+		in.readDoubles(node.max());
+		nNodes++;
+		ArrayList<RTreeEntry<T>> entries = node.getEntries();
+		entries.ensureCapacity(nEntries);
+		int count = 0;
+		for (int i = 0; i < nEntries; i++) {
+			if (level > 0) {
+				RTreeNode<T> child = readNode(level - 1);
+				child.setParent((RTreeNodeDir<T>) node);
+				entries.add(child);
+				count += child.getCount();
+			} else {
+				entries.add(readEntry());
+				count++;
+			}
+		}
+		node.setCount(count);
+		return node;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> RTreeEntry<T> readEntry() throws IOException {
+		boolean isPoint = in.readByte() == POINT;
+		double[] min = new double[dims];
+		in.readDoubles(min);
+		double[] max = min;
+		if (!isPoint) {
+			max = new double[dims];
+			in.readDoubles(max);
+		}
+		size++;
+		return new RTreeEntry<>(min, max, (T) in.readValue(serializer));
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.rtree;
+
+import java.util.ArrayList;
+
+import org.tinspin.index.util.NodeSpliterator;
+
+import static org.tinspin.index.Index.*;
+
+/**
+ * Spliterator for intersection queries. Splitting hands off unvisited child nodes.
+ *
+ * @param <T> Value type
+ */
+class RTreeSpliterator<T> extends NodeSpliterator<RTreeNode<T>, BoxEntry<T>> {
+
+	private final double[] min;
+	private final double[] max;
+
+	RTreeSpliterator(RTree<T> tree, double[] min, double[] max) {
+		this(min, max);
+		if (RTreeEntry.checkOverlap(min, max, tree.getRoot())) {
+			addNode(tree.getRoot(), 0);
+		}
+	}
+
+	private RTreeSpliterator(double[] min, double[] max) {
+		this.min = min;
+		this.max = max;
+	}
+
+	@Override
+	protected void expand(RTreeNode<T> node, int depth) {
+		ArrayList<RTreeEntry<T>> entries = node.getEntries();
+		for (int i = 0; i < entries.size(); i++) {
+			RTreeEntry<T> e = entries.get(i);
+			if (RTreeEntry.checkOverlap(min, max, e)) {
+				if (e instanceof RTreeNode) {
+					addNode((RTreeNode<T>) e, depth + 1);
+				} else {
+					addResult(e);
+				}
+			}
+		}
+	}
+
+	@Override
+	protected long estimateSize(RTreeNode<T> node) {
+		return node.getCount();
+	}
+
+	@Override
+	protected RTreeSpliterator<T> create() {
+		return new RTreeSpliterator<>(min, max);
+	}
+}
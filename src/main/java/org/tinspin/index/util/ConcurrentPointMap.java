@@ -0,0 +1,410 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.UnaryOperator;
+
+import org.tinspin.index.*;
+
+/**
+ * A thread-safe decorator for any {@link PointMap}.
+ * <p>
+ * Writers are serialized with the write lock of a {@link StampedLock}, queries use the read lock.
+ * <p>
+ * Iterators are created while holding the read lock and contain a snapshot of the results, i.e.
+ * copies of the entries. They do not hold any lock and are not affected by later modifications. Visitors are called
+ * while holding the read lock, they must not modify the map.
+ *
+ * @param <T> Value type
+ */
+public class ConcurrentPointMap<T> implements PointMap<T> {
+
+	private final PointMap<T> map;
+	private final StampedLock lock = new StampedLock();
+
+	private ConcurrentPointMap(PointMap<T> map) {
+		this.map = map;
+	}
+
+	/**
+	 * @param map the map to be wrapped. The map must not be accessed directly afterwards.
+	 * @return a thread-safe view of the map
+	 * @param <T> Value type
+	 */
+	public static <T> ConcurrentPointMap<T> create(PointMap<T> map) {
+		return new ConcurrentPointMap<>(map);
+	}
+
+	@Override
+	public void insert(double[] key, T value) {
+		long stamp = lock.writeLock();
+		try {
+			map.insert(key, value);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public void insertAll(double[] flatCoords, T[] values) {
+		long stamp = lock.writeLock();
+		try {
+			map.insertAll(flatCoords, values);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public T remove(double[] point) {
+		long stamp = lock.writeLock();
+		try {
+			return map.remove(point);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public T update(double[] oldPoint, double[] newPoint) {
+		long stamp = lock.writeLock();
+		try {
+			return map.update(oldPoint, newPoint);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Moves an entry to another map while holding the write locks of both maps.
+	 * To avoid deadlocks, all callers must lock the maps in the same order.
+	 * @param from     the map that contains the entry
+	 * @param oldPoint the current key
+	 * @param to       the target map
+	 * @param newPoint the new key
+	 * @param fromFirst whether the lock of 'from' is acquired first
+	 * @return the value, or 'null' if 'oldPoint' was not found
+	 * @param <T> Value type
+	 */
+	static <T> T move(ConcurrentPointMap<T> from, double[] oldPoint, ConcurrentPointMap<T> to,
+					  double[] newPoint, boolean fromFirst) {
+		StampedLock first = fromFirst ? from.lock : to.lock;
+		StampedLock second = fromFirst ? to.lock : from.lock;
+		long stamp1 = first.writeLock();
+		try {
+			long stamp2 = second.writeLock();
+			try {
+				// compare the size because 'null' is a valid value
+				int size = from.map.size();
+				T value = from.map.remove(oldPoint);
+				if (from.map.size() == size) {
+					return null;
+				}
+				to.map.insert(newPoint, value);
+				return value;
+			} finally {
+				second.unlockWrite(stamp2);
+			}
+		} finally {
+			first.unlockWrite(stamp1);
+		}
+	}
+
+	@Override
+	public void clear() {
+		long stamp = lock.writeLock();
+		try {
+			map.clear();
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public boolean contains(double[] point) {
+		long stamp = lock.readLock();
+		try {
+			return map.contains(point);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public T queryExact(double[] point) {
+		long stamp = lock.readLock();
+		try {
+			return map.queryExact(point);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public PointEntryKnn<T> query1nn(double[] center) {
+		long stamp = lock.readLock();
+		try {
+			return map.query1nn(center);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public PointIterator<T> iterator() {
+		return new PointIteratorWrapper<>(null, null, (min, max) -> {
+			long stamp = lock.readLock();
+			try {
+				return snapshot(map.iterator(), ConcurrentPointMap::copy);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		});
+	}
+
+	@Override
+	public PointIterator<T> query(double[] min, double[] max) {
+		return new PointIteratorWrapper<>(min, max, (min2, max2) -> {
+			long stamp = lock.readLock();
+			try {
+				return snapshot(map.query(min2, max2), ConcurrentPointMap::copy);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		});
+	}
+
+	/**
+	 * Copies the entries, some indexes return entries that are modified by later updates,
+	 * e.g. the nodes of the {@link org.tinspin.index.kdtree.KDTree}.
+	 */
+	private static <E> Iterator<E> snapshot(Iterator<E> it, UnaryOperator<E> copyFn) {
+		ArrayList<E> list = new ArrayList<>();
+		while (it.hasNext()) {
+			list.add(copyFn.apply(it.next()));
+		}
+		return list.iterator();
+	}
+
+	private static <T> PointEntry<T> copy(PointEntry<T> e) {
+		return new PointEntry<>(e.point().clone(), e.value());
+	}
+
+	private static <T> PointEntryKnn<T> copyKnn(PointEntryKnn<T> e) {
+		return new PointEntryKnn<>(e.point().clone(), e.value(), e.dist());
+	}
+
+	@Override
+	public void query(double[] min, double[] max, PointVisitor<T> visitor) {
+		long stamp = lock.readLock();
+		try {
+			map.query(min, max, visitor);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public void queryRadius(double[] center, double radius, PointDistance distFn, PointVisitorKnn<T> visitor) {
+		long stamp = lock.readLock();
+		try {
+			map.queryRadius(center, radius, distFn, visitor);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public int count(double[] min, double[] max) {
+		long stamp = lock.readLock();
+		try {
+			return map.count(min, max);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k) {
+		return new KnnIterator(0).reset(center, k);
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, double epsilon) {
+		return new KnnIterator(epsilon).reset(center, k);
+	}
+
+	private class KnnIterator implements PointIteratorKnn<T> {
+
+		private final double epsilon;
+		private Iterator<PointEntryKnn<T>> it;
+
+		KnnIterator(double epsilon) {
+			this.epsilon = epsilon;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return it.hasNext();
+		}
+
+		@Override
+		public PointEntryKnn<T> next() {
+			return it.next();
+		}
+
+		@Override
+		public PointIteratorKnn<T> reset(double[] center, int k) {
+			long stamp = lock.readLock();
+			try {
+				it = snapshot(map.queryKnn(center, k, epsilon), ConcurrentPointMap::copyKnn);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+			return this;
+		}
+	}
+
+	@Override
+	public void queryKnn(double[] center, int k, PointVisitorKnn<T> visitor) {
+		long stamp = lock.readLock();
+		try {
+			map.queryKnn(center, k, visitor);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Executes the batch while holding a single read lock.
+	 * @see PointMap#queryKnnBatch(double[][], int, Executor)
+	 */
+	@Override
+	public BatchResult<T> queryKnnBatch(double[][] centers, int k, Executor executor) {
+		long stamp = lock.readLock();
+		try {
+			return map.queryKnnBatch(centers, k, executor);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Executes the batch while holding a single read lock.
+	 * @see PointMap#queryBatch(double[][], double[][], Executor)
+	 */
+	@Override
+	public BatchResult<T> queryBatch(double[][] min, double[][] max, Executor executor) {
+		long stamp = lock.readLock();
+		try {
+			return map.queryBatch(min, max, executor);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Writes the snapshot while holding the read lock.
+	 * @see PointMap#writeSnapshot(Path, ValueSerializer)
+	 */
+	@Override
+	public void writeSnapshot(Path file, ValueSerializer<T> serializer) throws IOException {
+		long stamp = lock.readLock();
+		try {
+			map.writeSnapshot(file, serializer);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public void readSnapshot(Path file, ValueSerializer<T> serializer) throws IOException {
+		long stamp = lock.writeLock();
+		try {
+			map.readSnapshot(file, serializer);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public int getDims() {
+		return map.getDims();
+	}
+
+	@Override
+	public int size() {
+		long stamp = lock.readLock();
+		try {
+			return map.size();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public Stats getStats() {
+		long stamp = lock.readLock();
+		try {
+			return map.getStats();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public int getNodeCount() {
+		long stamp = lock.readLock();
+		try {
+			return map.getNodeCount();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public int getDepth() {
+		long stamp = lock.readLock();
+		try {
+			return map.getDepth();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public String toStringTree() {
+		long stamp = lock.readLock();
+		try {
+			return map.toStringTree();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ConcurrentPointMap(" + map + ")";
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A static kD-partitioning of the space into 'n' regions, used by {@link ShardedPointMap} and
+ * {@link ShardedBoxMap}.
+ * <p>
+ * The split planes are computed from a sample of the data: every split is done in the dimension
+ * with the largest extent of the (remaining) sample points, such that the number of sample points
+ * on each side is proportional to the number of regions on that side.
+ * Points that lie on a split plane belong to the upper region.
+ */
+class KDPartition {
+
+	private final int dims;
+	/** Split dimension of inner node 'i'. */
+	private final int[] splitDim;
+	/** Split position of inner node 'i'. */
+	private final double[] splitPos;
+	/** Children of inner node 'i'. Negative values '-(r+1)' denote region 'r'. */
+	private final int[] lo;
+	private final int[] hi;
+	private final double[][] regionMin;
+	private final double[][] regionMax;
+	private int nInner = 0;
+	private int nRegions = 0;
+
+	/**
+	 * @param dims number of dimensions
+	 * @param n number of regions
+	 * @param sample sample points, there must be at least 'n' sample points
+	 */
+	KDPartition(int dims, int n, double[][] sample) {
+		if (n < 1) {
+			throw new IllegalArgumentException("Number of shards must be >= 1: " + n);
+		}
+		if (sample.length < n) {
+			throw new IllegalArgumentException(
+					"Expected at least " + n + " sample points but got " + sample.length);
+		}
+		this.dims = dims;
+		this.splitDim = new int[n - 1];
+		this.splitPos = new double[n - 1];
+		this.lo = new int[n - 1];
+		this.hi = new int[n - 1];
+		this.regionMin = new double[n][];
+		this.regionMax = new double[n][];
+		double[] min = new double[dims];
+		double[] max = new double[dims];
+		Arrays.fill(min, Double.NEGATIVE_INFINITY);
+		Arrays.fill(max, Double.POSITIVE_INFINITY);
+		build(sample.clone(), 0, sample.length, n, min, max);
+	}
+
+	private int build(double[][] sample, int from, int to, int n, double[] min, double[] max) {
+		if (n == 1) {
+			regionMin[nRegions] = min;
+			regionMax[nRegions] = max;
+			return -(++nRegions);
+		}
+		int dim = widestDimension(sample, from, to);
+		Arrays.sort(sample, from, to, Comparator.comparingDouble(p -> p[dim]));
+		int nLo = n / 2;
+		int mid = from + (int) ((long) (to - from) * nLo / n);
+		double pos = sample[mid][dim];
+		int node = nInner++;
+		splitDim[node] = dim;
+		splitPos[node] = pos;
+		double[] maxLo = max.clone();
+		maxLo[dim] = pos;
+		double[] minHi = min.clone();
+		minHi[dim] = pos;
+		lo[node] = build(sample, from, mid, nLo, min, maxLo);
+		hi[node] = build(sample, mid, to, n - nLo, minHi, max);
+		return node;
+	}
+
+	private int widestDimension(double[][] sample, int from, int to) {
+		int best = 0;
+		double bestWidth = -1;
+		for (int d = 0; d < dims; d++) {
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for (int i = from; i < to; i++) {
+				min = Math.min(min, sample[i][d]);
+				max = Math.max(max, sample[i][d]);
+			}
+			if (max - min > bestWidth) {
+				bestWidth = max - min;
+				best = d;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @param key a point
+	 * @return the region that contains the point
+	 */
+	int region(double[] key) {
+		if (nInner == 0) {
+			return 0;
+		}
+		int node = 0;
+		while (node >= 0) {
+			node = key[splitDim[node]] >= splitPos[node] ? hi[node] : lo[node];
+		}
+		return -node - 1;
+	}
+
+	/**
+	 * @param min lower left corner of a box
+	 * @param max upper right corner of a box
+	 * @return the region that contains the center of the box
+	 */
+	int region(double[] min, double[] max) {
+		double[] center = new double[dims];
+		for (int d = 0; d < dims; d++) {
+			center[d] = (min[d] + max[d]) / 2;
+		}
+		return region(center);
+	}
+
+	/**
+	 * @return the number of regions
+	 */
+	int size() {
+		return nRegions;
+	}
+
+	/**
+	 * @param r region
+	 * @return lower left corner of the region, may contain -infinity
+	 */
+	double[] min(int r) {
+		return regionMin[r];
+	}
+
+	/**
+	 * @param r region
+	 * @return upper right corner of the region, may contain +infinity
+	 */
+	double[] max(int r) {
+		return regionMax[r];
+	}
+}
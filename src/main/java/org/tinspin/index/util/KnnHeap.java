@@ -0,0 +1,178 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import java.util.Arrays;
+
+/**
+ * A bounded max-heap of the 'k' best candidates of a kNN search.
+ * <p>
+ * In contrast to {@link KnnList}, adding a candidate costs O(log k) instead of O(k), which matters
+ * for large 'k'. The candidates are only sorted once by calling {@link #sort()} at the end of the
+ * search. The heap can be reused for several queries, see {@link #reset(int, double)}.
+ *
+ * @param <E> Entry type
+ */
+public class KnnHeap<E> {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Object[] entries;
+    private double[] dists;
+    private int k;
+    private double maxDist;
+    private int size = 0;
+
+    public KnnHeap(int k) {
+        this(k, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * @param k number of candidates
+     * @param maxDist candidates that are farther away than 'maxDist' are ignored
+     */
+    public KnnHeap(int k, double maxDist) {
+        int capacity = Math.min(k, INITIAL_CAPACITY);
+        this.entries = new Object[capacity];
+        this.dists = new double[capacity];
+        reset(k, maxDist);
+    }
+
+    /**
+     * Remove all candidates and prepare the heap for a new query.
+     * @param k number of candidates
+     * @param maxDist candidates that are farther away than 'maxDist' are ignored
+     */
+    public void reset(int k, double maxDist) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must be >= 0: " + k);
+        }
+        Arrays.fill(entries, 0, size, null);
+        this.k = k;
+        this.maxDist = maxDist;
+        this.size = 0;
+    }
+
+    /**
+     * Add a candidate. The candidate is ignored if the heap is full and the candidate is not
+     * closer than the current k-th candidate, or if the candidate is farther away than the
+     * maximum distance.
+     * @param e entry
+     * @param dist distance of the entry
+     * @return the new maximum distance, see {@link #maxDist()}.
+     */
+    public double add(E e, double dist) {
+        if (dist > maxDist) {
+            return maxDist();
+        }
+        if (size == k) {
+            if (k == 0 || dist >= dists[0]) {
+                return maxDist();
+            }
+            // replace the current k-th candidate
+            siftDown(0, e, dist);
+            return dists[0];
+        }
+        if (size == entries.length) {
+            int capacity = (int) Math.min(k, Math.max(INITIAL_CAPACITY, 2L * size));
+            entries = Arrays.copyOf(entries, capacity);
+            dists = Arrays.copyOf(dists, capacity);
+        }
+        siftUp(size++, e, dist);
+        return maxDist();
+    }
+
+    private void siftUp(int pos, Object e, double dist) {
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (dists[parent] >= dist) {
+                break;
+            }
+            entries[pos] = entries[parent];
+            dists[pos] = dists[parent];
+            pos = parent;
+        }
+        entries[pos] = e;
+        dists[pos] = dist;
+    }
+
+    private void siftDown(int pos, Object e, double dist) {
+        siftDown(pos, e, dist, size);
+    }
+
+    private void siftDown(int pos, Object e, double dist, int end) {
+        int half = end >>> 1;
+        while (pos < half) {
+            int child = 2 * pos + 1;
+            if (child + 1 < end && dists[child + 1] > dists[child]) {
+                child++;
+            }
+            if (dist >= dists[child]) {
+                break;
+            }
+            entries[pos] = entries[child];
+            dists[pos] = dists[child];
+            pos = child;
+        }
+        entries[pos] = e;
+        dists[pos] = dist;
+    }
+
+    /**
+     * @return The distance of the k-th candidate or the maximum distance (usually infinity)
+     *         if there are less than 'k' candidates.
+     */
+    public double maxDist() {
+        if (size < k) {
+            return maxDist;
+        }
+        return size == 0 ? Double.NEGATIVE_INFINITY : dists[0];
+    }
+
+    /**
+     * Sort the candidates by increasing distance (heap sort). After sorting, the candidates can be
+     * read with {@link #get(int)} and {@link #dist(int)}. No candidates can be added until
+     * {@link #reset(int, double)} is called.
+     */
+    public void sort() {
+        for (int end = size - 1; end > 0; end--) {
+            Object e = entries[end];
+            double dist = dists[end];
+            entries[end] = entries[0];
+            dists[end] = dists[0];
+            siftDown(0, e, dist, end);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param i position
+     * @return The i-th candidate, only sorted after calling {@link #sort()}.
+     */
+    @SuppressWarnings("unchecked")
+    public E get(int i) {
+        return (E) entries[i];
+    }
+
+    public double dist(int i) {
+        return dists[i];
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+/**
+ * A bounded list of the 'k' best candidates of a kNN search, sorted by distance.
+ * The list is allocated once per query, adding candidates does not create any objects.
+ *
+ * @param <E> Entry type
+ */
+public class KnnList<E> {
+
+    private final Object[] entries;
+    private final double[] dists;
+    private final double maxDist;
+    private int size = 0;
+
+    public KnnList(int k) {
+        this(k, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * @param k number of candidates
+     * @param maxDist candidates that are farther away than 'maxDist' are ignored
+     */
+    public KnnList(int k, double maxDist) {
+        this.entries = new Object[k];
+        this.dists = new double[k];
+        this.maxDist = maxDist;
+    }
+
+    /**
+     * Add a candidate. The candidate is ignored if the list is full and the candidate is not
+     * closer than the current k-th candidate, or if the candidate is farther away than the
+     * maximum distance.
+     * @param e entry
+     * @param dist distance of the entry
+     * @return the new maximum distance, see {@link #maxDist()}.
+     */
+    public double add(E e, double dist) {
+        int k = entries.length;
+        if (dist > maxDist) {
+            return maxDist();
+        }
+        if (size == k) {
+            if (k == 0 || dist >= dists[k - 1]) {
+                return maxDist();
+            }
+            size--;
+        }
+        int pos = size;
+        while (pos > 0 && dists[pos - 1] > dist) {
+            entries[pos] = entries[pos - 1];
+            dists[pos] = dists[pos - 1];
+            pos--;
+        }
+        entries[pos] = e;
+        dists[pos] = dist;
+        size++;
+        return maxDist();
+    }
+
+    /**
+     * @return The distance of the k-th candidate or the maximum distance (usually infinity)
+     *         if there are less than 'k' candidates.
+     */
+    public double maxDist() {
+        if (size < entries.length) {
+            return maxDist;
+        }
+        return size == 0 ? Double.NEGATIVE_INFINITY : dists[size - 1];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public E get(int i) {
+        return (E) entries[i];
+    }
+
+    public double dist(int i) {
+        return dists[i];
+    }
+}
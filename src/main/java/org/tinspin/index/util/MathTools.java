@@ -72,6 +72,20 @@ public class MathTools {
         return d2;
     }
 
+    /**
+     * Calculates the {@link #floorPowerOfTwo(double)} of a single precision array.
+     * @param d input vector
+     * @return copied vector with next lower power of two below 'input'
+     * @see #floorPowerOfTwo(double)
+     */
+    public static double[] floorPowerOfTwoCopy(float[] d) {
+        double[] d2 = new double[d.length];
+        for (int i = 0; i < d.length; i++) {
+            d2[i] = floorPowerOfTwo(d[i]);
+        }
+        return d2;
+    }
+
     /**
      * Returns the maximal delta between any pair of scalars in the vector.
      * @param v1 vector 1
@@ -85,4 +99,18 @@ public class MathTools {
         }
         return dMax;
     }
+
+    /**
+     * Returns the maximal delta between any pair of scalars in the vector.
+     * @param v1 single precision vector 1
+     * @param v2 vector 2
+     * @return maximal delta (positive or zero).
+     */
+    public static double maxDelta(float[] v1, double[] v2) {
+        double dMax = 0;
+        for (int i = 0; i < v1.length; i++) {
+            dMax = Math.max(dMax, Math.abs(v1[i] - v2[i]));
+        }
+        return dMax;
+    }
 }
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Base class for spliterators that traverse the nodes of a tree.
+ * <p>
+ * The spliterator keeps a deque of unvisited nodes. {@link #tryAdvance(Consumer)} processes the
+ * deque depth-first, i.e. it always expands the most recently added node. {@link #trySplit()} hands
+ * off the oldest half of the deque to a new spliterator. The oldest nodes are closest to the root,
+ * so they usually represent the largest subtrees.
+ * <p>
+ * Like iterators, spliterators are not thread-safe with respect to modifications of the tree.
+ *
+ * @param <N> Node type
+ * @param <E> Entry type
+ */
+public abstract class NodeSpliterator<N, E> implements Spliterator<E> {
+
+    private Object[] nodes = new Object[16];
+    private int[] depths = new int[16];
+    private int head = 0;
+    private int tail = 0;
+    private Object[] results = new Object[16];
+    private int resultPos = 0;
+    private int resultSize = 0;
+    private long estimate = 0;
+
+    /**
+     * Called when a node is taken from the deque. Implementations should call
+     * {@link #addNode(Object, int)} for every child node that may contain results and
+     * {@link #addResult(Object)} for every matching entry of the node.
+     *
+     * @param node  the node
+     * @param depth the depth of the node, as given to {@link #addNode(Object, int)}
+     */
+    protected abstract void expand(N node, int depth);
+
+    /**
+     * @param node a node
+     * @return The (estimated) number of entries in the subtree of the node.
+     */
+    protected abstract long estimateSize(N node);
+
+    /**
+     * @return A new and empty spliterator for the same query.
+     */
+    protected abstract NodeSpliterator<N, E> create();
+
+    protected final void addNode(N node, int depth) {
+        if (tail == nodes.length) {
+            if (head > 0) {
+                System.arraycopy(nodes, head, nodes, 0, tail - head);
+                System.arraycopy(depths, head, depths, 0, tail - head);
+                Arrays.fill(nodes, tail - head, tail, null);
+                tail -= head;
+                head = 0;
+            } else {
+                nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                depths = Arrays.copyOf(depths, depths.length * 2);
+            }
+        }
+        nodes[tail] = node;
+        depths[tail] = depth;
+        tail++;
+        estimate += estimateSize(node);
+    }
+
+    protected final void addResult(E e) {
+        if (resultSize == results.length) {
+            if (resultPos > 0) {
+                System.arraycopy(results, resultPos, results, 0, resultSize - resultPos);
+                Arrays.fill(results, resultSize - resultPos, resultSize, null);
+                resultSize -= resultPos;
+                resultPos = 0;
+            } else {
+                results = Arrays.copyOf(results, results.length * 2);
+            }
+        }
+        results[resultSize++] = e;
+        estimate++;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void expandNewest() {
+        tail--;
+        N node = (N) nodes[tail];
+        nodes[tail] = null;
+        estimate -= estimateSize(node);
+        expand(node, depths[tail]);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean tryAdvance(Consumer<? super E> action) {
+        while (resultPos == resultSize) {
+            resultPos = 0;
+            resultSize = 0;
+            if (head == tail) {
+                return false;
+            }
+            expandNewest();
+        }
+        E e = (E) results[resultPos];
+        results[resultPos++] = null;
+        estimate--;
+        action.accept(e);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Spliterator<E> trySplit() {
+        // A single node cannot be handed off, so we expand it until it has several children.
+        while (tail - head == 1) {
+            expandNewest();
+        }
+        if (tail - head < 2) {
+            return null;
+        }
+        int n = (tail - head) / 2;
+        NodeSpliterator<N, E> split = create();
+        for (int i = head; i < head + n; i++) {
+            N node = (N) nodes[i];
+            split.addNode(node, depths[i]);
+            estimate -= estimateSize(node);
+            nodes[i] = null;
+        }
+        head += n;
+        return split;
+    }
+
+    /**
+     * @return An estimate of the number of remaining entries. For full iterations this is exact if
+     *         {@link #estimateSize(Object)} is exact, for window queries this is an upper bound.
+     */
+    @Override
+    public long estimateSize() {
+        return estimate;
+    }
+
+    @Override
+    public int characteristics() {
+        return NONNULL;
+    }
+}
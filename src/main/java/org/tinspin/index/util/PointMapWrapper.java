@@ -21,6 +21,11 @@ import org.tinspin.index.*;
 import org.tinspin.index.rtree.RTreeEntry;
 import org.tinspin.index.rtree.RTree;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
 public class PointMapWrapper<T> implements PointMap<T> {
 
 	private final BoxMap<T> ind;
@@ -45,6 +50,65 @@ public class PointMapWrapper<T> implements PointMap<T> {
 		return new PointIter(ind.queryIntersect(min, max));
 	}
 
+	@Override
+	public void query(double[] min, double[] max, PointVisitor<T> visitor) {
+		ind.queryIntersect(min, max, (kMin, kMax, v) -> visitor.visit(kMin, v));
+	}
+
+	@Override
+	public void queryRadius(double[] center, double radius, PointDistance distFn, PointVisitorKnn<T> visitor) {
+		if (ind instanceof RTree) {
+			((RTree<T>) ind).queryRadius(center, radius, distFn, (kMin, kMax, v, dist) -> visitor.visit(kMin, v, dist));
+		} else {
+			PointMap.super.queryRadius(center, radius, distFn, visitor);
+		}
+	}
+
+	@Override
+	public int count(double[] min, double[] max) {
+		return ind.count(min, max);
+	}
+
+	@Override
+	public Spliterator<PointEntry<T>> spliterator() {
+		return new PointSplit<>(ind.spliterator());
+	}
+
+	@Override
+	public Spliterator<PointEntry<T>> spliterator(double[] min, double[] max) {
+		return new PointSplit<>(ind.spliterator(min, max));
+	}
+
+	private static class PointSplit<T> implements Spliterator<PointEntry<T>> {
+
+		private final Spliterator<BoxEntry<T>> it;
+
+		PointSplit(Spliterator<BoxEntry<T>> it) {
+			this.it = it;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super PointEntry<T>> action) {
+			return it.tryAdvance(e -> action.accept(new PointEntry<>(e.min(), e.value())));
+		}
+
+		@Override
+		public Spliterator<PointEntry<T>> trySplit() {
+			Spliterator<BoxEntry<T>> split = it.trySplit();
+			return split == null ? null : new PointSplit<>(split);
+		}
+
+		@Override
+		public long estimateSize() {
+			return it.estimateSize();
+		}
+
+		@Override
+		public int characteristics() {
+			return it.characteristics();
+		}
+	}
+
 	private static class PointIter<T> implements PointIterator<T> {
 
 		private final BoxIterator<T> it;
@@ -83,6 +147,23 @@ public class PointMapWrapper<T> implements PointMap<T> {
 		return new PointDIter(ind.queryKnn(center, k));
 	}
 
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, double epsilon) {
+		return new PointDIter(ind.queryKnn(center, k, epsilon));
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Override
+	public PointIteratorKnn<T> queryNearest(double[] center) {
+		return new PointDIter(ind.queryNearest(center));
+	}
+
+	@Override
+	public void queryKnn(double[] center, int k, PointVisitorKnn<T> visitor) {
+		ind.queryKnn(center, k, (kMin, kMax, v, dist) -> visitor.visit(kMin, v, dist));
+	}
+
 	private static class PointDIter<T> implements PointIteratorKnn<T> {
 
 		private final BoxIteratorKnn<T> it;
@@ -114,6 +195,21 @@ public class PointMapWrapper<T> implements PointMap<T> {
 		ind.insert(key, key, value);
 	}
 
+	@Override
+	public void insertAll(double[] flatCoords, T[] values) {
+		ind.insertAll(flatCoords, flatCoords, values);
+	}
+
+	@Override
+	public void writeSnapshot(Path file, ValueSerializer<T> serializer) throws IOException {
+		ind.writeSnapshot(file, serializer);
+	}
+
+	@Override
+	public void readSnapshot(Path file, ValueSerializer<T> serializer) throws IOException {
+		ind.readSnapshot(file, serializer);
+	}
+
 	@Override
 	public T remove(double[] point) {
 		return ind.remove(point, point);
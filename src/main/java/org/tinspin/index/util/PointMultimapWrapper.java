@@ -91,6 +91,15 @@ public class PointMultimapWrapper<T> implements PointMultimap<T> {
 		return new PointDIter<>(ind.queryKnn(center, k, fn::edgeDistance));
 	}
 
+	@Override
+	public void queryRadius(double[] center, double radius, PointDistance distFn, PointVisitorKnn<T> visitor) {
+		if (ind instanceof RTree) {
+			((RTree<T>) ind).queryRadius(center, radius, distFn, (kMin, kMax, v, dist) -> visitor.visit(kMin, v, dist));
+		} else {
+			PointMultimap.super.queryRadius(center, radius, distFn, visitor);
+		}
+	}
+
 	private static class PointDIter<T> implements PointIteratorKnn<T> {
 
 		private final BoxIteratorKnn<T> it;
@@ -0,0 +1,392 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntFunction;
+
+import org.tinspin.index.*;
+
+import static org.tinspin.index.util.ShardedPointMap.execute;
+
+/**
+ * A {@link BoxMap} that partitions the space into 'n' shards. Every shard is a separate
+ * index that is wrapped in a {@link ConcurrentBoxMap}.
+ * <p>
+ * The shard boundaries are kD-splits that are computed from a sample of box centers, see
+ * {@link #create(int, int, double[][], IntFunction)}. Boxes are assigned to the shard that contains
+ * their center. Boxes may extend beyond the boundaries of their shard, so every shard maintains
+ * the bounding box of all boxes that were inserted since the last {@link #clear()}. This bounding
+ * box is used to select the shards for window and kNN queries.
+ * <p>
+ * Insert, remove and exact queries are routed to a single shard, i.e. writers on different shards
+ * do not block each other. Window queries and kNN queries are executed in parallel on all shards
+ * that overlap with the query window or that may contain one of the 'k' nearest neighbors.
+ * The kNN results of all shards are merged in a bounded list of size 'k'.
+ * <p>
+ * Iterators contain a snapshot of the results. Visitors are called while holding the read lock of
+ * a shard, they must not modify the map.
+ * An update that moves an entry to a different shard holds the write locks of both shards, but
+ * a concurrent query may still find the entry in neither or in both of the two shards.
+ *
+ * @param <T> Value type
+ */
+public class ShardedBoxMap<T> implements BoxMap<T> {
+
+	private final int dims;
+	private final KDPartition partition;
+	private final Shard<T>[] shards;
+	private final Executor executor;
+
+	@SuppressWarnings("unchecked")
+	private ShardedBoxMap(int dims, KDPartition partition, IntFunction<BoxMap<T>> factory, Executor executor) {
+		this.dims = dims;
+		this.partition = partition;
+		this.shards = (Shard<T>[]) new Shard<?>[partition.size()];
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new Shard<>(ConcurrentBoxMap.create(factory.apply(dims)), dims);
+		}
+		this.executor = executor;
+	}
+
+	/**
+	 * Create a sharded map that executes queries on the {@link ForkJoinPool#commonPool()}.
+	 * @param dims    number of dimensions
+	 * @param nShards number of shards
+	 * @param sample  sample box centers for computing the shard boundaries, at least 'nShards' points
+	 * @param factory creates the index of a shard, e.g. {@code BoxMap.Factory::createRStarTree}
+	 * @return a new sharded map
+	 * @param <T> Value type
+	 */
+	public static <T> ShardedBoxMap<T> create(int dims, int nShards, double[][] sample,
+											  IntFunction<BoxMap<T>> factory) {
+		return create(dims, nShards, sample, factory, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param dims     number of dimensions
+	 * @param nShards  number of shards
+	 * @param sample   sample box centers for computing the shard boundaries, at least 'nShards' points
+	 * @param factory  creates the index of a shard, e.g. {@code BoxMap.Factory::createRStarTree}
+	 * @param executor executor for queries that span several shards
+	 * @return a new sharded map
+	 * @param <T> Value type
+	 */
+	public static <T> ShardedBoxMap<T> create(int dims, int nShards, double[][] sample,
+											  IntFunction<BoxMap<T>> factory, Executor executor) {
+		return new ShardedBoxMap<>(dims, new KDPartition(dims, nShards, sample), factory, executor);
+	}
+
+	/**
+	 * A shard with the bounding box of its content. The bounding box only grows, it is reset by clear().
+	 * Updating the bounding box and inserting into the map happen under the same lock as clear(),
+	 * otherwise a concurrent clear() could reset the bounding box of an entry that is inserted later.
+	 */
+	private static class Shard<T> {
+		final ConcurrentBoxMap<T> map;
+		private final double[] min;
+		private final double[] max;
+		private boolean isEmpty = true;
+
+		Shard(ConcurrentBoxMap<T> map, int dims) {
+			this.map = map;
+			this.min = new double[dims];
+			this.max = new double[dims];
+		}
+
+		private void include(double[] min2, double[] max2) {
+			for (int d = 0; d < min.length; d++) {
+				min[d] = isEmpty ? min2[d] : Math.min(min[d], min2[d]);
+				max[d] = isEmpty ? max2[d] : Math.max(max[d], max2[d]);
+			}
+			isEmpty = false;
+		}
+
+		synchronized void insert(double[] min2, double[] max2, T value) {
+			include(min2, max2);
+			map.insert(min2, max2, value);
+		}
+
+		synchronized T update(double[] minOld, double[] maxOld, double[] minNew, double[] maxNew) {
+			include(minNew, maxNew);
+			return map.update(minOld, maxOld, minNew, maxNew);
+		}
+
+		/**
+		 * Moves an entry from another shard into this shard, the maps of both shards are locked.
+		 */
+		synchronized T moveFrom(Shard<T> from, double[] minOld, double[] maxOld,
+								double[] minNew, double[] maxNew, boolean fromFirst) {
+			include(minNew, maxNew);
+			return ConcurrentBoxMap.move(from.map, minOld, maxOld, map, minNew, maxNew, fromFirst);
+		}
+
+		synchronized void clear() {
+			map.clear();
+			isEmpty = true;
+		}
+
+		synchronized boolean overlaps(double[] min2, double[] max2) {
+			return !isEmpty && ShardedPointMap.overlaps(min, max, min2, max2);
+		}
+
+		synchronized boolean isInside(double[] min2, double[] max2) {
+			return !isEmpty && ShardedPointMap.isInside(min, max, min2, max2);
+		}
+
+		synchronized double dist(double[] center) {
+			return isEmpty ? Double.POSITIVE_INFINITY : BoxDistance.edgeDistance(center, min, max);
+		}
+	}
+
+	private Shard<T> shard(double[] min, double[] max) {
+		return shards[partition.region(min, max)];
+	}
+
+	@Override
+	public void insert(double[] min, double[] max, T value) {
+		shard(min, max).insert(min, max, value);
+	}
+
+	@Override
+	public T remove(double[] min, double[] max) {
+		return shard(min, max).map.remove(min, max);
+	}
+
+	@Override
+	public T update(double[] minOld, double[] maxOld, double[] minNew, double[] maxNew) {
+		int oldPos = partition.region(minOld, maxOld);
+		int newPos = partition.region(minNew, maxNew);
+		if (oldPos == newPos) {
+			return shards[oldPos].update(minOld, maxOld, minNew, maxNew);
+		}
+		// lock the shard with the lower position first
+		return shards[newPos].moveFrom(shards[oldPos], minOld, maxOld, minNew, maxNew, oldPos < newPos);
+	}
+
+	@Override
+	public void clear() {
+		for (Shard<T> shard : shards) {
+			shard.clear();
+		}
+	}
+
+	@Override
+	public boolean contains(double[] min, double[] max) {
+		return shard(min, max).map.contains(min, max);
+	}
+
+	@Override
+	public T queryExact(double[] min, double[] max) {
+		return shard(min, max).map.queryExact(min, max);
+	}
+
+	@Override
+	public BoxIterator<T> iterator() {
+		return new BoxIteratorWrapper<>(null, null,
+				(min, max) -> Arrays.stream(shards).flatMap(s -> s.map.stream()).iterator());
+	}
+
+	@Override
+	public BoxIterator<T> queryIntersect(double[] min, double[] max) {
+		return new BoxIteratorWrapper<>(min, max, (min2, max2) -> {
+			int[] overlapping = overlapping(min2, max2);
+			List<List<BoxEntry<T>>> results = execute(overlapping.length, i -> {
+				List<BoxEntry<T>> list = new ArrayList<>();
+				shards[overlapping[i]].map.queryIntersect(min2, max2).forEachRemaining(list::add);
+				return list;
+			}, executor);
+			return results.stream().flatMap(List::stream).iterator();
+		});
+	}
+
+	/**
+	 * Visits all overlapping shards one after the other, the visitor is never called concurrently.
+	 */
+	@Override
+	public void queryIntersect(double[] min, double[] max, BoxVisitor<T> visitor) {
+		boolean[] cont = {true};
+		for (int s : overlapping(min, max)) {
+			shards[s].map.queryIntersect(min, max, (min2, max2, value) -> cont[0] = visitor.visit(min2, max2, value));
+			if (!cont[0]) {
+				return;
+			}
+		}
+	}
+
+	@Override
+	public int count(double[] min, double[] max) {
+		int n = 0;
+		for (int s : overlapping(min, max)) {
+			if (shards[s].isInside(min, max)) {
+				n += shards[s].map.size();
+			} else {
+				n += shards[s].map.count(min, max);
+			}
+		}
+		return n;
+	}
+
+	private int[] overlapping(double[] min, double[] max) {
+		int[] result = new int[shards.length];
+		int n = 0;
+		for (int s = 0; s < shards.length; s++) {
+			if (shards[s].overlaps(min, max)) {
+				result[n++] = s;
+			}
+		}
+		return Arrays.copyOf(result, n);
+	}
+
+	@Override
+	public BoxIteratorKnn<T> queryKnn(double[] center, int k) {
+		return new KnnIterator(0).reset(center, k);
+	}
+
+	@Override
+	public BoxIteratorKnn<T> queryKnn(double[] center, int k, double epsilon) {
+		return new KnnIterator(epsilon).reset(center, k);
+	}
+
+	/**
+	 * The shard that contains the center is queried first. Its k-th result is used to
+	 * prune all other shards, the remaining shards are queried in parallel.
+	 */
+	private class KnnIterator implements BoxIteratorKnn<T> {
+
+		private final double epsilon;
+		private Iterator<BoxEntryKnn<T>> it;
+
+		KnnIterator(double epsilon) {
+			this.epsilon = epsilon;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return it.hasNext();
+		}
+
+		@Override
+		public BoxEntryKnn<T> next() {
+			return it.next();
+		}
+
+		@Override
+		public BoxIteratorKnn<T> reset(double[] center, int k) {
+			KnnList<BoxEntryKnn<T>> candidates = new KnnList<>(Math.min(k, size()));
+			int first = partition.region(center);
+			add(candidates, shards[first].map.queryKnn(center, k, epsilon));
+
+			int[] remaining = new int[shards.length];
+			int n = 0;
+			double epsFactor = 1 + epsilon;
+			for (int s = 0; s < shards.length; s++) {
+				if (s != first && shards[s].dist(center) * epsFactor < candidates.maxDist()) {
+					remaining[n++] = s;
+				}
+			}
+			int[] toQuery = Arrays.copyOf(remaining, n);
+			List<BoxIteratorKnn<T>> results =
+					execute(n, i -> shards[toQuery[i]].map.queryKnn(center, k, epsilon), executor);
+			for (BoxIteratorKnn<T> result : results) {
+				add(candidates, result);
+			}
+
+			List<BoxEntryKnn<T>> list = new ArrayList<>(candidates.size());
+			for (int i = 0; i < candidates.size(); i++) {
+				list.add(candidates.get(i));
+			}
+			it = list.iterator();
+			return this;
+		}
+
+		private void add(KnnList<BoxEntryKnn<T>> candidates, BoxIteratorKnn<T> it) {
+			while (it.hasNext()) {
+				BoxEntryKnn<T> e = it.next();
+				candidates.add(e, e.dist());
+			}
+		}
+	}
+
+	@Override
+	public int getDims() {
+		return dims;
+	}
+
+	@Override
+	public int size() {
+		int n = 0;
+		for (Shard<T> shard : shards) {
+			n += shard.map.size();
+		}
+		return n;
+	}
+
+	/**
+	 * @return the number of shards
+	 */
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	@Override
+	public Stats getStats() {
+		Index[] maps = new Index[shards.length];
+		Arrays.setAll(maps, i -> shards[i].map);
+		return new ShardedPointMap.ShardedStats(this, maps);
+	}
+
+	@Override
+	public int getNodeCount() {
+		int n = 0;
+		for (Shard<T> shard : shards) {
+			n += shard.map.getNodeCount();
+		}
+		return n;
+	}
+
+	@Override
+	public int getDepth() {
+		int depth = 0;
+		for (Shard<T> shard : shards) {
+			depth = Math.max(depth, shard.map.getDepth());
+		}
+		return depth;
+	}
+
+	@Override
+	public String toStringTree() {
+		StringBuilderLn sb = new StringBuilderLn();
+		for (int s = 0; s < shards.length; s++) {
+			sb.appendLn("Shard " + s + ": " + Arrays.toString(partition.min(s)) + " - "
+					+ Arrays.toString(partition.max(s)));
+			sb.append(shards[s].map.toStringTree());
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "ShardedBoxMap(shards=" + shards.length + ";" + shards[0].map + ")";
+	}
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntFunction;
+
+import org.tinspin.index.*;
+
+/**
+ * A {@link PointMap} that partitions the space into 'n' shards. Every shard is a separate
+ * index that is wrapped in a {@link ConcurrentPointMap}.
+ * <p>
+ * The shard boundaries are kD-splits that are computed from a sample of the data, see
+ * {@link #create(int, int, double[][], IntFunction)}. They do not change afterwards, so the sample
+ * should be representative of the data.
+ * <p>
+ * Insert, remove and point queries are routed to a single shard, i.e. writers on different shards
+ * do not block each other. Window queries and kNN queries are executed in parallel on all shards
+ * that overlap with the query window or that may contain one of the 'k' nearest neighbors.
+ * The kNN results of all shards are merged in a bounded list of size 'k'.
+ * <p>
+ * Iterators contain a snapshot of the results. Visitors are called while holding the read lock of
+ * a shard, they must not modify the map.
+ * An update that moves an entry to a different shard holds the write locks of both shards, but
+ * a concurrent query may still find the entry in neither or in both of the two shards.
+ *
+ * @param <T> Value type
+ */
+public class ShardedPointMap<T> implements PointMap<T> {
+
+	private final int dims;
+	private final KDPartition partition;
+	private final ConcurrentPointMap<T>[] shards;
+	private final Executor executor;
+
+	@SuppressWarnings("unchecked")
+	private ShardedPointMap(int dims, KDPartition partition, IntFunction<PointMap<T>> factory, Executor executor) {
+		this.dims = dims;
+		this.partition = partition;
+		this.shards = (ConcurrentPointMap<T>[]) new ConcurrentPointMap<?>[partition.size()];
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = ConcurrentPointMap.create(factory.apply(dims));
+		}
+		this.executor = executor;
+	}
+
+	/**
+	 * Create a sharded map that executes queries on the {@link ForkJoinPool#commonPool()}.
+	 * @param dims    number of dimensions
+	 * @param nShards number of shards
+	 * @param sample  sample points for computing the shard boundaries, at least 'nShards' points
+	 * @param factory creates the index of a shard, e.g. {@code PointMap.Factory::createKdTree}
+	 * @return a new sharded map
+	 * @param <T> Value type
+	 */
+	public static <T> ShardedPointMap<T> create(int dims, int nShards, double[][] sample,
+												IntFunction<PointMap<T>> factory) {
+		return create(dims, nShards, sample, factory, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param dims     number of dimensions
+	 * @param nShards  number of shards
+	 * @param sample   sample points for computing the shard boundaries, at least 'nShards' points
+	 * @param factory  creates the index of a shard, e.g. {@code PointMap.Factory::createKdTree}
+	 * @param executor executor for queries that span several shards
+	 * @return a new sharded map
+	 * @param <T> Value type
+	 */
+	public static <T> ShardedPointMap<T> create(int dims, int nShards, double[][] sample,
+												IntFunction<PointMap<T>> factory, Executor executor) {
+		return new ShardedPointMap<>(dims, new KDPartition(dims, nShards, sample), factory, executor);
+	}
+
+	private ConcurrentPointMap<T> shard(double[] key) {
+		return shards[partition.region(key)];
+	}
+
+	@Override
+	public void insert(double[] key, T value) {
+		shard(key).insert(key, value);
+	}
+
+	@Override
+	public T remove(double[] point) {
+		return shard(point).remove(point);
+	}
+
+	@Override
+	public T update(double[] oldPoint, double[] newPoint) {
+		int oldPos = partition.region(oldPoint);
+		int newPos = partition.region(newPoint);
+		if (oldPos == newPos) {
+			return shards[oldPos].update(oldPoint, newPoint);
+		}
+		// lock the shard with the lower position first
+		return ConcurrentPointMap.move(shards[oldPos], oldPoint, shards[newPos], newPoint, oldPos < newPos);
+	}
+
+	@Override
+	public void clear() {
+		for (PointMap<T> shard : shards) {
+			shard.clear();
+		}
+	}
+
+	@Override
+	public boolean contains(double[] point) {
+		return shard(point).contains(point);
+	}
+
+	@Override
+	public T queryExact(double[] point) {
+		return shard(point).queryExact(point);
+	}
+
+	@Override
+	public PointIterator<T> iterator() {
+		return new PointIteratorWrapper<>(null, null,
+				(min, max) -> Arrays.stream(shards).flatMap(PointMap::stream).iterator());
+	}
+
+	@Override
+	public PointIterator<T> query(double[] min, double[] max) {
+		return new PointIteratorWrapper<>(min, max, (min2, max2) -> {
+			int[] overlapping = overlapping(min2, max2);
+			List<List<PointEntry<T>>> results = execute(overlapping.length, i -> {
+				List<PointEntry<T>> list = new ArrayList<>();
+				shards[overlapping[i]].query(min2, max2).forEachRemaining(list::add);
+				return list;
+			}, executor);
+			return results.stream().flatMap(List::stream).iterator();
+		});
+	}
+
+	/**
+	 * Visits all overlapping shards one after the other, the visitor is never called concurrently.
+	 */
+	@Override
+	public void query(double[] min, double[] max, PointVisitor<T> visitor) {
+		boolean[] cont = {true};
+		for (int s : overlapping(min, max)) {
+			shards[s].query(min, max, (key, value) -> cont[0] = visitor.visit(key, value));
+			if (!cont[0]) {
+				return;
+			}
+		}
+	}
+
+	@Override
+	public int count(double[] min, double[] max) {
+		int n = 0;
+		for (int s : overlapping(min, max)) {
+			if (isInside(partition.min(s), partition.max(s), min, max)) {
+				n += shards[s].size();
+			} else {
+				n += shards[s].count(min, max);
+			}
+		}
+		return n;
+	}
+
+	private int[] overlapping(double[] min, double[] max) {
+		int[] result = new int[shards.length];
+		int n = 0;
+		for (int s = 0; s < shards.length; s++) {
+			if (overlaps(partition.min(s), partition.max(s), min, max)) {
+				result[n++] = s;
+			}
+		}
+		return Arrays.copyOf(result, n);
+	}
+
+	static boolean overlaps(double[] min1, double[] max1, double[] min2, double[] max2) {
+		for (int d = 0; d < min1.length; d++) {
+			if (min1[d] > max2[d] || max1[d] < min2[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static boolean isInside(double[] min1, double[] max1, double[] min2, double[] max2) {
+		for (int d = 0; d < min1.length; d++) {
+			if (min1[d] < min2[d] || max1[d] > max2[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k) {
+		return new KnnIterator(0).reset(center, k);
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, double epsilon) {
+		return new KnnIterator(epsilon).reset(center, k);
+	}
+
+	/**
+	 * The shard that contains the center is queried first. Its k-th result is used to
+	 * prune all other shards, the remaining shards are queried in parallel.
+	 */
+	private class KnnIterator implements PointIteratorKnn<T> {
+
+		private final double epsilon;
+		private Iterator<PointEntryKnn<T>> it;
+
+		KnnIterator(double epsilon) {
+			this.epsilon = epsilon;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return it.hasNext();
+		}
+
+		@Override
+		public PointEntryKnn<T> next() {
+			return it.next();
+		}
+
+		@Override
+		public PointIteratorKnn<T> reset(double[] center, int k) {
+			KnnList<PointEntryKnn<T>> candidates = new KnnList<>(Math.min(k, size()));
+			int first = partition.region(center);
+			add(candidates, shards[first].queryKnn(center, k, epsilon));
+
+			int[] remaining = new int[shards.length];
+			int n = 0;
+			double epsFactor = 1 + epsilon;
+			for (int s = 0; s < shards.length; s++) {
+				if (s != first && BoxDistance.edgeDistance(center, partition.min(s), partition.max(s)) * epsFactor
+						< candidates.maxDist()) {
+					remaining[n++] = s;
+				}
+			}
+			int[] toQuery = Arrays.copyOf(remaining, n);
+			List<PointIteratorKnn<T>> results =
+					execute(n, i -> shards[toQuery[i]].queryKnn(center, k, epsilon), executor);
+			for (PointIteratorKnn<T> result : results) {
+				add(candidates, result);
+			}
+
+			List<PointEntryKnn<T>> list = new ArrayList<>(candidates.size());
+			for (int i = 0; i < candidates.size(); i++) {
+				list.add(candidates.get(i));
+			}
+			it = list.iterator();
+			return this;
+		}
+
+		private void add(KnnList<PointEntryKnn<T>> candidates, PointIteratorKnn<T> it) {
+			while (it.hasNext()) {
+				PointEntryKnn<T> e = it.next();
+				candidates.add(e, e.dist());
+			}
+		}
+	}
+
+	/**
+	 * Executes 'n' tasks in parallel. The last task is executed in the calling thread.
+	 * @return the results in the order of the tasks
+	 */
+	static <E> List<E> execute(int n, IntFunction<E> task, Executor executor) {
+		List<E> results = new ArrayList<>(n);
+		if (n == 0) {
+			return results;
+		}
+		@SuppressWarnings("unchecked")
+		CompletableFuture<E>[] futures = (CompletableFuture<E>[]) new CompletableFuture<?>[n - 1];
+		for (int i = 0; i < n - 1; i++) {
+			int pos = i;
+			futures[i] = CompletableFuture.supplyAsync(() -> task.apply(pos), executor);
+		}
+		E last = task.apply(n - 1);
+		try {
+			for (CompletableFuture<E> f : futures) {
+				results.add(f.join());
+			}
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw e;
+		}
+		results.add(last);
+		return results;
+	}
+
+	@Override
+	public int getDims() {
+		return dims;
+	}
+
+	@Override
+	public int size() {
+		int n = 0;
+		for (PointMap<T> shard : shards) {
+			n += shard.size();
+		}
+		return n;
+	}
+
+	/**
+	 * @return the number of shards
+	 */
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	@Override
+	public Stats getStats() {
+		return new ShardedStats(this, shards);
+	}
+
+	/**
+	 * Statistics container class. Counters are summed up over all shards, 'maxDepth' and
+	 * 'maxLevel' are the maximum of all shards.
+	 */
+	public static class ShardedStats extends Stats {
+		ShardedStats(Index index, Index[] shards) {
+			super(0, 0, 0);
+			dims = index.getDims();
+			for (Index shard : shards) {
+				Stats s = shard.getStats();
+				nEntries += s.nEntries;
+				nNodes += s.nNodes;
+				nLeaf += s.nLeaf;
+				nInner += s.nInner;
+				minLevel = Math.min(minLevel, s.minLevel);
+				maxLevel = Math.max(maxLevel, s.maxLevel);
+				maxDepth = Math.max(maxDepth, s.maxDepth);
+				maxValuesInNode = Math.max(maxValuesInNode, s.maxValuesInNode);
+				maxNodeSize = Math.max(maxNodeSize, s.maxNodeSize);
+				sumLevel += s.sumLevel;
+				nDistCalc += s.nDistCalc;
+				nDistCalc1NN += s.nDistCalc1NN;
+				nDistCalcKNN += s.nDistCalcKNN;
+			}
+		}
+	}
+
+	@Override
+	public int getNodeCount() {
+		int n = 0;
+		for (PointMap<T> shard : shards) {
+			n += shard.getNodeCount();
+		}
+		return n;
+	}
+
+	@Override
+	public int getDepth() {
+		int depth = 0;
+		for (PointMap<T> shard : shards) {
+			depth = Math.max(depth, shard.getDepth());
+		}
+		return depth;
+	}
+
+	@Override
+	public String toStringTree() {
+		StringBuilderLn sb = new StringBuilderLn();
+		for (int s = 0; s < shards.length; s++) {
+			sb.appendLn("Shard " + s + ": " + Arrays.toString(partition.min(s)) + " - "
+					+ Arrays.toString(partition.max(s)));
+			sb.append(shards[s].toStringTree());
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "ShardedPointMap(shards=" + shards.length + ";" + shards[0] + ")";
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.tinspin.index.BoxMap;
+import org.tinspin.index.PointMap;
+
+/**
+ * Binary snapshots of indexes.
+ * <p>
+ * A snapshot file starts with a header: magic number, version, index type, dimensions and
+ * number of entries. The rest of the file depends on the index type:
+ * <ul>
+ * <li>{@link #POINTS} and {@link #BOXES} are generic formats that contain only the entries.
+ * They can be read by any index of the same kind. Reading uses the bulk loading of the index,
+ * see {@link PointMap#insertAll(double[], Object[])}.</li>
+ * <li>{@link #KDTREE} and {@link #RTREE} additionally contain the tree topology. Reading
+ * restores the tree directly without executing any insert logic.</li>
+ * </ul>
+ * Values are stored with a length prefix followed by the bytes of the {@link ValueSerializer}.
+ */
+public final class Snapshot {
+
+    static final int MAGIC = 0x54535053; // "TSPS"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 4 + 4 + 1 + 4 + 4;
+
+    public static final byte POINTS = 1;
+    public static final byte BOXES = 2;
+    public static final byte KDTREE = 3;
+    public static final byte RTREE = 4;
+
+    /** Maximum number of coordinates that are loaded with a single call to insertAll(). */
+    private static final int MAX_BATCH = 1 << 26;
+
+    private Snapshot() {
+    }
+
+    public static <T> void writePoints(PointMap<T> map, Path file, ValueSerializer<T> serializer)
+            throws IOException {
+        int dims = map.getDims();
+        int[] n = {0};
+        try (SnapshotOutput out = SnapshotOutput.create(file, POINTS, dims, map.size())) {
+            map.query(infinite(dims, -1), infinite(dims, 1), (key, value) -> {
+                try {
+                    out.writeDoubles(key);
+                    out.writeValue(value, serializer);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                n[0]++;
+                return true;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        checkSize(map.size(), n[0]);
+    }
+
+    public static <T> void readPoints(PointMap<T> map, Path file, ValueSerializer<T> serializer)
+            throws IOException {
+        checkEmpty(map.size());
+        int dims = map.getDims();
+        try (SnapshotInput in = SnapshotInput.open(file, POINTS, dims)) {
+            int batch = Math.max(1, MAX_BATCH / dims);
+            for (int pos = 0; pos < in.size(); pos += batch) {
+                int len = Math.min(batch, in.size() - pos);
+                double[] coords = new double[len * dims];
+                T[] values = newArray(len);
+                for (int i = 0; i < len; i++) {
+                    in.readDoubles(coords, i * dims, dims);
+                    values[i] = in.readValue(serializer);
+                }
+                map.insertAll(coords, values);
+            }
+        }
+    }
+
+    public static <T> void writeBoxes(BoxMap<T> map, Path file, ValueSerializer<T> serializer)
+            throws IOException {
+        int dims = map.getDims();
+        int[] n = {0};
+        try (SnapshotOutput out = SnapshotOutput.create(file, BOXES, dims, map.size())) {
+            map.queryIntersect(infinite(dims, -1), infinite(dims, 1), (min, max, value) -> {
+                try {
+                    out.writeDoubles(min);
+                    out.writeDoubles(max);
+                    out.writeValue(value, serializer);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                n[0]++;
+                return true;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        checkSize(map.size(), n[0]);
+    }
+
+    public static <T> void readBoxes(BoxMap<T> map, Path file, ValueSerializer<T> serializer)
+            throws IOException {
+        checkEmpty(map.size());
+        int dims = map.getDims();
+        try (SnapshotInput in = SnapshotInput.open(file, BOXES, dims)) {
+            int batch = Math.max(1, MAX_BATCH / dims);
+            for (int pos = 0; pos < in.size(); pos += batch) {
+                int len = Math.min(batch, in.size() - pos);
+                double[] min = new double[len * dims];
+                double[] max = new double[len * dims];
+                T[] values = newArray(len);
+                for (int i = 0; i < len; i++) {
+                    in.readDoubles(min, i * dims, dims);
+                    in.readDoubles(max, i * dims, dims);
+                    values[i] = in.readValue(serializer);
+                }
+                map.insertAll(min, max, values);
+            }
+        }
+    }
+
+    /**
+     * @param size size of the index
+     * @throws IllegalStateException if the index is not empty
+     */
+    public static void checkEmpty(int size) {
+        if (size != 0) {
+            throw new IllegalStateException("Snapshots can only be read into an empty index, size=" + size);
+        }
+    }
+
+    private static void checkSize(int expected, int actual) {
+        if (expected != actual) {
+            throw new IllegalStateException("Snapshot contains " + actual + " entries, expected " + expected);
+        }
+    }
+
+    private static double[] infinite(int dims, int sign) {
+        double[] d = new double[dims];
+        Arrays.fill(d, sign * Double.POSITIVE_INFINITY);
+        return d;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T[] newArray(int n) {
+        return (T[]) new Object[n];
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a binary snapshot file through a {@link MappedByteBuffer}, see {@link Snapshot} for the file format.
+ * Large files are mapped in windows because a single mapping is limited to 2GB.
+ */
+public class SnapshotInput implements Closeable {
+
+    private static final int WINDOW_SIZE = 1 << 28;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private MappedByteBuffer buf;
+    private long windowStart = 0;
+    private int dims;
+    private int size;
+
+    private SnapshotInput(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.fileSize = channel.size();
+    }
+
+    /**
+     * Opens a snapshot file and reads the header.
+     *
+     * @param file the file
+     * @param type expected index type, see {@link Snapshot}
+     * @param dims expected number of dimensions
+     * @return the input, it must be closed by the caller
+     * @throws IOException if the file cannot be read or is not a snapshot
+     * @throws IllegalArgumentException if the file contains a different index type or dimensionality
+     */
+    public static SnapshotInput open(Path file, byte type, int dims) throws IOException {
+        SnapshotInput in = new SnapshotInput(FileChannel.open(file, StandardOpenOption.READ));
+        try {
+            in.map(0, 0);
+            if (in.fileSize < Snapshot.HEADER_SIZE || in.readInt() != Snapshot.MAGIC) {
+                throw new IOException("Not a snapshot file: " + file);
+            }
+            int version = in.readInt();
+            if (version != Snapshot.VERSION) {
+                throw new IOException("Unsupported snapshot version: " + version);
+            }
+            byte fileType = in.readByte();
+            if (fileType != type) {
+                throw new IllegalArgumentException(
+                        "Snapshot type mismatch: expected " + type + " but got " + fileType);
+            }
+            in.dims = in.readInt();
+            if (in.dims != dims) {
+                throw new IllegalArgumentException(
+                        "Snapshot dimensions mismatch: expected " + dims + " but got " + in.dims);
+            }
+            in.size = in.readInt();
+            return in;
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The number of entries in the snapshot.
+     */
+    public int size() {
+        return size;
+    }
+
+    private void map(long pos, int n) throws IOException {
+        long len = Math.min(Math.max(WINDOW_SIZE, n), fileSize - pos);
+        if (len < n) {
+            throw new EOFException();
+        }
+        buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+        windowStart = pos;
+    }
+
+    private void ensure(int n) throws IOException {
+        if (buf.remaining() < n) {
+            map(windowStart + buf.position(), n);
+        }
+    }
+
+    public byte readByte() throws IOException {
+        ensure(1);
+        return buf.get();
+    }
+
+    public int readInt() throws IOException {
+        ensure(Integer.BYTES);
+        return buf.getInt();
+    }
+
+    /**
+     * Fills the array with doubles from the file.
+     * @param data the array
+     * @throws IOException if the file cannot be read
+     */
+    public void readDoubles(double[] data) throws IOException {
+        ensure(data.length * Double.BYTES);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = buf.getDouble();
+        }
+    }
+
+    /**
+     * Reads 'n' doubles into the array, starting at 'offset'.
+     * @param data the array
+     * @param offset start position in the array
+     * @param n number of doubles
+     * @throws IOException if the file cannot be read
+     */
+    public void readDoubles(double[] data, int offset, int n) throws IOException {
+        ensure(n * Double.BYTES);
+        for (int i = offset; i < offset + n; i++) {
+            data[i] = buf.getDouble();
+        }
+    }
+
+    /**
+     * @param serializer the serializer
+     * @return A value that was written with {@link SnapshotOutput#writeValue(Object, ValueSerializer)}.
+     * @param <T> Value type
+     * @throws IOException if the file cannot be read
+     */
+    public <T> T readValue(ValueSerializer<T> serializer) throws IOException {
+        int len = readInt();
+        if (len < 0) {
+            return null;
+        }
+        ensure(len);
+        ByteBuffer slice = buf.slice();
+        slice.limit(len);
+        T value = serializer.read(slice);
+        buf.position(buf.position() + len);
+        return value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        buf = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a binary snapshot file through a {@link FileChannel}, see {@link Snapshot} for the file format.
+ * All data is written through a direct buffer in big endian order.
+ */
+public class SnapshotOutput implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+    private ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private SnapshotOutput(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Creates or overwrites a snapshot file and writes the header.
+     *
+     * @param file the file
+     * @param type index type, see {@link Snapshot}
+     * @param dims number of dimensions
+     * @param size number of entries
+     * @return the output, it must be closed by the caller
+     * @throws IOException if the file cannot be written
+     */
+    public static SnapshotOutput create(Path file, byte type, int dims, int size) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        SnapshotOutput out = new SnapshotOutput(channel);
+        out.writeInt(Snapshot.MAGIC);
+        out.writeInt(Snapshot.VERSION);
+        out.writeByte(type);
+        out.writeInt(dims);
+        out.writeInt(size);
+        return out;
+    }
+
+    private void ensure(int n) throws IOException {
+        if (buf.remaining() < n) {
+            flush();
+            if (buf.capacity() < n) {
+                buf = ByteBuffer.allocateDirect(n);
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    public void writeByte(byte b) throws IOException {
+        ensure(1);
+        buf.put(b);
+    }
+
+    public void writeInt(int i) throws IOException {
+        ensure(Integer.BYTES);
+        buf.putInt(i);
+    }
+
+    public void writeDoubles(double[] data) throws IOException {
+        ensure(data.length * Double.BYTES);
+        for (double d : data) {
+            buf.putDouble(d);
+        }
+    }
+
+    /**
+     * Writes the length of the value followed by the serialized value.
+     * @param value the value, may be {@code null}
+     * @param serializer the serializer
+     * @param <T> Value type
+     * @throws IOException if the file cannot be written
+     */
+    public <T> void writeValue(T value, ValueSerializer<T> serializer) throws IOException {
+        if (value == null) {
+            writeInt(-1);
+            return;
+        }
+        int len = serializer.size(value);
+        ensure(Integer.BYTES + len);
+        buf.putInt(len);
+        int start = buf.position();
+        serializer.write(buf, value);
+        if (buf.position() - start != len) {
+            throw new IllegalStateException("Serializer wrote " + (buf.position() - start) +
+                    " bytes but size() returned " + len);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts values to bytes and back for snapshots, see
+ * {@link org.tinspin.index.PointMap#writeSnapshot(java.nio.file.Path, ValueSerializer)}.
+ * <p>
+ * {@code null} values are handled by the snapshot and are never passed to a serializer.
+ *
+ * @param <T> Value type
+ */
+public interface ValueSerializer<T> {
+
+    /**
+     * @param value the value
+     * @return The number of bytes that {@link #write(ByteBuffer, Object)} writes for the value.
+     */
+    int size(T value);
+
+    /**
+     * @param buf   the buffer, it has at least {@code size(value)} bytes remaining.
+     * @param value the value
+     */
+    void write(ByteBuffer buf, T value);
+
+    /**
+     * @param buf a buffer that contains exactly the bytes of one value.
+     * @return the value
+     */
+    T read(ByteBuffer buf);
+
+    ValueSerializer<Integer> INTEGER = new ValueSerializer<Integer>() {
+        @Override
+        public int size(Integer value) {
+            return Integer.BYTES;
+        }
+
+        @Override
+        public void write(ByteBuffer buf, Integer value) {
+            buf.putInt(value);
+        }
+
+        @Override
+        public Integer read(ByteBuffer buf) {
+            return buf.getInt();
+        }
+    };
+
+    ValueSerializer<Long> LONG = new ValueSerializer<Long>() {
+        @Override
+        public int size(Long value) {
+            return Long.BYTES;
+        }
+
+        @Override
+        public void write(ByteBuffer buf, Long value) {
+            buf.putLong(value);
+        }
+
+        @Override
+        public Long read(ByteBuffer buf) {
+            return buf.getLong();
+        }
+    };
+
+    ValueSerializer<Double> DOUBLE = new ValueSerializer<Double>() {
+        @Override
+        public int size(Double value) {
+            return Double.BYTES;
+        }
+
+        @Override
+        public void write(ByteBuffer buf, Double value) {
+            buf.putDouble(value);
+        }
+
+        @Override
+        public Double read(ByteBuffer buf) {
+            return buf.getDouble();
+        }
+    };
+
+    /**
+     * Strings are stored as UTF-8.
+     */
+    ValueSerializer<String> STRING = new ValueSerializer<String>() {
+        @Override
+        public int size(String value) {
+            return value.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        @Override
+        public void write(ByteBuffer buf, String value) {
+            buf.put(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public String read(ByteBuffer buf) {
+            byte[] bytes = new byte[buf.remaining()];
+            buf.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+}
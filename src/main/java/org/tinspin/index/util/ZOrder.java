@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import java.util.Arrays;
+
+/**
+ * Ordering of entries along a z-order (Morton) curve.
+ * <p>
+ * Inserting entries in z-order means that consecutive insertions descend into the same
+ * region of a tree. This improves cache locality considerably when loading many entries.
+ */
+public class ZOrder {
+
+    /** Number of bits of the z-value. The lower 32 bits of the sort key store the entry position. */
+    private static final int Z_BITS = 31;
+
+    private ZOrder() {}
+
+    /**
+     * Calculates the z-order of all entries in a flat coordinate array.
+     * For boxes, the z-order is calculated for the center of the box.
+     *
+     * @param flatMin coordinates of points (or of the lower box corners), 'dims' values per entry
+     * @param flatMax coordinates of the upper box corners or 'null' for points
+     * @param dims    number of dimensions
+     * @return the positions of all entries, ordered by their z-value
+     */
+    public static int[] order(double[] flatMin, double[] flatMax, int dims) {
+        int n = flatMin.length / dims;
+        int[] order = new int[n];
+        if (n == 0) {
+            return order;
+        }
+
+        // We use at most Z_BITS dimensions, this is good enough for locality.
+        int zDims = Math.min(dims, Z_BITS);
+        int bitsPerDim = Z_BITS / zDims;
+        double maxCell = (1L << bitsPerDim) - 1;
+        double[] min = new double[zDims];
+        double[] max = new double[zDims];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        for (int i = 0; i < n; i++) {
+            for (int d = 0; d < zDims; d++) {
+                double c = coord(flatMin, flatMax, i * dims + d);
+                min[d] = Math.min(min[d], c);
+                max[d] = Math.max(max[d], c);
+            }
+        }
+
+        long[] keys = new long[n];
+        long[] cells = new long[zDims];
+        for (int i = 0; i < n; i++) {
+            for (int d = 0; d < zDims; d++) {
+                double len = max[d] - min[d];
+                double c = coord(flatMin, flatMax, i * dims + d);
+                cells[d] = len > 0 ? (long) ((c - min[d]) / len * maxCell) : 0;
+            }
+            long z = 0;
+            for (int bit = bitsPerDim - 1; bit >= 0; bit--) {
+                for (int d = 0; d < zDims; d++) {
+                    z = (z << 1) | ((cells[d] >>> bit) & 1L);
+                }
+            }
+            keys[i] = (z << 32) | i;
+        }
+        Arrays.sort(keys);
+        for (int i = 0; i < n; i++) {
+            order[i] = (int) keys[i];
+        }
+        return order;
+    }
+
+    private static double coord(double[] flatMin, double[] flatMax, int pos) {
+        return flatMax == null ? flatMin[pos] : (flatMin[pos] + flatMax[pos]) / 2;
+    }
+}
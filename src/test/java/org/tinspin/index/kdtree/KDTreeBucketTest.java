@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.kdtree;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.tinspin.index.Index.*;
+
+public class KDTreeBucketTest {
+
+	@Test
+	public void testNodeCount() {
+		int n = 10_000;
+		KDTreeBucket<Integer> tree = KDTreeBucket.create(3, 16);
+		Random r = new Random(0);
+		double[][] keys = new double[n][3];
+		for (int i = 0; i < n; i++) {
+			Arrays.setAll(keys[i], d -> r.nextDouble());
+			tree.insert(keys[i], i);
+		}
+		KDTreeBucket.KDStatsBucket s = tree.getStats();
+		assertEquals(n, s.getEntryCount());
+		// Leaves are at least half full after a split
+		assertTrue(s.getNodeCount() + "", s.getNodeCount() <= 2 * n / 8);
+		assertTrue(s.maxValuesInNode <= 16);
+
+		for (int i = 0; i < n; i++) {
+			assertEquals(i, (int) tree.queryExact(keys[i]));
+			PointEntryKnn<Integer> e = tree.query1nn(keys[i]);
+			assertArrayEquals(keys[i], e.point(), 0.0);
+			assertEquals(0, e.dist(), 0.0);
+		}
+
+		// removing all entries collapses the tree
+		for (int i = 0; i < n; i++) {
+			assertEquals(i, (int) tree.remove(keys[i]));
+		}
+		assertEquals(0, tree.size());
+		assertEquals(1, tree.getNodeCount());
+		assertFalse(tree.iterator().hasNext());
+	}
+
+	@Test
+	public void testSorted() {
+		int n = 100_000;
+		KDTreeBucket<Integer> tree = KDTreeBucket.create(2);
+		for (int i = 0; i < n; i++) {
+			tree.insert(new double[]{i, i % 7}, i);
+		}
+		// Without rebuilds, the depth would be about n / 16
+		assertTrue(tree.getDepth() + "", tree.getDepth() <= Math.log(n) / Math.log(1 / 0.7));
+		for (int i = 0; i < n; i += 7) {
+			assertEquals(i, (int) tree.queryExact(new double[]{i, i % 7}));
+		}
+		int count = 0;
+		for (PointIterator<Integer> it = tree.query(new double[]{100, 0}, new double[]{199, 6}); it.hasNext(); ) {
+			assertTrue(it.next().value() >= 100);
+			count++;
+		}
+		assertEquals(100, count);
+	}
+
+	@Test
+	public void testDuplicates() {
+		KDTreeBucket<Integer> tree = KDTreeBucket.create(2, 4);
+		double[] key = {1, 2};
+		tree.insert(new double[]{1, 3}, 100);
+		for (int i = 0; i < 100; i++) {
+			tree.insert(key, i);
+		}
+		// Identical keys cannot be split
+		assertEquals(100, tree.getStats().maxValuesInNode);
+		int n = 0;
+		for (PointIterator<Integer> it = tree.queryExactPoint(key); it.hasNext(); it.next()) {
+			n++;
+		}
+		assertEquals(100, n);
+		for (int i = 0; i < 100; i++) {
+			assertTrue(tree.remove(key, i));
+		}
+		assertEquals(100, (int) tree.queryExact(new double[]{1, 3}));
+		assertEquals(1, tree.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBucketSizeInvalid() {
+		KDTreeBucket.create(2, 1);
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.kdtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.tinspin.index.IndexConfig;
+
+import static org.junit.Assert.*;
+import static org.tinspin.index.Index.*;
+
+public class KDTreePersistentTest {
+
+	private static final int DIMS = 3;
+	private static final double[] MIN = {-1, -1, -1};
+	private static final double[] MAX = {2, 2, 2};
+
+	private static double[][] createPoints(long seed, int n) {
+		Random r = new Random(seed);
+		double[][] points = new double[n][DIMS];
+		for (double[] p : points) {
+			// few distinct values, this creates many equal coordinates
+			Arrays.setAll(p, d -> r.nextInt(20) / 20.0);
+		}
+		return points;
+	}
+
+	@Test
+	public void testSnapshotIsolation() {
+		KDTree<Integer> tree = KDTree.createPersistent(DIMS);
+		double[][] points = createPoints(0, 1000);
+		for (int i = 0; i < points.length; i++) {
+			tree.insert(points[i], i);
+		}
+		KDTree<Integer> snap = tree.snapshot();
+		for (int i = 0; i < points.length; i += 2) {
+			assertTrue(tree.remove(points[i], i));
+		}
+		for (int i = 1; i < points.length; i += 4) {
+			assertTrue(tree.update(points[i], new double[]{5, 5, 5}, i));
+		}
+		tree.insert(new double[]{7, 7, 7}, -1);
+
+		// the snapshot is unchanged
+		assertEquals(points.length, snap.size());
+		assertEquals(points.length, snap.count(MIN, MAX));
+		assertEquals(points.length, count(snap.iterator()));
+		for (int i = 0; i < points.length; i++) {
+			assertTrue(snap.contains(points[i], i));
+		}
+		assertNull(snap.queryExact(new double[]{7, 7, 7}));
+		assertEquals(0, snap.query1nn(points[10]).dist(), 0.0);
+
+		// the tree is modified
+		assertEquals(points.length / 2 + 1, tree.size());
+		assertEquals(points.length / 4, tree.count(MIN, MAX));
+		assertEquals(points.length / 4, count(tree.query(new double[]{5, 5, 5}, new double[]{5, 5, 5})));
+		assertEquals(-1, (int) tree.queryExact(new double[]{7, 7, 7}));
+	}
+
+	/**
+	 * Compare a persistent tree with a normal tree. All snapshots must remain unchanged.
+	 */
+	@Test
+	public void testRandomOperations() {
+		randomOperations(KDTree.createPersistent(DIMS));
+	}
+
+	/**
+	 * Rebuilding subtrees must not modify nodes of older versions.
+	 */
+	@Test
+	public void testRandomOperationsBalanced() {
+		randomOperations(KDTree.createPersistent(IndexConfig.create(DIMS).setBalanceFactor(0.6)));
+	}
+
+	private void randomOperations(KDTree<Integer> tree) {
+		KDTree<Integer> ref = KDTree.create(DIMS);
+		Random r = new Random(0);
+		double[][] points = createPoints(1, 500);
+		boolean[] present = new boolean[points.length];
+		List<KDTree<Integer>> snapshots = new ArrayList<>();
+		List<Map<Integer, double[]>> expected = new ArrayList<>();
+		for (int round = 0; round < 5_000; round++) {
+			int i = r.nextInt(points.length);
+			if (present[i]) {
+				assertEquals(ref.remove(points[i], i), tree.remove(points[i], i));
+			} else {
+				ref.insert(points[i], i);
+				tree.insert(points[i], i);
+			}
+			present[i] = !present[i];
+			assertEquals(ref.size(), tree.size());
+			if (round % 500 == 0) {
+				snapshots.add(tree.snapshot());
+				Map<Integer, double[]> map = new HashMap<>();
+				for (int j = 0; j < points.length; j++) {
+					if (present[j]) {
+						map.put(j, points[j]);
+					}
+				}
+				expected.add(map);
+			}
+		}
+		for (int i = 0; i < points.length; i++) {
+			assertEquals(present[i], tree.contains(points[i], i));
+			assertEquals(ref.queryKnn(points[i], 5).next().dist(), tree.queryKnn(points[i], 5).next().dist(), 0.0);
+		}
+		assertEquals(ref.count(MIN, MAX), tree.count(MIN, MAX));
+		for (int s = 0; s < snapshots.size(); s++) {
+			KDTree<Integer> snap = snapshots.get(s);
+			Map<Integer, double[]> map = expected.get(s);
+			assertEquals(map.size(), snap.size());
+			assertEquals(map.size(), snap.count(MIN, MAX));
+			assertEquals(map.size(), count(snap.iterator()));
+			for (Map.Entry<Integer, double[]> e : map.entrySet()) {
+				assertTrue(snap.contains(e.getValue(), e.getKey()));
+			}
+		}
+	}
+
+	@Test
+	public void testReadOnly() {
+		KDTree<Integer> tree = KDTree.createPersistent(DIMS);
+		tree.insert(new double[]{1, 2, 3}, 1);
+		KDTree<Integer> snap = tree.snapshot();
+		assertSame(snap, snap.snapshot());
+		assertThrows(UnsupportedOperationException.class, () -> snap.insert(new double[]{1, 2, 3}, 2));
+		assertThrows(UnsupportedOperationException.class, () -> snap.remove(new double[]{1, 2, 3}));
+		assertThrows(UnsupportedOperationException.class, snap::clear);
+		assertEquals(1, snap.size());
+
+		tree.clear();
+		assertEquals(0, tree.snapshot().size());
+		assertEquals(1, snap.size());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testNotPersistent() {
+		KDTree.create(DIMS).snapshot();
+	}
+
+	/**
+	 * One writer moves points around, the readers use snapshots without any locking.
+	 */
+	@Test
+	public void testConcurrentReaders() throws InterruptedException {
+		KDTree<Integer> tree = KDTree.createPersistent(DIMS);
+		double[][] points = createPoints(2, 2000);
+		for (int i = 0; i < points.length; i++) {
+			tree.insert(points[i], i);
+		}
+		AtomicBoolean done = new AtomicBoolean();
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		Thread[] readers = new Thread[3];
+		for (int t = 0; t < readers.length; t++) {
+			readers[t] = new Thread(() -> {
+				try {
+					while (!done.get()) {
+						KDTree<Integer> snap = tree.snapshot();
+						assertEquals(points.length, snap.size());
+						assertEquals(points.length, count(snap.iterator()));
+					}
+				} catch (Throwable e) {
+					error.compareAndSet(null, e);
+				}
+			});
+			readers[t].start();
+		}
+		Random r = new Random(0);
+		for (int i = 0; i < 20_000; i++) {
+			int pos = r.nextInt(points.length);
+			double[] newPoint = createPoints(i, 1)[0];
+			assertTrue(tree.update(points[pos], newPoint, pos));
+			points[pos] = newPoint;
+		}
+		done.set(true);
+		for (Thread t : readers) {
+			t.join();
+		}
+		if (error.get() != null) {
+			throw new AssertionError(error.get());
+		}
+	}
+
+	private static int count(PointIterator<Integer> it) {
+		int n = 0;
+		while (it.hasNext()) {
+			it.next();
+			n++;
+		}
+		return n;
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.kdtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.tinspin.index.Index.*;
+
+public class KDTreeStaticTest {
+
+	private static final int DIMS = 3;
+
+	private static KDTree<Integer> createReference(int n, Random r, boolean dupl) {
+		KDTree<Integer> tree = KDTree.create(DIMS);
+		for (int i = 0; i < n; i++) {
+			double[] key = new double[DIMS];
+			if (dupl) {
+				Arrays.setAll(key, d -> r.nextInt(5));
+			} else {
+				Arrays.setAll(key, d -> r.nextDouble());
+			}
+			tree.insert(key, i);
+		}
+		return tree;
+	}
+
+	@Test
+	public void testQueries() {
+		for (int n : new int[]{0, 1, 15, 16, 17, 1000, 10_000}) {
+			compare(createReference(n, new Random(n), false), new Random(n + 1), 1);
+		}
+	}
+
+	@Test
+	public void testDuplicates() {
+		compare(createReference(1000, new Random(0), true), new Random(1), 5);
+	}
+
+	private static void compare(KDTree<Integer> ref, Random r, double scale) {
+		KDTreeStatic<Integer> tree = KDTreeStatic.create(ref);
+		assertEquals(ref.size(), tree.size());
+		assertTrue(tree.getStats().maxValuesInNode <= KDTreeStatic.DEFAULT_LEAF_SIZE);
+
+		for (PointIterator<Integer> it = ref.iterator(); it.hasNext(); ) {
+			PointEntry<Integer> e = it.next();
+			assertTrue(tree.contains(e.point()));
+			assertEquals(ref.queryExact(e.point()) != null, tree.queryExact(e.point()) != null);
+			assertEquals(0, tree.query1nn(e.point()).dist(), 0.0);
+		}
+
+		for (int i = 0; i < 100; i++) {
+			double[] min = new double[DIMS];
+			double[] max = new double[DIMS];
+			for (int d = 0; d < DIMS; d++) {
+				min[d] = r.nextDouble() * scale;
+				max[d] = min[d] + r.nextDouble() * scale / 2;
+			}
+			assertEquals(values(ref.query(min, max)), values(tree.query(min, max)));
+			assertEquals(ref.count(min, max), tree.count(min, max));
+
+			double[] center = {r.nextDouble() * scale, r.nextDouble() * scale, r.nextDouble() * scale};
+			for (int k : new int[]{1, 10, Integer.MAX_VALUE}) {
+				List<Double> d1 = new ArrayList<>();
+				ref.queryKnn(center, k).forEachRemaining(e -> d1.add(e.dist()));
+				List<Double> d2 = new ArrayList<>();
+				tree.queryKnn(center, k).forEachRemaining(e -> d2.add(e.dist()));
+				assertEquals(d1, d2);
+			}
+		}
+		assertEquals(ref.size(), values(tree.iterator()).size());
+	}
+
+	private static List<Integer> values(PointIterator<Integer> it) {
+		List<Integer> list = new ArrayList<>();
+		it.forEachRemaining(e -> list.add(e.value()));
+		list.sort(Integer::compare);
+		return list;
+	}
+
+	@Test
+	public void testFlatArrays() {
+		int n = 1000;
+		double[] flat = new double[n * 2];
+		Integer[] values = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			flat[2 * i] = i;
+			flat[2 * i + 1] = -i;
+			values[i] = i;
+		}
+		double[] copy = flat.clone();
+		KDTreeStatic<Integer> tree = KDTreeStatic.create(2, flat, values, 4);
+		assertArrayEquals(copy, flat, 0.0);
+		// 1000 / 4 = 250 -> 256 leaves
+		assertEquals(8, tree.getDepth());
+		assertEquals(511, tree.getNodeCount());
+		for (int i = 0; i < n; i++) {
+			assertEquals(i, (int) tree.queryExact(new double[]{i, -i}));
+		}
+		assertNull(tree.queryExact(new double[]{1, 1}));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testImmutable() {
+		KDTreeStatic<Integer> tree = KDTreeStatic.create(KDTree.create(2));
+		tree.insert(new double[]{1, 2}, 1);
+	}
+}
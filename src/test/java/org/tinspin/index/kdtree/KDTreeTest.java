@@ -21,9 +21,13 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Test;
+import org.tinspin.index.IndexConfig;
+import org.tinspin.index.PointDistance;
 
+import static org.junit.Assert.*;
 import static org.tinspin.index.Index.*;
 
 public class KDTreeTest {
@@ -128,6 +132,364 @@ public class KDTreeTest {
 		smokeTest(point_list);
 	}
 	
+	/**
+	 * Sorted input would create a degenerated tree with insert(), insertAll() should create a balanced tree.
+	 */
+	@Test
+	public void testInsertAllBalanced() {
+		int n = 100_000;
+		int dim = 3;
+		double[] flat = new double[n * dim];
+		double[][] keys = new double[n][dim];
+		for (int i = 0; i < n; i++) {
+			Arrays.fill(keys[i], i);
+			System.arraycopy(keys[i], 0, flat, i * dim, dim);
+		}
+		KDTree<double[]> tree = KDTree.create(dim);
+		tree.insertAll(flat, keys);
+		assertEquals(n, tree.size());
+		// A perfectly balanced tree has depth 17
+		assertTrue(tree.getStats().getMaxDepth() <= 18);
+		for (double[] key : keys) {
+			assertArrayEquals(key, tree.queryExact(key), 0);
+		}
+	}
+
+	@Test
+	public void testInsertAllDupl() {
+		double[][] point_list = new double[10_000][3];
+		int n = 0;
+		for (double[] p : point_list) {
+			p[0] = n % 3;
+			p[1] = n++ % 100;
+			p[2] = n % 5;
+		}
+		List<double[]> list = Arrays.asList(point_list);
+		Collections.shuffle(list, new Random(0));
+		point_list = list.toArray(point_list);
+
+		int dim = point_list[0].length;
+		double[] flat = new double[point_list.length * dim];
+		for (int i = 0; i < point_list.length; i++) {
+			System.arraycopy(point_list[i], 0, flat, i * dim, dim);
+		}
+		KDTree<double[]> tree = KDTree.create(dim);
+		tree.insertAll(flat, point_list.clone());
+		assertEquals(point_list.length, tree.size());
+		for (double[] key : point_list) {
+			assertTrue(Arrays.toString(key), tree.contains(key, key));
+		}
+		int nKnn = 0;
+		for (PointIteratorKnn<double[]> it = tree.queryKnn(point_list[0], point_list.length); it.hasNext(); it.next()) {
+			nKnn++;
+		}
+		assertEquals(point_list.length, nKnn);
+		for (double[] key : point_list) {
+			assertTrue(Arrays.toString(key), tree.remove(key, key));
+		}
+		assertEquals(0, tree.size());
+	}
+
+	/**
+	 * load() rebuilds the whole tree, including entries that were inserted before.
+	 */
+	@Test
+	public void testLoadBalanced() {
+		int n = 100_000;
+		int dim = 3;
+		double[][] keys = new double[n][dim];
+		for (int i = 0; i < n; i++) {
+			Arrays.fill(keys[i], i);
+		}
+		KDTree<double[]> tree = KDTree.create(dim);
+		for (int i = 0; i < 1000; i++) {
+			tree.insert(keys[i], keys[i]);
+		}
+		assertEquals(999, tree.getDepth());
+		tree.load(Arrays.copyOfRange(keys, 1000, n), Arrays.copyOfRange(keys, 1000, n));
+		assertEquals(n, tree.size());
+		// A perfectly balanced tree has depth 17
+		assertTrue(tree.getDepth() <= 18);
+		for (double[] key : keys) {
+			assertArrayEquals(key, tree.queryExact(key), 0);
+		}
+	}
+
+	@Test
+	public void testLoadParallelDupl() {
+		double[][] point_list = new double[200_000][3];
+		Random r = new Random(0);
+		for (double[] p : point_list) {
+			p[0] = r.nextInt(3);
+			p[1] = r.nextInt(100);
+			p[2] = r.nextDouble();
+		}
+		KDTree<double[]> tree = KDTree.create(3);
+		tree.load(point_list.clone(), point_list.clone(), ForkJoinPool.commonPool());
+		assertEquals(point_list.length, tree.size());
+		// The parallel build creates the same tree as the sequential build
+		KDTree<double[]> tree2 = KDTree.create(3);
+		tree2.load(point_list.clone(), point_list.clone());
+		assertEquals(tree2.getDepth(), tree.getDepth());
+		assertEquals(tree2.getNodeCount(), tree.getNodeCount());
+		for (double[] key : point_list) {
+			assertTrue(Arrays.toString(key), tree.contains(key, key));
+		}
+		double[] min = {1, 10, 0.2};
+		double[] max = {2, 20, 0.5};
+		long expected = Arrays.stream(point_list).filter(p -> isInside(p, min, max)).count();
+		assertEquals(expected, tree.count(min, max));
+		for (double[] key : point_list) {
+			assertTrue(Arrays.toString(key), tree.remove(key, key));
+		}
+		assertEquals(0, tree.size());
+	}
+
+	/**
+	 * With a balance factor, sorted input creates a tree with logarithmic depth.
+	 */
+	@Test
+	public void testBalancedSorted() {
+		int n = 100_000;
+		int dim = 3;
+		double alpha = 0.7;
+		KDTree<Integer> tree = KDTree.create(IndexConfig.create(dim).setBalanceFactor(alpha));
+		double[][] keys = new double[n][dim];
+		for (int i = 0; i < n; i++) {
+			Arrays.fill(keys[i], i);
+			tree.insert(keys[i], i);
+		}
+		assertEquals(n, tree.size());
+		int maxDepth = (int) (Math.log(n) / Math.log(1 / alpha)) + 1;
+		assertTrue("depth=" + tree.getDepth(), tree.getDepth() <= maxDepth);
+		for (int i = 0; i < n; i++) {
+			assertEquals(i, (int) tree.queryExact(keys[i]));
+		}
+		double[] min = {1000, 1000, 1000};
+		double[] max = {1999, 1999, 1999};
+		assertEquals(1000, tree.count(min, max));
+
+		// remove 90%, this triggers rebuilds of the whole tree
+		for (int i = 0; i < n; i++) {
+			if (i % 10 != 0) {
+				assertEquals(i, (int) tree.remove(keys[i]));
+			}
+		}
+		assertEquals(n / 10, tree.size());
+		assertTrue("depth=" + tree.getDepth(), tree.getDepth() <= maxDepth);
+		assertEquals(100, tree.count(min, max));
+		for (int i = 0; i < n; i += 10) {
+			assertEquals(i, (int) tree.queryExact(keys[i]));
+			assertEquals(0, tree.queryKnn(keys[i], 1).next().dist(), 0);
+		}
+	}
+
+	/**
+	 * A tree that is built with insertAll() must also be rebuilt when most entries are removed.
+	 */
+	@Test
+	public void testBalancedInsertAllRemove() {
+		int n = 100_000;
+		int dim = 3;
+		double[] flat = new double[n * dim];
+		Integer[] values = new Integer[n];
+		double[][] keys = new double[n][dim];
+		for (int i = 0; i < n; i++) {
+			Arrays.fill(keys[i], i);
+			System.arraycopy(keys[i], 0, flat, i * dim, dim);
+			values[i] = i;
+		}
+		KDTree<Integer> tree = KDTree.create(IndexConfig.create(dim).setBalanceFactor(0.7));
+		tree.insertAll(flat, values);
+		assertEquals(n, tree.size());
+		Node<Integer> root = tree.getRoot();
+
+		// remove 90%, this triggers rebuilds of the whole tree. The root entry is not removed.
+		for (int i = 0; i < n; i++) {
+			if (i % 10 != 0) {
+				assertEquals(i, (int) tree.remove(keys[i]));
+			}
+		}
+		assertEquals(n / 10, tree.size());
+		assertNotSame(root, tree.getRoot());
+		for (int i = 0; i < n; i += 10) {
+			assertEquals(i, (int) tree.queryExact(keys[i]));
+		}
+	}
+
+	/**
+	 * Duplicate keys cannot be balanced, but they must not break the tree.
+	 */
+	@Test
+	public void testBalancedDupl() {
+		KDTree<Integer> tree = KDTree.create(IndexConfig.create(3).setBalanceFactor(0.6));
+		Random r = new Random(0);
+		double[][] keys = new double[20_000][];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = new double[]{r.nextInt(3), r.nextInt(10), i % 2};
+			tree.insert(keys[i], i);
+		}
+		for (int i = 0; i < keys.length; i++) {
+			assertTrue(tree.contains(keys[i], i));
+		}
+		for (int i = 0; i < keys.length; i += 2) {
+			assertTrue(tree.remove(keys[i], i));
+		}
+		for (int i = 0; i < keys.length; i++) {
+			assertEquals(i % 2 == 1, tree.contains(keys[i], i));
+		}
+		assertEquals(keys.length / 2, tree.count(new double[]{0, 0, 0}, new double[]{2, 9, 1}));
+	}
+
+	/**
+	 * Rebuilding a subtree of equal keys does not reduce its depth, so it must not happen on every insert.
+	 */
+	@Test
+	public void testBalancedEqualKeys() {
+		KDTree<Integer> tree = KDTree.create(IndexConfig.create(3).setBalanceFactor(0.7));
+		double[][] keys = {{1, 2, 3}, {4, 5, 6}};
+		int n = 8_000;
+		for (int i = 0; i < n; i++) {
+			tree.insert(keys[i % 2], i);
+		}
+		assertEquals(n, tree.size());
+		assertTrue(tree.getRebalanceCount() < 2 * (32 - Integer.numberOfLeadingZeros(n)));
+		for (int i = 0; i < n; i++) {
+			assertTrue(tree.contains(keys[i % 2], i));
+		}
+		assertEquals(n / 2, tree.count(keys[0], keys[0]));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBalanceFactorInvalid() {
+		KDTree.create(IndexConfig.create(3).setBalanceFactor(0.5));
+	}
+
+	@Test
+	public void testKnnLargeK() {
+		Random r = new Random(0);
+		int n = 20_000;
+		KDTree<Integer> tree = KDTree.create(3);
+		double[][] keys = new double[n][];
+		for (int i = 0; i < n; i++) {
+			// few distinct values, so there are many equal distances
+			keys[i] = new double[]{r.nextInt(30), r.nextInt(30), r.nextInt(30)};
+			tree.insert(keys[i], i);
+		}
+		for (PointDistance distFn : new PointDistance[]{PointDistance.L2, PointDistance.L1}) {
+			double[] center = {r.nextDouble() * 30, r.nextDouble() * 30, r.nextDouble() * 30};
+			double[] expected = new double[n];
+			for (int i = 0; i < n; i++) {
+				expected[i] = distFn.dist(center, keys[i]);
+			}
+			Arrays.sort(expected);
+			PointIteratorKnn<Integer> it = tree.queryKnn(center, 1, distFn);
+			for (int k : new int[]{1, 10, 1000, 10_000, n + 1}) {
+				// reuse the iterator
+				it.reset(center, k);
+				int i = 0;
+				while (it.hasNext()) {
+					PointEntryKnn<Integer> e = it.next();
+					assertEquals(expected[i], e.dist(), 0);
+					assertEquals(distFn.dist(center, keys[e.value()]), e.dist(), 0);
+					i++;
+				}
+				assertEquals(Math.min(k, n), i);
+			}
+		}
+		double[] center = {15, 15, 15};
+		int[] count = {0};
+		tree.queryKnn(center, 5000, 3, (p, v, dist) -> {
+			assertTrue(dist <= 3);
+			count[0]++;
+			return true;
+		});
+		int inRange = 0;
+		for (double[] key : keys) {
+			inRange += PointDistance.L2.dist(center, key) <= 3 ? 1 : 0;
+		}
+		assertEquals(inRange, count[0]);
+	}
+
+	/**
+	 * Removing the root moves up one of two equal keys from the 'lower' branch.
+	 */
+	@Test
+	public void testRepairInvariant() {
+		KDTree<Integer> tree = KDTree.create(1);
+		tree.insert(new double[]{5}, 0);
+		tree.insert(new double[]{3}, 1);
+		tree.insert(new double[]{3}, 2);
+		assertEquals(0, (int) tree.remove(new double[]{5}));
+		assertFalse(tree.isInvariantBroken());
+		assertTrue(tree.contains(new double[]{3}, 1));
+		assertTrue(tree.contains(new double[]{3}, 2));
+		assertTrue(tree.remove(new double[]{3}, 1));
+		assertTrue(tree.remove(new double[]{3}, 2));
+		assertEquals(0, tree.size());
+	}
+
+	@Test
+	public void testRepairInvariantDupl() {
+		for (boolean persistent : new boolean[]{false, true}) {
+			KDTree<Integer> tree = persistent ? KDTree.createPersistent(3) : KDTree.create(3);
+			Random r = new Random(0);
+			double[][] keys = new double[20_000][];
+			for (int i = 0; i < keys.length; i++) {
+				// the last coordinate makes the keys unique
+				keys[i] = new double[]{r.nextInt(5), r.nextInt(5), i};
+				tree.insert(keys[i], i);
+			}
+			for (int i = 0; i < keys.length; i += 2) {
+				assertTrue(tree.remove(keys[i], i));
+				double[] newKey = {r.nextInt(5), r.nextInt(5), keys.length + i};
+				assertEquals(i + 1, (int) tree.update(keys[i + 1], newKey));
+				keys[i + 1] = newKey;
+			}
+			assertFalse(tree.isInvariantBroken());
+			for (int i = 0; i < keys.length; i++) {
+				assertEquals(i % 2 == 1, tree.contains(keys[i], i));
+			}
+		}
+	}
+
+	/**
+	 * A tree with a broken invariant, e.g. from an old snapshot, is repaired after O(n) modifications.
+	 */
+	@Test
+	public void testRepairInvariantDeferred() {
+		int n = 10_000;
+		KDTree<Integer> tree = KDTree.create(3);
+		Random r = new Random(0);
+		double[][] keys = new double[n][];
+		Integer[] values = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			keys[i] = new double[]{r.nextInt(5), r.nextInt(5), r.nextInt(5)};
+			values[i] = i;
+		}
+		tree.load(keys, values);
+		tree.setRoot(tree.getRoot(), n, true);
+		int nOps = 0;
+		while (tree.isInvariantBroken()) {
+			tree.insert(new double[]{r.nextInt(5), r.nextInt(5), r.nextInt(5)}, -1);
+			nOps++;
+		}
+		assertTrue(nOps > 1);
+		assertTrue(nOps < n / 8);
+		for (int i = 0; i < n; i++) {
+			assertTrue(tree.contains(keys[i], i));
+		}
+	}
+
+	private static boolean isInside(double[] p, double[] min, double[] max) {
+		for (int d = 0; d < p.length; d++) {
+			if (p[d] < min[d] || p[d] > max[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	private void smokeTest(double[][] point_list) {
 		int dim = point_list[0].length;
 		KDTree<double[]> tree = KDTree.create(dim);
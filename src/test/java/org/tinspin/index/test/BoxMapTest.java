@@ -20,12 +20,22 @@ package org.tinspin.index.test;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
+import org.tinspin.index.BatchResult;
 import org.tinspin.index.BoxMap;
 import org.tinspin.index.Index;
+import org.tinspin.index.util.ValueSerializer;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
 import static org.junit.Assert.*;
+import static org.tinspin.index.Index.BoxEntry;
 import static org.tinspin.index.Index.BoxEntryKnn;
 import static org.tinspin.index.Index.BoxIterator;
 import static org.tinspin.index.Index.BoxIteratorKnn;
@@ -181,6 +191,197 @@ public class BoxMapTest extends AbstractWrapperTest {
         }
     }
 
+    @Test
+    public void testInsertAll() {
+        List<Entry> data = createInt(0, MEDIUM, 3);
+        int dim = 3;
+        BoxMap<Entry> tree = createTree(data.size(), dim);
+
+        // First half goes into an empty tree, second half into a non-empty tree
+        int half = data.size() / 2;
+        insertAll(tree, data.subList(0, half));
+        assertEquals(half, tree.size());
+        insertAll(tree, data.subList(half, data.size()));
+        assertEquals(data.size(), tree.size());
+
+        for (Entry e : data) {
+            assertTrue("contains() failed: " + e, tree.contains(e.p1, e.p2));
+            Entry e2 = tree.queryExact(e.p1, e.p2);
+            assertNotNull("queryExact() failed: " + e, e2);
+            assertEquals(e.id, e2.id);
+            assertTrue("queryIntersect() failed: " + e, tree.queryIntersect(e.p1, e.p2).hasNext());
+        }
+    }
+
+    private void insertAll(BoxMap<Entry> tree, List<Entry> data) {
+        int dim = tree.getDims();
+        double[] flatMin = new double[data.size() * dim];
+        double[] flatMax = new double[data.size() * dim];
+        Entry[] values = new Entry[data.size()];
+        for (int i = 0; i < data.size(); i++) {
+            System.arraycopy(data.get(i).p1, 0, flatMin, i * dim, dim);
+            System.arraycopy(data.get(i).p2, 0, flatMax, i * dim, dim);
+            values[i] = data.get(i);
+        }
+        tree.insertAll(flatMin, flatMax, values);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInsertAllIllegalLength() {
+        BoxMap<Entry> tree = createTree(10, 3);
+        tree.insertAll(new double[9], new double[10], new Entry[3]);
+    }
+
+    @Test
+    public void testVisitor() {
+        int dim = 3;
+        Random r = new Random(0);
+        List<Entry> data = createInt(0, MEDIUM, dim);
+        // Use dense data, otherwise most queries return nothing
+        for (Entry e : data) {
+            for (int d = 0; d < dim; d++) {
+                e.p1[d] = r.nextDouble() * BOUND;
+                e.p2[d] = e.p1[d] + r.nextDouble() * BOX_LEN_MAX;
+            }
+        }
+        BoxMap<Entry> tree = createTree(data.size(), dim);
+        for (Entry e : data) {
+            tree.insert(e.p1, e.p2, e);
+        }
+
+        for (int i = 0; i < 100; i++) {
+            // window query
+            double[] min = new double[dim];
+            double[] max = new double[dim];
+            for (int d = 0; d < dim; d++) {
+                double v1 = r.nextDouble() * BOUND;
+                double v2 = r.nextDouble() * BOUND;
+                min[d] = Math.min(v1, v2);
+                max[d] = Math.max(v1, v2);
+            }
+            Set<Integer> expected = new HashSet<>();
+            for (Entry e : data) {
+                if (intersects(e.p1, e.p2, min, max)) {
+                    expected.add(e.id);
+                }
+            }
+            Set<Integer> result = new HashSet<>();
+            tree.queryIntersect(min, max, (p1, p2, v) -> {
+                assertTrue(intersects(p1, p2, min, max));
+                assertTrue(result.add(v.id));
+                return true;
+            });
+            assertEquals(expected, result);
+
+            // kNN query
+            int k = 1 + r.nextInt(20);
+            double[] center = new double[dim];
+            Arrays.setAll(center, x -> r.nextDouble() * BOUND);
+            double[] expectedDist = data.stream().mapToDouble(e -> edgeDist(center, e.p1, e.p2)).sorted().toArray();
+            ArrayList<Double> knn = new ArrayList<>();
+            tree.queryKnn(center, k, (p1, p2, v, dist) -> {
+                assertEquals(edgeDist(center, p1, p2), dist, 1e-9);
+                knn.add(dist);
+                return true;
+            });
+            assertEquals(k, knn.size());
+            for (int j = 0; j < k; j++) {
+                assertEquals(expectedDist[j], knn.get(j), 1e-9);
+            }
+        }
+
+        // abort
+        double[] min = new double[dim];
+        double[] max = new double[dim];
+        Arrays.fill(max, BOUND);
+        int[] count = {0};
+        tree.queryIntersect(min, max, (p1, p2, v) -> ++count[0] < 5);
+        assertEquals(5, count[0]);
+        count[0] = 0;
+        tree.queryKnn(min, 10, (p1, p2, v, dist) -> ++count[0] < 5);
+        assertEquals(5, count[0]);
+
+        // 'k' larger than the tree must not preallocate 'k' candidates
+        count[0] = 0;
+        tree.queryKnn(min, Integer.MAX_VALUE, (p1, p2, v, dist) -> ++count[0] > 0);
+        assertEquals(data.size(), count[0]);
+    }
+
+    @Test
+    public void testQueryBatch() {
+        int dim = 3;
+        List<Entry> data = createInt(0, MEDIUM, dim);
+        BoxMap<Entry> tree = createTree(data.size(), dim);
+        for (Entry e : data) {
+            tree.insert(e.p1, e.p2, e);
+        }
+
+        int nQueries = 1000;
+        int k = 10;
+        Random r = new Random(0);
+        double[][] centers = new double[nQueries][];
+        double[][] min = new double[nQueries][];
+        double[][] max = new double[nQueries][];
+        for (int i = 0; i < nQueries; i++) {
+            Entry e = data.get(r.nextInt(data.size()));
+            centers[i] = e.p1.clone();
+            min[i] = e.p1.clone();
+            max[i] = e.p2.clone();
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            BatchResult<Entry> knn = tree.queryKnnBatch(centers, k, pool);
+            assertEquals(nQueries, knn.size());
+            assertEquals(nQueries * k, knn.totalCount());
+            for (int i = 0; i < nQueries; i++) {
+                int[] pos = {knn.start(i)};
+                double[] center = centers[i];
+                tree.queryKnn(center, k, (p1, p2, v, dist) -> {
+                    assertEquals(dist, knn.dist(pos[0]), 0.0);
+                    assertEquals(dist, edgeDist(center, knn.min(pos[0]), knn.max(pos[0])), 1e-9);
+                    pos[0]++;
+                    return true;
+                });
+                assertEquals(knn.end(i), pos[0]);
+            }
+
+            BatchResult<Entry> window = tree.queryIntersectBatch(min, max, pool);
+            assertEquals(nQueries, window.size());
+            for (int i = 0; i < nQueries; i++) {
+                Set<Integer> expected = new HashSet<>();
+                tree.queryIntersect(min[i], max[i], (p1, p2, v) -> expected.add(v.id));
+                assertFalse(expected.isEmpty());
+                Set<Integer> result = new HashSet<>();
+                for (int j = window.start(i); j < window.end(i); j++) {
+                    assertTrue(intersects(window.min(j), window.max(j), min[i], max[i]));
+                    assertTrue(result.add(window.value(j).id));
+                }
+                assertEquals(expected, result);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static boolean intersects(double[] p1, double[] p2, double[] min, double[] max) {
+        for (int d = 0; d < p1.length; d++) {
+            if (p2[d] < min[d] || p1[d] > max[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static double edgeDist(double[] center, double[] min, double[] max) {
+        double dist = 0;
+        for (int d = 0; d < center.length; d++) {
+            double delta = center[d] < min[d] ? min[d] - center[d] : (center[d] > max[d] ? center[d] - max[d] : 0);
+            dist += delta * delta;
+        }
+        return Math.sqrt(dist);
+    }
+
     @Test
     public void testUpdate() {
         Random r = new Random(42);
@@ -217,6 +418,179 @@ public class BoxMapTest extends AbstractWrapperTest {
         }
     }
 
+    @Test
+    public void testCount() throws IOException {
+        Random r = new Random(0);
+        int dim = 3;
+        ArrayList<Entry> data = new ArrayList<>();
+        for (int i = 0; i < MEDIUM; i++) {
+            Entry e = new Entry(dim, i);
+            for (int d = 0; d < dim; d++) {
+                e.p1[d] = r.nextInt(BOUND);
+                e.p2[d] = e.p1[d] + r.nextInt(BOX_LEN_MAX);
+            }
+            data.add(e);
+        }
+        BoxMap<Entry> tree = createTree(data.size(), dim);
+        for (Entry e : data) {
+            tree.insert(e.p1, e.p2, e);
+        }
+        checkCount(tree, r);
+
+        // remove and move entries
+        for (int i = 0; i < data.size(); i += 3) {
+            Entry e = data.get(i);
+            if (i % 2 == 0) {
+                assertNotNull(tree.remove(e.p1, e.p2));
+            } else {
+                double[] p1New = e.p1.clone();
+                double[] p2New = e.p2.clone();
+                p1New[0] += 10;
+                p2New[0] += 10;
+                assertNotNull(tree.update(e.p1, e.p2, p1New, p2New));
+            }
+        }
+        checkCount(tree, r);
+        if (candidate == IDX.ARRAY) {
+            return;
+        }
+        tree.getStats();
+
+        Path file = Files.createTempFile("tinspin", ".snapshot");
+        try {
+            tree.writeSnapshot(file, ENTRY_SERIALIZER);
+            BoxMap<Entry> tree2 = createTree(data.size(), dim);
+            tree2.readSnapshot(file, ENTRY_SERIALIZER);
+            checkCount(tree2, r);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private void checkCount(BoxMap<Entry> tree, Random r) {
+        double[] min = new double[tree.getDims()];
+        double[] max = new double[tree.getDims()];
+        for (int i = 0; i < 200; i++) {
+            for (int d = 0; d < min.length; d++) {
+                // query boundaries are often equal to coordinates
+                min[d] = r.nextInt(BOUND);
+                max[d] = min[d] + r.nextInt(4) * r.nextInt(BOUND);
+            }
+            if (i == 0) {
+                Arrays.fill(min, Double.NEGATIVE_INFINITY);
+                Arrays.fill(max, Double.POSITIVE_INFINITY);
+            }
+            int n = 0;
+            for (BoxIterator<Entry> it = tree.queryIntersect(min, max); it.hasNext(); it.next()) {
+                n++;
+            }
+            assertEquals(n, tree.count(min, max));
+        }
+    }
+
+    @Test
+    public void testSpliterator() {
+        Random r = new Random(0);
+        int dim = 3;
+        ArrayList<Entry> data = createInt(0, MEDIUM, dim);
+        BoxMap<Entry> tree = createTree(data.size(), dim);
+        for (Entry e : data) {
+            tree.insert(e.p1, e.p2, e);
+        }
+
+        if (candidate != IDX.ARRAY) {
+            Set<Entry> all = tree.parallelStream().map(BoxEntry::value).collect(Collectors.toSet());
+            assertEquals(new HashSet<>(data), all);
+
+            // The parts of a split spliterator must be disjoint
+            Spliterator<BoxEntry<Entry>> s1 = tree.spliterator();
+            Spliterator<BoxEntry<Entry>> s2 = s1.trySplit();
+            if (candidate == IDX.RSTAR || candidate == IDX.STR) {
+                assertNotNull(s2);
+                assertEquals(data.size(), s1.estimateSize() + s2.estimateSize());
+            }
+            Set<Entry> parts = new HashSet<>();
+            s1.forEachRemaining(e -> assertTrue(parts.add(e.value())));
+            if (s2 != null) {
+                s2.forEachRemaining(e -> assertTrue(parts.add(e.value())));
+            }
+            assertEquals(all, parts);
+        }
+
+        double[] min = new double[dim];
+        double[] max = new double[dim];
+        for (int i = 0; i < 100; i++) {
+            for (int d = 0; d < dim; d++) {
+                min[d] = r.nextDouble() * BOUND;
+                max[d] = min[d] + r.nextInt(4) * r.nextDouble() * BOUND;
+            }
+            Set<Entry> expected = new HashSet<>();
+            for (BoxIterator<Entry> it = tree.queryIntersect(min, max); it.hasNext(); ) {
+                expected.add(it.next().value());
+            }
+            Set<Entry> result = StreamSupport.stream(tree.spliterator(min, max), true)
+                    .map(BoxEntry::value).collect(Collectors.toSet());
+            assertEquals(expected, result);
+        }
+    }
+
+    @Test
+    public void testQueryKnnApprox() {
+        Random r = new Random(0);
+        int dim = 5;
+        int k = 10;
+        List<Entry> data = createInt(0, MEDIUM, dim);
+        BoxMap<Entry> tree = createTree(data.size(), dim);
+        for (Entry e : data) {
+            tree.insert(e.p1, e.p2, e);
+        }
+        for (int i = 0; i < 100; i++) {
+            double[] center = new double[dim];
+            Arrays.setAll(center, d -> r.nextInt() * (double) BOUND);
+            double[] exact = data.stream().mapToDouble(e -> edgeDist(center, e.p1, e.p2)).sorted().limit(k).toArray();
+            for (double epsilon : new double[]{0, 0.1, 1}) {
+                BoxIteratorKnn<Entry> it = tree.queryKnn(center, k, epsilon);
+                int n = 0;
+                while (it.hasNext()) {
+                    BoxEntryKnn<Entry> e = it.next();
+                    assertEquals(edgeDist(center, e.min(), e.max()), e.dist(), 1e-3);
+                    // Results may be out of order, but the n-th result is at most (1+epsilon)
+                    // farther away than the exact n-th neighbor
+                    assertTrue(e.dist() <= exact[n] * (1 + epsilon) * (1 + 1e-12));
+                    n++;
+                }
+                assertEquals(k, n);
+            }
+        }
+    }
+
+    @Test
+    public void testQueryNearest() {
+        Random r = new Random(0);
+        int dim = 3;
+        List<Entry> data = createInt(0, 1000, dim);
+        BoxMap<Entry> tree = createTree(data.size(), dim);
+        for (Entry e : data) {
+            tree.insert(e.p1, e.p2, e);
+        }
+        for (int i = 0; i < 20; i++) {
+            double[] center = new double[dim];
+            Arrays.setAll(center, d -> r.nextInt() * (double) BOUND);
+            double[] exact = data.stream().mapToDouble(e -> edgeDist(center, e.p1, e.p2)).sorted().toArray();
+            BoxIteratorKnn<Entry> it = tree.queryNearest(center);
+            Set<Entry> result = new HashSet<>();
+            int n = 0;
+            while (it.hasNext()) {
+                BoxEntryKnn<Entry> e = it.next();
+                assertTrue(result.add(e.value()));
+                assertEquals(edgeDist(center, e.min(), e.max()), e.dist(), 1e-3);
+                assertEquals(exact[n], e.dist(), 1e-3);
+                n++;
+            }
+            assertEquals(data.size(), n);
+        }
+    }
+
     private boolean containsExact(BoxMap<Entry> tree, double[] p1, double[] p2, int id) {
         Entry e = tree.queryExact(p1, p2);
         return e != null && e.id == id;
@@ -326,6 +700,72 @@ public class BoxMapTest extends AbstractWrapperTest {
         assertEquals(n - nDelete, kNNResult.size());
     }
 
+    @Test
+    public void testSnapshot() throws IOException {
+        List<Entry> data = createInt(0, MEDIUM, 3);
+        // some entries are points
+        for (int i = 0; i < data.size(); i += 3) {
+            data.get(i).p2 = data.get(i).p1;
+        }
+        BoxMap<Entry> tree = createTree(data.size(), 3);
+        for (Entry e : data) {
+            tree.insert(e.p1, e.p2, e);
+        }
+
+        Path file = Files.createTempFile("tinspin", ".snapshot");
+        try {
+            tree.writeSnapshot(file, ENTRY_SERIALIZER);
+            BoxMap<Entry> tree2 = createTree(data.size(), 3);
+            tree2.readSnapshot(file, ENTRY_SERIALIZER);
+
+            assertEquals(tree.size(), tree2.size());
+            if (candidate == IDX.RSTAR || candidate == IDX.STR) {
+                // The tree structure is restored
+                assertEquals(tree.getDepth(), tree2.getDepth());
+                assertEquals(tree.getNodeCount(), tree2.getNodeCount());
+            }
+            for (Entry e : data) {
+                Entry e2 = tree2.queryExact(e.p1, e.p2);
+                assertNotNull("queryExact() failed: " + e, e2);
+                assertTrue(e.equals(e2));
+                assertEquals(0, tree2.query1nn(e.p1).dist(), 0.0);
+            }
+            assertThrows(IllegalStateException.class, () -> tree2.readSnapshot(file, ENTRY_SERIALIZER));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static final ValueSerializer<Entry> ENTRY_SERIALIZER = new ValueSerializer<Entry>() {
+        @Override
+        public int size(Entry e) {
+            return Integer.BYTES * 2 + e.p1.length * Double.BYTES * 2;
+        }
+
+        @Override
+        public void write(ByteBuffer buf, Entry e) {
+            buf.putInt(e.id);
+            buf.putInt(e.p1.length);
+            for (int i = 0; i < e.p1.length; i++) {
+                buf.putDouble(e.p1[i]);
+                buf.putDouble(e.p2[i]);
+            }
+        }
+
+        @Override
+        public Entry read(ByteBuffer buf) {
+            Entry e = new Entry(0, buf.getInt());
+            int dim = buf.getInt();
+            e.p1 = new double[dim];
+            e.p2 = new double[dim];
+            for (int i = 0; i < dim; i++) {
+                e.p1[i] = buf.getDouble();
+                e.p2[i] = buf.getDouble();
+            }
+            return e;
+        }
+    };
+
     private <T> BoxMap<T> createTree(int size, int dims) {
         switch (candidate) {
             case ARRAY:
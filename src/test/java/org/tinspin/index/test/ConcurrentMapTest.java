@@ -0,0 +1,221 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.test;
+
+import org.junit.Test;
+import org.tinspin.index.BoxMap;
+import org.tinspin.index.PointDistance;
+import org.tinspin.index.PointMap;
+import org.tinspin.index.util.ConcurrentBoxMap;
+import org.tinspin.index.util.ConcurrentPointMap;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+
+import static org.junit.Assert.*;
+import static org.tinspin.index.Index.*;
+
+public class ConcurrentMapTest {
+
+    private static final int DIMS = 3;
+    private static final int N = 5_000;
+    private static final int N_THREADS = 4;
+    private static final int N_OPS = 20_000;
+
+    private static double[][] createPoints(long seed, int n) {
+        Random r = new Random(seed);
+        double[][] points = new double[n][DIMS];
+        for (double[] p : points) {
+            Arrays.setAll(p, d -> r.nextDouble());
+        }
+        return points;
+    }
+
+    @Test
+    public void testPointMap() {
+        PointMap<Integer> map = ConcurrentPointMap.create(PointMap.Factory.createPhTree(DIMS));
+        double[][] points = createPoints(0, N);
+        for (int i = 0; i < N; i++) {
+            map.insert(points[i], i);
+        }
+        assertEquals(N, map.size());
+        for (int i = 0; i < N; i++) {
+            assertTrue(map.contains(points[i]));
+            assertEquals(i, (int) map.queryExact(points[i]));
+            assertArrayEquals(points[i], map.query1nn(points[i]).point(), 0.0);
+        }
+
+        // Iterators contain a snapshot and are not affected by modifications
+        PointIterator<Integer> it = map.iterator();
+        PointIteratorKnn<Integer> itKnn = map.queryKnn(points[0], 10);
+        for (int i = 0; i < N / 2; i++) {
+            assertEquals(i, (int) map.remove(points[i]));
+        }
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        assertEquals(N, n);
+        assertArrayEquals(points[0], itKnn.next().point(), 0.0);
+        itKnn.reset(points[0], 10);
+        assertFalse(Arrays.equals(points[0], itKnn.next().point()));
+
+        double[] min = new double[DIMS];
+        double[] max = new double[DIMS];
+        Arrays.fill(max, 1);
+        n = 0;
+        for (it = map.query(min, max); it.hasNext(); it.next()) {
+            n++;
+        }
+        assertEquals(N - N / 2, n);
+        map.clear();
+        assertEquals(0, map.size());
+    }
+
+    /**
+     * The kD-tree returns its nodes as entries, remove() moves other entries into these nodes.
+     */
+    @Test
+    public void testSnapshotKdTree() {
+        PointMap<Integer> map = ConcurrentPointMap.create(PointMap.Factory.createKdTree(DIMS));
+        double[][] points = createPoints(0, N);
+        for (int i = 0; i < N; i++) {
+            map.insert(points[i], i);
+        }
+        PointIterator<Integer> it = map.iterator();
+        PointIteratorKnn<Integer> itKnn = map.queryKnn(points[0], N);
+        for (int i = 0; i < N; i += 2) {
+            assertEquals(i, (int) map.remove(points[i]));
+        }
+
+        boolean[] found = new boolean[N];
+        while (it.hasNext()) {
+            PointEntry<Integer> e = it.next();
+            assertArrayEquals(points[e.value()], e.point(), 0.0);
+            assertFalse(found[e.value()]);
+            found[e.value()] = true;
+        }
+        for (boolean f : found) {
+            assertTrue(f);
+        }
+
+        Arrays.fill(found, false);
+        double prevDist = 0;
+        while (itKnn.hasNext()) {
+            PointEntryKnn<Integer> e = itKnn.next();
+            assertArrayEquals(points[e.value()], e.point(), 0.0);
+            assertEquals(PointDistance.L2.dist(points[0], e.point()), e.dist(), 0.0);
+            assertTrue(e.dist() >= prevDist);
+            prevDist = e.dist();
+            assertFalse(found[e.value()]);
+            found[e.value()] = true;
+        }
+        for (boolean f : found) {
+            assertTrue(f);
+        }
+    }
+
+    @Test
+    public void testBoxMap() {
+        BoxMap<Integer> map = ConcurrentBoxMap.create(BoxMap.Factory.createRStarTree(DIMS));
+        double[][] points = createPoints(0, N);
+        for (int i = 0; i < N; i++) {
+            map.insert(points[i], points[i], i);
+        }
+        assertEquals(N, map.size());
+        for (int i = 0; i < N; i++) {
+            assertTrue(map.contains(points[i], points[i]));
+            assertEquals(i, (int) map.queryExact(points[i], points[i]));
+            assertArrayEquals(points[i], map.query1nn(points[i]).min(), 0.0);
+        }
+        BoxIterator<Integer> it = map.iterator();
+        for (int i = 0; i < N / 2; i++) {
+            assertEquals(i, (int) map.remove(points[i], points[i]));
+        }
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        assertEquals(N, n);
+        assertEquals(N - N / 2, map.size());
+    }
+
+    @Test
+    public void testConcurrentKdTree() throws InterruptedException {
+        concurrentTest(dims -> ConcurrentPointMap.create(PointMap.Factory.createKdTree(dims)));
+    }
+
+    @Test
+    public void testConcurrentQuadtree() throws InterruptedException {
+        concurrentTest(dims -> ConcurrentPointMap.create(PointMap.Factory.createQuadtreeHC2(dims)));
+    }
+
+    @Test
+    public void testConcurrentRTree() throws InterruptedException {
+        concurrentTest(dims -> ConcurrentPointMap.create(PointMap.Factory.createRStarTree(dims)));
+    }
+
+    /**
+     * Every thread inserts and removes its own points while reading the 'stable' points.
+     * The 'stable' points must always be found.
+     */
+    private void concurrentTest(IntFunction<PointMap<Integer>> factory) throws InterruptedException {
+        PointMap<Integer> map = factory.apply(DIMS);
+        double[][] stable = createPoints(0, N);
+        for (int i = 0; i < N; i++) {
+            map.insert(stable[i], i);
+        }
+
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] threads = new Thread[N_THREADS];
+        for (int t = 0; t < N_THREADS; t++) {
+            int seed = t + 1;
+            threads[t] = new Thread(() -> {
+                try {
+                    Random r = new Random(seed);
+                    double[][] own = createPoints(seed, N_OPS);
+                    for (int i = 0; i < N_OPS; i++) {
+                        map.insert(own[i], -1);
+                        int pos = r.nextInt(N);
+                        assertEquals(pos, (int) map.queryExact(stable[pos]));
+                        assertTrue(map.contains(stable[pos]));
+                        assertEquals(0, map.query1nn(stable[pos]).dist(), 0.0);
+                        if (i % 10 == 0) {
+                            assertEquals(-1, (int) map.remove(own[i / 10]));
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        assertEquals(N + N_THREADS * (N_OPS - N_OPS / 10), map.size());
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.test;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+import org.tinspin.index.BoxMap;
+import org.tinspin.index.PointMap;
+import org.tinspin.index.kdtree.KDTree;
+import org.tinspin.index.rtree.RTree;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class JfrEventTest {
+
+    private static final int DIMS = 3;
+    private static final int N = 100;
+
+    private static final String INSERT = "org.tinspin.index.Insert";
+    private static final String REMOVE = "org.tinspin.index.Remove";
+    private static final String LOAD = "org.tinspin.index.Load";
+    private static final String WINDOW = "org.tinspin.index.WindowQuery";
+    private static final String KNN = "org.tinspin.index.KnnQuery";
+
+    private static List<RecordedEvent> record(Runnable r) throws IOException {
+        Path file = Files.createTempFile("tinspin", ".jfr");
+        try (Recording recording = new Recording()) {
+            for (String name : new String[]{INSERT, REMOVE, LOAD, WINDOW, KNN}) {
+                recording.enable(name).withoutStackTrace();
+            }
+            recording.start();
+            r.run();
+            recording.stop();
+            recording.dump(file);
+            return RecordingFile.readAllEvents(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static List<RecordedEvent> filter(List<RecordedEvent> events, String name) {
+        List<RecordedEvent> result = new ArrayList<>();
+        for (RecordedEvent e : events) {
+            if (e.getEventType().getName().equals(name)) {
+                result.add(e);
+            }
+        }
+        return result;
+    }
+
+    private static double[] flatPoints(int n) {
+        Random r = new Random(0);
+        double[] flat = new double[n * DIMS];
+        Arrays.setAll(flat, i -> r.nextDouble());
+        return flat;
+    }
+
+    private static <T> T exhaust(Iterator<T> it) {
+        T last = null;
+        while (it.hasNext()) {
+            last = it.next();
+        }
+        return last;
+    }
+
+    @Test
+    public void testKdTree() throws IOException {
+        double[] flat = flatPoints(N);
+        List<RecordedEvent> events = record(() -> {
+            PointMap<Integer> tree = PointMap.Factory.createKdTree(DIMS);
+            Integer[] values = new Integer[N];
+            Arrays.setAll(values, i -> i);
+            tree.insertAll(flat, values);
+            double[] p = Arrays.copyOf(flat, DIMS);
+            tree.insert(new double[]{2, 2, 2}, -1);
+            exhaust(tree.query(new double[]{0, 0, 0}, new double[]{1, 1, 1}));
+            exhaust(tree.queryKnn(p, 5));
+            assertEquals(0, (int) tree.remove(p));
+        });
+
+        RecordedEvent load = filter(events, LOAD).get(0);
+        assertEquals(KDTree.class.getName(), load.getClass("indexClass").getName());
+        assertEquals(DIMS, load.getInt("dims"));
+        assertEquals(N, load.getInt("entryCount"));
+        assertEquals(1, filter(events, INSERT).size());
+        assertEquals(1, filter(events, REMOVE).size());
+
+        List<RecordedEvent> windows = filter(events, WINDOW);
+        assertEquals(1, windows.size());
+        assertEquals(N, windows.get(0).getLong("resultCount"));
+        assertTrue(windows.get(0).getLong("nodesVisited") > 0);
+
+        List<RecordedEvent> knn = filter(events, KNN);
+        assertEquals(1, knn.size());
+        assertEquals(5, knn.get(0).getInt("k"));
+        assertEquals(5, knn.get(0).getLong("resultCount"));
+        assertEquals(DIMS, knn.get(0).getInt("dims"));
+    }
+
+    @Test
+    public void testRTree() throws IOException {
+        double[] flat = flatPoints(N);
+        List<RecordedEvent> events = record(() -> {
+            BoxMap<Integer> tree = BoxMap.Factory.createRStarTree(DIMS);
+            Integer[] values = new Integer[N];
+            Arrays.setAll(values, i -> i);
+            tree.insertAll(flat, flat, values);
+            double[] p = Arrays.copyOf(flat, DIMS);
+            tree.insert(p, p, -1);
+            assertEquals(0, (int) tree.remove(p, p));
+            exhaust(tree.queryIntersect(new double[]{0, 0, 0}, new double[]{1, 1, 1}));
+            exhaust(tree.queryKnn(p, 3));
+        });
+
+        RecordedEvent load = filter(events, LOAD).get(0);
+        assertEquals(RTree.class.getName(), load.getClass("indexClass").getName());
+        assertEquals(N, load.getInt("entryCount"));
+        assertEquals(1, filter(events, INSERT).size());
+        assertEquals(1, filter(events, REMOVE).size());
+        assertEquals(N, filter(events, WINDOW).get(0).getLong("resultCount"));
+        assertEquals(3, filter(events, KNN).get(0).getInt("k"));
+    }
+
+    @Test
+    public void testQuadtrees() throws IOException {
+        List<RecordedEvent> events = record(() -> {
+            PointMap<Integer> qt0 = PointMap.Factory.createQuadtree(DIMS);
+            PointMap<Integer> qt1 = PointMap.Factory.createQuadtreeHC(DIMS);
+            PointMap<Integer> qt2 = PointMap.Factory.createQuadtreeHC2(DIMS);
+            PointMap<Integer> ct = PointMap.Factory.createCoverTree(DIMS);
+            for (PointMap<Integer> tree : Arrays.asList(qt0, qt1, qt2, ct)) {
+                tree.insert(new double[]{1, 2, 3}, 1);
+                exhaust(tree.queryKnn(new double[]{1, 2, 3}, 1));
+            }
+            assertEquals(1, (int) qt2.remove(new double[]{1, 2, 3}));
+        });
+        assertEquals(4, filter(events, INSERT).size());
+        assertEquals(4, filter(events, KNN).size());
+        assertEquals(1, filter(events, REMOVE).size());
+    }
+
+    @Test
+    public void testDisabled() {
+        // Without a recording, operations work as usual and do not fail
+        PointMap<Integer> tree = PointMap.Factory.createKdTree(DIMS);
+        tree.insert(new double[]{1, 2, 3}, 1);
+        assertEquals(1, (int) exhaust(tree.queryKnn(new double[]{1, 2, 3}, 1)).value());
+        assertEquals(1, (int) tree.remove(new double[]{1, 2, 3}));
+    }
+}
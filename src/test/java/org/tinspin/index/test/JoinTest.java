@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.test;
+
+import org.junit.Test;
+import org.tinspin.index.BoxMap;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntFunction;
+
+import static org.junit.Assert.*;
+
+public class JoinTest {
+
+    private static final int DIMS = 3;
+    private static final int N1 = 2_000;
+    private static final int N2 = 3_000;
+
+    private static double[][][] createBoxes(long seed, int n, double maxSize) {
+        Random r = new Random(seed);
+        double[][][] boxes = new double[n][2][DIMS];
+        for (double[][] box : boxes) {
+            for (int d = 0; d < DIMS; d++) {
+                box[0][d] = r.nextDouble();
+                box[1][d] = box[0][d] + r.nextDouble() * maxSize;
+            }
+        }
+        return boxes;
+    }
+
+    private static BoxMap<Integer> fill(BoxMap<Integer> map, double[][][] boxes) {
+        for (int i = 0; i < boxes.length; i++) {
+            map.insert(boxes[i][0], boxes[i][1], i);
+        }
+        return map;
+    }
+
+    private static Set<Long> bruteForce(double[][][] boxes1, double[][][] boxes2) {
+        Set<Long> result = new HashSet<>();
+        for (int i = 0; i < boxes1.length; i++) {
+            for (int j = 0; j < boxes2.length; j++) {
+                if (overlap(boxes1[i], boxes2[j])) {
+                    result.add(key(i, j));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean overlap(double[][] b1, double[][] b2) {
+        for (int d = 0; d < DIMS; d++) {
+            if (b1[1][d] < b2[0][d] || b1[0][d] > b2[1][d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long key(int i, int j) {
+        return ((long) i << 32) | j;
+    }
+
+    private static void testJoin(IntFunction<BoxMap<Integer>> factory1, IntFunction<BoxMap<Integer>> factory2) {
+        double[][][] boxes1 = createBoxes(0, N1, 0.05);
+        double[][][] boxes2 = createBoxes(1, N2, 0.02);
+        BoxMap<Integer> map1 = fill(factory1.apply(DIMS), boxes1);
+        BoxMap<Integer> map2 = fill(factory2.apply(DIMS), boxes2);
+        Set<Long> expected = bruteForce(boxes1, boxes2);
+        assertFalse(expected.isEmpty());
+
+        for (ForkJoinPool pool : new ForkJoinPool[]{new ForkJoinPool(1), new ForkJoinPool(4)}) {
+            Set<Long> result = ConcurrentHashMap.newKeySet();
+            map1.join(map2, (min1, max1, v1, min2, max2, v2) -> {
+                assertArrayEquals(boxes1[v1][0], min1, 0.0);
+                assertArrayEquals(boxes2[v2][1], max2, 0.0);
+                assertTrue("Duplicate: " + v1 + "/" + v2, result.add(key(v1, v2)));
+            }, pool);
+            pool.shutdown();
+            assertEquals(expected, result);
+        }
+    }
+
+    @Test
+    public void testRTree() {
+        testJoin(BoxMap.Factory::createRStarTree, BoxMap.Factory::createRStarTree);
+    }
+
+    @Test
+    public void testRTreeSTR() {
+        double[][][] boxes1 = createBoxes(0, N1, 0.05);
+        double[] flatMin = new double[N1 * DIMS];
+        double[] flatMax = new double[N1 * DIMS];
+        Integer[] values = new Integer[N1];
+        for (int i = 0; i < N1; i++) {
+            System.arraycopy(boxes1[i][0], 0, flatMin, i * DIMS, DIMS);
+            System.arraycopy(boxes1[i][1], 0, flatMax, i * DIMS, DIMS);
+            values[i] = i;
+        }
+        BoxMap<Integer> map1 = BoxMap.Factory.createRStarTree(DIMS);
+        map1.insertAll(flatMin, flatMax, values);
+        double[][][] boxes2 = createBoxes(1, 100, 0.2);
+        BoxMap<Integer> map2 = fill(BoxMap.Factory.createRStarTree(DIMS), boxes2);
+        Set<Long> result = ConcurrentHashMap.newKeySet();
+        map1.join(map2, (min1, max1, v1, min2, max2, v2) -> result.add(key(v1, v2)));
+        assertEquals(bruteForce(boxes1, boxes2), result);
+    }
+
+    @Test
+    public void testQuadtree() {
+        testJoin(BoxMap.Factory::createQuadtree, BoxMap.Factory::createQuadtree);
+    }
+
+    @Test
+    public void testQuadtreeHC() {
+        testJoin(BoxMap.Factory::createQuadtreeHC, BoxMap.Factory::createQuadtreeHC);
+    }
+
+    @Test
+    public void testMixed() {
+        testJoin(BoxMap.Factory::createQuadtreeHC, BoxMap.Factory::createRStarTree);
+        testJoin(BoxMap.Factory::createPhTree, BoxMap.Factory::createQuadtree);
+    }
+
+    @Test
+    public void testEmpty() {
+        BoxMap<Integer> map1 = BoxMap.Factory.createRStarTree(DIMS);
+        BoxMap<Integer> map2 = fill(BoxMap.Factory.createRStarTree(DIMS), createBoxes(0, 10, 0.1));
+        map1.join(map2, (min1, max1, v1, min2, max2, v2) -> fail());
+        map2.join(map1, (min1, max1, v1, min2, max2, v2) -> fail());
+        BoxMap<Integer> qt = BoxMap.Factory.createQuadtree(DIMS);
+        qt.join(BoxMap.Factory.createQuadtree(DIMS), (min1, max1, v1, min2, max2, v2) -> fail());
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.test;
+
+import org.junit.Test;
+import org.tinspin.index.KnnJoin;
+import org.tinspin.index.PointMap;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntFunction;
+
+import static org.junit.Assert.*;
+
+public class KnnJoinTest {
+
+    private static final int DIMS = 3;
+    private static final int N1 = 2_000;
+    private static final int N2 = 5_000;
+    private static final int K = 5;
+
+    private static double[][] createPoints(long seed, int n) {
+        Random r = new Random(seed);
+        double[][] points = new double[n][DIMS];
+        for (double[] p : points) {
+            Arrays.setAll(p, d -> r.nextDouble());
+        }
+        return points;
+    }
+
+    private static PointMap<Integer> fill(PointMap<Integer> map, double[][] points) {
+        for (int i = 0; i < points.length; i++) {
+            map.insert(points[i], i);
+        }
+        return map;
+    }
+
+    private static double dist(double[] p1, double[] p2) {
+        double d = 0;
+        for (int i = 0; i < p1.length; i++) {
+            d += (p1[i] - p2[i]) * (p1[i] - p2[i]);
+        }
+        return Math.sqrt(d);
+    }
+
+    private static void check(double[][] queries, double[][] points, KnnJoin.Result result, int k) {
+        assertEquals(k, result.k());
+        double[] all = new double[points.length];
+        for (int q = 0; q < result.size(); q++) {
+            double[] center = queries[result.queryId(q)];
+            for (int i = 0; i < points.length; i++) {
+                all[i] = dist(center, points[i]);
+            }
+            Arrays.sort(all);
+            for (int i = 0; i < k; i++) {
+                if (i < points.length) {
+                    int id = result.id(q, i);
+                    assertEquals(all[i], result.dist(q, i), 0.0);
+                    assertEquals(all[i], dist(center, points[id]), 0.0);
+                } else {
+                    assertEquals(-1, result.id(q, i));
+                    assertEquals(Double.POSITIVE_INFINITY, result.dist(q, i), 0.0);
+                }
+            }
+        }
+    }
+
+    private void testJoin(IntFunction<PointMap<Integer>> factory) {
+        double[][] queries = createPoints(0, N1);
+        double[][] points = createPoints(1, N2);
+        PointMap<Integer> tree = fill(factory.apply(DIMS), points);
+        for (int nThreads : new int[]{1, 4}) {
+            ForkJoinPool pool = new ForkJoinPool(nThreads);
+            try {
+                check(queries, points, KnnJoin.join(queries, tree, K, pool), K);
+                check(queries, points, KnnJoin.join(queries, tree, 1, pool), 1);
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testKdTree() {
+        testJoin(PointMap.Factory::createKdTree);
+    }
+
+    @Test
+    public void testCoverTree() {
+        testJoin(PointMap.Factory::createCoverTree);
+    }
+
+    @Test
+    public void testRTree() {
+        testJoin(PointMap.Factory::createRStarTree);
+    }
+
+    @Test
+    public void testPointMaps() {
+        double[][] queries = createPoints(0, N1);
+        double[][] points = createPoints(1, N2);
+        PointMap<Integer> a = fill(PointMap.Factory.createQuadtreeHC(DIMS), queries);
+        PointMap<Integer> b = fill(PointMap.Factory.createKdTree(DIMS), points);
+        KnnJoin.Result result = KnnJoin.join(a, b, K);
+        assertEquals(N1, result.size());
+        check(queries, points, result, K);
+    }
+
+    @Test
+    public void testDuplicates() {
+        double[][] queries = createPoints(0, N1);
+        double[][] points = createPoints(1, 100);
+        double[][] points2 = new double[200][];
+        for (int i = 0; i < points2.length; i++) {
+            points2[i] = points[i / 2];
+        }
+        PointMap<Integer> tree = fill(PointMap.Factory.createKdTree(DIMS), points2);
+        // Duplicate queries and queries that are identical to points
+        for (int i = 0; i < N1; i += 2) {
+            queries[i] = i % 4 == 0 ? points[i % points.length] : queries[i + 1];
+        }
+        check(queries, points2, KnnJoin.join(queries, tree, K), K);
+    }
+
+    @Test
+    public void testSmallTree() {
+        double[][] queries = createPoints(0, N1);
+        double[][] points = createPoints(1, 3);
+        check(queries, points, KnnJoin.join(queries, fill(PointMap.Factory.createKdTree(DIMS), points), K), K);
+        double[][] empty = new double[0][];
+        check(queries, empty, KnnJoin.join(queries, PointMap.Factory.createKdTree(DIMS), K), K);
+        assertEquals(0, KnnJoin.join(empty, fill(PointMap.Factory.createKdTree(DIMS), points), K).size());
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.test;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.tinspin.index.PointDistanceF;
+import org.tinspin.index.PointMapF;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.tinspin.index.PointMapF.*;
+import static org.tinspin.index.test.util.TestInstances.IDX;
+
+@RunWith(Parameterized.class)
+public class PointMapFTest {
+
+    private static final int BOUND = 100;
+    private static final int MEDIUM = 5_000;
+
+    private final IDX candidate;
+
+    public PointMapFTest(IDX candCls) {
+        this.candidate = candCls;
+    }
+
+    @Parameterized.Parameters
+    public static Iterable<Object[]> candidates() {
+        ArrayList<Object[]> l = new ArrayList<>();
+        l.add(new Object[]{IDX.KDTREE});
+        l.add(new Object[]{IDX.QUAD_HC2});
+        return l;
+    }
+
+    private static float[][] createPoints(long seed, int n, int dims) {
+        Random r = new Random(seed);
+        float[][] points = new float[n][dims];
+        for (float[] p : points) {
+            for (int d = 0; d < dims; d++) {
+                p[d] = r.nextFloat() * BOUND;
+            }
+        }
+        return points;
+    }
+
+    private PointMapF<Integer> createTree(int dims) {
+        switch (candidate) {
+            case KDTREE:
+                return PointMapF.Factory.createKdTree(dims);
+            case QUAD_HC2:
+                return PointMapF.Factory.createQuadtreeHC2(dims);
+            default:
+                throw new UnsupportedOperationException(candidate.name());
+        }
+    }
+
+    @Test
+    public void smokeTest3D() {
+        smokeTest(createPoints(0, MEDIUM, 3));
+    }
+
+    @Test
+    public void smokeTest10D() {
+        smokeTest(createPoints(0, MEDIUM, 10));
+    }
+
+    /**
+     * Tests handling of all points being on a line, i.e. correct handling of <=, etc.
+     */
+    @Test
+    public void smokeTest_Line() {
+        float[][] points = createPoints(0, MEDIUM, 3);
+        for (int i = 0; i < points.length; i++) {
+            points[i][0] = i % 3;
+            points[i][1] = i;
+            points[i][2] = i % 5;
+        }
+        smokeTest(points);
+    }
+
+    private void smokeTest(float[][] points) {
+        int dims = points[0].length;
+        PointMapF<Integer> tree = createTree(dims);
+        for (int i = 0; i < points.length; i++) {
+            tree.insert(points[i], i);
+        }
+        assertEquals(points.length, tree.size());
+        tree.getStats();
+
+        for (int i = 0; i < points.length; i++) {
+            assertTrue(tree.contains(points[i]));
+            assertEquals(i, (int) tree.queryExact(points[i]));
+            PointEntryKnnF<Integer> e = tree.query1nn(points[i]);
+            assertArrayEquals(points[i], e.point(), 0f);
+            assertEquals(0, e.dist(), 0f);
+        }
+
+        int n = 0;
+        for (PointIteratorF<Integer> it = tree.iterator(); it.hasNext(); it.next()) {
+            n++;
+        }
+        assertEquals(points.length, n);
+
+        for (int i = 0; i < points.length; i += 10) {
+            assertTrue(tree.query(points[i], points[i]).hasNext());
+            assertNotNull(tree.remove(points[i]));
+            assertFalse(tree.contains(points[i]));
+            assertNull(tree.remove(points[i]));
+        }
+        assertEquals(points.length - (points.length + 9) / 10, tree.size());
+
+        for (int i = 1; i < points.length; i += 10) {
+            float[] p2 = points[i].clone();
+            p2[0] += 0.5f;
+            assertEquals(i, (int) tree.update(points[i], p2));
+            assertFalse(tree.contains(points[i]));
+            assertEquals(i, (int) tree.queryExact(p2));
+            assertEquals(i, (int) tree.update(p2, points[i]));
+        }
+
+        for (int i = 1; i < points.length; i += 10) {
+            tree.remove(points[i]);
+        }
+        tree.clear();
+        assertEquals(0, tree.size());
+        assertFalse(tree.iterator().hasNext());
+        assertNull(tree.query1nn(points[0]));
+    }
+
+    @Test
+    public void testQuery() {
+        int dims = 3;
+        float[][] points = createPoints(0, MEDIUM, dims);
+        PointMapF<Integer> tree = createTree(dims);
+        for (int i = 0; i < points.length; i++) {
+            tree.insert(points[i], i);
+        }
+        Random r = new Random(1);
+        PointIteratorF<Integer> it = null;
+        for (int q = 0; q < 100; q++) {
+            float[] min = new float[dims];
+            float[] max = new float[dims];
+            for (int d = 0; d < dims; d++) {
+                min[d] = r.nextFloat() * BOUND;
+                max[d] = min[d] + r.nextFloat() * BOUND / 4;
+            }
+            Set<Integer> expected = new HashSet<>();
+            for (int i = 0; i < points.length; i++) {
+                if (isEnclosed(points[i], min, max)) {
+                    expected.add(i);
+                }
+            }
+
+            it = it == null ? tree.query(min, max) : it.reset(min, max);
+            Set<Integer> result = new HashSet<>();
+            while (it.hasNext()) {
+                assertTrue(result.add(it.next().value()));
+            }
+            assertEquals(expected, result);
+
+            Set<Integer> visited = new HashSet<>();
+            tree.query(min, max, (p, v) -> {
+                assertTrue(isEnclosed(p, min, max));
+                return visited.add(v);
+            });
+            assertEquals(expected, visited);
+        }
+    }
+
+    @Test
+    public void testQueryKnn() {
+        int dims = 3;
+        int k = 10;
+        float[][] points = createPoints(0, MEDIUM, dims);
+        PointMapF<Integer> tree = createTree(dims);
+        for (int i = 0; i < points.length; i++) {
+            tree.insert(points[i], i);
+        }
+        float[][] centers = createPoints(1, 100, dims);
+        PointIteratorKnnF<Integer> it = null;
+        for (float[] center : centers) {
+            float[] dists = new float[points.length];
+            for (int i = 0; i < points.length; i++) {
+                dists[i] = PointDistanceF.l2(center, points[i]);
+            }
+            Arrays.sort(dists);
+
+            it = it == null ? tree.queryKnn(center, k) : it.reset(center, k);
+            int n = 0;
+            while (it.hasNext()) {
+                assertEquals(dists[n++], it.next().dist(), 0f);
+            }
+            assertEquals(k, n);
+
+            int[] nVisited = {0};
+            tree.queryKnn(center, k, (p, v, dist) -> {
+                assertEquals(dists[nVisited[0]++], dist, 0f);
+                assertEquals(PointDistanceF.l2(center, p), dist, 0f);
+                return true;
+            });
+            assertEquals(k, nVisited[0]);
+        }
+
+        // 'k' larger than the tree must not preallocate 'k' candidates
+        int[] nVisited = {0};
+        tree.queryKnn(centers[0], Integer.MAX_VALUE, (p, v, dist) -> ++nVisited[0] > 0);
+        assertEquals(points.length, nVisited[0]);
+    }
+
+    @Test
+    public void testInsertAll() {
+        int dims = 3;
+        float[][] points = createPoints(0, MEDIUM, dims);
+        float[] flat = new float[points.length * dims];
+        Integer[] values = new Integer[points.length];
+        for (int i = 0; i < points.length; i++) {
+            System.arraycopy(points[i], 0, flat, i * dims, dims);
+            values[i] = i;
+        }
+        PointMapF<Integer> tree = createTree(dims);
+        tree.insertAll(flat, values);
+        assertEquals(points.length, tree.size());
+        for (int i = 0; i < points.length; i++) {
+            assertEquals(i, (int) tree.queryExact(points[i]));
+        }
+    }
+
+    private static boolean isEnclosed(float[] p, float[] min, float[] max) {
+        for (int d = 0; d < p.length; d++) {
+            if (p[d] < min[d] || p[d] > max[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -20,12 +20,24 @@ package org.tinspin.index.test;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
+import org.tinspin.index.BatchResult;
 import org.tinspin.index.Index;
+import org.tinspin.index.PointDistance;
 import org.tinspin.index.PointMap;
+import org.tinspin.index.util.ValueSerializer;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
 import static org.junit.Assert.*;
+import static org.tinspin.index.Index.PointEntry;
+import static org.tinspin.index.Index.PointEntryKnn;
 import static org.tinspin.index.Index.PointIterator;
 import static org.tinspin.index.Index.PointIteratorKnn;
 import static org.tinspin.index.test.util.TestInstances.IDX;
@@ -49,6 +61,8 @@ public class PointMapTest extends AbstractWrapperTest {
         // l.add(new Object[]{IDX.ARRAY});
         l.add(new Object[]{IDX.COVER});
         l.add(new Object[]{IDX.KDTREE});
+        l.add(new Object[]{IDX.KDTREE_OFFHEAP});
+        l.add(new Object[]{IDX.KDTREE_BUCKET});
         l.add(new Object[]{IDX.PHTREE_MM});
         l.add(new Object[]{IDX.QUAD_HC});
         l.add(new Object[]{IDX.QUAD_HC2});
@@ -143,8 +157,7 @@ public class PointMapTest extends AbstractWrapperTest {
             assertArrayEquals("Expected " + e + " but got " + answer, answer.p, e.p, 0.0001);
         }
 
-        if (candidate != IDX.COVER && candidate != IDX.KDTREE && candidate != IDX.QUAD_PLAIN
-                && candidate != IDX.QUAD_HC && candidate != IDX.QUAD_HC2) {
+        if (candidate != IDX.COVER) {
             int nExtent = 0;
             PointIterator<Entry> extent = tree.iterator();
             while (extent.hasNext()) {
@@ -175,6 +188,331 @@ public class PointMapTest extends AbstractWrapperTest {
         }
     }
 
+    @Test
+    public void testInsertAll() {
+        insertAllTest(createInt(0, MEDIUM, 3));
+    }
+
+    /**
+     * Tests bulk loading of points with many equal coordinates.
+     */
+    @Test
+    public void testInsertAll_Line() {
+        List<Entry> data = createInt(0, MEDIUM, 3);
+        int n = 0;
+        for (Entry e : data) {
+            e.p[0] = n % 3;
+            e.p[1] = n++;
+            e.p[2] = n % 5;
+        }
+        Collections.shuffle(data, new Random(0));
+        insertAllTest(data);
+    }
+
+    private void insertAllTest(List<Entry> data) {
+        int dim = data.get(0).p.length;
+        PointMap<Entry> tree = createTree(data.size(), dim);
+
+        // First half goes into an empty tree, second half into a non-empty tree
+        int half = data.size() / 2;
+        insertAll(tree, data.subList(0, half));
+        assertEquals(half, tree.size());
+        insertAll(tree, data.subList(half, data.size()));
+        assertEquals(data.size(), tree.size());
+
+        for (Entry e : data) {
+            assertTrue("contains(point) failed: " + e, tree.contains(e.p));
+            Entry e2 = tree.queryExact(e.p);
+            assertNotNull("queryExact(point) failed: " + e, e2);
+            assertArrayEquals(e.p, e2.p, 0.0000);
+            Index.PointEntryKnn<Entry> eKnn = tree.query1nn(e.p);
+            assertArrayEquals(e.p, eKnn.point(), 0.0000);
+            if (candidate != IDX.COVER) {
+                assertTrue("query() failed: " + e, tree.query(e.p, e.p).hasNext());
+            }
+        }
+    }
+
+    private void insertAll(PointMap<Entry> tree, List<Entry> data) {
+        int dim = tree.getDims();
+        double[] flat = new double[data.size() * dim];
+        Entry[] values = new Entry[data.size()];
+        for (int i = 0; i < data.size(); i++) {
+            System.arraycopy(data.get(i).p, 0, flat, i * dim, dim);
+            values[i] = data.get(i);
+        }
+        tree.insertAll(flat, values);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInsertAllIllegalLength() {
+        PointMap<Entry> tree = createTree(10, 3);
+        tree.insertAll(new double[10], new Entry[3]);
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        snapshotTest(createInt(0, MEDIUM, 3));
+    }
+
+    @Test
+    public void testSnapshot_Line() throws IOException {
+        List<Entry> data = createInt(0, MEDIUM, 3);
+        int n = 0;
+        for (Entry e : data) {
+            e.p[0] = n % 3;
+            e.p[1] = n++;
+            e.p[2] = n % 5;
+        }
+        snapshotTest(data);
+    }
+
+    @Test
+    public void testSnapshot_Empty() throws IOException {
+        snapshotTest(new ArrayList<>());
+    }
+
+    private void snapshotTest(List<Entry> data) throws IOException {
+        int dim = 3;
+        PointMap<Entry> tree = createTree(data.size(), dim);
+        for (Entry e : data) {
+            tree.insert(e.p, e);
+        }
+        // remove some entries to get a less regular tree
+        boolean removed = candidate != IDX.COVER;
+        for (int i = 0; removed && i < data.size(); i += 10) {
+            assertNotNull(tree.remove(data.get(i).p));
+        }
+
+        Path file = Files.createTempFile("tinspin", ".snapshot");
+        try {
+            tree.writeSnapshot(file, ENTRY_SERIALIZER);
+            PointMap<Entry> tree2 = createTree(data.size(), dim);
+            tree2.readSnapshot(file, ENTRY_SERIALIZER);
+
+            assertEquals(tree.size(), tree2.size());
+            if (candidate == IDX.KDTREE || candidate == IDX.RSTAR || candidate == IDX.STR) {
+                // The tree structure is restored
+                assertEquals(tree.getDepth(), tree2.getDepth());
+                assertEquals(tree.getNodeCount(), tree2.getNodeCount());
+            }
+            for (int i = 0; i < data.size(); i++) {
+                Entry e = data.get(i);
+                if (removed && i % 10 == 0) {
+                    assertEquals(tree.contains(e.p), tree2.contains(e.p));
+                    continue;
+                }
+                Entry e2 = tree2.queryExact(e.p);
+                assertNotNull("queryExact(point) failed: " + e, e2);
+                assertArrayEquals(e.p, e2.p, 0.0);
+                Index.PointEntryKnn<Entry> eKnn = tree2.query1nn(e.p);
+                assertEquals(0, eKnn.dist(), 0.0);
+            }
+            for (int i = 0; i < Math.min(100, data.size()); i++) {
+                double[] center = data.get(i).p;
+                PointIteratorKnn<Entry> it1 = tree.queryKnn(center, 10);
+                PointIteratorKnn<Entry> it2 = tree2.queryKnn(center, 10);
+                while (it1.hasNext()) {
+                    assertEquals(it1.next().dist(), it2.next().dist(), 0.0);
+                }
+                assertFalse(it2.hasNext());
+            }
+
+            // Snapshots can only be loaded into an empty index
+            if (tree2.size() > 0) {
+                assertThrows(IllegalStateException.class, () -> tree2.readSnapshot(file, ENTRY_SERIALIZER));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static final ValueSerializer<Entry> ENTRY_SERIALIZER = new ValueSerializer<Entry>() {
+        @Override
+        public int size(Entry e) {
+            return Integer.BYTES * 2 + e.p.length * Double.BYTES;
+        }
+
+        @Override
+        public void write(ByteBuffer buf, Entry e) {
+            buf.putInt(e.id);
+            buf.putInt(e.p.length);
+            for (double d : e.p) {
+                buf.putDouble(d);
+            }
+        }
+
+        @Override
+        public Entry read(ByteBuffer buf) {
+            Entry e = new Entry(0, buf.getInt());
+            e.p = new double[buf.getInt()];
+            Arrays.setAll(e.p, i -> buf.getDouble());
+            return e;
+        }
+    };
+
+    @Test
+    public void testVisitor() {
+        visitorTest(createInt(0, MEDIUM, 3));
+    }
+
+    /**
+     * Tests visitor queries on points with many equal coordinates.
+     */
+    @Test
+    public void testVisitor_Line() {
+        List<Entry> data = createInt(0, MEDIUM, 3);
+        int n = 0;
+        for (Entry e : data) {
+            e.p[0] = n % 3;
+            e.p[1] = n++;
+            e.p[2] = n % 5;
+        }
+        Collections.shuffle(data, new Random(0));
+        visitorTest(data);
+    }
+
+    private void visitorTest(List<Entry> data) {
+        int dim = data.get(0).p.length;
+        PointMap<Entry> tree = createTree(data.size(), dim);
+        for (Entry e : data) {
+            tree.insert(e.p, e);
+        }
+
+        Random r = new Random(0);
+        for (int i = 0; i < 100; i++) {
+            // window query
+            double[] min = new double[dim];
+            double[] max = new double[dim];
+            for (int d = 0; d < dim; d++) {
+                double v1 = r.nextDouble() * BOUND;
+                double v2 = r.nextDouble() * BOUND;
+                min[d] = Math.min(v1, v2);
+                max[d] = Math.max(v1, v2);
+            }
+            Set<Integer> expected = new HashSet<>();
+            for (Entry e : data) {
+                if (isEnclosed(e.p, min, max)) {
+                    expected.add(e.id);
+                }
+            }
+            Set<Integer> result = new HashSet<>();
+            tree.query(min, max, (p, v) -> {
+                assertTrue(isEnclosed(p, min, max));
+                assertTrue(result.add(v.id));
+                return true;
+            });
+            assertEquals(expected, result);
+
+            // kNN query
+            int k = 1 + r.nextInt(20);
+            double[] center = new double[dim];
+            Arrays.setAll(center, x -> r.nextDouble() * BOUND);
+            double[] expectedDist = data.stream().mapToDouble(e -> dist(center, e.p)).sorted().toArray();
+            ArrayList<Double> knn = new ArrayList<>();
+            tree.queryKnn(center, k, (p, v, dist) -> {
+                assertEquals(dist(center, p), dist, 1e-9);
+                knn.add(dist);
+                return true;
+            });
+            assertEquals(k, knn.size());
+            for (int j = 0; j < k; j++) {
+                assertEquals(expectedDist[j], knn.get(j), 1e-9);
+            }
+        }
+
+        // abort
+        double[] min = new double[dim];
+        double[] max = new double[dim];
+        Arrays.fill(max, BOUND);
+        int[] count = {0};
+        tree.query(min, max, (p, v) -> ++count[0] < 5);
+        assertEquals(5, count[0]);
+        count[0] = 0;
+        tree.queryKnn(min, 10, (p, v, dist) -> ++count[0] < 5);
+        assertEquals(5, count[0]);
+
+        // 'k' larger than the tree must not preallocate 'k' candidates
+        count[0] = 0;
+        tree.queryKnn(min, Integer.MAX_VALUE, (p, v, dist) -> ++count[0] > 0);
+        assertEquals(data.size(), count[0]);
+    }
+
+    @Test
+    public void testQueryBatch() {
+        int dim = 3;
+        List<Entry> data = createInt(0, MEDIUM, dim);
+        PointMap<Entry> tree = createTree(data.size(), dim);
+        for (Entry e : data) {
+            tree.insert(e.p, e);
+        }
+
+        int nQueries = 1000;
+        int k = 10;
+        Random r = new Random(0);
+        double[][] centers = new double[nQueries][dim];
+        double[][] min = new double[nQueries][dim];
+        double[][] max = new double[nQueries][dim];
+        for (int i = 0; i < nQueries; i++) {
+            for (int d = 0; d < dim; d++) {
+                centers[i][d] = r.nextDouble() * BOUND;
+                min[i][d] = r.nextDouble() * BOUND * 0.9;
+                max[i][d] = min[i][d] + r.nextDouble() * BOUND * 0.1;
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            BatchResult<Entry> knn = tree.queryKnnBatch(centers, k, pool);
+            assertEquals(nQueries, knn.size());
+            assertEquals(nQueries * k, knn.totalCount());
+            for (int i = 0; i < nQueries; i++) {
+                int[] pos = {knn.start(i)};
+                double[] center = centers[i];
+                tree.queryKnn(center, k, (p, v, dist) -> {
+                    assertEquals(dist, knn.dist(pos[0]), 0.0);
+                    assertEquals(dist, dist(center, knn.point(pos[0])), 1e-9);
+                    pos[0]++;
+                    return true;
+                });
+                assertEquals(knn.end(i), pos[0]);
+            }
+
+            BatchResult<Entry> window = tree.queryBatch(min, max, pool);
+            assertEquals(nQueries, window.size());
+            for (int i = 0; i < nQueries; i++) {
+                Set<Integer> expected = new HashSet<>();
+                tree.query(min[i], max[i], (p, v) -> expected.add(v.id));
+                Set<Integer> result = new HashSet<>();
+                for (int j = window.start(i); j < window.end(i); j++) {
+                    assertTrue(isEnclosed(window.point(j), min[i], max[i]));
+                    assertTrue(result.add(window.value(j).id));
+                }
+                assertEquals(expected, result);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static boolean isEnclosed(double[] p, double[] min, double[] max) {
+        for (int d = 0; d < p.length; d++) {
+            if (p[d] < min[d] || p[d] > max[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static double dist(double[] p1, double[] p2) {
+        double dist = 0;
+        for (int d = 0; d < p1.length; d++) {
+            double delta = p1[d] - p2[d];
+            dist += delta * delta;
+        }
+        return Math.sqrt(dist);
+    }
+
     @Test
     public void testUpdate() {
         if (candidate == IDX.COVER) {
@@ -208,6 +546,249 @@ public class PointMapTest extends AbstractWrapperTest {
         }
     }
 
+    @Test
+    public void testCount() {
+        countTest(createInt(0, MEDIUM, 3));
+    }
+
+    /**
+     * The subtree counts must survive a snapshot.
+     */
+    @Test
+    public void testCount_Snapshot() throws IOException {
+        PointMap<Entry> tree = countTest(createInt(0, MEDIUM, 3));
+        if (tree == null) {
+            return;
+        }
+        Path file = Files.createTempFile("tinspin", ".snapshot");
+        try {
+            tree.writeSnapshot(file, ENTRY_SERIALIZER);
+            PointMap<Entry> tree2 = createTree(MEDIUM, tree.getDims());
+            tree2.readSnapshot(file, ENTRY_SERIALIZER);
+            checkCount(tree2, new Random(1));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Tests counting with many equal coordinates and query boundaries on the coordinates.
+     */
+    @Test
+    public void testCount_Line() {
+        List<Entry> data = createInt(0, MEDIUM, 3);
+        int n = 0;
+        for (Entry e : data) {
+            e.p[0] = n % 3;
+            e.p[1] = n++ / 50.0;
+            e.p[2] = n % 5;
+        }
+        countTest(data);
+    }
+
+    /**
+     * @return the tree after the modifications, or null if the candidate has no window queries
+     */
+    private PointMap<Entry> countTest(List<Entry> data) {
+        if (candidate == IDX.COVER) {
+            // no window queries
+            return null;
+        }
+        Random r = new Random(0);
+        int dim = 3;
+        PointMap<Entry> tree = createTree(data.size(), dim);
+        for (Entry e : data) {
+            tree.insert(e.p, e);
+        }
+        checkCount(tree, r);
+
+        // remove and move entries
+        for (int i = 0; i < data.size(); i += 3) {
+            Entry e = data.get(i);
+            if (i % 2 == 0) {
+                assertNotNull(tree.remove(e.p));
+            } else {
+                double[] pNew = e.p.clone();
+                pNew[0] += r.nextInt(10);
+                assertNotNull(tree.update(e.p, pNew));
+                e.p = pNew;
+            }
+        }
+        tree.getStats();
+        checkCount(tree, r);
+        return tree;
+    }
+
+    private void checkCount(PointMap<Entry> tree, Random r) {
+        double[] min = new double[tree.getDims()];
+        double[] max = new double[tree.getDims()];
+        for (int i = 0; i < 200; i++) {
+            for (int d = 0; d < min.length; d++) {
+                // query boundaries are often equal to coordinates
+                double c = i % 2 == 0 ? r.nextInt(BOUND) : r.nextDouble() * BOUND;
+                double len = r.nextInt(4) * r.nextDouble() * BOUND;
+                min[d] = c - len / 2;
+                max[d] = i % 2 == 0 ? Math.floor(c + len / 2) : c + len / 2;
+            }
+            if (i == 0) {
+                Arrays.fill(min, Double.NEGATIVE_INFINITY);
+                Arrays.fill(max, Double.POSITIVE_INFINITY);
+            }
+            int n = 0;
+            for (PointIterator<Entry> it = tree.query(min, max); it.hasNext(); it.next()) {
+                n++;
+            }
+            assertEquals(n, tree.count(min, max));
+        }
+    }
+
+    @Test
+    public void testSpliterator() {
+        if (candidate == IDX.COVER) {
+            // no window queries
+            return;
+        }
+        Random r = new Random(0);
+        List<Entry> data = createInt(0, MEDIUM, 3);
+        PointMap<Entry> tree = createTree(data.size(), 3);
+        for (Entry e : data) {
+            tree.insert(e.p, e);
+        }
+
+        Set<Entry> all = tree.parallelStream().map(PointEntry::value).collect(Collectors.toSet());
+        assertEquals(new HashSet<>(data), all);
+        assertEquals(data.size(), tree.stream().count());
+
+        // The parts of a split spliterator must be disjoint
+        Spliterator<PointEntry<Entry>> s1 = tree.spliterator();
+        Spliterator<PointEntry<Entry>> s2 = s1.trySplit();
+        if (candidate == IDX.KDTREE || candidate == IDX.QUAD_HC2 || candidate == IDX.QUAD_PLAIN
+                || candidate == IDX.RSTAR || candidate == IDX.STR) {
+            assertNotNull(s2);
+            assertEquals(data.size(), s1.estimateSize() + s2.estimateSize());
+        }
+        Set<Entry> parts = new HashSet<>();
+        s1.forEachRemaining(e -> assertTrue(parts.add(e.value())));
+        if (s2 != null) {
+            s2.forEachRemaining(e -> assertTrue(parts.add(e.value())));
+        }
+        assertEquals(all, parts);
+
+        double[] min = new double[3];
+        double[] max = new double[3];
+        for (int i = 0; i < 100; i++) {
+            for (int d = 0; d < min.length; d++) {
+                double c = r.nextDouble() * BOUND;
+                double len = r.nextInt(4) * r.nextDouble() * BOUND;
+                min[d] = c - len / 2;
+                max[d] = c + len / 2;
+            }
+            Set<Entry> expected = new HashSet<>();
+            for (PointIterator<Entry> it = tree.query(min, max); it.hasNext(); ) {
+                expected.add(it.next().value());
+            }
+            Set<Entry> result = StreamSupport.stream(tree.spliterator(min, max), true)
+                    .map(PointEntry::value).collect(Collectors.toSet());
+            assertEquals(expected, result);
+        }
+    }
+
+    @Test
+    public void testQueryRadius() {
+        Random r = new Random(0);
+        int dim = 3;
+        List<Entry> data = createInt(0, MEDIUM, dim);
+        PointMap<Entry> tree = createTree(data.size(), dim);
+        for (Entry e : data) {
+            tree.insert(e.p, e);
+        }
+        for (PointDistance distFn : new PointDistance[]{PointDistance.L2, PointDistance.L1}) {
+            for (int i = 0; i < 100; i++) {
+                double[] center = new double[dim];
+                Arrays.setAll(center, d -> r.nextDouble() * BOUND);
+                double radius = r.nextInt(3) * r.nextDouble() * BOUND / 4;
+                if (i % 2 == 1) {
+                    // radius on a point
+                    radius = distFn.dist(center, data.get(r.nextInt(data.size())).p);
+                }
+                Set<Entry> expected = new HashSet<>();
+                for (Entry e : data) {
+                    if (distFn.dist(center, e.p) <= radius) {
+                        expected.add(e);
+                    }
+                }
+                Set<Entry> result = new HashSet<>();
+                for (PointEntryKnn<Entry> e : tree.queryRadius(center, radius, distFn)) {
+                    assertTrue(result.add(e.value()));
+                    assertEquals(distFn.dist(center, e.point()), e.dist(), 0.0);
+                }
+                assertEquals(expected, result);
+            }
+        }
+
+        // abort query
+        int[] n = {0};
+        tree.queryRadius(data.get(0).p, BOUND, PointDistance.L2, (key, value, dist) -> ++n[0] < 3);
+        assertEquals(3, n[0]);
+    }
+
+    @Test
+    public void testQueryKnnApprox() {
+        Random r = new Random(0);
+        int dim = 5;
+        int k = 10;
+        List<Entry> data = createInt(0, MEDIUM, dim);
+        PointMap<Entry> tree = createTree(data.size(), dim);
+        for (Entry e : data) {
+            tree.insert(e.p, e);
+        }
+        for (int i = 0; i < 100; i++) {
+            double[] center = new double[dim];
+            Arrays.setAll(center, d -> r.nextDouble() * BOUND);
+            double[] exact = data.stream().mapToDouble(e -> dist(center, e.p)).sorted().limit(k).toArray();
+            for (double epsilon : new double[]{0, 0.1, 1}) {
+                PointIteratorKnn<Entry> it = tree.queryKnn(center, k, epsilon);
+                int n = 0;
+                while (it.hasNext()) {
+                    PointEntryKnn<Entry> e = it.next();
+                    assertEquals(dist(center, e.point()), e.dist(), 1e-9);
+                    // Results may be out of order, but the n-th result is at most (1+epsilon)
+                    // farther away than the exact n-th neighbor
+                    assertTrue(e.dist() <= exact[n] * (1 + epsilon) + 1e-9);
+                    n++;
+                }
+                assertEquals(k, n);
+            }
+        }
+    }
+
+    @Test
+    public void testQueryNearest() {
+        Random r = new Random(0);
+        int dim = 3;
+        List<Entry> data = createInt(0, 1000, dim);
+        PointMap<Entry> tree = createTree(data.size(), dim);
+        for (Entry e : data) {
+            tree.insert(e.p, e);
+        }
+        for (int i = 0; i < 20; i++) {
+            double[] center = new double[dim];
+            Arrays.setAll(center, d -> r.nextDouble() * BOUND);
+            double[] exact = data.stream().mapToDouble(e -> dist(center, e.p)).sorted().toArray();
+            PointIteratorKnn<Entry> it = tree.queryNearest(center);
+            Set<Entry> result = new HashSet<>();
+            int n = 0;
+            while (it.hasNext()) {
+                PointEntryKnn<Entry> e = it.next();
+                assertTrue(result.add(e.value()));
+                assertEquals(dist(center, e.point()), e.dist(), 1e-9);
+                assertEquals(exact[n], e.dist(), 1e-9);
+                n++;
+            }
+            assertEquals(data.size(), n);
+        }
+    }
+
     private boolean containsExact(PointMap<Entry> tree, double[] p, int id) {
         Entry e = tree.queryExact(p);
         return e != null && e.id == id;
@@ -328,6 +909,10 @@ public class PointMapTest extends AbstractWrapperTest {
             //case CRITBIT: return new PointArray<>(dims, size);
             case KDTREE:
                 return PointMap.Factory.createKdTree(dims);
+            case KDTREE_OFFHEAP:
+                return PointMap.Factory.createKdTreeOffHeap(dims);
+            case KDTREE_BUCKET:
+                return PointMap.Factory.createKdTreeBucket(dims);
             case PHTREE_MM:
                 return PointMap.Factory.createPhTree(dims);
             case QUAD_HC:
@@ -21,6 +21,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.tinspin.index.Index;
+import org.tinspin.index.PointDistance;
 import org.tinspin.index.PointMultimap;
 import org.tinspin.index.test.util.TestInstances;
 
@@ -52,6 +53,8 @@ public class PointMultimapTest extends AbstractWrapperTest {
         // l.add(new Object[]{IDX.ARRAY});
         // l.add(new Object[]{IDX.COVER});
         l.add(new Object[]{IDX.KDTREE});
+        l.add(new Object[]{IDX.KDTREE_OFFHEAP});
+        l.add(new Object[]{IDX.KDTREE_BUCKET});
         l.add(new Object[]{IDX.PHTREE_MM});
         l.add(new Object[]{IDX.QUAD_HC});
         l.add(new Object[]{IDX.QUAD_HC2});
@@ -193,6 +196,45 @@ public class PointMultimapTest extends AbstractWrapperTest {
         }
     }
 
+    @Test
+    public void testQueryRadius() {
+        Random r = new Random(0);
+        int dim = 3;
+        List<Entry> data = createInt(0, MEDIUM, dim);
+        PointMultimap<Entry> tree = createTree(data.size(), dim);
+        for (Entry e : data) {
+            tree.insert(e.p, e);
+        }
+        for (PointDistance distFn : new PointDistance[]{PointDistance.L2, PointDistance.L1}) {
+            for (int i = 0; i < 100; i++) {
+                double[] center = new double[dim];
+                Arrays.setAll(center, d -> r.nextDouble() * BOUND);
+                double radius = r.nextInt(3) * r.nextDouble() * BOUND / 4;
+                if (i % 2 == 1) {
+                    // radius on a point
+                    radius = distFn.dist(center, data.get(r.nextInt(data.size())).p);
+                }
+                Set<Entry> expected = new HashSet<>();
+                for (Entry e : data) {
+                    if (distFn.dist(center, e.p) <= radius) {
+                        expected.add(e);
+                    }
+                }
+                Set<Entry> result = new HashSet<>();
+                for (PointEntryKnn<Entry> e : tree.queryRadius(center, radius, distFn)) {
+                    assertTrue(result.add(e.value()));
+                    assertEquals(distFn.dist(center, e.point()), e.dist(), 0.0);
+                }
+                assertEquals(expected, result);
+            }
+        }
+
+        // abort query
+        int[] n = {0};
+        tree.queryRadius(data.get(0).p, BOUND, PointDistance.L2, (key, value, dist) -> ++n[0] < 3);
+        assertEquals(3, n[0]);
+    }
+
     @Test
     public void testUpdate() {
         Random r = new Random(0);
@@ -385,6 +427,10 @@ public class PointMultimapTest extends AbstractWrapperTest {
 //            //case CRITBIT: return new PointArray<>(dims, size);
             case KDTREE:
                 return PointMultimap.Factory.createKdTree(dims);
+            case KDTREE_OFFHEAP:
+                return PointMultimap.Factory.createKdTreeOffHeap(dims);
+            case KDTREE_BUCKET:
+                return PointMultimap.Factory.createKdTreeBucket(dims);
             case PHTREE_MM:
                 return PointMultimap.Factory.createPhTree(dims);
             case QUAD_HC:
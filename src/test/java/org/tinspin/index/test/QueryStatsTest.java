@@ -0,0 +1,176 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.test;
+
+import org.junit.After;
+import org.junit.Test;
+import org.tinspin.index.BoxMap;
+import org.tinspin.index.PointMap;
+import org.tinspin.index.QueryStats;
+import org.tinspin.index.QueryStats.QueryType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+import static org.junit.Assert.*;
+
+public class QueryStatsTest {
+
+    private static final int DIMS = 3;
+    private static final int N = 2_000;
+
+    private final List<QueryStats> reported = new ArrayList<>();
+
+    @After
+    public void after() {
+        QueryStats.setListener(null);
+    }
+
+    private static double[][] createPoints(int n) {
+        Random r = new Random(0);
+        double[][] points = new double[n][DIMS];
+        for (double[] p : points) {
+            Arrays.setAll(p, d -> r.nextDouble());
+        }
+        return points;
+    }
+
+    private static int count(Iterator<?> it) {
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        return n;
+    }
+
+    @Test
+    public void testPointMaps() {
+        testPointMap(PointMap.Factory::createKdTree, true);
+        testPointMap(PointMap.Factory::createKdTreeOffHeap, true);
+        testPointMap(PointMap.Factory::createQuadtree, true);
+        testPointMap(PointMap.Factory::createQuadtreeHC, true);
+        testPointMap(PointMap.Factory::createQuadtreeHC2, true);
+        testPointMap(PointMap.Factory::createRStarTree, true);
+        testPointMap(PointMap.Factory::createCoverTree, false);
+    }
+
+    private void testPointMap(IntFunction<PointMap<Integer>> factory, boolean hasWindowQuery) {
+        PointMap<Integer> map = factory.apply(DIMS);
+        double[][] points = createPoints(N);
+        for (int i = 0; i < N; i++) {
+            map.insert(points[i], i);
+        }
+        QueryStats.setListener(reported::add);
+        reported.clear();
+
+        if (hasWindowQuery) {
+            double[] min = {0.2, 0.2, 0.2};
+            double[] max = {0.6, 0.6, 0.6};
+            int n = count(map.query(min, max));
+            assertTrue(n > 0);
+            assertEquals(map.toString(), 1, reported.size());
+            QueryStats s = reported.get(0);
+            assertEquals(QueryType.WINDOW, s.getType());
+            assertEquals(n, s.getResultCount());
+            assertTrue(s.getNodesVisited() > 0);
+            assertTrue(s.getLeavesVisited() > 0);
+            assertTrue(s.getEntriesTested() >= n);
+            assertTrue(s.getEntriesTested() < N);
+            reported.clear();
+        }
+
+        int n = count(map.queryKnn(points[0], 10));
+        assertEquals(10, n);
+        assertEquals(map.toString(), 1, reported.size());
+        QueryStats s = reported.get(0);
+        assertEquals(QueryType.KNN, s.getType());
+        assertEquals(10, s.getResultCount());
+        assertTrue(s.getNodesVisited() > 0);
+        assertTrue(s.getEntriesTested() >= 10);
+        assertTrue(s.getNDistCalc() >= 10);
+        assertTrue(s.getElapsedNanos() >= 0);
+        reported.clear();
+
+        // disabled
+        QueryStats.setListener(null);
+        count(map.queryKnn(points[0], 10));
+        assertTrue(reported.isEmpty());
+    }
+
+    @Test
+    public void testBoxMaps() {
+        testBoxMap(BoxMap.Factory::createQuadtree);
+        testBoxMap(BoxMap.Factory::createQuadtreeHC);
+        testBoxMap(BoxMap.Factory::createRStarTree);
+    }
+
+    private void testBoxMap(IntFunction<BoxMap<Integer>> factory) {
+        BoxMap<Integer> map = factory.apply(DIMS);
+        double[][] points = createPoints(N);
+        for (int i = 0; i < N; i++) {
+            double[] max = points[i].clone();
+            Arrays.setAll(max, d -> max[d] + 0.01);
+            map.insert(points[i], max, i);
+        }
+        QueryStats.setListener(reported::add);
+        reported.clear();
+
+        int n = count(map.queryIntersect(new double[]{0.2, 0.2, 0.2}, new double[]{0.6, 0.6, 0.6}));
+        assertTrue(n > 0);
+        assertEquals(1, reported.size());
+        assertEquals(QueryType.WINDOW, reported.get(0).getType());
+        assertEquals(n, reported.get(0).getResultCount());
+        reported.clear();
+
+        n = count(map.queryKnn(points[0], 5));
+        assertEquals(5, n);
+        assertEquals(1, reported.size());
+        assertEquals(QueryType.KNN, reported.get(0).getType());
+        assertEquals(5, reported.get(0).getResultCount());
+        assertTrue(reported.get(0).getHeapPushCount() > 0);
+        assertTrue(reported.get(0).getHeapPopCount() > 0);
+    }
+
+    @Test
+    public void testHeapCounters() {
+        PointMap<Integer> map = PointMap.Factory.createQuadtreeHC2(DIMS);
+        double[][] points = createPoints(N);
+        for (int i = 0; i < N; i++) {
+            map.insert(points[i], i);
+        }
+        QueryStats.setListener(reported::add);
+        // Iterators report only when they are exhausted
+        Iterator<?> it = map.queryKnn(points[0], 3);
+        it.next();
+        assertTrue(reported.isEmpty());
+        it.next();
+        it.next();
+        assertFalse(it.hasNext());
+        assertEquals(1, reported.size());
+        QueryStats s = reported.get(0);
+        assertEquals(3, s.getResultCount());
+        assertTrue(s.getHeapPushCount() >= s.getHeapPopCount());
+        assertTrue(s.getHeapPopCount() >= 3);
+        assertTrue(s.toString().startsWith("QuadTreeKD2;"));
+    }
+}
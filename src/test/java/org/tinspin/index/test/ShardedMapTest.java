@@ -0,0 +1,347 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.test;
+
+import org.junit.Test;
+import org.tinspin.index.BoxDistance;
+import org.tinspin.index.BoxMap;
+import org.tinspin.index.PointMap;
+import org.tinspin.index.util.ShardedBoxMap;
+import org.tinspin.index.util.ShardedPointMap;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+
+import static org.junit.Assert.*;
+import static org.tinspin.index.Index.*;
+
+public class ShardedMapTest {
+
+    private static final int DIMS = 3;
+    private static final int N = 5_000;
+    private static final int N_SHARDS = 7;
+    private static final int N_QUERIES = 100;
+
+    private static double[][] createPoints(long seed, int n) {
+        Random r = new Random(seed);
+        double[][] points = new double[n][DIMS];
+        for (double[] p : points) {
+            Arrays.setAll(p, d -> r.nextDouble());
+        }
+        return points;
+    }
+
+    private static double[] box(double[] min, double size) {
+        double[] max = min.clone();
+        Arrays.setAll(max, d -> min[d] + size);
+        return max;
+    }
+
+    private static boolean isInside(double[] p, double[] min, double[] max) {
+        for (int d = 0; d < p.length; d++) {
+            if (p[d] < min[d] || p[d] > max[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static double dist(double[] p1, double[] p2) {
+        double d = 0;
+        for (int i = 0; i < p1.length; i++) {
+            d += (p1[i] - p2[i]) * (p1[i] - p2[i]);
+        }
+        return Math.sqrt(d);
+    }
+
+    @Test
+    public void testPointMapKdTree() {
+        testPointMap(PointMap.Factory::createKdTree);
+    }
+
+    @Test
+    public void testPointMapQuadtree() {
+        testPointMap(PointMap.Factory::createQuadtreeHC2);
+    }
+
+    private void testPointMap(IntFunction<PointMap<Integer>> factory) {
+        double[][] points = createPoints(0, N);
+        ShardedPointMap<Integer> map =
+                ShardedPointMap.create(DIMS, N_SHARDS, Arrays.copyOf(points, 500), factory);
+        assertEquals(N_SHARDS, map.getShardCount());
+        for (int i = 0; i < N; i++) {
+            map.insert(points[i], i);
+        }
+        assertEquals(N, map.size());
+        assertEquals(DIMS, map.getStats().dims);
+        for (int i = 0; i < N; i++) {
+            assertTrue(map.contains(points[i]));
+            assertEquals(i, (int) map.queryExact(points[i]));
+        }
+        int n = 0;
+        for (PointIterator<Integer> it = map.iterator(); it.hasNext(); it.next()) {
+            n++;
+        }
+        assertEquals(N, n);
+
+        // move every second point
+        double[][] moved = createPoints(1, N);
+        for (int i = 0; i < N; i += 2) {
+            assertEquals(i, (int) map.update(points[i], moved[i]));
+            points[i] = moved[i];
+        }
+        assertNull(map.update(createPoints(2, 1)[0], moved[0]));
+        assertEquals(N, map.size());
+
+        Random r = new Random(3);
+        for (int q = 0; q < N_QUERIES; q++) {
+            double[] min = new double[DIMS];
+            Arrays.setAll(min, d -> r.nextDouble() - 0.1);
+            double[] max = box(min, 0.3);
+            int expected = 0;
+            for (double[] p : points) {
+                expected += isInside(p, min, max) ? 1 : 0;
+            }
+            int found = 0;
+            for (PointIterator<Integer> it = map.query(min, max); it.hasNext(); ) {
+                PointEntry<Integer> e = it.next();
+                assertTrue(isInside(e.point(), min, max));
+                assertArrayEquals(points[e.value()], e.point(), 0.0);
+                found++;
+            }
+            assertEquals(expected, found);
+            assertEquals(expected, map.count(min, max));
+            int[] visited = {0};
+            map.query(min, max, (key, value) -> ++visited[0] > 0);
+            assertEquals(expected, visited[0]);
+
+            double[] center = createPoints(q + 10, 1)[0];
+            for (int k : new int[]{1, 10, N + 1}) {
+                double[] dists = Arrays.stream(points).mapToDouble(p -> dist(center, p)).sorted().toArray();
+                PointIteratorKnn<Integer> it = map.queryKnn(center, k);
+                int i = 0;
+                for (; it.hasNext(); i++) {
+                    PointEntryKnn<Integer> e = it.next();
+                    assertEquals(dists[i], e.dist(), 0.0);
+                    assertEquals(dists[i], dist(center, points[e.value()]), 0.0);
+                }
+                assertEquals(Math.min(k, N), i);
+            }
+        }
+
+        for (int i = 0; i < N; i++) {
+            assertEquals(i, (int) map.remove(points[i]));
+        }
+        assertEquals(0, map.size());
+        assertFalse(map.queryKnn(points[0], 3).hasNext());
+    }
+
+    @Test
+    public void testBoxMap() {
+        double[][] points = createPoints(0, N);
+        ShardedBoxMap<Integer> map = ShardedBoxMap.create(DIMS, N_SHARDS, Arrays.copyOf(points, 500),
+                BoxMap.Factory::createRStarTree);
+        double[][] max = new double[N][];
+        for (int i = 0; i < N; i++) {
+            max[i] = box(points[i], 0.05);
+            map.insert(points[i], max[i], i);
+        }
+        assertEquals(N, map.size());
+        for (int i = 0; i < N; i++) {
+            assertTrue(map.contains(points[i], max[i]));
+            assertEquals(i, (int) map.queryExact(points[i], max[i]));
+        }
+        double[][] moved = createPoints(1, N);
+        for (int i = 0; i < N; i += 2) {
+            double[] maxNew = box(moved[i], 0.05);
+            assertEquals(i, (int) map.update(points[i], max[i], moved[i], maxNew));
+            points[i] = moved[i];
+            max[i] = maxNew;
+        }
+        double[] missing = createPoints(2, 1)[0];
+        assertNull(map.update(missing, box(missing, 0.05), moved[0], box(moved[0], 0.05)));
+        assertEquals(N, map.size());
+
+        Random r = new Random(3);
+        for (int q = 0; q < N_QUERIES; q++) {
+            double[] qMin = new double[DIMS];
+            Arrays.setAll(qMin, d -> r.nextDouble() - 0.1);
+            double[] qMax = box(qMin, 0.2);
+            int expected = 0;
+            for (int i = 0; i < N; i++) {
+                boolean overlaps = true;
+                for (int d = 0; d < DIMS; d++) {
+                    overlaps &= points[i][d] <= qMax[d] && max[i][d] >= qMin[d];
+                }
+                expected += overlaps ? 1 : 0;
+            }
+            int found = 0;
+            for (BoxIterator<Integer> it = map.queryIntersect(qMin, qMax); it.hasNext(); it.next()) {
+                found++;
+            }
+            assertEquals(expected, found);
+            assertEquals(expected, map.count(qMin, qMax));
+
+            double[] center = createPoints(q + 10, 1)[0];
+            double[] dists = new double[N];
+            for (int i = 0; i < N; i++) {
+                dists[i] = BoxDistance.edgeDistance(center, points[i], max[i]);
+            }
+            Arrays.sort(dists);
+            int i = 0;
+            for (BoxIteratorKnn<Integer> it = map.queryKnn(center, 10); it.hasNext(); i++) {
+                assertEquals(dists[i], it.next().dist(), 1e-12);
+            }
+            assertEquals(10, i);
+        }
+
+        map.clear();
+        assertEquals(0, map.size());
+        assertFalse(map.queryIntersect(qMinAll(), qMaxAll()).hasNext());
+    }
+
+    private static double[] qMinAll() {
+        double[] min = new double[DIMS];
+        Arrays.fill(min, Double.NEGATIVE_INFINITY);
+        return min;
+    }
+
+    private static double[] qMaxAll() {
+        double[] max = new double[DIMS];
+        Arrays.fill(max, Double.POSITIVE_INFINITY);
+        return max;
+    }
+
+    /**
+     * Every thread inserts and removes its own points while reading the 'stable' points.
+     */
+    @Test
+    public void testConcurrent() throws InterruptedException {
+        double[][] stable = createPoints(0, N);
+        PointMap<Integer> map = ShardedPointMap.create(DIMS, N_SHARDS, stable, PointMap.Factory::createKdTree);
+        for (int i = 0; i < N; i++) {
+            map.insert(stable[i], i);
+        }
+        int nThreads = 4;
+        int nOps = 10_000;
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] threads = new Thread[nThreads];
+        for (int t = 0; t < nThreads; t++) {
+            int seed = t + 1;
+            threads[t] = new Thread(() -> {
+                try {
+                    Random r = new Random(seed);
+                    double[][] own = createPoints(seed, nOps);
+                    for (int i = 0; i < nOps; i++) {
+                        map.insert(own[i], -1);
+                        int pos = r.nextInt(N);
+                        assertEquals(pos, (int) map.queryExact(stable[pos]));
+                        assertEquals(0, map.queryKnn(stable[pos], 3).next().dist(), 0.0);
+                        if (i % 10 == 0) {
+                            assertEquals(-1, (int) map.remove(own[i / 10]));
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        assertEquals(N + nThreads * (nOps - nOps / 10), map.size());
+    }
+
+    /**
+     * One thread moves the points to other shards while another thread removes them.
+     * Every point must be either moved or removed, but not both.
+     */
+    @Test
+    public void testConcurrentUpdateRemove() throws InterruptedException {
+        double[][] points = createPoints(0, N);
+        double[][] moved = createPoints(1, N);
+        PointMap<Integer> map = ShardedPointMap.create(DIMS, N_SHARDS, points, PointMap.Factory::createKdTree);
+        for (int i = 0; i < N; i++) {
+            map.insert(points[i], i);
+        }
+        Integer[] updated = new Integer[N];
+        Integer[] removed = new Integer[N];
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread updater = new Thread(() -> {
+            try {
+                for (int i = 0; i < N; i++) {
+                    updated[i] = map.update(points[i], moved[i]);
+                }
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            }
+        });
+        Thread remover = new Thread(() -> {
+            try {
+                for (int i = 0; i < N; i++) {
+                    removed[i] = map.remove(points[i]);
+                }
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            }
+        });
+        updater.start();
+        remover.start();
+        updater.join();
+        remover.join();
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        int nMoved = 0;
+        for (int i = 0; i < N; i++) {
+            assertTrue(updated[i] == null ^ removed[i] == null);
+            if (updated[i] != null) {
+                assertEquals(i, (int) updated[i]);
+                assertEquals(i, (int) map.queryExact(moved[i]));
+                nMoved++;
+            } else {
+                assertEquals(i, (int) removed[i]);
+                assertFalse(map.contains(moved[i]));
+            }
+        }
+        assertEquals(nMoved, map.size());
+    }
+
+    @Test
+    public void testSingleShard() {
+        double[][] points = createPoints(0, 100);
+        PointMap<Integer> map = ShardedPointMap.create(DIMS, 1, points, PointMap.Factory::createKdTree);
+        for (int i = 0; i < points.length; i++) {
+            map.insert(points[i], i);
+        }
+        assertEquals(3, map.queryExact(points[3]).intValue());
+        assertEquals(points.length, map.count(qMinAll(), qMaxAll()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSampleTooSmall() {
+        ShardedPointMap.create(DIMS, N_SHARDS, createPoints(0, N_SHARDS - 1), PointMap.Factory::createKdTree);
+    }
+}
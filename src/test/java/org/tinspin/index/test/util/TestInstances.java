@@ -13,6 +13,8 @@ import org.tinspin.index.array.PointArray;
 import org.tinspin.index.array.RectArray;
 import org.tinspin.index.covertree.CoverTree;
 import org.tinspin.index.kdtree.KDTree;
+import org.tinspin.index.kdtree.KDTreeBucket;
+import org.tinspin.index.kdtree.KDTreeOffHeap;
 import org.tinspin.index.phtree.PHTreeMMP;
 import org.tinspin.index.phtree.PHTreeP;
 import org.tinspin.index.phtree.PHTreeR;
@@ -42,6 +44,10 @@ public class TestInstances {
 		COVER(CoverTree.class.getName(), ""),
 		/** KD-Tree */
 		KDTREE(KDTree.class.getName(), ""),
+		/** KD-Tree with off-heap nodes */
+		KDTREE_OFFHEAP(KDTreeOffHeap.class.getName(), ""),
+		/** Bucket KD-Tree with leaves of up to 32 entries */
+		KDTREE_BUCKET(KDTreeBucket.class.getName(), ""),
 		/** Quadtree with HC navigation */
 		QUAD_HC(QuadTreeKD.class.getName(), QuadTreeRKD.class.getName()),
 		/** Quadtree with HC navigation v2 */
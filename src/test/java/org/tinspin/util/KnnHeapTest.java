@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016-2024 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.util;
+
+import org.junit.Test;
+import org.tinspin.index.util.KnnHeap;
+import org.tinspin.index.util.KnnList;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class KnnHeapTest {
+
+    private static final int SEEDS = 10;
+
+    @Test
+    public void testAgainstKnnList() {
+        KnnHeap<Integer> heap = new KnnHeap<>(0);
+        for (int seed = 0; seed < SEEDS; seed++) {
+            for (int k : new int[]{0, 1, 2, 10, 100, 1000}) {
+                Random rnd = new Random(seed);
+                // reuse the heap
+                heap.reset(k, Double.POSITIVE_INFINITY);
+                KnnList<Integer> list = new KnnList<>(k);
+                double[] dists = new double[5000];
+                for (int i = 0; i < dists.length; i++) {
+                    // few distinct values, so there are many equal distances
+                    dists[i] = rnd.nextInt(1000);
+                    assertEquals(list.add(i, dists[i]), heap.add(i, dists[i]), 0);
+                }
+                heap.sort();
+                assertEquals(list.size(), heap.size());
+                for (int i = 0; i < heap.size(); i++) {
+                    assertEquals(list.dist(i), heap.dist(i), 0);
+                    assertEquals(dists[heap.get(i)], heap.dist(i), 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMaxDist() {
+        KnnHeap<Integer> heap = new KnnHeap<>(3, 5);
+        assertEquals(5, heap.maxDist(), 0);
+        heap.add(1, 6);
+        assertEquals(0, heap.size());
+        heap.add(2, 4);
+        heap.add(3, 2);
+        assertEquals(5, heap.maxDist(), 0);
+        heap.add(4, 3);
+        assertEquals(4, heap.maxDist(), 0);
+        heap.add(5, 1);
+        assertEquals(3, heap.maxDist(), 0);
+        heap.sort();
+        assertEquals(5, (int) heap.get(0));
+        assertEquals(3, (int) heap.get(1));
+        assertEquals(4, (int) heap.get(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeK() {
+        new KnnHeap<Integer>(1).reset(-1, Double.POSITIVE_INFINITY);
+    }
+}